@@ -0,0 +1,79 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AppInitializerTest {
+
+    private static final String TAG = AppInitializerTest.class.getSimpleName();
+
+    private AppInitializer initializer;
+    private ModelConfig    config;
+    private Context        context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation()
+                .getTargetContext();
+        initializer = AppInitializer.getInstance();
+        config = ModelConfig.getInstance(context);
+        initializer.start(context);
+    }
+
+    @After
+    public void tearDown() {
+        Log.i(TAG, initializer.toString());
+        initializer.release();
+    }
+
+    @Test
+    public void everyComponentGetsReady()
+            throws ExecutionException, InterruptedException {
+        assertTrue(initializer.awaitOpenCv(context));
+        assertNotNull(initializer.getStillFaceDetector(context));
+        initializer.getFaceDetection().get();
+        for (String modelPath : config.getModelPaths()) {
+            assertNotNull(initializer.getModel(modelPath).get());
+        }
+        assertTrue(initializer.getColdStartStats().size() >=
+                3 + config.getModelPaths().size());
+    }
+
+    @Test
+    public void detectorsGetTheWarmInterpreter()
+            throws ExecutionException, InterruptedException, IOException {
+        final String modelPath = config.getModelPaths().get(0);
+        final ModelRegistry.Lease warm =
+                initializer.getModel(modelPath).get();
+        final ModelRegistry registry = ModelRegistry.getInstance();
+        final int residentBefore = registry.getResidentModelCount();
+
+        final ModelRegistry.Lease lease = registry.acquire(context,
+                config.selectModelPath(modelPath),
+                config.getOptions(modelPath));
+        assertEquals(residentBefore, registry.getResidentModelCount());
+        assertSame(warm.getInputBuffer(), lease.getInputBuffer());
+        lease.close();
+    }
+
+    @Test
+    public void startingTwiceHasNoEffect() {
+        final Object openCv = initializer.getOpenCv();
+        initializer.start(context);
+        assertSame(openCv, initializer.getOpenCv());
+    }
+}
@@ -0,0 +1,125 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.app.Activity;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.joanna.thesis.passportphotocreator.processing.light.verification.ShadowVerificator.EvenlyLightened;
+import org.joanna.thesis.passportphotocreator.processing.light.verification.ShadowVerificatorFloatMobileNetV2;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getMatFromFile;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.launchPhotoMakerActivity;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the throughput of the shadow verification run on batches of 1, 2,
+ * 4 and 8 pictures on the CPU, against the pictures run one by one, and
+ * logs how many classes of the batched runs agree with the single ones.
+ */
+public class BatchInferenceBenchmark {
+
+    private static final String TAG =
+            BatchInferenceBenchmark.class.getSimpleName();
+
+    private static final int          ITERATIONS  = 10;
+    private static final List<String> FILES       = Arrays.asList(
+            "face.jpg", "shadow1.jpg", "shadow2.jpg", "shadow3.jpg");
+    private static final int[]        BATCH_SIZES = {1, 2, 4, 8};
+
+    private Context                           context;
+    private ShadowVerificatorFloatMobileNetV2 verificator;
+    private List<Mat>                         pictures;
+
+    @Before
+    public void setUp() throws IOException {
+        Activity activity = launchPhotoMakerActivity();
+        context = InstrumentationRegistry.getInstrumentation().getContext();
+        verificator = new ShadowVerificatorFloatMobileNetV2(activity);
+        pictures = new ArrayList<>();
+        for (String file : FILES) {
+            pictures.add(getMatFromFile(file, context));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        verificator.close();
+        for (Mat picture : pictures) {
+            picture.release();
+        }
+    }
+
+    /**
+     * @return the pictures repeated to fill the batch
+     */
+    private List<Mat> getBatch(final int size) {
+        final List<Mat> batch = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            batch.add(pictures.get(i % pictures.size()));
+        }
+        return batch;
+    }
+
+    private List<EvenlyLightened> classifyOneByOne(final List<Mat> images) {
+        final List<EvenlyLightened> classes = new ArrayList<>();
+        for (Mat image : images) {
+            verificator.classify(image);
+            classes.add(verificator.isEvenlyLightened());
+        }
+        return classes;
+    }
+
+    @Test
+    public void compareBatchSizes() {
+        final List<Mat> largest =
+                getBatch(BATCH_SIZES[BATCH_SIZES.length - 1]);
+        final List<EvenlyLightened> expected = classifyOneByOne(largest);
+        long totalNs = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final long start = System.nanoTime();
+            classifyOneByOne(largest);
+            totalNs += System.nanoTime() - start;
+        }
+        Log.i(TAG, String.format(Locale.US,
+                "One by one: %.1f pictures/s",
+                ITERATIONS * largest.size() * 1e9 / totalNs));
+
+        for (int size : BATCH_SIZES) {
+            final List<Mat> batch = getBatch(size);
+            // warm up, resizing the input to the batch
+            verificator.classify(batch);
+            totalNs = 0;
+            List<EvenlyLightened> classes = null;
+            for (int i = 0; i < ITERATIONS; i++) {
+                final long start = System.nanoTime();
+                classes = verificator.classify(batch);
+                totalNs += System.nanoTime() - start;
+            }
+            assertEquals(size, classes.size());
+            int agreeing = 0;
+            for (int i = 0; i < size; i++) {
+                if (classes.get(i) == expected.get(i)) {
+                    agreeing++;
+                }
+            }
+            Log.i(TAG, String.format(Locale.US,
+                    "Batch of %d%s: %.1f pictures/s, %d/%d classes as " +
+                            "one by one",
+                    size, verificator.isBatchSupported() ? "" :
+                            " (run one by one)",
+                    ITERATIONS * size * 1e9 / totalNs, agreeing, size));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.app.Activity;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.joanna.thesis.passportphotocreator.processing.EnhancementGraph;
+import org.joanna.thesis.passportphotocreator.processing.Enhancer;
+import org.joanna.thesis.passportphotocreator.processing.background.enhancement.BackgroundEnhancement;
+import org.joanna.thesis.passportphotocreator.processing.light.enhancement.ShadowRemoverPix2Pix;
+import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getMatFromFile;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.launchPhotoMakerActivity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares running the background enhancement and the shadow removal one
+ * after another, each on the result of the previous one, as done before, with
+ * running them in parallel in {@link EnhancementGraph}. Latencies are logged.
+ */
+public class EnhancementGraphBenchmark {
+
+    private static final String TAG =
+            EnhancementGraphBenchmark.class.getSimpleName();
+
+    private static final int          ITERATIONS = 5;
+    private static final List<String> FILES      =
+            Arrays.asList("background1.jpg", "shadow1.jpg");
+
+    private BackgroundEnhancement backgroundEnhancer;
+    private ShadowRemoverPix2Pix  shadowEnhancer;
+    private EnhancementGraph      graph;
+    private Context               context;
+
+    @Before
+    public void setUp() throws IOException {
+        Activity activity = launchPhotoMakerActivity();
+        backgroundEnhancer = new BackgroundEnhancement(activity);
+        shadowEnhancer = new ShadowRemoverPix2Pix(activity);
+        graph = new EnhancementGraph(new BackgroundEnhancement(activity),
+                new ShadowRemoverPix2Pix(activity));
+        context = InstrumentationRegistry.getInstrumentation().getContext();
+    }
+
+    @After
+    public void tearDown() {
+        backgroundEnhancer.close();
+        shadowEnhancer.close();
+        graph.close();
+    }
+
+    private Mat getPicture(final String file) throws IOException {
+        final Mat picture = getMatFromFile(file, context);
+        final Mat resized = ImageUtils.resizeMatToFinalSize(picture);
+        picture.release();
+        return resized;
+    }
+
+    /**
+     * Enhances the picture as before the enhancement graph was introduced.
+     */
+    private Mat enhanceSequentially(final Mat picture) {
+        Mat enhanced = picture;
+        for (Enhancer enhancer : Arrays.<Enhancer>asList(
+                backgroundEnhancer, shadowEnhancer)) {
+            if (!enhancer.verify(enhanced)) {
+                enhanced = enhancer.enhance(enhanced);
+            }
+        }
+        return enhanced;
+    }
+
+    @Test
+    public void testGraphEnhancesLikeSequentialEnhancers() throws IOException {
+        for (String file : FILES) {
+            final Mat picture = getPicture(file);
+            final Mat sequential = enhanceSequentially(picture);
+            final Mat parallel = graph.enhance(picture);
+            assertNotNull(parallel);
+            assertEquals(sequential.size(), parallel.size());
+            assertEquals(sequential.type(), parallel.type());
+            assertTrue(backgroundEnhancer.verify(parallel) ||
+                    !backgroundEnhancer.verify(sequential));
+            assertTrue(shadowEnhancer.verify(parallel) ||
+                    !shadowEnhancer.verify(sequential));
+            picture.release();
+        }
+    }
+
+    @Test
+    public void benchmarkSequentialVersusGraph() throws IOException {
+        for (String file : FILES) {
+            final Mat picture = getPicture(file);
+            // warm up the interpreters
+            enhanceSequentially(picture);
+            graph.enhance(picture);
+
+            long sequentialNs = 0;
+            long graphNs = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                enhanceSequentially(picture);
+                sequentialNs += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                graph.enhance(picture);
+                graphNs += System.nanoTime() - start;
+            }
+            Log.i(TAG, file + ": sequential enhancement " +
+                    sequentialNs / ITERATIONS / 1000000 + " ms, graph " +
+                    graphNs / ITERATIONS / 1000000 + " ms (" +
+                    graph.getBackgroundStats() + "; " +
+                    graph.getShadowStats() + ")");
+            picture.release();
+        }
+    }
+}
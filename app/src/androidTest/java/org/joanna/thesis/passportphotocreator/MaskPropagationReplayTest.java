@@ -0,0 +1,164 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.app.Activity;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.joanna.thesis.passportphotocreator.processing.background.BackgroundUtils;
+import org.joanna.thesis.passportphotocreator.processing.background.ImageSegmentorFloatMobileUNet;
+import org.joanna.thesis.passportphotocreator.processing.background.MaskPropagator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getMatFromFile;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.launchPhotoMakerActivity;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays slowly swaying sequences made of the test pictures through a
+ * segmentor with the mask propagation and through one running the model on
+ * every frame, and compares the person masks. The share of the frames served
+ * by the propagation and the IoU drift of the propagated masks are logged.
+ */
+public class MaskPropagationReplayTest {
+
+    private static final String TAG =
+            MaskPropagationReplayTest.class.getSimpleName();
+
+    private static final List<String> FILES  = Arrays.asList(
+            "background1.jpg", "background2.jpg", "face.jpg", "shadow1.jpg");
+    private static final int          FRAMES = 30;
+    /** Sway of the person, in pixels of the picture per frame. */
+    private static final double       SWAY   = 1.5;
+
+    private Activity                      activity;
+    private Context                       context;
+    private ImageSegmentorFloatMobileUNet propagating;
+    private ImageSegmentorFloatMobileUNet reference;
+
+    @Before
+    public void setUp() throws IOException {
+        activity = launchPhotoMakerActivity();
+        context = InstrumentationRegistry.getInstrumentation().getContext();
+        propagating = new ImageSegmentorFloatMobileUNet(activity);
+        propagating.enableMaskPropagation();
+        reference = new ImageSegmentorFloatMobileUNet(activity);
+    }
+
+    @After
+    public void tearDown() {
+        propagating.close();
+        reference.close();
+    }
+
+    /**
+     * @return the picture moved sideways and up and down, as a person
+     *         swaying in front of the camera
+     */
+    private static Mat getFrame(final Mat picture, final int frame) {
+        final double dx = SWAY * frame;
+        final double dy = SWAY * 4 * Math.sin(frame / 5.0);
+        final Mat shift = Imgproc.getRotationMatrix2D(new Point(), 0, 1);
+        shift.put(0, 2, dx);
+        shift.put(1, 2, dy);
+        final Mat moved = new Mat();
+        Imgproc.warpAffine(picture, moved, shift, picture.size(),
+                Imgproc.INTER_LINEAR, Core.BORDER_REPLICATE);
+        shift.release();
+        return moved;
+    }
+
+    /**
+     * @return intersection over union of the person masks, CV_32FC3 of 0
+     *         and 1
+     */
+    private static double getIoU(final Mat first, final Mat second) {
+        final Mat intersection = new Mat();
+        final Mat union = new Mat();
+        Core.min(first, second, intersection);
+        Core.max(first, second, union);
+        Imgproc.cvtColor(intersection, intersection, Imgproc.COLOR_BGR2GRAY);
+        Imgproc.cvtColor(union, union, Imgproc.COLOR_BGR2GRAY);
+        final int unionArea = Core.countNonZero(union);
+        final double iou = unionArea == 0 ? 1 :
+                Core.countNonZero(intersection) / (double) unionArea;
+        intersection.release();
+        union.release();
+        return iou;
+    }
+
+    @Test
+    public void propagatedMasksFollowTheInference() throws IOException {
+        double iouSum = 0;
+        double worstIoU = 1;
+        int propagatedFrames = 0;
+        for (String file : FILES) {
+            final Mat picture = getMatFromFile(file, context);
+            final Mat small = new Mat();
+            Imgproc.resize(picture, small, new Size(
+                    BackgroundUtils.getSegmentedWidth(),
+                    picture.height() * BackgroundUtils.getSegmentedWidth() /
+                            picture.width()));
+            picture.release();
+            propagating.getMaskPropagator().clear();
+            for (int i = 0; i < FRAMES; i++) {
+                final Mat frame = getFrame(small, i);
+                BackgroundUtils.segment(frame, propagating);
+                BackgroundUtils.segment(frame, reference);
+                if (propagating.isMaskPropagated()) {
+                    final Mat propagated = propagating.getMaskedPerson();
+                    final Mat inferred = reference.getMaskedPerson();
+                    final double iou = getIoU(propagated, inferred);
+                    iouSum += iou;
+                    worstIoU = Math.min(worstIoU, iou);
+                    propagatedFrames++;
+                    Log.d(TAG, String.format(Locale.US,
+                            "%s frame %d: propagated mask IoU %.3f",
+                            file, i, iou));
+                    propagated.release();
+                    inferred.release();
+                }
+                frame.release();
+            }
+            small.release();
+        }
+        final MaskPropagator propagator = propagating.getMaskPropagator();
+        Log.i(TAG, propagator.toString());
+        Log.i(TAG, String.format(Locale.US,
+                "Propagated masks: mean IoU %.3f, worst IoU %.3f",
+                propagatedFrames == 0 ? 1 : iouSum / propagatedFrames,
+                worstIoU));
+
+        assertTrue(propagator.getPropagatedFraction() > 0);
+        assertTrue(iouSum / propagatedFrames > 0.85);
+    }
+
+    @Test
+    public void clearedMaskIsNotPropagated() throws IOException {
+        final Mat picture = getMatFromFile(FILES.get(0), context);
+        final Mat first = getFrame(picture, 0);
+        final Mat second = getFrame(picture, 1);
+        picture.release();
+        BackgroundUtils.segment(first, propagating);
+        // e.g. the face track changed
+        propagating.getMaskPropagator().clear();
+        BackgroundUtils.segment(second, propagating);
+        assertFalse(propagating.isMaskPropagated());
+        first.release();
+        second.release();
+    }
+}
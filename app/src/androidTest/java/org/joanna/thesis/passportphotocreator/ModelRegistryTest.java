@@ -0,0 +1,81 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.content.Context;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ModelRegistryTest {
+
+    private static final String MODEL       = "munet_mnv3_wm05.tflite";
+    private static final int    INPUT_BYTES = 224 * 224 * 3 * 4;
+
+    private static final ModelOptions ONE_THREAD  =
+            new ModelOptions(1, false, false, false);
+    private static final ModelOptions TWO_THREADS =
+            new ModelOptions(2, false, false, false);
+
+    private ModelRegistry registry;
+    private Context       context;
+
+    @Before
+    public void setUp() {
+        registry = ModelRegistry.getInstance();
+        context = InstrumentationRegistry.getInstrumentation()
+                .getTargetContext();
+    }
+
+    @Test
+    public void leasesOfTheSameModelShareTheInterpreter() throws IOException {
+        final int residentBefore = registry.getResidentModelCount();
+
+        ModelRegistry.Lease first =
+                registry.acquire(context, MODEL, ONE_THREAD);
+        ModelRegistry.Lease second =
+                registry.acquire(context, MODEL, ONE_THREAD);
+        assertEquals(residentBefore + 1, registry.getResidentModelCount());
+        assertSame(first.getInputBuffer(), second.getInputBuffer());
+        assertEquals(INPUT_BYTES, first.getInputBuffer().capacity());
+        assertTrue(registry.getArenaBytes() >= INPUT_BYTES);
+
+        first.close();
+        first.close();
+        assertEquals(residentBefore + 1, registry.getResidentModelCount());
+        second.close();
+        assertEquals(residentBefore, registry.getResidentModelCount());
+    }
+
+    @Test
+    public void differentOptionsGetDifferentInterpreters()
+            throws IOException {
+        final int residentBefore = registry.getResidentModelCount();
+
+        ModelRegistry.Lease first = registry.acquire(
+                context, MODEL, ONE_THREAD);
+        ModelRegistry.Lease second = registry.acquire(
+                context, MODEL, TWO_THREADS);
+        assertEquals(residentBefore + 2, registry.getResidentModelCount());
+        assertNotSame(first.getInputBuffer(), second.getInputBuffer());
+
+        first.close();
+        second.close();
+        assertEquals(residentBefore, registry.getResidentModelCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedLeaseCannotRun() throws IOException {
+        ModelRegistry.Lease lease = registry.acquire(
+                context, MODEL, ONE_THREAD);
+        lease.close();
+        lease.run(lease.getInputBuffer(), new float[1][224][224][1]);
+    }
+}
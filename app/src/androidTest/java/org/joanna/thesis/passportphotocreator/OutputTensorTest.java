@@ -0,0 +1,58 @@
+package org.joanna.thesis.passportphotocreator;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.opencv.core.CvType.CV_32FC3;
+import static org.opencv.core.CvType.CV_8UC3;
+
+public class OutputTensorTest {
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void matSeesWhatIsWrittenToTheBuffer() {
+        OutputTensor output = new OutputTensor(2, 3, CV_32FC3);
+        ByteBuffer buffer = output.getBuffer();
+        for (int i = 0; buffer.hasRemaining(); i++) {
+            buffer.putFloat(i / 17f);
+        }
+
+        Mat mat = output.getMat();
+        assertEquals(2, mat.rows());
+        assertEquals(3, mat.cols());
+        float[] pixel = new float[3];
+        mat.get(1, 2, pixel);
+        assertArrayEquals(new float[]{15 / 17f, 16 / 17f, 17 / 17f},
+                pixel, 0);
+        assertEquals(0, output.getBuffer().position());
+        output.release();
+    }
+
+    @Test
+    public void scalingTo8BitsRoundsLikeBefore() {
+        OutputTensor output = new OutputTensor(1, 2, CV_32FC3);
+        float[] values = {0f, 0.1f, 0.5f, 0.77f, 0.999f, 1f};
+        output.getBuffer().asFloatBuffer().put(values);
+
+        Mat scaled = new Mat();
+        output.getMat().convertTo(scaled, CV_8UC3, 255);
+        byte[] pixels = new byte[values.length];
+        scaled.get(0, 0, pixels);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(Math.round(values[i] * 255), pixels[i] & 0xFF);
+        }
+        scaled.release();
+        output.release();
+    }
+}
@@ -0,0 +1,204 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.FaceDetector;
+
+import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static com.google.android.gms.vision.Frame.ROTATION_90;
+import static org.joanna.thesis.passportphotocreator.processing.face.FaceUtils.getFaceBoundingBox;
+import static org.joanna.thesis.passportphotocreator.utils.ImageUtils.PICTURE_PROCESS_SCALE;
+import static org.joanna.thesis.passportphotocreator.utils.PPCUtils.AndroidRectToOpenCVRect;
+import static org.joanna.thesis.passportphotocreator.utils.PPCUtils.multiplyRect;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.RotateBitmap;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getBitmapFromFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares decoding of the whole picture taken by the camera, as done before,
+ * with decoding it subsampled for the face detection and then decoding only
+ * the face region, as done by
+ * {@link ImageUtils#getFaceMatFromPictureTaken}. Both run on a 12 MP JPEG;
+ * latency and peak heap usage are logged.
+ */
+public class PictureDecodingBenchmark {
+
+    private static final String TAG =
+            PictureDecodingBenchmark.class.getSimpleName();
+
+    private static final int PICTURE_WIDTH  = 4000;
+    private static final int PICTURE_HEIGHT = 3000;
+    private static final int ITERATIONS     = 5;
+
+    private FaceDetector detector;
+    private byte[]       picture;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    /**
+     * Decodes the picture as before the region decoding was introduced.
+     */
+    private static Mat decodeWholePicture(
+            final byte[] bytes, final FaceDetector detector) {
+        Bitmap bmp = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        Bitmap smallImage = Bitmap.createScaledBitmap(
+                bmp,
+                bmp.getWidth() / PICTURE_PROCESS_SCALE,
+                bmp.getHeight() / PICTURE_PROCESS_SCALE,
+                false);
+        Frame frame = new Frame.Builder().setBitmap(smallImage)
+                                         .setRotation(ROTATION_90)
+                                         .build();
+        SparseArray<Face> faces = detector.detect(frame);
+        ImageUtils.safelyRemoveBitmap(smallImage);
+        if (faces.size() != 1) {
+            ImageUtils.safelyRemoveBitmap(bmp);
+            return null;
+        }
+        Mat picture = new Mat();
+        Utils.bitmapToMat(bmp, picture);
+        ImageUtils.safelyRemoveBitmap(bmp);
+        picture = ImageUtils.rotateMat(picture);
+        Rect faceBoundingBox = multiplyRect(
+                PICTURE_PROCESS_SCALE, getFaceBoundingBox(faces.valueAt(0)));
+        picture = picture.submat(AndroidRectToOpenCVRect(faceBoundingBox));
+        return ImageUtils.resizeMatToFinalSize(picture);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        final Context context =
+                InstrumentationRegistry.getInstrumentation().getContext();
+        detector = new FaceDetector.Builder(context)
+                .setProminentFaceOnly(true)
+                .setMode(FaceDetector.ACCURATE_MODE)
+                .build();
+
+        // camera pictures are in the sensor orientation
+        final Bitmap face = getBitmapFromFile("face.jpg", context);
+        final Bitmap rotated = RotateBitmap(face, 270);
+        ImageUtils.safelyRemoveBitmap(face);
+        final Bitmap scaled = Bitmap.createScaledBitmap(
+                rotated, PICTURE_WIDTH, PICTURE_HEIGHT, true);
+        ImageUtils.safelyRemoveBitmap(rotated);
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        scaled.compress(Bitmap.CompressFormat.JPEG, 95, stream);
+        ImageUtils.safelyRemoveBitmap(scaled);
+        picture = stream.toByteArray();
+    }
+
+    @After
+    public void tearDown() {
+        detector.release();
+    }
+
+    @Test
+    public void testRegionDecodingFindsTheFace() {
+        final Mat regionDecoded =
+                ImageUtils.getFaceMatFromPictureTaken(picture, detector);
+        final Mat wholeDecoded = decodeWholePicture(picture, detector);
+        assertNotNull(regionDecoded);
+        assertNotNull(wholeDecoded);
+        assertEquals(wholeDecoded.size(), regionDecoded.size());
+        assertEquals(wholeDecoded.type(), regionDecoded.type());
+        regionDecoded.release();
+        wholeDecoded.release();
+    }
+
+    @Test
+    public void benchmarkWholeVersusRegionDecoding()
+            throws InterruptedException {
+        // warm up the detector and the decoders
+        decodeWholePicture(picture, detector).release();
+        ImageUtils.getFaceMatFromPictureTaken(picture, detector).release();
+
+        long wholeNs = 0;
+        long wholePeak = 0;
+        long regionNs = 0;
+        long regionPeak = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            PeakMemorySampler sampler = new PeakMemorySampler();
+            long start = System.nanoTime();
+            decodeWholePicture(picture, detector).release();
+            wholeNs += System.nanoTime() - start;
+            wholePeak = Math.max(wholePeak, sampler.stop());
+
+            sampler = new PeakMemorySampler();
+            start = System.nanoTime();
+            ImageUtils.getFaceMatFromPictureTaken(picture, detector).release();
+            regionNs += System.nanoTime() - start;
+            regionPeak = Math.max(regionPeak, sampler.stop());
+        }
+
+        Log.i(TAG, "Whole picture decoding: " +
+                wholeNs / ITERATIONS / 1000000 + " ms, peak " +
+                wholePeak / 1024 / 1024 + " MB; region decoding: " +
+                regionNs / ITERATIONS / 1000000 + " ms, peak " +
+                regionPeak / 1024 / 1024 + " MB");
+        assertTrue(regionPeak < wholePeak);
+    }
+
+    /**
+     * Samples the Java and the native heap on a background thread and keeps
+     * the highest growth over the usage at the start.
+     */
+    private static class PeakMemorySampler extends Thread {
+        private final    long    mBaseline = getUsedMemory();
+        private volatile boolean mRunning  = true;
+        private volatile long    mPeak;
+
+        PeakMemorySampler() {
+            start();
+        }
+
+        private static long getUsedMemory() {
+            final Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory() +
+                    Debug.getNativeHeapAllocatedSize();
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                mPeak = Math.max(mPeak, getUsedMemory() - mBaseline);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long stop() throws InterruptedException {
+            mRunning = false;
+            join();
+            return mPeak;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+import static org.joanna.thesis.passportphotocreator.processing.background.ImageSegmentor.PROCESS_IMG_SIZE;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getBitmapFromFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares filling the input of a network through a Bitmap, pixel by pixel,
+ * as done before, with filling it from the Mat by {@link InputTensor}, for
+ * the input sizes of the shadow verification (160), the segmentation (224)
+ * and the shadow removal (256). Latencies are logged.
+ */
+public class PreprocessingBenchmark {
+
+    private static final String TAG =
+            PreprocessingBenchmark.class.getSimpleName();
+
+    private static final int[] SIZES      = {160, 224, 256};
+    private static final int   ITERATIONS = 20;
+    private static final float MEAN       = 127.5f;
+    private static final float STD        = 127.5f;
+
+    private Mat image;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    /**
+     * Fills the input as before {@link InputTensor} was introduced.
+     */
+    private static void fillThroughBitmap(
+            final Mat src, final int size, final ByteBuffer input,
+            final int[] pixels) {
+        Mat resized = ImageUtils.resizeMat(src, size, size);
+        Bitmap tmp = ImageUtils.getBitmapFromMat(resized);
+        resized.release();
+        Bitmap bmp = tmp.copy(tmp.getConfig(), true);
+        ImageUtils.safelyRemoveBitmap(tmp);
+        input.rewind();
+        bmp.getPixels(pixels, 0, size, 0, 0, size, size);
+        for (int pixel : pixels) {
+            input.putFloat((((pixel >> 16) & 0xFF) - MEAN) / STD);
+            input.putFloat((((pixel >> 8) & 0xFF) - MEAN) / STD);
+            input.putFloat(((pixel & 0xFF) - MEAN) / STD);
+        }
+        ImageUtils.safelyRemoveBitmap(bmp);
+    }
+
+    private static ByteBuffer allocate(final int size) {
+        return ByteBuffer.allocateDirect(size * size * 3 * 4)
+                         .order(ByteOrder.nativeOrder());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        final Context context =
+                InstrumentationRegistry.getInstrumentation().getContext();
+        final Bitmap bitmap = getBitmapFromFile("background1.jpg", context);
+        final Mat decoded = new Mat();
+        Utils.bitmapToMat(bitmap, decoded);
+        ImageUtils.safelyRemoveBitmap(bitmap);
+        image = ImageUtils.resizeMat(
+                decoded, PROCESS_IMG_SIZE, PROCESS_IMG_SIZE);
+        decoded.release();
+    }
+
+    @After
+    public void tearDown() {
+        image.release();
+    }
+
+    @Test
+    public void testBothPathsGiveTheSameInput() {
+        for (int size : SIZES) {
+            final ByteBuffer expected = allocate(size);
+            final ByteBuffer actual = allocate(size);
+            fillThroughBitmap(image, size, expected, new int[size * size]);
+            final InputTensor tensor =
+                    new InputTensor(actual, size, size, 4, MEAN, STD);
+            tensor.fill(image);
+
+            expected.rewind();
+            actual.rewind();
+            while (expected.hasRemaining()) {
+                assertEquals(expected.getFloat(), actual.getFloat(), 1e-5f);
+            }
+            tensor.release();
+        }
+    }
+
+    @Test
+    public void benchmarkBitmapVersusMatPreprocessing() {
+        for (int size : SIZES) {
+            final ByteBuffer input = allocate(size);
+            final int[] pixels = new int[size * size];
+            final InputTensor tensor =
+                    new InputTensor(input, size, size, 4, MEAN, STD);
+            // warm up
+            fillThroughBitmap(image, size, input, pixels);
+            tensor.fill(image);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                fillThroughBitmap(image, size, input, pixels);
+            }
+            final float bitmapMs =
+                    (System.nanoTime() - start) / 1000000f / ITERATIONS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                tensor.fill(image);
+            }
+            final float matMs =
+                    (System.nanoTime() - start) / 1000000f / ITERATIONS;
+            tensor.release();
+
+            Log.i(TAG, String.format(Locale.US,
+                    "%dx%d input: Bitmap path %.2f ms, Mat path %.2f ms",
+                    size, size, bitmapMs, matMs));
+            assertTrue(matMs < bitmapMs);
+        }
+    }
+}
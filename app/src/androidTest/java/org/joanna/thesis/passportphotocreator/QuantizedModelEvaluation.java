@@ -0,0 +1,271 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.app.Activity;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.joanna.thesis.passportphotocreator.ModelConfig.Precision;
+import org.joanna.thesis.passportphotocreator.processing.background.ImageSegmentorFloatMobileUNet;
+import org.joanna.thesis.passportphotocreator.processing.light.enhancement.ShadowRemoverPix2Pix;
+import org.joanna.thesis.passportphotocreator.processing.light.verification.ShadowVerificator.EvenlyLightened;
+import org.joanna.thesis.passportphotocreator.processing.light.verification.ShadowVerificatorFloatMobileNetV2;
+import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.joanna.thesis.passportphotocreator.processing.background.ImageSegmentor.PROCESS_IMG_SIZE;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getMatFromFile;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.launchPhotoMakerActivity;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Offline evaluation of the quantized model variants against the float
+ * models over the test images: latency of both, IoU of the person masks,
+ * agreement of the shadow classification and the difference of the
+ * deshadowed pictures are logged. The quantized variants are not shipped in
+ * the assets; the evaluation of a model is skipped if its variant is missing.
+ * <p/>
+ * A variant reaching the thresholds below may be marked with
+ * {@code quantizedValidated} in the {@code model_options} xml resource, so
+ * that {@link ModelConfig} may choose it without an override.
+ */
+public class QuantizedModelEvaluation {
+
+    private static final String TAG =
+            QuantizedModelEvaluation.class.getSimpleName();
+
+    private static final List<String> FILES = Arrays.asList(
+            "background1.jpg", "background2.jpg", "face.jpg",
+            "face_covered.jpg", "flowers.jpg", "light1.png", "light2.png",
+            "light3.png", "shadow1.jpg", "shadow2.jpg", "shadow3.jpg");
+    private static final List<String> MODELS = Arrays.asList(
+            "munet_mnv3_wm05.tflite",
+            "shadow_verification_mobileNetV2.tflite",
+            "pix2pix.tflite");
+
+    private static final double MIN_MEAN_IOU        = 0.95;
+    private static final double MIN_AGREEMENT       = 0.9;
+    private static final double MAX_MEAN_DIFFERENCE = 4;
+
+    private Activity    activity;
+    private Context     context;
+    private ModelConfig config;
+
+    @Before
+    public void setUp() {
+        activity = launchPhotoMakerActivity();
+        context = InstrumentationRegistry.getInstrumentation().getContext();
+        config = ModelConfig.getInstance(activity);
+    }
+
+    @After
+    public void tearDown() {
+        setPrecision(null);
+    }
+
+    private void setPrecision(final Precision precision) {
+        for (String model : MODELS) {
+            config.setPrecisionOverride(model, precision);
+        }
+    }
+
+    private static float toMs(final long ns) {
+        return ns / 1000000f;
+    }
+
+    private static String getVerdict(final boolean accurate) {
+        return accurate
+                ? "may be marked quantizedValidated"
+                : "not accurate enough";
+    }
+
+    /**
+     * @return intersection over union of the person masks, CV_32FC3 of 0
+     *         and 1
+     */
+    private static double getIoU(final Mat first, final Mat second) {
+        final Mat intersection = new Mat();
+        final Mat union = new Mat();
+        Core.min(first, second, intersection);
+        Core.max(first, second, union);
+        Imgproc.cvtColor(intersection, intersection, Imgproc.COLOR_BGR2GRAY);
+        Imgproc.cvtColor(union, union, Imgproc.COLOR_BGR2GRAY);
+        final int unionArea = Core.countNonZero(union);
+        final double iou = unionArea == 0 ? 1 :
+                Core.countNonZero(intersection) / (double) unionArea;
+        intersection.release();
+        union.release();
+        return iou;
+    }
+
+    @Test
+    public void evaluateSegmentation() throws IOException {
+        setPrecision(Precision.FLOAT);
+        final ImageSegmentorFloatMobileUNet floatModel =
+                new ImageSegmentorFloatMobileUNet(activity);
+        setPrecision(Precision.QUANTIZED);
+        final ImageSegmentorFloatMobileUNet quantizedModel =
+                new ImageSegmentorFloatMobileUNet(activity);
+        try {
+            assumeTrue(quantizedModel.isQuantized());
+            long floatNs = 0;
+            long quantizedNs = 0;
+            double iouSum = 0;
+            for (String file : FILES) {
+                final Mat picture = getMatFromFile(file, context);
+                final Mat image = ImageUtils.resizeMat(
+                        picture, PROCESS_IMG_SIZE, PROCESS_IMG_SIZE);
+                picture.release();
+                // warm up
+                floatModel.segmentImg(image);
+                quantizedModel.segmentImg(image);
+
+                long start = System.nanoTime();
+                floatModel.segmentImg(image);
+                floatNs += System.nanoTime() - start;
+                start = System.nanoTime();
+                quantizedModel.segmentImg(image);
+                quantizedNs += System.nanoTime() - start;
+
+                final Mat floatMask = floatModel.getMaskedPerson();
+                final Mat quantizedMask = quantizedModel.getMaskedPerson();
+                final double iou = getIoU(floatMask, quantizedMask);
+                iouSum += iou;
+                Log.i(TAG, String.format(Locale.US,
+                        "Segmentation of %s: mask IoU %.3f", file, iou));
+                floatMask.release();
+                quantizedMask.release();
+                image.release();
+            }
+            final double meanIoU = iouSum / FILES.size();
+            Log.i(TAG, String.format(Locale.US,
+                    "Segmentation: float %.1f ms, %s %.1f ms, mean IoU " +
+                            "%.3f, %s",
+                    toMs(floatNs) / FILES.size(),
+                    quantizedModel.getRunningModelPath(),
+                    toMs(quantizedNs) / FILES.size(),
+                    meanIoU, getVerdict(meanIoU >= MIN_MEAN_IOU)));
+        } finally {
+            floatModel.close();
+            quantizedModel.close();
+        }
+    }
+
+    @Test
+    public void evaluateShadowVerification() throws IOException {
+        setPrecision(Precision.FLOAT);
+        final ShadowVerificatorFloatMobileNetV2 floatModel =
+                new ShadowVerificatorFloatMobileNetV2(activity);
+        setPrecision(Precision.QUANTIZED);
+        final ShadowVerificatorFloatMobileNetV2 quantizedModel =
+                new ShadowVerificatorFloatMobileNetV2(activity);
+        try {
+            assumeTrue(quantizedModel.isQuantized());
+            long floatNs = 0;
+            long quantizedNs = 0;
+            int agreements = 0;
+            for (String file : FILES) {
+                final Mat image = getMatFromFile(file, context);
+                // warm up
+                floatModel.classify(image);
+                quantizedModel.classify(image);
+
+                long start = System.nanoTime();
+                floatModel.classify(image);
+                floatNs += System.nanoTime() - start;
+                start = System.nanoTime();
+                quantizedModel.classify(image);
+                quantizedNs += System.nanoTime() - start;
+
+                final EvenlyLightened floatClass =
+                        floatModel.isEvenlyLightened();
+                final EvenlyLightened quantizedClass =
+                        quantizedModel.isEvenlyLightened();
+                if (floatClass == quantizedClass) {
+                    agreements++;
+                }
+                Log.i(TAG, "Shadow verification of " + file + ": float " +
+                        floatClass + ", quantized " + quantizedClass);
+                image.release();
+            }
+            Log.i(TAG, String.format(Locale.US,
+                    "Shadow verification: float %.1f ms, %s %.1f ms, " +
+                            "agreement %d/%d, %s",
+                    toMs(floatNs) / FILES.size(),
+                    quantizedModel.getRunningModelPath(),
+                    toMs(quantizedNs) / FILES.size(),
+                    agreements, FILES.size(), getVerdict(
+                            agreements >= MIN_AGREEMENT * FILES.size())));
+        } finally {
+            floatModel.close();
+            quantizedModel.close();
+        }
+    }
+
+    @Test
+    public void evaluateShadowRemoval() throws IOException {
+        setPrecision(Precision.FLOAT);
+        final ShadowRemoverPix2Pix floatModel =
+                new ShadowRemoverPix2Pix(activity);
+        setPrecision(Precision.QUANTIZED);
+        final ShadowRemoverPix2Pix quantizedModel =
+                new ShadowRemoverPix2Pix(activity);
+        try {
+            assumeTrue(quantizedModel.isQuantized());
+            long floatNs = 0;
+            long quantizedNs = 0;
+            double differenceSum = 0;
+            for (String file : FILES) {
+                final Mat picture = getMatFromFile(file, context);
+                final Mat image = ImageUtils.resizeMatToFinalSize(picture);
+                Imgproc.cvtColor(image, image, Imgproc.COLOR_RGBA2RGB);
+                picture.release();
+                // warm up
+                floatModel.enhance(image).release();
+                quantizedModel.enhance(image).release();
+
+                long start = System.nanoTime();
+                final Mat floatResult = floatModel.enhance(image);
+                floatNs += System.nanoTime() - start;
+                start = System.nanoTime();
+                final Mat quantizedResult = quantizedModel.enhance(image);
+                quantizedNs += System.nanoTime() - start;
+
+                // mean absolute difference of a channel value
+                final double difference =
+                        Core.norm(floatResult, quantizedResult, Core.NORM_L1) /
+                                floatResult.total() / floatResult.channels();
+                differenceSum += difference;
+                Log.i(TAG, String.format(Locale.US,
+                        "Shadow removal of %s: mean difference %.2f",
+                        file, difference));
+                floatResult.release();
+                quantizedResult.release();
+                image.release();
+            }
+            final double meanDifference = differenceSum / FILES.size();
+            Log.i(TAG, String.format(Locale.US,
+                    "Shadow removal: float %.1f ms, %s %.1f ms, " +
+                            "mean difference %.2f, %s",
+                    toMs(floatNs) / FILES.size(),
+                    quantizedModel.getRunningModelPath(),
+                    toMs(quantizedNs) / FILES.size(),
+                    meanDifference,
+                    getVerdict(meanDifference <= MAX_MEAN_DIFFERENCE)));
+        } finally {
+            floatModel.close();
+            quantizedModel.close();
+        }
+    }
+}
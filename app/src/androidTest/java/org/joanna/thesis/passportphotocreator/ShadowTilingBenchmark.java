@@ -0,0 +1,127 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.app.Activity;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.joanna.thesis.passportphotocreator.processing.light.enhancement.ShadowRemoverPix2Pix;
+import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getMatFromFile;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.launchPhotoMakerActivity;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the tiled shadow removal in several working resolutions and
+ * numbers of interpreters with the single pass over the shadow test
+ * pictures: the latency of each and the PSNR of the tiled result against the
+ * single pass one are logged.
+ */
+public class ShadowTilingBenchmark {
+
+    private static final String TAG =
+            ShadowTilingBenchmark.class.getSimpleName();
+
+    private static final int          ITERATIONS      = 3;
+    private static final List<String> FILES           =
+            Arrays.asList("shadow1.jpg", "shadow2.jpg", "shadow3.jpg");
+    private static final int[]        WORKING_HEIGHTS = {330, 512, 768};
+    private static final int[]        INTERPRETERS    = {1, 2};
+
+    private Activity             activity;
+    private Context              context;
+    private ShadowRemoverPix2Pix remover;
+    private List<Mat>            pictures;
+
+    @Before
+    public void setUp() throws IOException {
+        activity = launchPhotoMakerActivity();
+        context = InstrumentationRegistry.getInstrumentation().getContext();
+        remover = new ShadowRemoverPix2Pix(activity);
+        pictures = new ArrayList<>();
+        for (String file : FILES) {
+            pictures.add(getPicture(file));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        remover.close();
+        for (Mat picture : pictures) {
+            picture.release();
+        }
+    }
+
+    private Mat getPicture(final String file) throws IOException {
+        final Mat picture = getMatFromFile(file, context);
+        final Mat resized = ImageUtils.resizeMatToFinalSize(picture);
+        picture.release();
+        return resized;
+    }
+
+    /**
+     * @return the deshadowed pictures, of the last iteration
+     */
+    private List<Mat> deshadowAll(final String name) {
+        final List<Mat> results = new ArrayList<>();
+        // warm up
+        remover.enhance(pictures.get(0)).release();
+        long totalNs = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (Mat result : results) {
+                result.release();
+            }
+            results.clear();
+            for (Mat picture : pictures) {
+                final long start = System.nanoTime();
+                results.add(remover.enhance(picture));
+                totalNs += System.nanoTime() - start;
+            }
+        }
+        Log.i(TAG, String.format(Locale.US, "%s: %.1f ms per picture",
+                name, totalNs / 1000000f / ITERATIONS / pictures.size()));
+        return results;
+    }
+
+    @Test
+    public void compareTiledWithSinglePass() throws IOException {
+        final List<Mat> singlePass = deshadowAll("Single pass");
+        for (int workingHeight : WORKING_HEIGHTS) {
+            for (int interpreters : INTERPRETERS) {
+                remover.setTiling(activity, workingHeight, interpreters);
+                final List<Mat> tiled = deshadowAll(String.format(Locale.US,
+                        "Tiled at %d px on %d interpreter(s)",
+                        remover.getTiledHeight(), interpreters));
+                double psnrSum = 0;
+                for (int i = 0; i < tiled.size(); i++) {
+                    assertEquals(singlePass.get(i).size(),
+                            tiled.get(i).size());
+                    psnrSum += Core.PSNR(singlePass.get(i), tiled.get(i));
+                    tiled.get(i).release();
+                }
+                Log.i(TAG, String.format(Locale.US,
+                        "Tiled at %d px on %d interpreter(s): PSNR against " +
+                                "the single pass %.2f dB",
+                        remover.getTiledHeight(), interpreters,
+                        psnrSum / tiled.size()));
+            }
+        }
+        remover.setTiling(activity, 0, 1);
+        for (Mat result : singlePass) {
+            result.release();
+        }
+    }
+}
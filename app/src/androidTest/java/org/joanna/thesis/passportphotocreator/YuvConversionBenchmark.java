@@ -0,0 +1,115 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import java.util.Random;
+
+import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_HEIGHT;
+import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_WIDTH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares conversion of the whole preview frame followed by cropping with
+ * conversion of the face region only.
+ */
+public class YuvConversionBenchmark {
+
+    private static final String TAG =
+            YuvConversionBenchmark.class.getSimpleName();
+
+    private static final int WARM_UP    = 10;
+    private static final int ITERATIONS = 100;
+
+    // about 25% of the rotated 480x640 frame, odd coordinates on purpose
+    private static final Rect FACE_BOX = new Rect(121, 163, 361, 483);
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    private static byte[] getRandomFrame() {
+        final byte[] frame = new byte[PREVIEW_HEIGHT * PREVIEW_WIDTH * 3 / 2];
+        new Random(42).nextBytes(frame);
+        return frame;
+    }
+
+    private static Mat convertFullFrame(final byte[] frame, final Rect bBox) {
+        final Mat full = ImageUtils.getMatFromYuvBytes(
+                frame, PREVIEW_HEIGHT, PREVIEW_WIDTH);
+        final Mat crop = full.submat(
+                bBox.top, bBox.bottom, bBox.left, bBox.right).clone();
+        full.release();
+        return crop;
+    }
+
+    @Test
+    public void testRoiConversionEqualsFullFrameConversion() {
+        final byte[] frame = getRandomFrame();
+        final Rect[] boxes = {
+                FACE_BOX,
+                new Rect(0, 0, PREVIEW_WIDTH, PREVIEW_HEIGHT),
+                new Rect(1, 1, 2, 2),
+                new Rect(PREVIEW_WIDTH - 3, PREVIEW_HEIGHT - 5,
+                        PREVIEW_WIDTH, PREVIEW_HEIGHT)};
+        for (Rect bBox : boxes) {
+            final Mat expected = convertFullFrame(frame, bBox);
+            final Mat actual = ImageUtils.getMatFromYuvBytes(
+                    frame, PREVIEW_HEIGHT, PREVIEW_WIDTH, bBox);
+            assertNotNull(actual);
+            assertEquals(expected.size(), actual.size());
+            assertEquals(0, Core.norm(expected, actual, Core.NORM_INF), 0);
+            expected.release();
+            actual.release();
+        }
+    }
+
+    @Test
+    public void testRoiOutsideOfFrame() {
+        assertNull(ImageUtils.getMatFromYuvBytes(
+                getRandomFrame(), PREVIEW_HEIGHT, PREVIEW_WIDTH,
+                new Rect(-1, 0, 100, 100)));
+        assertNull(ImageUtils.getMatFromYuvBytes(
+                getRandomFrame(), PREVIEW_HEIGHT, PREVIEW_WIDTH,
+                new Rect(0, 0, PREVIEW_WIDTH, PREVIEW_HEIGHT + 1)));
+    }
+
+    @Test
+    public void benchmarkFullFrameVersusRoi() {
+        final byte[] frame = getRandomFrame();
+        for (int i = 0; i < WARM_UP; i++) {
+            convertFullFrame(frame, FACE_BOX).release();
+            ImageUtils.getMatFromYuvBytes(
+                    frame, PREVIEW_HEIGHT, PREVIEW_WIDTH, FACE_BOX).release();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            convertFullFrame(frame, FACE_BOX).release();
+        }
+        final long fullNs = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ImageUtils.getMatFromYuvBytes(
+                    frame, PREVIEW_HEIGHT, PREVIEW_WIDTH, FACE_BOX).release();
+        }
+        final long roiNs = (System.nanoTime() - start) / ITERATIONS;
+
+        Log.i(TAG, "Full frame conversion: " + fullNs / 1000 + " us, " +
+                "ROI conversion: " + roiNs / 1000 + " us, " +
+                "ROI area: " + 100 * FACE_BOX.width() * FACE_BOX.height() /
+                (PREVIEW_WIDTH * PREVIEW_HEIGHT) + "%");
+    }
+}
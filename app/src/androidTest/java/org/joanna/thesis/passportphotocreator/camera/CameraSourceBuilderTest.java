@@ -0,0 +1,54 @@
+package org.joanna.thesis.passportphotocreator.camera;
+
+import android.content.Context;
+import android.hardware.Camera;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.mlkit.vision.face.FaceDetection;
+
+import org.joanna.thesis.passportphotocreator.CameraFragment;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CameraSourceBuilderTest {
+
+    private final Context context = InstrumentationRegistry
+            .getInstrumentation().getTargetContext();
+
+    private CameraSource.Builder newBuilder() {
+        return new CameraSource.Builder(context, FaceDetection.getClient(
+                CameraFragment.getVideoDetectorOptions()))
+                .setFacing(CameraSource.CAMERA_FACING_BACK);
+    }
+
+    /**
+     * The camera1 backend is used unless the camera2 one is requested.
+     */
+    @Test
+    public void testCamera1IsTheDefault() {
+        final FrameSource source = newBuilder().build();
+        source.release();
+
+        assertTrue(source instanceof CameraSource);
+    }
+
+    /**
+     * The camera2 backend is used where the device supports it, otherwise
+     * the builder falls back to camera1.
+     */
+    @Test
+    public void testCamera2IsUsedWhereSupported() {
+        final FrameSource source = newBuilder()
+                .setBackend(CameraSource.BACKEND_CAMERA2)
+                .setFlashMode(Camera.Parameters.FLASH_MODE_OFF)
+                .build();
+        source.release();
+
+        assertEquals(Camera2Source.isSupported(
+                context, CameraSource.CAMERA_FACING_BACK),
+                source instanceof Camera2Source);
+    }
+}
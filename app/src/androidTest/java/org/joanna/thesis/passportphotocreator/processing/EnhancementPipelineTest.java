@@ -0,0 +1,225 @@
+package org.joanna.thesis.passportphotocreator.processing;
+
+import org.joanna.thesis.passportphotocreator.processing.background.SpeculativeMask;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EnhancementPipelineTest {
+
+    private static final long TIMEOUT_MS = 2000;
+
+    private EnhancementPipeline pipeline;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    private static Mat createPicture() {
+        return new Mat(4, 4, CvType.CV_8UC1, new Scalar(0));
+    }
+
+    @Test
+    public void testEveryEnhancedStageIsDelivered()
+            throws InterruptedException {
+        pipeline = new EnhancementPipeline(Arrays.asList(
+                new AddingEnhancer(1, 0), new SkippedEnhancer(),
+                new AddingEnhancer(2, 0)));
+        final List<EnhancementPipeline.Result> results =
+                Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch complete = new CountDownLatch(1);
+        pipeline.enhance(createPicture(), result -> {
+            results.add(result);
+            if (result.isComplete()) {
+                complete.countDown();
+            }
+        });
+
+        assertTrue(complete.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2, results.size());
+        assertEquals(1, results.get(0).getStage());
+        assertEquals(1, results.get(0).getPicture().get(0, 0)[0], 0);
+        final EnhancementPipeline.Result last = results.get(1);
+        assertEquals(3, last.getPicture().get(0, 0)[0], 0);
+        assertEquals(3, last.getTimings().size());
+        assertTrue(last.getTimings().get(0).isEnhanced());
+        assertFalse(last.getTimings().get(1).isEnhanced());
+        assertEquals(0, last.getTimings().get(1).getEnhanceMs(), 0);
+        assertTrue(last.getTimings().get(2).isEnhanced());
+    }
+
+    @Test
+    public void testCancelledJobDeliversNothing() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        pipeline = new EnhancementPipeline(Arrays.asList(
+                new Enhancer() {
+                    @Override
+                    public Mat enhance(final Mat src) {
+                        started.countDown();
+                        return new AddingEnhancer(1, 200).enhance(src);
+                    }
+
+                    @Override
+                    public boolean verify(final Mat src) {
+                        return false;
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                }, new AddingEnhancer(1, 0)));
+        final List<EnhancementPipeline.Result> results =
+                Collections.synchronizedList(new ArrayList<>());
+        final EnhancementPipeline.Job job =
+                pipeline.enhance(createPicture(), results::add);
+
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        pipeline.cancel();
+        assertTrue(job.isCancelled());
+
+        // a newer picture is still enhanced after the cancelled one
+        final CountDownLatch complete = new CountDownLatch(1);
+        pipeline.enhance(createPicture(), result -> {
+            if (result.isComplete()) {
+                complete.countDown();
+            }
+        });
+        assertTrue(complete.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void testFailingEnhancerKeepsThePicture()
+            throws InterruptedException {
+        pipeline = new EnhancementPipeline(Arrays.asList(
+                new AddingEnhancer(1, 0), new Enhancer() {
+                    @Override
+                    public Mat enhance(final Mat src) {
+                        throw new IllegalStateException();
+                    }
+
+                    @Override
+                    public boolean verify(final Mat src) {
+                        return false;
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                }));
+        final EnhancementPipeline.Result[] last =
+                new EnhancementPipeline.Result[1];
+        final CountDownLatch complete = new CountDownLatch(1);
+        pipeline.enhance(createPicture(), result -> {
+            if (result.isComplete()) {
+                last[0] = result;
+                complete.countDown();
+            }
+        });
+
+        assertTrue(complete.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, last[0].getPicture().get(0, 0)[0], 0);
+        assertTrue(last[0].getTimings().get(1).isFailed());
+    }
+
+    @Test
+    public void testPartlyEnhancedPictureIsDelivered()
+            throws InterruptedException {
+        pipeline = new EnhancementPipeline(Collections.singletonList(
+                new AddingEnhancer(2, 0) {
+                    @Override
+                    public Mat enhance(
+                            final Mat src, final SpeculativeMask personMask,
+                            final PartialListener partial) {
+                        final Mat half = new AddingEnhancer(1, 0).enhance(src);
+                        partial.onPartial(half);
+                        return enhance(src);
+                    }
+                }));
+        final List<EnhancementPipeline.Result> results =
+                Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch complete = new CountDownLatch(1);
+        pipeline.enhance(createPicture(), result -> {
+            results.add(result);
+            if (result.isComplete()) {
+                complete.countDown();
+            }
+        });
+
+        assertTrue(complete.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2, results.size());
+        assertFalse(results.get(0).isComplete());
+        assertEquals(0, results.get(0).getStage());
+        assertEquals(1, results.get(0).getPicture().get(0, 0)[0], 0);
+        assertEquals(2, results.get(1).getPicture().get(0, 0)[0], 0);
+    }
+
+    private static class AddingEnhancer implements Enhancer {
+        private final int  mValue;
+        private final long mDelayMs;
+
+        AddingEnhancer(final int value, final long delayMs) {
+            mValue = value;
+            mDelayMs = delayMs;
+        }
+
+        @Override
+        public Mat enhance(final Mat src) {
+            try {
+                Thread.sleep(mDelayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final Mat enhanced = new Mat();
+            Core.add(src, new Scalar(mValue), enhanced);
+            return enhanced;
+        }
+
+        @Override
+        public boolean verify(final Mat src) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class SkippedEnhancer implements Enhancer {
+        @Override
+        public Mat enhance(final Mat src) {
+            throw new AssertionError("Correct picture must not be enhanced.");
+        }
+
+        @Override
+        public boolean verify(final Mat src) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
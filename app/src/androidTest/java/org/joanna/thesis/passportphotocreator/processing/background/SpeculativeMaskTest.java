@@ -0,0 +1,124 @@
+package org.joanna.thesis.passportphotocreator.processing.background;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.android.gms.vision.face.FaceDetector;
+
+import org.joanna.thesis.passportphotocreator.processing.face.FaceTemplate;
+import org.joanna.thesis.passportphotocreator.processing.face.FaceUtils;
+import org.joanna.thesis.passportphotocreator.processing.face.StillFaceLocator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+
+import static org.joanna.thesis.passportphotocreator.utils.ImageUtils.getFaceMatFromPictureTaken;
+import static org.joanna.thesis.passportphotocreator.utils.ImageUtils.safelyRemoveBitmap;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.detectPreviewFace;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getBitmapFromFile;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getPictureBytes;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getYuvBytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpeculativeMaskTest {
+
+    private static final int FRAME_WIDTH  = 480;
+    private static final int FRAME_HEIGHT = 640;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    private static SpeculativeMask createMask(final long timestampNs) {
+        final Mat mask = new Mat(448, 349, CvType.CV_32FC3, Scalar.all(1));
+        return new SpeculativeMask(mask, SpeculativeMask.relativeCrop(
+                new Rect(100, 100, 300, 357), FRAME_WIDTH, FRAME_HEIGHT),
+                false, timestampNs);
+    }
+
+    @Test
+    public void testMaskIsUsedForTheSameCropOnLargerPicture() {
+        final SpeculativeMask mask = createMask(0);
+        // the same region of the view on a picture of 4 times the size
+        final RectF pictureCrop = SpeculativeMask.relativeCrop(
+                new Rect(404, 396, 1204, 1428),
+                FRAME_WIDTH * 4, FRAME_HEIGHT * 4);
+        assertTrue(mask.matches(pictureCrop, 0));
+
+        final Mat resized = mask.getMask(new Size(827, 1063));
+        assertEquals(827, resized.cols());
+        assertEquals(1063, resized.rows());
+        assertEquals(CvType.CV_32FC3, resized.type());
+        resized.release();
+    }
+
+    @Test
+    public void testMaskIsNotUsedForShiftedCrop() {
+        final SpeculativeMask mask = createMask(0);
+        final RectF shifted = SpeculativeMask.relativeCrop(
+                new Rect(130, 100, 330, 357), FRAME_WIDTH, FRAME_HEIGHT);
+        assertEquals(0.15f, mask.getDivergence(shifted), 0.001f);
+        assertFalse(mask.matches(shifted, 0));
+        assertFalse(mask.matches(null, 0));
+    }
+
+    @Test
+    public void testOldMaskIsNotUsed() {
+        final SpeculativeMask mask = createMask(0);
+        final RectF same = SpeculativeMask.relativeCrop(
+                new Rect(100, 100, 300, 357), FRAME_WIDTH, FRAME_HEIGHT);
+        assertTrue(mask.matches(same, SpeculativeMask.MAX_AGE_NS));
+        assertFalse(mask.matches(same, SpeculativeMask.MAX_AGE_NS + 1));
+    }
+
+    /**
+     * The preview frame is cropped as the background verifier does and the
+     * picture as the face located from the preview is cut out of it.
+     */
+    @Test
+    public void testMaskOfThePreviewIsUsedForThePictureOfIt()
+            throws Exception {
+        final Context context =
+                InstrumentationRegistry.getInstrumentation().getContext();
+        final Bitmap bitmap = getBitmapFromFile("face.jpg", context);
+        final com.google.mlkit.vision.face.Face face =
+                detectPreviewFace(bitmap);
+        final RectF previewCrop = SpeculativeMask.relativeCrop(
+                FaceUtils.getFaceBoundingBox(face, null),
+                bitmap.getWidth(), bitmap.getHeight());
+        // preview frames are in the sensor orientation
+        final FaceTemplate template = FaceTemplate.fromNv21(
+                getYuvBytes(bitmap), bitmap.getHeight(), bitmap.getWidth(),
+                face.getBoundingBox());
+        final byte[] picture = getPictureBytes(bitmap);
+        safelyRemoveBitmap(bitmap);
+        final FaceDetector detector = new FaceDetector.Builder(context)
+                .setProminentFaceOnly(true)
+                .setMode(FaceDetector.ACCURATE_MODE)
+                .build();
+        final RectF pictureCrop = new RectF();
+        final Mat faceMat = getFaceMatFromPictureTaken(picture, detector,
+                template, new StillFaceLocator(), pictureCrop);
+        detector.release();
+        assertNotNull(faceMat);
+        faceMat.release();
+
+        final SpeculativeMask mask = new SpeculativeMask(
+                new Mat(448, 349, CvType.CV_32FC3, Scalar.all(1)),
+                previewCrop, true, 0);
+        assertTrue(mask.matches(pictureCrop, 0));
+        mask.release();
+    }
+}
@@ -0,0 +1,84 @@
+package org.joanna.thesis.passportphotocreator.processing.face;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.android.gms.vision.face.FaceDetector;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+
+import static org.joanna.thesis.passportphotocreator.utils.ImageUtils.getFaceMatFromPictureTaken;
+import static org.joanna.thesis.passportphotocreator.utils.ImageUtils.safelyRemoveBitmap;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.detectPreviewFace;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getBitmapFromFile;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getPictureBytes;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getYuvBytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FaceUtilsTest {
+
+    /**
+     * Highest shift of an edge between the two crops, relative to the size
+     * of the crop.
+     */
+    private static final float MAX_SHIFT = 0.05f;
+
+    private final Context context =
+            InstrumentationRegistry.getInstrumentation().getContext();
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    /**
+     * The face located on the picture from the ML Kit box of the preview and
+     * the face detected on the picture are cut out in the same framing.
+     */
+    @Test
+    public void testLocatedAndDetectedFacesAreFramedAlike() throws Exception {
+        final Bitmap bitmap = getBitmapFromFile("face.jpg", context);
+        final Rect previewBox = detectPreviewFace(bitmap).getBoundingBox();
+        // preview frames are in the sensor orientation
+        final FaceTemplate template = FaceTemplate.fromNv21(
+                getYuvBytes(bitmap), bitmap.getHeight(), bitmap.getWidth(),
+                previewBox);
+        final byte[] picture = getPictureBytes(bitmap);
+        safelyRemoveBitmap(bitmap);
+        final FaceDetector detector = new FaceDetector.Builder(context)
+                .setProminentFaceOnly(true)
+                .setMode(FaceDetector.ACCURATE_MODE)
+                .build();
+        final StillFaceLocator locator = new StillFaceLocator();
+
+        final RectF located = new RectF();
+        final Mat locatedFace = getFaceMatFromPictureTaken(
+                picture, detector, template, locator, located);
+        final RectF detected = new RectF();
+        final Mat detectedFace = getFaceMatFromPictureTaken(
+                picture, detector, null, null, detected);
+        detector.release();
+
+        assertNotNull(locatedFace);
+        assertNotNull(detectedFace);
+        assertEquals(1, locator.getLocatedCount());
+        assertEquals(detectedFace.size(), locatedFace.size());
+        locatedFace.release();
+        detectedFace.release();
+        final float maxShiftX = MAX_SHIFT * detected.width();
+        final float maxShiftY = MAX_SHIFT * detected.height();
+        assertEquals(detected.left, located.left, maxShiftX);
+        assertEquals(detected.right, located.right, maxShiftX);
+        assertEquals(detected.top, located.top, maxShiftY);
+        assertEquals(detected.bottom, located.bottom, maxShiftY);
+    }
+}
@@ -0,0 +1,128 @@
+package org.joanna.thesis.passportphotocreator.processing.face;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.SparseArray;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.FaceDetector;
+
+import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getBitmapFromFile;
+import static org.joanna.thesis.passportphotocreator.utils.TestUtils.getYuvBytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StillFaceLocatorTest {
+
+    private static final int PICTURE_SCALE = 2;
+
+    private final Context context =
+            InstrumentationRegistry.getInstrumentation().getContext();
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    /**
+     * @return bounding box of the only face on the upright bitmap
+     */
+    private Rect detectFace(final Bitmap bitmap) {
+        final FaceDetector detector = new FaceDetector.Builder(context)
+                .setProminentFaceOnly(true)
+                .setMode(FaceDetector.ACCURATE_MODE)
+                .build();
+        final SparseArray<Face> faces = detector.detect(
+                new Frame.Builder().setBitmap(bitmap).build());
+        detector.release();
+        assertEquals(1, faces.size());
+        final Face face = faces.valueAt(0);
+        final int left = Math.round(face.getPosition().x);
+        final int top = Math.round(face.getPosition().y);
+        return new Rect(left, top, left + Math.round(face.getWidth()),
+                top + Math.round(face.getHeight()));
+    }
+
+    /**
+     * @return the bitmap in gray, scaled as a picture taken by the camera
+     *         compared to the preview
+     */
+    private static Mat getPicture(final Bitmap bitmap) {
+        final Mat rgba = new Mat();
+        Utils.bitmapToMat(bitmap, rgba);
+        final Mat gray = new Mat();
+        Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+        rgba.release();
+        final Mat picture = new Mat();
+        Imgproc.resize(gray, picture, new Size(
+                gray.cols() * PICTURE_SCALE, gray.rows() * PICTURE_SCALE));
+        gray.release();
+        return picture;
+    }
+
+    private FaceTemplate getTemplate(final Bitmap bitmap, final Rect faceBox) {
+        // preview frames are in the sensor orientation
+        return FaceTemplate.fromNv21(getYuvBytes(bitmap), bitmap.getHeight(),
+                bitmap.getWidth(), faceBox);
+    }
+
+    @Test
+    public void testFaceIsLocatedOnThePicture() throws IOException {
+        final Bitmap bitmap = getBitmapFromFile("face.jpg", context);
+        final Rect faceBox = detectFace(bitmap);
+        final FaceTemplate template = getTemplate(bitmap, faceBox);
+        assertNotNull(template);
+        assertEquals(bitmap.getWidth(), template.getFrameWidth());
+        assertEquals(bitmap.getHeight(), template.getFrameHeight());
+
+        final Mat picture = getPicture(bitmap);
+        ImageUtils.safelyRemoveBitmap(bitmap);
+        final StillFaceLocator locator = new StillFaceLocator();
+        final Rect located = locator.locate(picture, template);
+        picture.release();
+
+        assertNotNull(located);
+        final int tolerance = faceBox.width() * PICTURE_SCALE / 10;
+        assertTrue(Math.abs(located.centerX() -
+                faceBox.centerX() * PICTURE_SCALE) <= tolerance);
+        assertTrue(Math.abs(located.centerY() -
+                faceBox.centerY() * PICTURE_SCALE) <= tolerance);
+        assertEquals(1, locator.getLocatedCount());
+        assertEquals(0, locator.getFallbackCount());
+    }
+
+    @Test
+    public void testFallsBackIfTheFaceIsNotOnThePicture() throws IOException {
+        final Bitmap face = getBitmapFromFile("face.jpg", context);
+        final FaceTemplate template = getTemplate(face, detectFace(face));
+        ImageUtils.safelyRemoveBitmap(face);
+        final Bitmap flowers = getBitmapFromFile("flowers.jpg", context);
+        final Mat picture = getPicture(flowers);
+        ImageUtils.safelyRemoveBitmap(flowers);
+
+        final StillFaceLocator locator = new StillFaceLocator();
+        assertNull(locator.locate(picture, template));
+        assertNull(locator.locate(picture, null));
+        picture.release();
+        assertEquals(0, locator.getLocatedCount());
+        assertEquals(2, locator.getFallbackCount());
+        assertEquals(1f, locator.getFallbackRate(), 0f);
+    }
+}
@@ -1,22 +1,38 @@
 package org.joanna.thesis.passportphotocreator.utils;
 
+import android.app.Activity;
+import android.app.Instrumentation;
 import android.content.Context;
+import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.Matrix;
 
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.google.android.gms.tasks.Tasks;
 import com.google.android.gms.vision.face.FaceDetector;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.face.Face;
+import com.google.mlkit.vision.face.FaceDetection;
 
+import org.joanna.thesis.passportphotocreator.CameraFragment;
+import org.joanna.thesis.passportphotocreator.PhotoMakerActivity;
+import org.opencv.android.Utils;
 import org.opencv.core.Mat;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import static org.joanna.thesis.passportphotocreator.utils.ImageUtils.getBytesFromBitmap;
 import static org.joanna.thesis.passportphotocreator.utils.ImageUtils.getFaceMatFromPictureTaken;
 import static org.joanna.thesis.passportphotocreator.utils.ImageUtils.safelyRemoveBitmap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 
 public final class TestUtils {
 
@@ -37,15 +53,78 @@ public final class TestUtils {
         return BitmapFactory.decodeStream(new BufferedInputStream(stream));
     }
 
+    /**
+     * @return the picture from the assets, in RGBA
+     */
+    public static Mat getMatFromFile(String fName, Context context)
+            throws IOException {
+        Bitmap bitmap = getBitmapFromFile(fName, context);
+        Mat picture = new Mat();
+        Utils.bitmapToMat(bitmap, picture);
+        safelyRemoveBitmap(bitmap);
+        return picture;
+    }
+
+    /**
+     * Starts the photo maker screen, which loads OpenCV and the models, and
+     * waits until it is created.
+     *
+     * @return the started activity
+     */
+    public static Activity launchPhotoMakerActivity() {
+        Instrumentation instrumentation =
+                InstrumentationRegistry.getInstrumentation();
+        Instrumentation.ActivityMonitor monitor =
+                new Instrumentation.ActivityMonitor(
+                        PhotoMakerActivity.class.getName(), null, false);
+        instrumentation.addMonitor(monitor);
+        Intent intent = new Intent(
+                instrumentation.getTargetContext(),
+                PhotoMakerActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        instrumentation.startActivitySync(intent);
+        Activity activity = instrumentation.waitForMonitor(monitor);
+        assertNotNull(activity);
+        return activity;
+    }
+
+    /**
+     * @return the upright bitmap encoded as a picture taken by the camera, in
+     *         the camera orientation
+     */
+    public static byte[] getPictureBytes(Bitmap bitmap) throws IOException {
+        Bitmap rotated = RotateBitmap(bitmap, 270);
+        byte[] bytes = getBytesFromBitmap(rotated);
+        safelyRemoveBitmap(rotated);
+        return bytes;
+    }
+
+    /**
+     * @return the only face on the upright bitmap, as the face detection of
+     *         the preview frames finds it
+     */
+    public static Face detectPreviewFace(Bitmap bitmap)
+            throws ExecutionException, InterruptedException {
+        com.google.mlkit.vision.face.FaceDetector detector =
+                FaceDetection.getClient(
+                        CameraFragment.getVideoDetectorOptions());
+        try {
+            List<Face> faces = Tasks.await(
+                    detector.process(InputImage.fromBitmap(bitmap, 0)));
+            assertEquals(1, faces.size());
+            return faces.get(0);
+        } finally {
+            detector.close();
+        }
+    }
+
     public static Mat getFaceMatFromFileIfCorrectSize(
             String fName,
             Context context,
             FaceDetector mDetectorPhotoT) throws IOException {
         
         Bitmap bitmap = getBitmapFromFile(fName, context);
-        Bitmap rotated = RotateBitmap(bitmap, 270);
-        byte[] bytes = getBytesFromBitmap(rotated);
-        safelyRemoveBitmap(rotated);
+        byte[] bytes = getPictureBytes(bitmap);
         return getFaceMatFromPictureTaken(bytes, mDetectorPhotoT);
     }
 
@@ -0,0 +1,346 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.FaceDetector;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.face.FaceDetection;
+
+import org.joanna.thesis.passportphotocreator.processing.LatencyStats;
+import org.joanna.thesis.passportphotocreator.utils.DaemonThreadFactory;
+import org.opencv.android.OpenCVLoader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_HEIGHT;
+import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_WIDTH;
+
+/**
+ * Loads OpenCV, the face detectors and the Tensorflow Lite models in parallel
+ * at the start of the app, while the user looks at the main screen, and runs
+ * each of them once, so that the photo maker screen opens and processes its
+ * first frame without paying for the cold start. The interpreters of the
+ * models are kept leased until {@link #release()}, so that the detectors
+ * created later get them from {@link ModelRegistry} warm.
+ * <p/>
+ * Every component has a future telling when it is ready. The screens await
+ * only OpenCV, which loads at once, and continue in a callback on the main
+ * thread once the rest is ready, see {@link #whenReady}. The cold start of
+ * every component and the time spent awaiting them are recorded. The models
+ * are tuned, see {@link ModelTuner}, once the cold start is over, when the
+ * device is idle.
+ */
+public final class AppInitializer {
+
+    private static final String TAG = AppInitializer.class.getSimpleName();
+
+    private static final int  THREADS          = 4;
+    private static final long AWAIT_TIMEOUT_MS = 10000;
+
+    private static final AppInitializer INSTANCE = new AppInitializer();
+
+    private final Map<String, LatencyStats> mColdStartStats =
+            new LinkedHashMap<>();
+    private final LatencyStats              mAwaitStats     =
+            new LatencyStats("Awaiting the initialization");
+
+    private final Map<String, Future<ModelRegistry.Lease>> mModels =
+            new LinkedHashMap<>();
+    private       ExecutorService                          mExecutor;
+    private       Future<Boolean>                          mOpenCv;
+    private       Future<Void>                             mFaceDetection;
+    private       Future<FaceDetector>                     mStillFaceDetector;
+    private       boolean                                  mReady;
+    private final List<Runnable>                           mReadyCallbacks =
+            new ArrayList<>();
+    private final Handler                                  mMainHandler    =
+            new Handler(Looper.getMainLooper());
+
+    private AppInitializer() {
+    }
+
+    public static AppInitializer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts loading every component in the background. Has no effect if
+     * started already and not released since.
+     */
+    public synchronized void start(final Context context) {
+        if (mExecutor != null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        final long startNs = System.nanoTime();
+        // the camera waits for the components, so they load at full speed
+        mExecutor = Executors.newFixedThreadPool(THREADS,
+                new DaemonThreadFactory("AppInitializer",
+                        Process.THREAD_PRIORITY_DEFAULT));
+        mOpenCv = submit("OpenCV", startNs, OpenCVLoader::initDebug);
+        mFaceDetection = submit("Face detection", startNs, () -> {
+            warmUpFaceDetection();
+            return null;
+        });
+        mStillFaceDetector = submit("Still face detection", startNs,
+                () -> createStillFaceDetector(appContext));
+        final ModelConfig config = ModelConfig.getInstance(appContext);
+        for (String modelPath : config.getModelPaths()) {
+            mModels.put(modelPath, submit(modelPath, startNs, () -> {
+                final ModelRegistry.Lease lease =
+                        ModelRegistry.getInstance().acquire(appContext,
+                                config.selectModelPath(modelPath),
+                                config.getOptions(modelPath));
+                lease.warmUp();
+                return lease;
+            }));
+        }
+        final List<Future<?>> coldStart = new ArrayList<>(mModels.values());
+        coldStart.add(mOpenCv);
+        coldStart.add(mFaceDetection);
+        coldStart.add(mStillFaceDetector);
+        final ExecutorService executor = mExecutor;
+        mExecutor.execute(() -> {
+            for (Future<?> future : coldStart) {
+                get(future);
+            }
+            Log.i(TAG, toString());
+            onReady(executor);
+            // the tuning runs the models a lot, so it waits for the device
+            // to be idle not to slow the camera down nor skew the timings
+            ModelTuner.schedule(appContext);
+        });
+    }
+
+    /**
+     * Posts the callbacks awaiting the cold start to the main thread, unless
+     * the initialization has been released meanwhile.
+     */
+    private synchronized void onReady(final ExecutorService executor) {
+        if (mExecutor != executor) {
+            return;
+        }
+        mReady = true;
+        for (Runnable callback : mReadyCallbacks) {
+            mMainHandler.post(callback);
+        }
+        mReadyCallbacks.clear();
+    }
+
+    private <T> Future<T> submit(
+            final String name, final long startNs, final Callable<T> task) {
+        final LatencyStats stats = new LatencyStats("Cold start of " + name);
+        synchronized (mColdStartStats) {
+            mColdStartStats.put(name, stats);
+        }
+        return mExecutor.submit(() -> {
+            final long taskStartNs = System.nanoTime();
+            try {
+                return task.call();
+            } finally {
+                stats.recordSince(taskStartNs);
+                Log.d(TAG, String.format(Locale.US,
+                        "%s ready in %.1f ms, %.1f ms after the start",
+                        name, stats.getLastMs(),
+                        (System.nanoTime() - startNs) / 1000000f));
+            }
+        });
+    }
+
+    /**
+     * Runs the video face detector on a blank frame, so that ML Kit loads
+     * its native library and its model. The detector is closed; the camera
+     * creates its own, with the same options.
+     */
+    private static void warmUpFaceDetection() throws Exception {
+        final com.google.mlkit.vision.face.FaceDetector detector =
+                FaceDetection.getClient(
+                        CameraFragment.getVideoDetectorOptions());
+        try {
+            final ByteBuffer frame = ByteBuffer.allocateDirect(
+                    PREVIEW_WIDTH * PREVIEW_HEIGHT * 3 / 2);
+            Tasks.await(detector.process(InputImage.fromByteBuffer(frame,
+                    PREVIEW_HEIGHT, PREVIEW_WIDTH, 90, ImageFormat.NV21)));
+        } finally {
+            detector.close();
+        }
+    }
+
+    private static FaceDetector createStillFaceDetector(
+            final Context context) {
+        final FaceDetector detector = new FaceDetector.Builder(context)
+                .setProminentFaceOnly(true)
+                .setMode(FaceDetector.ACCURATE_MODE)
+                .build();
+        // the first detection loads the face model
+        final Bitmap blank = Bitmap.createBitmap(
+                PREVIEW_WIDTH / 4, PREVIEW_HEIGHT / 4, Bitmap.Config.ARGB_8888);
+        detector.detect(new Frame.Builder().setBitmap(blank).build());
+        blank.recycle();
+        return detector;
+    }
+
+    /**
+     * Awaits OpenCV; starts the initialization if not started yet.
+     *
+     * @return true if OpenCV has been loaded
+     */
+    public boolean awaitOpenCv(final Context context) {
+        start(context);
+        return Boolean.TRUE.equals(await(getOpenCv()));
+    }
+
+    /**
+     * Runs the callback on the main thread once every component is ready or
+     * has failed, right away if they are already; starts the initialization
+     * if not started yet. Never runs the callback before returning. The
+     * callbacks run in the order of the calls. Failed models are left to
+     * the detectors to report.
+     */
+    public void whenReady(final Context context, final Runnable callback) {
+        start(context);
+        final long startNs = System.nanoTime();
+        final Runnable timedCallback = () -> {
+            mAwaitStats.recordSince(startNs);
+            callback.run();
+        };
+        synchronized (this) {
+            if (!mReady) {
+                mReadyCallbacks.add(timedCallback);
+                return;
+            }
+        }
+        mMainHandler.post(timedCallback);
+    }
+
+    /**
+     * @return detector of the face on the still pictures, shared by the whole
+     *         app, or null if it could not be created in time; starts the
+     *         initialization if not started yet. Blocks until the detector
+     *         is created, so on the main thread it is called from
+     *         {@link #whenReady} only.
+     */
+    public FaceDetector getStillFaceDetector(final Context context) {
+        start(context);
+        return await(getStillFaceDetector());
+    }
+
+    public synchronized Future<Boolean> getOpenCv() {
+        return mOpenCv;
+    }
+
+    public synchronized Future<Void> getFaceDetection() {
+        return mFaceDetection;
+    }
+
+    public synchronized Future<FaceDetector> getStillFaceDetector() {
+        return mStillFaceDetector;
+    }
+
+    /**
+     * @param modelPath name of the float model file stored in the assets
+     * @return future lease of the warmed up interpreter of the model, or null
+     *         if the model is not configured or the initialization not
+     *         started
+     */
+    public synchronized Future<ModelRegistry.Lease> getModel(
+            final String modelPath) {
+        return mModels.get(modelPath);
+    }
+
+    private <T> T await(final Future<T> future) {
+        final long startNs = System.nanoTime();
+        try {
+            return get(future);
+        } finally {
+            mAwaitStats.recordSince(startNs);
+        }
+    }
+
+    /**
+     * @return result of the task or null if it failed or did not finish in
+     *         time
+     */
+    private static <T> T get(final Future<T> future) {
+        try {
+            return future.get(AWAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            Log.e(TAG, "Initialization failed.", e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Gives the warm interpreters back and releases the still face detector.
+     * The next {@link #start(Context)} initializes everything again.
+     */
+    public synchronized void release() {
+        if (mExecutor == null) {
+            return;
+        }
+        for (Future<ModelRegistry.Lease> model : mModels.values()) {
+            final ModelRegistry.Lease lease = get(model);
+            if (lease != null) {
+                lease.close();
+            }
+        }
+        final FaceDetector detector = get(mStillFaceDetector);
+        if (detector != null) {
+            detector.release();
+        }
+        mModels.clear();
+        mStillFaceDetector = null;
+        mReady = false;
+        mReadyCallbacks.clear();
+        mExecutor.shutdown();
+        mExecutor = null;
+    }
+
+    /**
+     * @return time the callers spent awaiting the components
+     */
+    public LatencyStats getAwaitStats() {
+        return mAwaitStats;
+    }
+
+    /**
+     * @return cold start durations of the components, by name
+     */
+    public Map<String, LatencyStats> getColdStartStats() {
+        synchronized (mColdStartStats) {
+            return new LinkedHashMap<>(mColdStartStats);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("Cold start:");
+        for (LatencyStats stats : getColdStartStats().values()) {
+            builder.append('\n').append(stats);
+        }
+        return builder.append('\n').append(mAwaitStats).toString();
+    }
+}
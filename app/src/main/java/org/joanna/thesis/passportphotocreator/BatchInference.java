@@ -0,0 +1,131 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.content.Context;
+
+import org.opencv.core.Mat;
+import org.tensorflow.lite.Tensor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a model on several images at once, on the interpreter of
+ * {@link ModelRegistry#BATCH_INSTANCE}. The images are written one after
+ * another into a single input buffer, each through an {@link InputTensor}
+ * over its part of the buffer, and the network writes the outputs one after
+ * another into a single output buffer. Not thread safe.
+ */
+final class BatchInference {
+
+    private final ModelRegistry.Lease mLease;
+    private final int                 mMaxBatch;
+    private final int                 mImageBytes;
+    private final int                 mOutputBytes;
+    private final ByteBuffer          mInput;
+    private final ByteBuffer          mOutput;
+    /** Views of the parts of the input buffer, one per image. */
+    private final List<InputTensor>   mImages = new ArrayList<>();
+
+    /**
+     * @param context   context to read the model from the assets with
+     * @param modelPath name of the model file stored in the assets
+     * @param options   options of the interpreter
+     * @param maxBatch  highest number of images run at once
+     * @param mean      value subtracted from every channel value
+     * @param std       value the channel values are divided by
+     * @throws IOException if the model cannot be read
+     */
+    BatchInference(
+            final Context context, final String modelPath,
+            final ModelOptions options, final int maxBatch,
+            final float mean, final float std) throws IOException {
+        mLease = ModelRegistry.getInstance().acquire(
+                context, modelPath, options, ModelRegistry.BATCH_INSTANCE);
+        mMaxBatch = maxBatch;
+        final int[] bytes = new int[2];
+        // the interpreter may be resized by another detector meanwhile
+        mLease.runExclusively(() -> {
+            bytes[0] = getBytesPerImage(mLease.getInputTensor());
+            bytes[1] = getBytesPerImage(mLease.getOutputTensor(0));
+        });
+        mImageBytes = bytes[0];
+        mOutputBytes = bytes[1];
+        mInput = ByteBuffer.allocateDirect(maxBatch * mImageBytes)
+                .order(ByteOrder.nativeOrder());
+        mOutput = ByteBuffer.allocateDirect(maxBatch * mOutputBytes)
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < maxBatch; i++) {
+            mImages.add(InputTensor.forTensor(slice(mInput, i, mImageBytes),
+                    mLease.getInputTensor(), mean, std));
+        }
+    }
+
+    private static int getBytesPerImage(final Tensor tensor) {
+        final int[] shape = tensor.shape();
+        return shape.length == 0 || shape[0] <= 1 ? tensor.numBytes() :
+                tensor.numBytes() / shape[0];
+    }
+
+    /**
+     * @return the part of the buffer holding the item, in the native order
+     */
+    private static ByteBuffer slice(
+            final ByteBuffer buffer, final int index, final int itemBytes) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(index * itemBytes);
+        duplicate.limit((index + 1) * itemBytes);
+        return duplicate.slice().order(ByteOrder.nativeOrder());
+    }
+
+    int getMaxBatch() {
+        return mMaxBatch;
+    }
+
+    /**
+     * @return size of the first output for a single image
+     */
+    int getOutputBytes() {
+        return mOutputBytes;
+    }
+
+    /**
+     * Runs the network on the images at once.
+     *
+     * @param images at most {@link #getMaxBatch()} images in RGB or RGBA,
+     *               CV_8U
+     * @return false if the model does not take batches; nothing has been run
+     *         then
+     */
+    boolean run(final List<Mat> images) {
+        final int batch = images.size();
+        for (int i = 0; i < batch; i++) {
+            mImages.get(i).fill(images.get(i));
+        }
+        final ByteBuffer input = slice(mInput, 0, batch * mImageBytes);
+        final ByteBuffer output = slice(mOutput, 0, batch * mOutputBytes);
+        return mLease.runBatch(batch, input, output);
+    }
+
+    /**
+     * Copies the output of an image of the last run.
+     *
+     * @param index       index of the image in the batch
+     * @param destination buffer of {@link #getOutputBytes()}
+     */
+    void copyOutput(final int index, final ByteBuffer destination) {
+        destination.rewind();
+        destination.put(slice(mOutput, index, mOutputBytes));
+        destination.rewind();
+    }
+
+    void close() {
+        mLease.close();
+        for (InputTensor image : mImages) {
+            image.release();
+        }
+        mImages.clear();
+    }
+}
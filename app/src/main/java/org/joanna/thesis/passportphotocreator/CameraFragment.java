@@ -3,6 +3,7 @@ package org.joanna.thesis.passportphotocreator;
 import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.os.Build;
 import android.os.Bundle;
@@ -24,14 +25,18 @@ import com.google.mlkit.vision.face.FaceDetectorOptions;
 import org.jetbrains.annotations.NotNull;
 import org.joanna.thesis.passportphotocreator.camera.CameraSource;
 import org.joanna.thesis.passportphotocreator.camera.CameraSourcePreview;
+import org.joanna.thesis.passportphotocreator.camera.FrameSource;
 import org.joanna.thesis.passportphotocreator.camera.Graphic;
 import org.joanna.thesis.passportphotocreator.camera.GraphicOverlay;
+import org.joanna.thesis.passportphotocreator.processing.LatencyStats;
 import org.joanna.thesis.passportphotocreator.processing.Verifier;
+import org.joanna.thesis.passportphotocreator.processing.background.SpeculativeMask;
 import org.joanna.thesis.passportphotocreator.processing.background.verification.BackgroundVerifier;
+import org.joanna.thesis.passportphotocreator.processing.face.FaceTemplate;
 import org.joanna.thesis.passportphotocreator.processing.face.FaceTracker;
+import org.joanna.thesis.passportphotocreator.processing.face.StillFaceLocator;
 import org.joanna.thesis.passportphotocreator.processing.light.verification.ShadowVerification;
 import org.joanna.thesis.passportphotocreator.processing.visibility.FaceUncoveredVerification;
-import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Mat;
 
 import java.io.IOException;
@@ -54,19 +59,29 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
     private static final int      REQUEST_EXTERNAL_STORAGE = 1;
     private static final String[] PERMISSIONS_STORAGE      =
             {Manifest.permission.WRITE_EXTERNAL_STORAGE};
-
-    static {
-        OpenCVLoader.initDebug();
-    }
-
-    private CameraSource                                    mCameraSource;
+    /**
+     * Number of recent preview frames kept for zero shutter lag, if enabled
+     * with the {@code zero_shutter_lag} resource. The picture is made from
+     * a preview frame then, only if the face on it is at least as large as
+     * the final picture, so it is disabled by default.
+     */
+    private static final int      ZSL_DEPTH                = 8;
+
+    private FrameSource                                     mCameraSource;
     private CameraSourcePreview                             mPreview;
     private GraphicOverlay<Graphic>                         mGraphicOverlay;
     private FaceTracker                                     mFaceTracker;
     private List<Verifier>                                  mVerifiers;
+    private BackgroundVerifier                              mBackgroundVerifier;
     private PhotoSender                                     photoSender;
     private Button                                          buttonTakePicture;
     private com.google.android.gms.vision.face.FaceDetector mDetectorPhoto;
+    private final LatencyStats                              mStillShutterStats =
+            new LatencyStats("Still capture shutter to preview");
+    private final LatencyStats                              mZslShutterStats   =
+            new LatencyStats("ZSL shutter to preview");
+    private final StillFaceLocator                          mStillFaceLocator  =
+            new StillFaceLocator();
 
     @Override
     public void onAttach(@NotNull Context context) {
@@ -92,18 +107,38 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
 
         mGraphicOverlay = view.findViewById(R.id.graphicOverlay);
         mGraphicOverlay.setOnTouchListener((view1, motionEvent) -> {
-            mCameraSource.onTouch(motionEvent);
+            if (null != mCameraSource) {
+                mCameraSource.onTouch(motionEvent);
+            }
             return true;
         });
 
+        // the models are normally warm by now, if not the camera starts once
+        // they are, so that the verifiers get the warm interpreters
+        final AppInitializer initializer = AppInitializer.getInstance();
+        initializer.awaitOpenCv(requireActivity());
+        buttonTakePicture.setEnabled(false);
+        buttonTakePicture.setText(R.string.preparing_camera);
+        initializer.whenReady(requireActivity(), this::onInitialized);
+    }
+
+    /**
+     * Creates the verifiers and starts the camera if the fragment is
+     * resumed.
+     */
+    private void onInitialized() {
+        if (!isAdded() || null == getView()) {
+            return;
+        }
         mVerifiers = new ArrayList<>();
         mVerifiers.add(new ShadowVerification(
                 getActivity(), mGraphicOverlay));
         mVerifiers.add(new FaceUncoveredVerification(
                 getActivity(), mGraphicOverlay));
         try {
-            mVerifiers.add(new BackgroundVerifier(
-                    getActivity(), mGraphicOverlay));
+            mBackgroundVerifier = new BackgroundVerifier(
+                    getActivity(), mGraphicOverlay);
+            mVerifiers.add(mBackgroundVerifier);
         } catch (IOException e) {
             Toast.makeText(
                     getActivity(),
@@ -113,20 +148,22 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
 
         mFaceTracker = new FaceTracker(mGraphicOverlay, requireActivity());
 
-        mDetectorPhoto = new com.google.android.gms.vision
-                .face.FaceDetector.Builder(requireActivity())
-                .setProminentFaceOnly(true)
-                .setMode(com.google.android.gms.vision
-                        .face.FaceDetector.ACCURATE_MODE)
-                .build();
-
+        // created and warmed up at the start of the app, shared by the app
+        mDetectorPhoto = AppInitializer.getInstance()
+                .getStillFaceDetector(requireActivity());
+        buttonTakePicture.setText(R.string.take_photo_button);
+        if (isResumed()) {
+            resumeCamera();
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        for (Verifier verifier : mVerifiers) {
-            verifier.close();
+        if (null != mVerifiers) {
+            for (Verifier verifier : mVerifiers) {
+                verifier.close();
+            }
         }
         if (mCameraSource != null) {
             mCameraSource.release();
@@ -136,6 +173,13 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
     @Override
     public void onResume() {
         super.onResume();
+        // otherwise started once the components are ready
+        if (null != mVerifiers) {
+            resumeCamera();
+        }
+    }
+
+    private void resumeCamera() {
         createCameraSource();
         startCameraSource();
         if (null != mCameraSource) {
@@ -146,8 +190,13 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
     @Override
     public void onPause() {
         mPreview.release();
-        mFaceTracker.clear();
+        if (null != mFaceTracker) {
+            mFaceTracker.clear();
+        }
         buttonTakePicture.setEnabled(false);
+        Log.i(TAG, mZslShutterStats.toString());
+        Log.i(TAG, mStillShutterStats.toString());
+        Log.i(TAG, mStillFaceLocator.toString());
         super.onPause();
     }
 
@@ -185,14 +234,8 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
 
         requireActivity().setRequestedOrientation(SCREEN_ORIENTATION_PORTRAIT);
 
-        FaceDetectorOptions options =
-                new FaceDetectorOptions.Builder()
-                        .setPerformanceMode(PERFORMANCE_MODE_FAST)
-                        .setContourMode(LANDMARK_MODE_NONE)
-                        .setClassificationMode(CLASSIFICATION_MODE_ALL)
-                        .build();
-
-        final FaceDetector mDetectorVideo = FaceDetection.getClient(options);
+        final FaceDetector mDetectorVideo =
+                FaceDetection.getClient(getVideoDetectorOptions());
 
         CameraSource.Builder builder = new CameraSource
                 .Builder(context, mDetectorVideo)
@@ -201,12 +244,29 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
                 .setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)
                 .setVerifiers(mVerifiers)
                 .setFaceDetector(mFaceTracker)
+                .setZslDepth(getResources().getBoolean(
+                        R.bool.zero_shutter_lag) ? ZSL_DEPTH : 0)
+                .setBackend(getResources().getBoolean(R.bool.camera2_backend)
+                        ? CameraSource.BACKEND_CAMERA2
+                        : CameraSource.BACKEND_CAMERA1)
                 .setRequestedFps(15.0f);
 
         mCameraSource = builder.build();
 
     }
 
+    /**
+     * @return options of the face detection run on the preview frames
+     */
+    public static FaceDetectorOptions getVideoDetectorOptions() {
+        return new FaceDetectorOptions.Builder()
+                .setPerformanceMode(PERFORMANCE_MODE_FAST)
+                .setContourMode(LANDMARK_MODE_NONE)
+                .setClassificationMode(CLASSIFICATION_MODE_ALL)
+                .enableTracking()
+                .build();
+    }
+
     private void requestStoragePermissions() {
         int permission = ActivityCompat.checkSelfPermission(
                 requireActivity(),
@@ -229,28 +289,108 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
             requestStoragePermissions();
         }
+        final long shutterNs = System.nanoTime();
+        // the person mask of a recent preview frame spares segmenting the
+        // picture again, as long as the face is at the same place on both
+        final SpeculativeMask personMask = null == mBackgroundVerifier
+                ? null
+                : mBackgroundVerifier.getLastMask();
+        // the picture from the recent preview frames is available at once,
+        // fall back to the still capture only if none of them is suitable
+        final RectF zslCrop = new RectF();
+        final Mat zslPicture = mCameraSource.takeZslPicture(zslCrop);
+        if (zslPicture != null) {
+            displayPicture(zslPicture,
+                    matchPersonMask(personMask, zslCrop, shutterNs),
+                    mZslShutterStats, shutterNs);
+            return;
+        }
+        // the face on the preview at the shutter is searched for on the
+        // picture, the face detection runs only if it cannot be found
+        final FaceTemplate template = mCameraSource.getFaceTemplate();
         Toast toast = makeCenteredToast(getActivity(),
                 R.string.wait_for_a_picture, Toast.LENGTH_LONG);
         toast.show();
         mCameraSource.takePicture(null, bytes -> {
             toast.cancel();
-            Mat picture = getFaceMatFromPictureTaken(bytes, mDetectorPhoto);
+            final RectF stillCrop = new RectF();
+            Mat picture = getFaceMatFromPictureTaken(bytes, mDetectorPhoto,
+                    template, mStillFaceLocator, stillCrop);
             if (picture == null) {
+                if (null != personMask) {
+                    personMask.release();
+                }
                 Toast.makeText(
                         getActivity(),
                         R.string.cannot_make_a_picture,
                         Toast.LENGTH_SHORT).show();
                 return;
             }
-            photoSender.setPhoto(picture);
-            try {
-                photoSender.displayPreviewFragment();
-            } catch (Exception e) {
-                Log.e(TAG, "Exception happened " + e.getMessage());
-            }
+            displayPicture(picture,
+                    matchPersonMask(personMask, stillCrop, shutterNs),
+                    mStillShutterStats, shutterNs);
         });
     }
 
+    /**
+     * @param faceCrop  region of the picture cut out, relative to its size
+     * @param shutterNs moment of pressing the shutter
+     * @return the mask if it can be used for the picture, null otherwise;
+     *         the mask is released then
+     */
+    private SpeculativeMask matchPersonMask(
+            final SpeculativeMask personMask, final RectF faceCrop,
+            final long shutterNs) {
+        if (null == personMask) {
+            return null;
+        }
+        final boolean matches = personMask.matches(faceCrop, shutterNs);
+        Log.d(TAG, "Person mask of the preview " +
+                (matches ? "reused" : "not reused") + ", divergence " +
+                personMask.getDivergence(faceCrop));
+        if (!matches) {
+            personMask.release();
+            return null;
+        }
+        return personMask;
+    }
+
+    private void displayPicture(
+            final Mat picture, final SpeculativeMask personMask,
+            final LatencyStats stats, final long shutterNs) {
+        photoSender.setPhoto(picture, personMask);
+        try {
+            photoSender.displayPreviewFragment();
+        } catch (Exception e) {
+            Log.e(TAG, "Exception happened " + e.getMessage());
+        }
+        stats.recordSince(shutterNs);
+    }
+
+    /**
+     * @return time from pressing the shutter until the picture taken from
+     *         the frames kept for zero shutter lag is shown
+     */
+    public LatencyStats getZslShutterStats() {
+        return mZslShutterStats;
+    }
+
+    /**
+     * @return time from pressing the shutter until the picture taken with a
+     *         still capture is shown
+     */
+    public LatencyStats getStillShutterStats() {
+        return mStillShutterStats;
+    }
+
+    /**
+     * @return counts of the pictures on which the face was found from the
+     *         preview and of those that needed the face detection
+     */
+    public StillFaceLocator getStillFaceLocator() {
+        return mStillFaceLocator;
+    }
+
 
     private boolean cannotMakePicture(final boolean condition) {
         if (condition) {
@@ -264,7 +404,12 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
 
     public interface PhotoSender {
 
-        void setPhoto(Mat pict);
+        /**
+         * @param pict       the picture taken
+         * @param personMask person mask of the preview frame matching the
+         *                   picture, or null
+         */
+        void setPhoto(Mat pict, SpeculativeMask personMask);
 
         void displayPreviewFragment();
     }
@@ -1,91 +1,234 @@
 package org.joanna.thesis.passportphotocreator;
 
 import android.app.Activity;
-import android.content.res.AssetFileDescriptor;
-import android.graphics.Bitmap;
+import android.content.Context;
+import android.util.Log;
 
-import org.tensorflow.lite.Interpreter;
+import org.opencv.core.Mat;
+import org.tensorflow.lite.DataType;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.List;
 
 public abstract class DetectorTensorflowLite {
 
+    private static final String TAG =
+            DetectorTensorflowLite.class.getSimpleName();
+
     public static final int COLOR_CHANNELS_NO = 3;
 
-    /** An instance of the driver class to run model inference with Tfl Lite. */
-    protected     Interpreter         mTflite;
-    /** A ByteBuffer to hold image data, to be feed into Tfl Lite as inputs. */
+    /** Highest number of images run at once, unless a model says otherwise. */
+    protected static final int DEFAULT_MAX_BATCH_SIZE = 8;
+
+    /** Lease of the shared interpreter to run model inference with. */
+    protected     ModelRegistry.Lease mTflite;
+    /**
+     * A ByteBuffer to hold image data, to be feed into Tfl Lite as inputs;
+     * shared by all the detectors using the model.
+     */
     protected     ByteBuffer          mImgData;
-    /** Preallocated buffers for storing image data in. */
-    private       int[]               mIntValues;
-    /** The loaded TensorFlow Lite model. */
-    private       MappedByteBuffer    mTfliteModel;
+    /** The input buffer viewed as a Mat. */
+    private       InputTensor         mInput;
+    /** The first output, see {@link #createOutput(int, int, int)}. */
+    private       OutputTensor        mOutput;
+    private       Context             mContext;
+    /** Created with the first batch; null if the model runs no batches. */
+    private       BatchInference      mBatch;
+    private       boolean             mBatchUnsupported;
 
     protected DetectorTensorflowLite(final Activity activity)
             throws IOException {
-        final Interpreter.Options mTfliteOptions = new Interpreter.Options();
-        mTfliteModel = loadModelFile(activity);
-        mTflite = new Interpreter(mTfliteModel, mTfliteOptions);
-        mIntValues = new int[getImageSizeX() * getImageSizeY()];
-        mImgData = ByteBuffer.allocateDirect(
-                getImageSizeX() * getImageSizeY()
-                        * COLOR_CHANNELS_NO
-                        * getNumBytesPerChannel());
-        mImgData.order(ByteOrder.nativeOrder());
+        this(activity, 0);
     }
 
     /**
-     * Memory-map the model file in Assets.
+     * @param activity the activity
+     * @param instance index of the interpreter of the model to be used, see
+     *                 {@link ModelRegistry#acquire(Context, String,
+     *                 ModelOptions, int)}; 0 for the shared one
      */
-    protected MappedByteBuffer loadModelFile(Activity activity)
-            throws IOException {
-        AssetFileDescriptor fileDescriptor =
-                activity.getAssets().openFd(getModelPath());
-        FileInputStream inputStream =
-                new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset,
-                declaredLength);
+    protected DetectorTensorflowLite(
+            final Activity activity, final int instance) throws IOException {
+        final String modelPath = ModelConfig.getInstance(activity)
+                .selectModelPath(getModelPath());
+        mTflite = ModelRegistry.getInstance().acquire(
+                activity, modelPath, getModelOptions(activity), instance);
+        mImgData = mTflite.getInputBuffer();
+        mInput = InputTensor.forTensor(mImgData, mTflite.getInputTensor(),
+                getInputMean(), getInputStd());
+        mContext = activity.getApplicationContext();
+    }
+
+    /**
+     * Get the options of the interpreter running the model, as configured or
+     * tuned for the device, see {@link ModelConfig}.
+     *
+     * @return interpreter options
+     */
+    protected ModelOptions getModelOptions(final Context context) {
+        return ModelConfig.getInstance(context).getOptions(getModelPath());
+    }
+
+    /**
+     * @return the model file actually run, the float model or its quantized
+     *         variant, see {@link ModelConfig#selectModelPath}
+     */
+    public String getRunningModelPath() {
+        return mTflite.getModelPath();
+    }
+
+    /**
+     * @return true if the running model takes quantized input
+     */
+    public boolean isQuantized() {
+        return mTflite.getInputTensor().dataType() != DataType.FLOAT32;
     }
 
     /**
-     * Writes Image data into a {@code ByteBuffer}.
+     * Creates the buffer for the first output of the model, float or
+     * quantized as the model is.
+     *
+     * @param rows     rows of the output, the height of an image
+     * @param cols     columns of the output, the width of an image
+     * @param channels values per element
+     * @return the output; to be released by the caller
      */
-    protected void convertBitmapToByteBuffer(Bitmap bitmap) {
-        if (mImgData == null) {
-            return;
+    protected OutputTensor createOutput(
+            final int rows, final int cols, final int channels) {
+        final OutputTensor output = OutputTensor.forTensor(
+                mTflite.getOutputTensor(0), rows, cols, channels);
+        if (mOutput == null) {
+            mOutput = output;
         }
-        mImgData.rewind();
-        bitmap.getPixels(mIntValues, 0, bitmap.getWidth(), 0, 0,
-                bitmap.getWidth(), bitmap.getHeight());
-        // Convert the image to floating point.
-        int pixel = 0;
-        for (int i = 0; i < getImageSizeX(); ++i) {
-            for (int j = 0; j < getImageSizeY(); ++j) {
-                final int val = mIntValues[pixel++];
-                addPixelValue(val);
+        return output;
+    }
+
+    /**
+     * Writes the image into the input buffer, resized to the input size of
+     * the network and normalized, and runs the network. The input buffer is
+     * shared with the other detectors using the model, so nobody else may run
+     * the model in between.
+     *
+     * @param image image in RGB or RGBA, CV_8U
+     */
+    protected void runInference(final Mat image) {
+        mTflite.runExclusively(() -> {
+            mInput.fill(image);
+            runInference();
+        });
+    }
+
+    /**
+     * Runs the network on the images, at most {@link #getMaxBatchSize()} of
+     * them at once, with the input of the network resized to the batch.
+     * Models not taking batches, with the input or the outputs of a fixed
+     * batch size, run the images one by one instead. After every image the
+     * output holds its result, as after {@link #runInference(Mat)}, and the
+     * consumer is called.
+     *
+     * @param images   images in RGB or RGBA, CV_8U
+     * @param consumer called with the index of every image, in order
+     */
+    protected void runInference(
+            final List<Mat> images, final OutputConsumer consumer) {
+        final BatchInference batch = getBatchInference();
+        final int step = batch == null ? 1 : batch.getMaxBatch();
+        for (int from = 0; from < images.size(); from += step) {
+            final List<Mat> part = images.subList(
+                    from, Math.min(images.size(), from + step));
+            if (batch != null && !mBatchUnsupported && batch.run(part)) {
+                for (int i = 0; i < part.size(); i++) {
+                    batch.copyOutput(i, mOutput.getBuffer());
+                    consumer.onOutput(from + i);
+                }
+                continue;
+            }
+            disableBatches();
+            for (int i = 0; i < part.size(); i++) {
+                runInference(part.get(i));
+                consumer.onOutput(from + i);
             }
         }
     }
 
     /**
-     * Closes tflite to release resources.
+     * @return the batch runner or null if the images are to be run one by
+     *         one
+     */
+    private BatchInference getBatchInference() {
+        if (mBatch != null || mBatchUnsupported) {
+            return mBatch;
+        }
+        if (getMaxBatchSize() <= 1 || mOutput == null) {
+            disableBatches();
+            return null;
+        }
+        try {
+            mBatch = new BatchInference(mContext, mTflite.getModelPath(),
+                    getModelOptions(mContext), getMaxBatchSize(),
+                    getInputMean(), getInputStd());
+        } catch (IOException e) {
+            Log.e(TAG, "Batch interpreter not created; running one by one.",
+                    e);
+            disableBatches();
+            return null;
+        }
+        if (mBatch.getOutputBytes() != mOutput.getBuffer().capacity()) {
+            Log.w(TAG, "Output of " + getModelPath() + " not batched; " +
+                    "running one by one.");
+            disableBatches();
+        }
+        return mBatch;
+    }
+
+    /**
+     * Gives up the batches for the rest of the life of the detector.
+     */
+    private void disableBatches() {
+        mBatchUnsupported = true;
+        if (mBatch != null) {
+            mBatch.close();
+            mBatch = null;
+        }
+    }
+
+    /**
+     * @return true unless the model has turned out not to take batches,
+     *         see {@link #runInference(List, OutputConsumer)}
+     */
+    public boolean isBatchSupported() {
+        return !mBatchUnsupported;
+    }
+
+    /**
+     * Get the highest number of images run at once by
+     * {@link #runInference(List, OutputConsumer)}; 1 to run them one by one.
+     *
+     * @return maximum batch size
+     */
+    protected int getMaxBatchSize() {
+        return DEFAULT_MAX_BATCH_SIZE;
+    }
+
+    /**
+     * Gives back the interpreter; it is closed when no other detector uses
+     * the model.
      */
     public void close() {
+        if (mBatch != null) {
+            mBatch.close();
+            mBatch = null;
+        }
         mTflite.close();
         mTflite = null;
-        mTfliteModel = null;
+        mInput.release();
+        mInput = null;
+        mImgData = null;
     }
 
     /**
-     * Get the name of the model file stored in Assets.
+     * Get the name of the float model file stored in Assets.
      *
      * @return model path
      */
@@ -106,23 +249,38 @@ public abstract class DetectorTensorflowLite {
     protected abstract int getImageSizeY();
 
     /**
-     * Get the number of bytes that is used to store a single color channel
-     * value.
+     * Get the value subtracted from every color channel value of the input.
      *
-     * @return number of bytes that is used to store a single color channel val
+     * @return mean of the input values
      */
-    protected abstract int getNumBytesPerChannel();
+    protected float getInputMean() {
+        return 0;
+    }
 
     /**
-     * Add pixelValue to byteBuffer.
+     * Get the value every color channel value of the input is divided by,
+     * after subtracting the mean.
      *
-     * @param pixelValue value of a pixel
+     * @return standard deviation of the input values
      */
-    protected abstract void addPixelValue(int pixelValue);
+    protected float getInputStd() {
+        return 1;
+    }
 
     /**
      * Executes call to the network.
      */
     protected abstract void runInference();
 
+    /**
+     * Receives the results of {@link #runInference(List, OutputConsumer)}.
+     */
+    protected interface OutputConsumer {
+
+        /**
+         * @param index index of the image whose result the output holds
+         */
+        void onOutput(int index);
+    }
+
 }
@@ -0,0 +1,127 @@
+package org.joanna.thesis.passportphotocreator;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Tensor;
+
+import java.nio.ByteBuffer;
+
+import static org.opencv.core.CvType.CV_32FC3;
+import static org.opencv.core.CvType.CV_8SC3;
+import static org.opencv.core.CvType.CV_8UC3;
+
+/**
+ * Input of a network viewed as an RGB Mat, so that an image can be resized
+ * and normalized straight into the input buffer with OpenCV, with no Bitmap
+ * and no per pixel calls in between. The intermediate Mats are kept between
+ * the calls. Not thread safe.
+ * <p/>
+ * Quantized inputs take the normalized values quantized; for the usual
+ * models, taking the pixel values as they are, the normalization and the
+ * quantization cancel out and the image is only copied.
+ */
+public class InputTensor {
+
+    private final ByteBuffer mBuffer;
+    private final Mat        mTensor;
+    private final Size       mSize;
+    private final double     mScale;
+    private final double     mOffset;
+    private final Mat        mResized = new Mat();
+    private final Mat        mRgb     = new Mat();
+
+    /**
+     * @param buffer          direct buffer of the input, in the native order;
+     *                        stays owned by the caller
+     * @param width           input width of the network
+     * @param height          input height of the network
+     * @param bytesPerChannel 4 for float inputs, 1 for byte inputs
+     * @param mean            value subtracted from every channel value
+     * @param std             value the channel values are divided by
+     */
+    public InputTensor(
+            final ByteBuffer buffer, final int width, final int height,
+            final int bytesPerChannel, final float mean, final float std) {
+        this(buffer, width, height,
+                bytesPerChannel == 1 ? CV_8UC3 : CV_32FC3,
+                1.0 / std, -mean / std);
+    }
+
+    private InputTensor(
+            final ByteBuffer buffer, final int width, final int height,
+            final int type, final double scale, final double offset) {
+        mBuffer = buffer;
+        mTensor = new Mat(height, width, type, buffer);
+        mSize = new Size(width, height);
+        mScale = scale;
+        mOffset = offset;
+    }
+
+    /**
+     * @param buffer direct buffer of the input, in the native order; stays
+     *               owned by the caller
+     * @param tensor input of the network, of the shape [1, height, width, 3]
+     *               and of float, uint8 or int8 type
+     * @param mean   value subtracted from every channel value
+     * @param std    value the channel values are divided by
+     * @return view of the buffer matching the tensor
+     */
+    public static InputTensor forTensor(
+            final ByteBuffer buffer, final Tensor tensor, final float mean,
+            final float std) {
+        final int[] shape = tensor.shape();
+        final int height = shape[1];
+        final int width = shape[2];
+        if (tensor.dataType() == DataType.FLOAT32) {
+            return new InputTensor(buffer, width, height, CV_32FC3,
+                    1.0 / std, -mean / std);
+        }
+        final Tensor.QuantizationParams quantization =
+                tensor.quantizationParams();
+        // (pixel - mean) / std / quantization scale + zero point
+        final double scale = 1.0 / (std * quantization.getScale());
+        final double offset = quantization.getZeroPoint() - mean * scale;
+        return new InputTensor(buffer, width, height,
+                tensor.dataType() == DataType.INT8 ? CV_8SC3 : CV_8UC3,
+                isIdentity(scale, offset) ? 1 : scale,
+                isIdentity(scale, offset) ? 0 : offset);
+    }
+
+    private static boolean isIdentity(
+            final double scale, final double offset) {
+        return Math.abs(scale - 1) < 1e-3 && Math.abs(offset) < 1e-3;
+    }
+
+    /**
+     * Writes the image into the buffer, resized to the input size.
+     *
+     * @param image image in RGB, RGBA or gray scale, CV_8U
+     */
+    public void fill(final Mat image) {
+        Mat resized = image;
+        if (!image.size().equals(mSize)) {
+            Imgproc.resize(image, mResized, mSize);
+            resized = mResized;
+        }
+        Mat rgb = resized;
+        if (resized.channels() == 4) {
+            Imgproc.cvtColor(resized, mRgb, Imgproc.COLOR_RGBA2RGB);
+            rgb = mRgb;
+        } else if (resized.channels() == 1) {
+            Imgproc.cvtColor(resized, mRgb, Imgproc.COLOR_GRAY2RGB);
+            rgb = mRgb;
+        }
+        // the tensor has the size and type asked for, so it is not
+        // reallocated and the values land in the buffer
+        rgb.convertTo(mTensor, mTensor.type(), mScale, mOffset);
+        mBuffer.rewind();
+    }
+
+    public void release() {
+        mTensor.release();
+        mResized.release();
+        mRgb.release();
+    }
+}
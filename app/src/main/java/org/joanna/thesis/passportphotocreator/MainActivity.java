@@ -31,9 +31,19 @@ public class MainActivity extends AppCompatActivity
         setContentView(R.layout.activity_main);
         statusMessage = findViewById(R.id.status_message);
         findViewById(R.id.take_photo).setOnClickListener(this);
+        // OpenCV and the models load while the user reads the main screen
+        AppInitializer.getInstance().start(this);
         requestCameraPermission();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            AppInitializer.getInstance().release();
+        }
+    }
+
     @Override
     public void onClick(final View v) {
         if (v.getId() == R.id.take_photo) {
@@ -0,0 +1,374 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.XmlResourceParser;
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interpreter options of every model. The options come, from the most
+ * important, from an override set by hand, from tuning on the device, see
+ * {@link ModelTuner}, or from the {@code model_options} xml resource. The
+ * override and the tuning results are kept in the shared preferences. The
+ * options and the model file of a model are resolved once per process, so
+ * that the interpreters warmed up at the start, see {@link AppInitializer},
+ * match the detectors created later; tuning results take effect from the
+ * next start, overrides at once.
+ * <p/>
+ * A model may have a quantized variant, listed in the xml resource too. The
+ * variant is run instead of the float model if the {@link Precision} chosen
+ * for the device says so, see {@link #getPrecision}, and if the variant is
+ * in the assets. Unless set by hand, it is chosen only if its accuracy was
+ * found close enough to the float model by the evaluation, which is marked
+ * with the {@code quantizedValidated} attribute in the xml resource.
+ */
+public final class ModelConfig {
+
+    private static final String TAG = ModelConfig.class.getSimpleName();
+
+    private static final String PREFERENCES            = "model_options";
+    private static final String OVERRIDE_PREFIX        = "override.";
+    private static final String TUNED_PREFIX           = "tuned.";
+    private static final String TUNED_MS_PREFIX        = "tuned_ms.";
+    private static final String PRECISION_PREFIX       = "precision.";
+    private static final String TUNED_PRECISION_PREFIX = "tuned_precision.";
+    private static final String MODEL_TAG              = "model";
+
+    private static ModelConfig sInstance;
+
+    private final Context                   mContext;
+    private final Map<String, ModelOptions> mConfigured     =
+            new LinkedHashMap<>();
+    private final Map<String, String>       mQuantizedPaths = new HashMap<>();
+    /**
+     * Models whose quantized variant passed the accuracy evaluation.
+     */
+    private final Set<String>               mValidated      = new HashSet<>();
+    private final Map<String, ModelOptions> mResolved       =
+            new ConcurrentHashMap<>();
+    private final Map<String, String>       mResolvedPaths  =
+            new ConcurrentHashMap<>();
+    private final SharedPreferences         mPreferences;
+    private final boolean                   mLowRamDevice;
+
+    private ModelConfig(final Context context) {
+        mContext = context;
+        readConfigured();
+        mPreferences = context.getSharedPreferences(
+                PREFERENCES, Context.MODE_PRIVATE);
+        final ActivityManager activityManager = (ActivityManager)
+                context.getSystemService(Context.ACTIVITY_SERVICE);
+        mLowRamDevice = activityManager != null &&
+                activityManager.isLowRamDevice();
+    }
+
+    public static synchronized ModelConfig getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new ModelConfig(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param modelPath name of the model file stored in the assets
+     * @return options the interpreter of the model should be created with
+     */
+    public ModelOptions getOptions(final String modelPath) {
+        ModelOptions options = mResolved.get(modelPath);
+        if (options != null) {
+            return options;
+        }
+        options = getOverride(modelPath);
+        if (options == null) {
+            options = getTuned(modelPath);
+        }
+        if (options == null) {
+            options = getConfigured(modelPath);
+        }
+        mResolved.put(modelPath, options);
+        return options;
+    }
+
+    /**
+     * @param modelPath name of the float model file stored in the assets
+     * @return name of the model file to be run, the float model or its
+     *         quantized variant
+     */
+    public String selectModelPath(final String modelPath) {
+        String selected = mResolvedPaths.get(modelPath);
+        if (selected == null) {
+            selected = resolveModelPath(modelPath);
+            mResolvedPaths.put(modelPath, selected);
+        }
+        return selected;
+    }
+
+    private String resolveModelPath(final String modelPath) {
+        final String quantizedPath = mQuantizedPaths.get(modelPath);
+        if (quantizedPath == null ||
+                getPrecision(modelPath) != Precision.QUANTIZED) {
+            return modelPath;
+        }
+        if (!hasAsset(quantizedPath)) {
+            Log.w(TAG, "Model " + quantizedPath + " not found; running " +
+                    modelPath + ".");
+            return modelPath;
+        }
+        return quantizedPath;
+    }
+
+    /**
+     * @return name of the quantized variant of the model or null if there is
+     *         none
+     */
+    public String getQuantizedPath(final String modelPath) {
+        return mQuantizedPaths.get(modelPath);
+    }
+
+    /**
+     * The precision is set by hand. Otherwise the float model is run, unless
+     * the quantized variant passed the accuracy evaluation; then the
+     * precision found by the tuning is run, or the quantized variant on low
+     * RAM devices if the model has not been tuned.
+     *
+     * @return precision of the model to be run on the device
+     */
+    public Precision getPrecision(final String modelPath) {
+        Precision precision = getPrecisionOverride(modelPath);
+        if (precision != null) {
+            return precision;
+        }
+        if (!isQuantizedValidated(modelPath)) {
+            return Precision.FLOAT;
+        }
+        precision = getTunedPrecision(modelPath);
+        if (precision == null) {
+            precision = mLowRamDevice ? Precision.QUANTIZED : Precision.FLOAT;
+        }
+        return precision;
+    }
+
+    /**
+     * @return true if the quantized variant of the model was found accurate
+     *         enough to be chosen without an override, see
+     *         {@code QuantizedModelEvaluation}
+     */
+    public boolean isQuantizedValidated(final String modelPath) {
+        return mValidated.contains(modelPath);
+    }
+
+    /**
+     * @return precision found faster by the tuning or null if the model has
+     *         not been tuned
+     */
+    public Precision getTunedPrecision(final String modelPath) {
+        return Precision.decode(mPreferences.getString(
+                TUNED_PRECISION_PREFIX + modelPath, null));
+    }
+
+    public void setTunedPrecision(
+            final String modelPath, final Precision precision) {
+        mPreferences.edit()
+                .putString(TUNED_PRECISION_PREFIX + modelPath,
+                        precision.name())
+                .apply();
+    }
+
+    /**
+     * @return precision set by hand or null if there is none
+     */
+    public Precision getPrecisionOverride(final String modelPath) {
+        return Precision.decode(mPreferences.getString(
+                PRECISION_PREFIX + modelPath, null));
+    }
+
+    /**
+     * Sets the precision of the model regardless of the tuning and of the
+     * accuracy evaluation. Used for the detectors created from now on.
+     *
+     * @param precision precision of the model or null to remove the override
+     */
+    public void setPrecisionOverride(
+            final String modelPath, final Precision precision) {
+        if (precision == null) {
+            mPreferences.edit().remove(PRECISION_PREFIX + modelPath).apply();
+        } else {
+            mPreferences.edit()
+                    .putString(PRECISION_PREFIX + modelPath, precision.name())
+                    .apply();
+        }
+        mResolvedPaths.remove(modelPath);
+    }
+
+    /**
+     * @return names of the models listed in the configuration
+     */
+    public List<String> getModelPaths() {
+        return Collections.unmodifiableList(
+                new ArrayList<>(mConfigured.keySet()));
+    }
+
+    /**
+     * @return options from the xml resource, the defaults if the model is
+     *         not listed there
+     */
+    public ModelOptions getConfigured(final String modelPath) {
+        final ModelOptions options = mConfigured.get(modelPath);
+        return options == null ? ModelOptions.DEFAULT : options;
+    }
+
+    /**
+     * @return options found best by the tuning or null if the model has not
+     *         been tuned
+     */
+    public ModelOptions getTuned(final String modelPath) {
+        return ModelOptions.decode(
+                mPreferences.getString(TUNED_PREFIX + modelPath, null));
+    }
+
+    /**
+     * @return average time of a run with the tuned options, in ms, or -1 if
+     *         the model has not been tuned
+     */
+    public float getTunedMs(final String modelPath) {
+        return mPreferences.getFloat(TUNED_MS_PREFIX + modelPath, -1);
+    }
+
+    public void setTuned(
+            final String modelPath, final ModelOptions options,
+            final float runMs) {
+        mPreferences.edit()
+                .putString(TUNED_PREFIX + modelPath, options.encode())
+                .putFloat(TUNED_MS_PREFIX + modelPath, runMs)
+                .apply();
+    }
+
+    /**
+     * Forgets the results of the tuning, so that the models get tuned again.
+     */
+    public void clearTuned() {
+        final SharedPreferences.Editor editor = mPreferences.edit();
+        for (String key : mPreferences.getAll().keySet()) {
+            if (key.startsWith(TUNED_PREFIX) ||
+                    key.startsWith(TUNED_MS_PREFIX) ||
+                    key.startsWith(TUNED_PRECISION_PREFIX)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * @return options set by hand or null if there are none
+     */
+    public ModelOptions getOverride(final String modelPath) {
+        return ModelOptions.decode(
+                mPreferences.getString(OVERRIDE_PREFIX + modelPath, null));
+    }
+
+    /**
+     * Sets the options of the model regardless of the tuning. Used for the
+     * interpreters created from now on.
+     *
+     * @param options options of the model or null to remove the override
+     */
+    public void setOverride(
+            final String modelPath, final ModelOptions options) {
+        if (options == null) {
+            mPreferences.edit().remove(OVERRIDE_PREFIX + modelPath).apply();
+        } else {
+            mPreferences.edit()
+                    .putString(OVERRIDE_PREFIX + modelPath, options.encode())
+                    .apply();
+        }
+        mResolved.remove(modelPath);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("Model options:");
+        for (String modelPath : mConfigured.keySet()) {
+            builder.append(String.format(Locale.US,
+                    "\n%s: %s, %s (tuned %s in %.1f ms, override %s)",
+                    modelPath, getOptions(modelPath),
+                    selectModelPath(modelPath), getTuned(modelPath),
+                    getTunedMs(modelPath), getOverride(modelPath)));
+        }
+        return builder.toString();
+    }
+
+    private boolean hasAsset(final String path) {
+        try {
+            mContext.getAssets().openFd(path).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void readConfigured() {
+        try (XmlResourceParser parser =
+                     mContext.getResources().getXml(R.xml.model_options)) {
+            while (parser.next() != XmlPullParser.END_DOCUMENT) {
+                if (parser.getEventType() != XmlPullParser.START_TAG ||
+                        !MODEL_TAG.equals(parser.getName())) {
+                    continue;
+                }
+                final String path = parser.getAttributeValue(null, "path");
+                final String quantizedPath =
+                        parser.getAttributeValue(null, "quantizedPath");
+                if (quantizedPath != null) {
+                    mQuantizedPaths.put(path, quantizedPath);
+                }
+                if (parser.getAttributeBooleanValue(
+                        null, "quantizedValidated", false)) {
+                    mValidated.add(path);
+                }
+                mConfigured.put(path, new ModelOptions(
+                        parser.getAttributeIntValue(null, "threads", -1),
+                        parser.getAttributeBooleanValue(
+                                null, "xnnpack", false),
+                        parser.getAttributeBooleanValue(null, "fp16", false),
+                        parser.getAttributeBooleanValue(
+                                null, "bufferHandleOutput", false)));
+            }
+        } catch (XmlPullParserException | IOException e) {
+            Log.e(TAG, "Could not read the model options.", e);
+        }
+    }
+
+    /**
+     * Precision of the model run.
+     */
+    public enum Precision {
+        FLOAT,
+        QUANTIZED;
+
+        static Precision decode(final String name) {
+            if (name == null) {
+                return null;
+            }
+            try {
+                return valueOf(name);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.joanna.thesis.passportphotocreator;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.util.Locale;
+
+/**
+ * Options of the Tensorflow Lite interpreter running a model. Immutable, so
+ * that it can be a part of the key under which {@link ModelRegistry} keeps
+ * the interpreters.
+ */
+public final class ModelOptions {
+
+    /**
+     * Options the interpreter is created with when nothing else is configured.
+     */
+    public static final ModelOptions DEFAULT =
+            new ModelOptions(-1, false, false, false);
+
+    private static final String SEPARATOR = ",";
+
+    private final int     mNumThreads;
+    private final boolean mUseXnnpack;
+    private final boolean mAllowFp16;
+    private final boolean mAllowBufferHandleOutput;
+
+    /**
+     * @param numThreads              number of threads of the interpreter, -1
+     *                                to let the interpreter decide
+     * @param useXnnpack              whether to run the model with the
+     *                                XNNPACK delegate
+     * @param allowFp16               whether float operations may be computed
+     *                                with half precision
+     * @param allowBufferHandleOutput whether the outputs may stay in the
+     *                                buffers of the delegate
+     */
+    public ModelOptions(
+            final int numThreads, final boolean useXnnpack,
+            final boolean allowFp16, final boolean allowBufferHandleOutput) {
+        mNumThreads = numThreads;
+        mUseXnnpack = useXnnpack;
+        mAllowFp16 = allowFp16;
+        mAllowBufferHandleOutput = allowBufferHandleOutput;
+    }
+
+    /**
+     * @param encoded options written by {@link #encode()}
+     * @return the options or null if they cannot be read
+     */
+    public static ModelOptions decode(final String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        final String[] values = encoded.split(SEPARATOR);
+        if (values.length != 4) {
+            return null;
+        }
+        try {
+            return new ModelOptions(
+                    Integer.parseInt(values[0]),
+                    Boolean.parseBoolean(values[1]),
+                    Boolean.parseBoolean(values[2]),
+                    Boolean.parseBoolean(values[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the options as a string to be stored in the preferences
+     */
+    public String encode() {
+        return mNumThreads + SEPARATOR + mUseXnnpack + SEPARATOR +
+                mAllowFp16 + SEPARATOR + mAllowBufferHandleOutput;
+    }
+
+    /**
+     * @return copy of these options with the other number of threads and use
+     *         of XNNPACK
+     */
+    public ModelOptions withThreads(
+            final int numThreads, final boolean useXnnpack) {
+        return new ModelOptions(numThreads, useXnnpack, mAllowFp16,
+                mAllowBufferHandleOutput);
+    }
+
+    public int getNumThreads() {
+        return mNumThreads;
+    }
+
+    public boolean isUseXnnpack() {
+        return mUseXnnpack;
+    }
+
+    public boolean isAllowFp16() {
+        return mAllowFp16;
+    }
+
+    public boolean isAllowBufferHandleOutput() {
+        return mAllowBufferHandleOutput;
+    }
+
+    /**
+     * @return new interpreter options matching these options
+     */
+    public Interpreter.Options toInterpreterOptions() {
+        return new Interpreter.Options()
+                .setNumThreads(mNumThreads)
+                .setUseXNNPACK(mUseXnnpack)
+                .setAllowFp16PrecisionForFp32(mAllowFp16)
+                .setAllowBufferHandleOutput(mAllowBufferHandleOutput);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ModelOptions)) {
+            return false;
+        }
+        final ModelOptions that = (ModelOptions) o;
+        return mNumThreads == that.mNumThreads &&
+                mUseXnnpack == that.mUseXnnpack &&
+                mAllowFp16 == that.mAllowFp16 &&
+                mAllowBufferHandleOutput == that.mAllowBufferHandleOutput;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mNumThreads;
+        result = 31 * result + (mUseXnnpack ? 1 : 0);
+        result = 31 * result + (mAllowFp16 ? 1 : 0);
+        result = 31 * result + (mAllowBufferHandleOutput ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "threads=%d, xnnpack=%b, fp16=%b, bufferHandleOutput=%b",
+                mNumThreads, mUseXnnpack, mAllowFp16,
+                mAllowBufferHandleOutput);
+    }
+}
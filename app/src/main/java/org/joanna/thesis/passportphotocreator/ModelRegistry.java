@@ -0,0 +1,463 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import org.joanna.thesis.passportphotocreator.processing.LatencyStats;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps a single Tensorflow Lite interpreter per model and options for the
+ * whole process, so that the verifiers and the enhancers using the same model
+ * do not map the model file and allocate the tensor arena each on its own.
+ * The interpreter is handed out as a {@link Lease}; it is created with the
+ * first lease and closed when the last lease is closed.
+ * <p/>
+ * Interpreters are not thread safe, so the runs of all the leases of a model
+ * are serialized. The input buffer of a model is shared by its leases too,
+ * see {@link Lease#runExclusively(Runnable)}. Different models are loaded
+ * in parallel; the leases of a model being loaded wait for it.
+ * <p/>
+ * Batches of inputs are run on an interpreter of their own, see
+ * {@link #BATCH_INSTANCE}, since resizing the input of the shared one would
+ * resize it for every lease.
+ */
+public final class ModelRegistry {
+
+    private static final String TAG = ModelRegistry.class.getSimpleName();
+
+    /**
+     * Index of the interpreter of a model whose first input is resized to
+     * run batches, see {@link Lease#runBatch(int, ByteBuffer, ByteBuffer)}.
+     */
+    public static final int BATCH_INSTANCE = -1;
+
+    private static final ModelRegistry INSTANCE = new ModelRegistry();
+
+    private final Map<Key, Model> mModels = new HashMap<>();
+
+    private ModelRegistry() {
+    }
+
+    public static ModelRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the interpreter of the model, loading the model if nobody uses it
+     * yet.
+     *
+     * @param context    context to read the model from the assets with
+     * @param modelPath  name of the model file stored in the assets
+     * @param options    options of the interpreter
+     * @return lease of the interpreter; must be closed when not needed anymore
+     * @throws IOException if the model cannot be read
+     */
+    public Lease acquire(
+            final Context context, final String modelPath,
+            final ModelOptions options)
+            throws IOException {
+        return acquire(context, modelPath, options, 0);
+    }
+
+    /**
+     * Gets one of several interpreters of the same model and options, so
+     * that the model can run in parallel, on each of them.
+     *
+     * @param context    context to read the model from the assets with
+     * @param modelPath  name of the model file stored in the assets
+     * @param options    options of the interpreter
+     * @param instance   index of the interpreter, 0 for the one shared by
+     *                   every detector
+     * @return lease of the interpreter; must be closed when not needed anymore
+     * @throws IOException if the model cannot be read
+     */
+    public Lease acquire(
+            final Context context, final String modelPath,
+            final ModelOptions options, final int instance)
+            throws IOException {
+        final Key key = new Key(modelPath, options, instance);
+        final Model model;
+        synchronized (this) {
+            Model found = mModels.get(key);
+            if (found == null) {
+                found = new Model(key);
+                mModels.put(key, found);
+            }
+            found.mLeases++;
+            model = found;
+        }
+        // loaded out of the registry lock, so that different models load
+        // in parallel
+        final boolean loaded;
+        try {
+            loaded = model.load(context);
+        } catch (IOException | RuntimeException e) {
+            release(model);
+            throw e;
+        }
+        if (loaded) {
+            Log.i(TAG, "Loaded " + model + "; " + this);
+        }
+        return new Lease(model);
+    }
+
+    private synchronized void release(final Model model) {
+        if (--model.mLeases > 0) {
+            return;
+        }
+        mModels.remove(model.mKey);
+        synchronized (model) {
+            if (model.mInterpreter != null) {
+                model.mInterpreter.close();
+            }
+        }
+        Log.i(TAG, "Closed " + model + "; " + this);
+    }
+
+    /**
+     * @return number of models with a live interpreter
+     */
+    public synchronized int getResidentModelCount() {
+        return mModels.size();
+    }
+
+    /**
+     * @return size of the mapped model files of the resident models
+     */
+    public synchronized long getModelBytes() {
+        long bytes = 0;
+        for (Model model : mModels.values()) {
+            bytes += model.mModelBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * The interpreter does not report the size of its arena, so the sizes of
+     * the input and output tensors and of the input buffer are counted. The
+     * intermediate tensors come on top of that.
+     *
+     * @return lower bound of the memory allocated for the tensors of the
+     *         resident models
+     */
+    public synchronized long getArenaBytes() {
+        long bytes = 0;
+        for (Model model : mModels.values()) {
+            bytes += model.mArenaBytes;
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "resident models=%d, model=%d kB, arena>=%d kB",
+                mModels.size(), getModelBytes() / 1024,
+                getArenaBytes() / 1024);
+    }
+
+    /**
+     * Memory-maps the model file in the assets.
+     */
+    static MappedByteBuffer mapModel(
+            final Context context, final String modelPath)
+            throws IOException {
+        try (AssetFileDescriptor fileDescriptor =
+                     context.getAssets().openFd(modelPath);
+             FileInputStream inputStream = new FileInputStream(
+                     fileDescriptor.getFileDescriptor())) {
+            FileChannel fileChannel = inputStream.getChannel();
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY,
+                    fileDescriptor.getStartOffset(),
+                    fileDescriptor.getDeclaredLength());
+        }
+    }
+
+    private static final class Key {
+        private final String       mModelPath;
+        private final ModelOptions mOptions;
+        private final int          mInstance;
+
+        Key(final String modelPath, final ModelOptions options,
+                final int instance) {
+            mModelPath = modelPath;
+            mOptions = options;
+            mInstance = instance;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key that = (Key) o;
+            return mModelPath.equals(that.mModelPath) &&
+                    mOptions.equals(that.mOptions) &&
+                    mInstance == that.mInstance;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * mModelPath.hashCode() + mOptions.hashCode()) +
+                    mInstance;
+        }
+
+        @Override
+        public String toString() {
+            if (mInstance == BATCH_INSTANCE) {
+                return mModelPath + " batched (" + mOptions + ")";
+            }
+            return mInstance == 0 ? mModelPath + " (" + mOptions + ")" :
+                    mModelPath + " #" + mInstance + " (" + mOptions + ")";
+        }
+    }
+
+    /**
+     * Interpreter of a model shared by the leases. Used as the lock
+     * serializing the loading and the runs.
+     */
+    private static final class Model {
+        private final    Key          mKey;
+        private final    LatencyStats mWaitStats;
+        // Set by load, guarded by the model
+        private          Interpreter  mInterpreter;
+        private          ByteBuffer   mInput;
+        // Read by the registry metrics without the model lock
+        private volatile long         mModelBytes;
+        private volatile long         mArenaBytes;
+        // Guarded by the registry
+        private          int          mLeases;
+        // Guarded by the model
+        /** Batch size the first input is resized to, 0 if not resized. */
+        private          int          mBatch;
+        private          boolean      mBatchUnsupported;
+
+        Model(final Key key) {
+            mKey = key;
+            mWaitStats = new LatencyStats("Wait for " + key.mModelPath);
+        }
+
+        /**
+         * Maps the model file and creates the interpreter, unless done
+         * already.
+         *
+         * @return true if the model has been loaded by this call
+         */
+        synchronized boolean load(final Context context) throws IOException {
+            if (mInterpreter != null) {
+                return false;
+            }
+            final MappedByteBuffer modelFile =
+                    mapModel(context, mKey.mModelPath);
+            mInterpreter = new Interpreter(
+                    modelFile, mKey.mOptions.toInterpreterOptions());
+            final int inputBytes = mInterpreter.getInputTensor(0).numBytes();
+            mInput = ByteBuffer.allocateDirect(inputBytes);
+            mInput.order(ByteOrder.nativeOrder());
+            long arenaBytes = inputBytes;
+            for (int i = 0; i < mInterpreter.getInputTensorCount(); i++) {
+                arenaBytes += mInterpreter.getInputTensor(i).numBytes();
+            }
+            for (int i = 0; i < mInterpreter.getOutputTensorCount(); i++) {
+                arenaBytes += mInterpreter.getOutputTensor(i).numBytes();
+            }
+            mModelBytes = modelFile.capacity();
+            mArenaBytes = arenaBytes;
+            return true;
+        }
+
+        /**
+         * Resizes the first input of the interpreter to the batch, unless
+         * done already. To be called with the model locked.
+         *
+         * @return false if the model does not take batches: the input cannot
+         *         be resized or the outputs do not follow its batch size
+         */
+        boolean resizeBatch(final int batch) {
+            if (mBatchUnsupported) {
+                return false;
+            }
+            if (mBatch == batch) {
+                return true;
+            }
+            final int[] shape = mInterpreter.getInputTensor(0).shape().clone();
+            shape[0] = batch;
+            try {
+                mInterpreter.resizeInput(0, shape);
+                mInterpreter.allocateTensors();
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Log.w(TAG, "Batches not supported by " + mKey, e);
+                mBatchUnsupported = true;
+                return false;
+            }
+            long arenaBytes = mInput.capacity();
+            for (int i = 0; i < mInterpreter.getInputTensorCount(); i++) {
+                arenaBytes += mInterpreter.getInputTensor(i).numBytes();
+            }
+            for (int i = 0; i < mInterpreter.getOutputTensorCount(); i++) {
+                final Tensor output = mInterpreter.getOutputTensor(i);
+                if (output.shape().length == 0 ||
+                        output.shape()[0] != batch) {
+                    Log.w(TAG, "Batches not supported by " + mKey +
+                            "; output " + i + " has a fixed batch size.");
+                    mBatchUnsupported = true;
+                    return false;
+                }
+                arenaBytes += output.numBytes();
+            }
+            mArenaBytes = arenaBytes;
+            mBatch = batch;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: model=%d kB, arena>=%d kB",
+                    mKey, mModelBytes / 1024, mArenaBytes / 1024);
+        }
+    }
+
+    /**
+     * Use of a shared interpreter by a single detector. Not thread safe
+     * itself; the runs are serialized with the other leases of the model.
+     */
+    public static final class Lease {
+        private final Model   mModel;
+        private       boolean mClosed;
+
+        private Lease(final Model model) {
+            mModel = model;
+        }
+
+        /**
+         * @return input buffer of the model, in the size of its first input,
+         *         shared by all its leases; it may be filled only in
+         *         {@link #runExclusively(Runnable)}
+         */
+        public ByteBuffer getInputBuffer() {
+            return mModel.mInput;
+        }
+
+        /**
+         * @return the first input of the model, telling its shape, data type
+         *         and quantization
+         */
+        public Tensor getInputTensor() {
+            return mModel.mInterpreter.getInputTensor(0);
+        }
+
+        public Tensor getOutputTensor(final int index) {
+            return mModel.mInterpreter.getOutputTensor(index);
+        }
+
+        /**
+         * @return name of the model file stored in the assets
+         */
+        public String getModelPath() {
+            return mModel.mKey.mModelPath;
+        }
+
+        /**
+         * Runs the task with no other lease of the model running anything, so
+         * that the input buffer may be filled and the model run at once.
+         */
+        public void runExclusively(final Runnable task) {
+            final long startNs = System.nanoTime();
+            synchronized (mModel) {
+                mModel.mWaitStats.recordSince(startNs);
+                if (mClosed) {
+                    throw new IllegalStateException("Lease closed.");
+                }
+                task.run();
+            }
+        }
+
+        /**
+         * Runs the model; waits while other leases of the model run it.
+         */
+        public void run(final Object input, final Object output) {
+            runExclusively(() -> mModel.mInterpreter.run(input, output));
+        }
+
+        /**
+         * Runs the model on a batch of inputs, with its first input resized
+         * to the batch size. To be used on the interpreter of
+         * {@link #BATCH_INSTANCE} only.
+         *
+         * @param batch  number of inputs
+         * @param input  the inputs one after another, in a direct buffer in
+         *               the native order
+         * @param output buffer of the size of the first output for the whole
+         *               batch
+         * @return false if the model does not take batches; nothing has been
+         *         run then
+         */
+        public boolean runBatch(
+                final int batch, final ByteBuffer input,
+                final ByteBuffer output) {
+            final boolean[] run = new boolean[1];
+            runExclusively(() -> {
+                if (mModel.resizeBatch(batch)) {
+                    mModel.mInterpreter.run(input, output);
+                    run[0] = true;
+                }
+            });
+            return run[0];
+        }
+
+        /**
+         * Runs the model once on whatever the input buffer holds, so that the
+         * first real run does not pay for the lazy initialization of the
+         * interpreter.
+         */
+        public void warmUp() {
+            runExclusively(() -> {
+                final Interpreter interpreter = mModel.mInterpreter;
+                final Map<Integer, Object> outputs = new HashMap<>();
+                for (int i = 0; i < interpreter.getOutputTensorCount(); i++) {
+                    outputs.put(i, ByteBuffer.allocateDirect(
+                            interpreter.getOutputTensor(i).numBytes())
+                            .order(ByteOrder.nativeOrder()));
+                }
+                mModel.mInput.rewind();
+                interpreter.runForMultipleInputsOutputs(
+                        new Object[]{mModel.mInput}, outputs);
+            });
+        }
+
+        /**
+         * @return time spent by the leases of the model waiting for each
+         *         other
+         */
+        public LatencyStats getWaitStats() {
+            return mModel.mWaitStats;
+        }
+
+        /**
+         * Gives the interpreter back to the registry; the interpreter is
+         * closed with the last lease. Closing twice has no effect.
+         */
+        public void close() {
+            synchronized (mModel) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+            }
+            INSTANCE.release(mModel);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+import org.joanna.thesis.passportphotocreator.utils.DaemonThreadFactory;
+import org.tensorflow.lite.Interpreter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the fastest number of threads and use of XNNPACK for every model on
+ * the device CPU by timing a few runs of each candidate, and stores the
+ * winner in {@link ModelConfig}. The remaining options are taken from the
+ * configuration as they are. The quantized variant of the model, if it is in
+ * the assets and passed the accuracy evaluation, see
+ * {@link ModelConfig#isQuantizedValidated}, is timed with the winning options
+ * too, and the faster of the two precisions is stored as well. Models tuned
+ * already are skipped, so the tuning takes place once, unless
+ * {@link ModelConfig#clearTuned()} is called.
+ * <p/>
+ * The tuning keeps the CPU busy for a while, which would slow the camera
+ * down and be skewed by it, so it is scheduled with {@link #schedule} to run
+ * by {@link ModelTuningService} only while the device is idle and charging.
+ */
+public class ModelTuner {
+
+    private static final String TAG = ModelTuner.class.getSimpleName();
+
+    private static final int   WARM_UP_RUNS = 2;
+    private static final int   TIMED_RUNS   = 3;
+    private static final int[] THREADS      = {1, 2, 4};
+    private static final int   JOB_ID       = 1;
+
+    private final    Context     mContext;
+    private final    ModelConfig mConfig;
+    private volatile boolean     mCancelled;
+
+    public ModelTuner(final Context context) {
+        mContext = context.getApplicationContext();
+        mConfig = ModelConfig.getInstance(mContext);
+    }
+
+    /**
+     * Schedules the tuning of the models for when the device is idle and
+     * charging, unless every model is tuned already.
+     */
+    public static void schedule(final Context context) {
+        final ModelConfig config = ModelConfig.getInstance(context);
+        boolean tuned = true;
+        for (String modelPath : config.getModelPaths()) {
+            tuned &= config.getTuned(modelPath) != null;
+        }
+        if (tuned) {
+            return;
+        }
+        final JobScheduler scheduler = (JobScheduler)
+                context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (null == scheduler) {
+            return;
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID, new ComponentName(
+                context, ModelTuningService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .build());
+    }
+
+    /**
+     * Tunes the models on a background thread.
+     *
+     * @param onFinished run on that thread once the tuning is finished or
+     *                   cancelled
+     */
+    public void startInBackground(final Runnable onFinished) {
+        new DaemonThreadFactory("ModelTuner").newThread(() -> {
+            try {
+                tuneAll();
+            } finally {
+                onFinished.run();
+            }
+        }).start();
+    }
+
+    /**
+     * Stops the tuning after the run in progress; the model being tuned is
+     * left untuned.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Tunes every configured model which has not been tuned yet.
+     */
+    public void tuneAll() {
+        for (String modelPath : mConfig.getModelPaths()) {
+            if (mCancelled) {
+                return;
+            }
+            if (mConfig.getTuned(modelPath) == null) {
+                tune(modelPath);
+            }
+        }
+        Log.i(TAG, mConfig.toString());
+    }
+
+    /**
+     * Times every candidate for the model and stores the fastest one.
+     *
+     * @return the fastest options or null if the model could not be run or
+     *         the tuning has been cancelled
+     */
+    public ModelOptions tune(final String modelPath) {
+        final MappedByteBuffer model;
+        try {
+            model = ModelRegistry.mapModel(mContext, modelPath);
+        } catch (IOException e) {
+            Log.w(TAG, "Model " + modelPath + " not found; not tuned.");
+            return null;
+        }
+        ModelOptions best = null;
+        float bestMs = Float.MAX_VALUE;
+        for (ModelOptions candidate : getCandidates(modelPath)) {
+            if (mCancelled) {
+                return null;
+            }
+            final float runMs = timeRuns(model, candidate);
+            Log.d(TAG, String.format(Locale.US, "%s (%s): %.1f ms",
+                    modelPath, candidate, runMs));
+            if (runMs < bestMs) {
+                best = candidate;
+                bestMs = runMs;
+            }
+        }
+        if (best != null) {
+            tunePrecision(modelPath, best, bestMs);
+            if (mCancelled) {
+                return null;
+            }
+            // stored last, as a tuned model is not tuned again
+            mConfig.setTuned(modelPath, best, bestMs);
+        }
+        return best;
+    }
+
+    private void tunePrecision(
+            final String modelPath, final ModelOptions options,
+            final float floatMs) {
+        final String quantizedPath = mConfig.getQuantizedPath(modelPath);
+        if (quantizedPath == null) {
+            return;
+        }
+        if (!mConfig.isQuantizedValidated(modelPath)) {
+            // faster is not enough, the variant may be less accurate
+            Log.d(TAG, "Quantized variant of " + modelPath +
+                    " not evaluated; not tuned.");
+            return;
+        }
+        final MappedByteBuffer model;
+        try {
+            model = ModelRegistry.mapModel(mContext, quantizedPath);
+        } catch (IOException e) {
+            Log.d(TAG, "No quantized variant of " + modelPath + ".");
+            return;
+        }
+        final float quantizedMs = timeRuns(model, options);
+        if (mCancelled) {
+            return;
+        }
+        Log.d(TAG, String.format(Locale.US, "%s (%s): %.1f ms",
+                quantizedPath, options, quantizedMs));
+        mConfig.setTunedPrecision(modelPath, quantizedMs < floatMs ?
+                ModelConfig.Precision.QUANTIZED :
+                ModelConfig.Precision.FLOAT);
+    }
+
+    private List<ModelOptions> getCandidates(final String modelPath) {
+        final ModelOptions configured = mConfig.getConfigured(modelPath);
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final List<ModelOptions> candidates = new ArrayList<>();
+        for (int threads : THREADS) {
+            if (threads > cores) {
+                break;
+            }
+            candidates.add(configured.withThreads(threads, false));
+            candidates.add(configured.withThreads(threads, true));
+        }
+        return candidates;
+    }
+
+    /**
+     * @return average time of a warm run, in ms, or {@link Float#MAX_VALUE}
+     *         if the model cannot be run with the options
+     */
+    private static float timeRuns(
+            final MappedByteBuffer model, final ModelOptions options) {
+        Interpreter interpreter = null;
+        try {
+            interpreter = new Interpreter(
+                    model, options.toInterpreterOptions());
+            final Object[] inputs =
+                    new Object[interpreter.getInputTensorCount()];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = allocate(interpreter.getInputTensor(i).numBytes());
+            }
+            final Map<Integer, Object> outputs = new HashMap<>();
+            for (int i = 0; i < interpreter.getOutputTensorCount(); i++) {
+                outputs.put(i,
+                        allocate(interpreter.getOutputTensor(i).numBytes()));
+            }
+            for (int i = 0; i < WARM_UP_RUNS; i++) {
+                interpreter.runForMultipleInputsOutputs(inputs, outputs);
+            }
+            final long startNs = System.nanoTime();
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                interpreter.runForMultipleInputsOutputs(inputs, outputs);
+            }
+            return (System.nanoTime() - startNs) / 1000000f / TIMED_RUNS;
+        } catch (RuntimeException e) {
+            // e.g. a delegate not supporting the model
+            Log.w(TAG, "Could not run the model with " + options + ".", e);
+            return Float.MAX_VALUE;
+        } finally {
+            if (interpreter != null) {
+                interpreter.close();
+            }
+        }
+    }
+
+    private static ByteBuffer allocate(final int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,29 @@
+package org.joanna.thesis.passportphotocreator;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+
+/**
+ * Runs the {@link ModelTuner} scheduled with {@link ModelTuner#schedule}
+ * while the device is idle. If the device stops being idle, the tuning is
+ * cancelled and rescheduled; the models tuned by then are kept.
+ */
+public class ModelTuningService extends JobService {
+
+    private ModelTuner mTuner;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        mTuner = new ModelTuner(this);
+        mTuner.startInBackground(() -> jobFinished(params, false));
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(final JobParameters params) {
+        if (mTuner != null) {
+            mTuner.cancel();
+        }
+        return true;
+    }
+}
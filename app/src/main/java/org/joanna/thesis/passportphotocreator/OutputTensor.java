@@ -0,0 +1,111 @@
+package org.joanna.thesis.passportphotocreator;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Output of a network in a direct buffer, viewed as a Mat, so that the
+ * network writes straight into memory OpenCV can work on. Allocated once per
+ * detector; the Mat is overwritten by every run. Quantized outputs are
+ * dequantized into a float Mat kept between the runs, so that the detectors
+ * see float values whatever the model.
+ */
+public class OutputTensor {
+
+    private final ByteBuffer mBuffer;
+    private final Mat        mMat;
+    private final Mat        mDequantized;
+    private final float      mScale;
+    private final int        mZeroPoint;
+
+    /**
+     * @param rows rows of the output, the height of an image
+     * @param cols columns of the output, the width of an image
+     * @param type type of the Mat, the element type of the output
+     */
+    public OutputTensor(final int rows, final int cols, final int type) {
+        this(rows, cols, type, 0, 0);
+    }
+
+    private OutputTensor(
+            final int rows, final int cols, final int type, final float scale,
+            final int zeroPoint) {
+        mBuffer = ByteBuffer.allocateDirect(
+                rows * cols * CvType.ELEM_SIZE(type));
+        mBuffer.order(ByteOrder.nativeOrder());
+        mMat = new Mat(rows, cols, type, mBuffer);
+        mDequantized = CvType.depth(type) == CvType.CV_32F ? null : new Mat();
+        mScale = scale;
+        mZeroPoint = zeroPoint;
+    }
+
+    /**
+     * @param tensor   output of the network, of float, uint8 or int8 type
+     * @param rows     rows of the output, the height of an image
+     * @param cols     columns of the output, the width of an image
+     * @param channels values per element
+     * @return output matching the tensor
+     */
+    public static OutputTensor forTensor(
+            final Tensor tensor, final int rows, final int cols,
+            final int channels) {
+        if (tensor.dataType() == DataType.FLOAT32) {
+            return new OutputTensor(
+                    rows, cols, CvType.makeType(CvType.CV_32F, channels));
+        }
+        final Tensor.QuantizationParams quantization =
+                tensor.quantizationParams();
+        final int depth = tensor.dataType() == DataType.INT8 ?
+                CvType.CV_8S : CvType.CV_8U;
+        return new OutputTensor(rows, cols,
+                CvType.makeType(depth, channels), quantization.getScale(),
+                quantization.getZeroPoint());
+    }
+
+    /**
+     * @return buffer to be given to the interpreter as the output
+     */
+    public ByteBuffer getBuffer() {
+        mBuffer.rewind();
+        return mBuffer;
+    }
+
+    /**
+     * @return the output as a float Mat; valid until the next run or release
+     */
+    public Mat getMat() {
+        if (mDequantized == null) {
+            return mMat;
+        }
+        mMat.convertTo(mDequantized,
+                CvType.makeType(CvType.CV_32F, mMat.channels()),
+                mScale, -mZeroPoint * mScale);
+        return mDequantized;
+    }
+
+    /**
+     * @param index index of the value in the output
+     * @return the value, dequantized
+     */
+    public float getFloat(final int index) {
+        if (mDequantized == null) {
+            return mBuffer.getFloat(index * (Float.SIZE / Byte.SIZE));
+        }
+        final byte value = mBuffer.get(index);
+        final int quantized = CvType.depth(mMat.type()) == CvType.CV_8S ?
+                value : value & 0xFF;
+        return (quantized - mZeroPoint) * mScale;
+    }
+
+    public void release() {
+        mMat.release();
+        if (mDequantized != null) {
+            mDequantized.release();
+        }
+    }
+}
@@ -8,10 +8,13 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.FragmentTransaction;
 
+import org.joanna.thesis.passportphotocreator.processing.EnhancementGraph;
+import org.joanna.thesis.passportphotocreator.processing.EnhancementPipeline;
 import org.joanna.thesis.passportphotocreator.processing.Enhancer;
+import org.joanna.thesis.passportphotocreator.processing.background.SpeculativeMask;
 import org.joanna.thesis.passportphotocreator.processing.background.enhancement.BackgroundEnhancement;
+import org.joanna.thesis.passportphotocreator.processing.light.enhancement.ShadowRemover;
 import org.joanna.thesis.passportphotocreator.processing.light.enhancement.ShadowRemoverPix2Pix;
-import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Mat;
 
 import java.io.IOException;
@@ -29,45 +32,113 @@ public class PhotoMakerActivity extends AppCompatActivity
 
     private static final String TAG = PhotoMakerActivity.class.getSimpleName();
 
-    static {
-        OpenCVLoader.initDebug();
-    }
-
     public  androidx.fragment.app.Fragment cameraFragment       = null;
     public  PhotoPreviewFragment           photoPreviewFragment = null;
     private Mat                            picture;
+    private boolean                        mPhotoEnhanced;
     private List<Enhancer>                 mEnhancers;
+    private EnhancementPipeline            mEnhancementPipeline;
+    /** Picture taken before the enhancers were created is waiting. */
+    private boolean                        mEnhancementPending;
+    private SpeculativeMask                mPendingMask;
 
     @Override
     public void onCreate(Bundle bundle) {
         super.onCreate(bundle);
         Log.i(TAG, "Creating photo maker activity.");
 
+        // started on the main screen; OpenCV is needed before the layout
+        // creates the camera fragment and is loaded at once, the models may
+        // take longer, so the enhancers are created once they are warm. The
+        // callback is registered before the camera fragment's, so the
+        // enhancers exist before any picture can be taken.
+        final AppInitializer initializer = AppInitializer.getInstance();
+        if (!initializer.awaitOpenCv(this)) {
+            Log.e(TAG, "OpenCV could not be loaded.");
+        }
+        initializer.whenReady(this, this::createEnhancers);
+
         setContentView(R.layout.photo_capture);
         mEnhancers = new ArrayList<>();
+        cameraFragment =
+                getSupportFragmentManager().findFragmentById(R.id.camera_place);
+    }
+
+    /**
+     * Creates the enhancers on the warm interpreters of the models.
+     */
+    private void createEnhancers() {
+        if (isDestroyed()) {
+            return;
+        }
+        Log.i(TAG, AppInitializer.getInstance().toString());
+        BackgroundEnhancement backgroundEnhancement = null;
         try {
-            mEnhancers.add(new BackgroundEnhancement(this));
+            backgroundEnhancement = new BackgroundEnhancement(this);
         } catch (IOException e) {
             Toast.makeText(this, R.string.no_background_verification_error,
                     Toast.LENGTH_LONG).show();
         }
 
+        ShadowRemover shadowRemover = null;
         try {
-            mEnhancers.add(new ShadowRemoverPix2Pix(this));
+            shadowRemover = new ShadowRemoverPix2Pix(this);
         } catch (IOException e) {
             Toast.makeText(
                     this,
                     R.string.no_face_shadow_removal_error,
                     Toast.LENGTH_SHORT).show();
         }
-        cameraFragment =
-                getSupportFragmentManager().findFragmentById(R.id.camera_place);
+        if (shadowRemover != null) {
+            configureTiling(shadowRemover);
+        }
+
+        // the two enhancers change disjoint regions, so they run in parallel;
+        // the graph reports the result of the faster one on its own
+        if (backgroundEnhancement != null && shadowRemover != null) {
+            mEnhancers.add(
+                    new EnhancementGraph(backgroundEnhancement, shadowRemover));
+        } else if (backgroundEnhancement != null) {
+            mEnhancers.add(backgroundEnhancement);
+        } else if (shadowRemover != null) {
+            mEnhancers.add(shadowRemover);
+        }
+        mEnhancementPipeline = new EnhancementPipeline(mEnhancers);
+        if (mEnhancementPending) {
+            mEnhancementPending = false;
+            final SpeculativeMask personMask = mPendingMask;
+            mPendingMask = null;
+            enhancePhoto(personMask);
+        }
+    }
+
+    /**
+     * Switches the shadow removal to the tiled mode if it is configured,
+     * see the {@code shadow_tiling_height} resource; keeps the single pass
+     * if the interpreters of the tiles cannot be created.
+     */
+    private void configureTiling(final ShadowRemover shadowRemover) {
+        final int workingHeight =
+                getResources().getInteger(R.integer.shadow_tiling_height);
+        if (workingHeight <= 0) {
+            return;
+        }
+        try {
+            shadowRemover.setTiling(this, workingHeight, getResources()
+                    .getInteger(R.integer.shadow_tile_interpreters));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not set up tiled shadow removal.", e);
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         Log.i(TAG, "Destroying photo maker activity.");
+        if (mEnhancementPipeline != null) {
+            mEnhancementPipeline.shutdown();
+        }
+        dropPendingEnhancement();
         for (Enhancer enhancer : mEnhancers) {
             enhancer.close();
         }
@@ -116,6 +187,11 @@ public class PhotoMakerActivity extends AppCompatActivity
 
     @Override
     public void displayCameraFragment() {
+        // the photo was rejected, its enhancement is not needed anymore
+        if (mEnhancementPipeline != null) {
+            mEnhancementPipeline.cancel();
+        }
+        dropPendingEnhancement();
         cameraFragment.onResume();
         getSupportFragmentManager().popBackStack();
     }
@@ -126,13 +202,45 @@ public class PhotoMakerActivity extends AppCompatActivity
     }
 
     @Override
-    public void setPhoto(Mat thePicture) {
+    public boolean isPhotoEnhanced() {
+        return mPhotoEnhanced;
+    }
+
+    /**
+     * Keeps the picture to be displayed at once and starts enhancing it in
+     * the background. Every enhanced version replaces the displayed one as
+     * soon as it is ready. If the enhancers are not created yet, because the
+     * models are still warming up, the enhancement starts once they are.
+     */
+    @Override
+    public void setPhoto(Mat thePicture, SpeculativeMask personMask) {
         picture = thePicture;
+        mPhotoEnhanced = false;
+        dropPendingEnhancement();
+        if (null == mEnhancementPipeline) {
+            mEnhancementPending = true;
+            mPendingMask = personMask;
+            return;
+        }
+        enhancePhoto(personMask);
+    }
 
-        for (Enhancer enhancer : mEnhancers) {
-            if (!enhancer.verify(picture)) {
-                picture = enhancer.enhance(picture);
+    private void enhancePhoto(final SpeculativeMask personMask) {
+        mEnhancementPipeline.enhance(picture, personMask, result -> {
+            Log.i(TAG, result.toString());
+            picture = result.getPicture();
+            mPhotoEnhanced = result.isComplete();
+            if (photoPreviewFragment != null) {
+                photoPreviewFragment.updatePhoto(picture, mPhotoEnhanced);
             }
+        });
+    }
+
+    private void dropPendingEnhancement() {
+        mEnhancementPending = false;
+        if (mPendingMask != null) {
+            mPendingMask.release();
+            mPendingMask = null;
         }
     }
 
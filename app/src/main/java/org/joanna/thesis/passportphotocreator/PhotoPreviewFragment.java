@@ -12,6 +12,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ImageView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
@@ -40,6 +41,7 @@ public class PhotoPreviewFragment extends Fragment
     private              PhotoReceiver photoReceiver;
     private              Bitmap        mImage;
     private              Mat           picture;
+    private              boolean       mEnhanced;
     private              Matrix        matrix         = new Matrix();
     private              Matrix        savedMatrix    = new Matrix();
     private              TouchAction   mode           = TouchAction.NONE;
@@ -52,6 +54,7 @@ public class PhotoPreviewFragment extends Fragment
         super.onAttach(context);
         photoReceiver = (PhotoReceiver) context;
         picture = photoReceiver.getPhoto();
+        mEnhanced = photoReceiver.isPhotoEnhanced();
         mImage = getBitmapFromMat(picture);
         startingWidth = mImage.getWidth();
         startingHeight = mImage.getHeight();
@@ -81,6 +84,7 @@ public class PhotoPreviewFragment extends Fragment
         Button buttonPictures = view.findViewById(R.id.many_photos);
         buttonPictures.setOnClickListener(this);
 
+        showStatus(view);
         final ImageView mImageView = view.findViewById(R.id.view_photo);
         mImageView.setImageBitmap(mImage);
         mImageView.setOnTouchListener(this);
@@ -90,6 +94,32 @@ public class PhotoPreviewFragment extends Fragment
         matrix.getValues(values);
     }
 
+    /**
+     * Replaces the displayed photo with its newer version, keeping the zoom.
+     *
+     * @param thePicture photo of the same size as the displayed one
+     * @param enhanced   true if no further version will follow
+     */
+    public void updatePhoto(final Mat thePicture, final boolean enhanced) {
+        picture = thePicture;
+        mEnhanced = enhanced;
+        mImage = getBitmapFromMat(picture);
+        final View view = getView();
+        if (view == null) {
+            return;
+        }
+        showStatus(view);
+        final ImageView imageView = view.findViewById(R.id.view_photo);
+        imageView.setImageBitmap(mImage);
+    }
+
+    private void showStatus(final View view) {
+        final TextView status = view.findViewById(R.id.status_message);
+        status.setText(mEnhanced
+                ? R.string.image_preview
+                : R.string.image_preview_enhancing);
+    }
+
     @Override
     public void onClick(final View v) {
 
@@ -232,6 +262,12 @@ public class PhotoPreviewFragment extends Fragment
     public interface PhotoReceiver {
         Mat getPhoto();
 
+        /**
+         * @return true if the photo returned by {@link #getPhoto()} will not
+         *         be replaced with an enhanced version anymore
+         */
+        boolean isPhotoEnhanced();
+
         void displayCameraFragment();
 
         void finishWithResult(String fileName);
@@ -0,0 +1,1371 @@
+package org.joanna.thesis.passportphotocreator.camera;
+
+import android.Manifest;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.MotionEvent;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.WindowManager;
+
+import androidx.annotation.RequiresPermission;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.face.Face;
+import com.google.mlkit.vision.face.FaceDetector;
+
+import org.joanna.thesis.passportphotocreator.processing.FrameContext;
+import org.joanna.thesis.passportphotocreator.processing.LatencyStats;
+import org.joanna.thesis.passportphotocreator.processing.VerificationExecutor;
+import org.joanna.thesis.passportphotocreator.processing.VerificationScheduler;
+import org.joanna.thesis.passportphotocreator.processing.Verifier;
+import org.joanna.thesis.passportphotocreator.processing.face.FaceTemplate;
+import org.joanna.thesis.passportphotocreator.processing.face.FaceTemplateBuffer;
+import org.joanna.thesis.passportphotocreator.processing.face.FaceTracker;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Frame source built on the camera2 API. Preview frames are delivered by an
+ * {@link ImageReader} in the YUV_420_888 format. On most devices its chroma
+ * planes are laid out as NV21; the planes are then wrapped as Mats without
+ * copying and the image is kept open for as long as the detector or any
+ * verifier uses it. Otherwise, or when the verifiers already hold as many
+ * images as they may, the frame gets copied to NV21 once.
+ * <p/>
+ * Created with {@link CameraSource.Builder#setBackend(int)}. Unlike
+ * {@link CameraSource}, frames are not decimated by the {@link FpsGovernor};
+ * the reader always delivers the latest frame and drops the older ones.
+ * The camera is opened asynchronously, {@link #start(SurfaceHolder)} does not
+ * wait for it.
+ */
+@SuppressWarnings("deprecation")
+public class Camera2Source implements FrameSource {
+
+    private static final String TAG = Camera2Source.class.getSimpleName();
+
+    /**
+     * Preview images held besides those lent to the verifiers: one being
+     * detected, one pending and one needed to acquire the latest image.
+     */
+    private static final int   RESERVED_IMAGES        = 3;
+    /**
+     * Images lent to each verifier: one being verified and one waiting.
+     */
+    private static final int   IMAGES_PER_VERIFIER    = 2;
+    private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+    private static final float ZOOM_STEP              = 0.1f;
+
+    private final Context                 mContext;
+    private final FaceTracker             mFaceTracker;
+    private final List<Verifier>          mVerifiers;
+    private final int                     mFacing;
+    private final float                   mRequestedFps;
+    private final int                     mRequestedPreviewWidth;
+    private final int                     mRequestedPreviewHeight;
+    private final String                  mFocusMode;
+    private final String                  mFlashMode;
+    private final int                     mVerificationThreads;
+    private final float                   mVerificationBudget;
+    private final int                     mZslDepth;
+    private final Object                  mCameraLock       = new Object();
+    private final FrameProcessingRunnable mFrameProcessor;
+    private final Handler                 mMainHandler      =
+            new Handler(Looper.getMainLooper());
+    private final LatencyStats            mDetectionStats   =
+            new LatencyStats("Detection");
+    private final LatencyStats            mFaceOverlayStats =
+            new LatencyStats("Frame captured to faces displayed");
+
+    // Guarded by mCameraLock
+    private HandlerThread          mCameraThread;
+    private Handler                mCameraHandler;
+    /** Callback of the camera being opened, null once opened or stopped. */
+    private DeviceCallback         mOpening;
+    private CameraDevice           mCameraDevice;
+    private CameraCaptureSession   mSession;
+    private CaptureRequest.Builder mPreviewRequest;
+    private FrameReader            mFrameReader;
+    private ImageReader            mPictureReader;
+    private Rect                   mActiveArray;
+    private float                  mMaxZoom           = 1;
+    private float                  mZoom              = 1;
+    private float                  mFingerSpacing     = 0;
+    private Size                   mPreviewSize;
+    private int                    mRotation;
+    private Thread                 mProcessingThread;
+
+    /**
+     * Runs the verifiers away from the main and the detection thread.
+     */
+    private volatile VerificationExecutor            mVerificationExecutor;
+    /**
+     * Decides which verifiers run on which frame.
+     */
+    private volatile VerificationScheduler<Verifier> mScheduler;
+    /**
+     * Recent frames kept for zero shutter lag, null if disabled.
+     */
+    private volatile ZslRingBuffer                   mZslBuffer;
+    /**
+     * Face of the last frame showing a single face, for the shutter.
+     */
+    private final    FaceTemplateBuffer              mFaceTemplates   =
+            new FaceTemplateBuffer();
+
+    /**
+     * Only created by {@link CameraSource.Builder}.
+     */
+    Camera2Source(
+            final Context context, final FaceDetector detector,
+            final FaceTracker faceTracker, final List<Verifier> verifiers,
+            final int facing, final float requestedFps,
+            final int requestedPreviewWidth, final int requestedPreviewHeight,
+            final String focusMode, final String flashMode,
+            final int verificationThreads,
+            final float verificationBudget, final int zslDepth) {
+        mContext = context;
+        mFaceTracker = faceTracker;
+        mVerifiers = verifiers;
+        mFacing = facing;
+        mRequestedFps = requestedFps;
+        mRequestedPreviewWidth = requestedPreviewWidth;
+        mRequestedPreviewHeight = requestedPreviewHeight;
+        mFocusMode = focusMode;
+        mFlashMode = flashMode;
+        mVerificationThreads = verificationThreads;
+        mVerificationBudget = verificationBudget;
+        mZslDepth = zslDepth;
+        mFrameProcessor = new FrameProcessingRunnable(detector);
+    }
+
+    /**
+     * Checks whether the camera facing the requested direction supports
+     * more than the legacy hardware level, i.e. whether the camera2 API is
+     * not just a wrapper around the camera1 API on it.
+     *
+     * @param facing {@link CameraSource#CAMERA_FACING_BACK} or
+     *               {@link CameraSource#CAMERA_FACING_FRONT}
+     */
+    public static boolean isSupported(final Context context, final int facing) {
+        final CameraManager manager = (CameraManager) context.getSystemService(
+                Context.CAMERA_SERVICE);
+        if (manager == null) {
+            return false;
+        }
+        try {
+            final String cameraId = getIdForRequestedCamera(manager, facing);
+            if (cameraId == null) {
+                return false;
+            }
+            final Integer level = manager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level != null && level !=
+                    CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Could not read the camera characteristics.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Gets the id for the camera specified by the direction it is facing.
+     * Returns null if no such camera was found.
+     */
+    private static String getIdForRequestedCamera(
+            final CameraManager manager, final int facing)
+            throws CameraAccessException {
+        final int lensFacing =
+                facing == CameraSource.CAMERA_FACING_FRONT
+                        ? CameraCharacteristics.LENS_FACING_FRONT
+                        : CameraCharacteristics.LENS_FACING_BACK;
+        for (String cameraId : manager.getCameraIdList()) {
+            final Integer cameraFacing = manager.getCameraCharacteristics(
+                    cameraId).get(CameraCharacteristics.LENS_FACING);
+            if (cameraFacing != null && cameraFacing == lensFacing) {
+                return cameraId;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Selects the size minimizing the sum of the differences between the
+     * desired and the actual width and height.
+     */
+    private static Size selectPreviewSize(
+            final Size[] sizes, final int desiredWidth,
+            final int desiredHeight) {
+        Size selected = null;
+        int minDiff = Integer.MAX_VALUE;
+        for (Size size : sizes) {
+            final int diff = Math.abs(size.getWidth() - desiredWidth) +
+                    Math.abs(size.getHeight() - desiredHeight);
+            if (diff < minDiff) {
+                selected = size;
+                minDiff = diff;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Selects the largest picture size of the same aspect ratio as the
+     * preview, or the largest one if there is none, so that the picture shows
+     * the same as the preview.
+     */
+    private static Size selectPictureSize(
+            final Size[] sizes, final Size previewSize) {
+        final float previewAspectRatio =
+                previewSize.getWidth() / (float) previewSize.getHeight();
+        Size largest = null;
+        Size largestMatching = null;
+        for (Size size : sizes) {
+            final long area = (long) size.getWidth() * size.getHeight();
+            if (largest == null || area >
+                    (long) largest.getWidth() * largest.getHeight()) {
+                largest = size;
+            }
+            final float aspectRatio =
+                    size.getWidth() / (float) size.getHeight();
+            if (Math.abs(aspectRatio - previewAspectRatio) <
+                    ASPECT_RATIO_TOLERANCE && (largestMatching == null ||
+                    area > (long) largestMatching.getWidth() *
+                            largestMatching.getHeight())) {
+                largestMatching = size;
+            }
+        }
+        return largestMatching != null ? largestMatching : largest;
+    }
+
+    /**
+     * Selects the target fps range minimizing the sum of the differences
+     * between the desired value and the bounds of the range, as
+     * {@link CameraSource} does.
+     */
+    private static Range<Integer> selectFpsRange(
+            final Range<Integer>[] ranges, final float desiredFps) {
+        if (ranges == null) {
+            return null;
+        }
+        Range<Integer> selected = null;
+        float minDiff = Float.MAX_VALUE;
+        for (Range<Integer> range : ranges) {
+            final float diff = Math.abs(desiredFps - range.getLower()) +
+                    Math.abs(desiredFps - range.getUpper());
+            if (diff < minDiff) {
+                selected = range;
+                minDiff = diff;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Translates the camera1 focus mode to the camera2 auto focus mode.
+     *
+     * @return auto focus mode or null if it is not supported by the camera
+     */
+    private static Integer selectAfMode(
+            final String focusMode, final int[] availableModes) {
+        if (focusMode == null || availableModes == null) {
+            return null;
+        }
+        final int afMode;
+        switch (focusMode) {
+            case Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE:
+                afMode = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+                break;
+            case Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO:
+                afMode = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_AUTO:
+                afMode = CaptureRequest.CONTROL_AF_MODE_AUTO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_MACRO:
+                afMode = CaptureRequest.CONTROL_AF_MODE_MACRO;
+                break;
+            case Camera.Parameters.FOCUS_MODE_EDOF:
+                afMode = CaptureRequest.CONTROL_AF_MODE_EDOF;
+                break;
+            default:
+                afMode = CaptureRequest.CONTROL_AF_MODE_OFF;
+        }
+        for (int mode : availableModes) {
+            if (mode == afMode) {
+                return afMode;
+            }
+        }
+        Log.i(TAG, "Camera focus mode: " + focusMode +
+                " is not supported on this device.");
+        return null;
+    }
+
+    /**
+     * Translates the camera1 flash mode to the camera2 auto exposure mode.
+     * The torch is not an exposure mode, it is switched on by the flash mode
+     * of the request, so it maps to the plain auto exposure.
+     *
+     * @return auto exposure mode or null if it is not supported by the camera
+     */
+    private static Integer selectAeMode(
+            final String flashMode, final int[] availableModes) {
+        if (flashMode == null || availableModes == null) {
+            return null;
+        }
+        final int aeMode;
+        switch (flashMode) {
+            case Camera.Parameters.FLASH_MODE_ON:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH;
+                break;
+            case Camera.Parameters.FLASH_MODE_AUTO:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH;
+                break;
+            case Camera.Parameters.FLASH_MODE_RED_EYE:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE;
+                break;
+            default:
+                aeMode = CaptureRequest.CONTROL_AE_MODE_ON;
+        }
+        for (int mode : availableModes) {
+            if (mode == aeMode) {
+                return aeMode;
+            }
+        }
+        Log.i(TAG, "Camera flash mode: " + flashMode +
+                " is not supported on this device.");
+        return null;
+    }
+
+    /**
+     * Copies the frame to a single array in the NV21 format, honouring the
+     * row and pixel strides of the planes.
+     */
+    private static byte[] copyToNv21(final Image image) {
+        final byte[] nv21 =
+                new byte[image.getWidth() * image.getHeight() * 3 / 2];
+        copyToNv21(image, nv21);
+        return nv21;
+    }
+
+    /**
+     * Copies the frame into the received array in the NV21 format.
+     */
+    private static void copyToNv21(final Image image, final byte[] nv21) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final Image.Plane[] planes = image.getPlanes();
+
+        final ByteBuffer yBuffer = planes[0].getBuffer();
+        final int yRowStride = planes[0].getRowStride();
+        for (int row = 0; row < height; row++) {
+            yBuffer.position(row * yRowStride);
+            yBuffer.get(nv21, row * width, width);
+        }
+
+        final ByteBuffer uBuffer = planes[1].getBuffer();
+        final ByteBuffer vBuffer = planes[2].getBuffer();
+        final int chromaRowStride = planes[1].getRowStride();
+        final int chromaPixelStride = planes[1].getPixelStride();
+        int out = width * height;
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                final int in = row * chromaRowStride + col * chromaPixelStride;
+                nv21[out++] = vBuffer.get(in);
+                nv21[out++] = uBuffer.get(in);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the chroma planes of the image are in fact a single
+     * interleaved plane in the NV21 order, i.e. the U plane starts one byte
+     * after the V plane. The addresses of the buffers are compared; the
+     * buffers are not written to, as they belong to the camera.
+     */
+    private static boolean isNv21Layout(final Image image) {
+        final Image.Plane[] planes = image.getPlanes();
+        if (planes.length != 3 || planes[0].getPixelStride() != 1 ||
+                planes[1].getPixelStride() != 2 ||
+                planes[2].getPixelStride() != 2 ||
+                planes[1].getRowStride() != planes[2].getRowStride()) {
+            return false;
+        }
+        final ByteBuffer uBuffer = planes[1].getBuffer();
+        final ByteBuffer vBuffer = planes[2].getBuffer();
+        if (!uBuffer.isDirect() || !vBuffer.isDirect() ||
+                uBuffer.position() != 0 || vBuffer.position() != 0) {
+            return false;
+        }
+        // Mats wrap the buffers without copying, pointing to their data
+        final Mat u = new Mat(1, 1, CvType.CV_8UC1, uBuffer);
+        final Mat v = new Mat(1, 1, CvType.CV_8UC1, vBuffer);
+        final boolean interleaved = u.dataAddr() == v.dataAddr() + 1;
+        u.release();
+        v.release();
+        return interleaved;
+    }
+
+    /**
+     * Opens the camera and starts sending preview frames to the underlying
+     * detector. The supplied surface holder is used for the preview so
+     * frames can be displayed to the user. Returns without waiting for the
+     * camera, the preview starts once it is opened; failing to open it is
+     * only logged then.
+     *
+     * @param surfaceHolder the surface holder to use for the preview frames
+     * @throws IOException if the camera could not be found or configured
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    @Override
+    public Camera2Source start(final SurfaceHolder surfaceHolder)
+            throws IOException {
+        synchronized (mCameraLock) {
+            if (mCameraThread != null) {
+                // opened or being opened
+                return this;
+            }
+            mCameraThread = new HandlerThread("Camera2");
+            mCameraThread.start();
+            mCameraHandler = new Handler(mCameraThread.getLooper());
+            try {
+                openCamera(surfaceHolder);
+            } catch (CameraAccessException | RuntimeException e) {
+                closeCamera();
+                throw new IOException("Could not open the camera.", e);
+            }
+
+            final VerificationScheduler<Verifier> scheduler =
+                    new VerificationScheduler<>(
+                            VerificationScheduler.Clock.SYSTEM,
+                            mVerificationBudget);
+            if (mVerifiers != null) {
+                for (Verifier verifier : mVerifiers) {
+                    if (verifier != null) {
+                        scheduler.register(verifier);
+                    }
+                }
+            }
+            mScheduler = scheduler;
+            mVerificationExecutor =
+                    new VerificationExecutor(mVerificationThreads, scheduler);
+            mZslBuffer = mZslDepth > 0
+                    ? new ZslRingBuffer(mZslDepth, mPreviewSize, mRotation)
+                    : null;
+            mProcessingThread = new Thread(mFrameProcessor);
+            mFrameProcessor.setActive(true);
+            mProcessingThread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Closes the camera and stops sending frames to the underlying detector.
+     * Frames still used by the verifiers stay valid until they are released.
+     */
+    @Override
+    public void stop() {
+        synchronized (mCameraLock) {
+            mFrameProcessor.setActive(false);
+            if (mProcessingThread != null) {
+                try {
+                    mProcessingThread.join();
+                } catch (InterruptedException e) {
+                    Log.d(TAG,
+                            "Frame processing thread interrupted on release.");
+                }
+                mProcessingThread = null;
+            }
+
+            if (mVerificationExecutor != null) {
+                mVerificationExecutor.shutdown();
+                mVerificationExecutor = null;
+            }
+            Log.i(TAG, mDetectionStats.toString());
+            Log.i(TAG, mFaceOverlayStats.toString());
+            mZslBuffer = null;
+            mFaceTemplates.release();
+            closeCamera();
+        }
+    }
+
+    /**
+     * Stops the camera and releases the resources of the camera and the
+     * underlying detector.
+     */
+    @Override
+    public void release() {
+        synchronized (mCameraLock) {
+            stop();
+            mFrameProcessor.release();
+        }
+    }
+
+    @Override
+    public Size getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    @Override
+    public LatencyStats getDetectionStats() {
+        return mDetectionStats;
+    }
+
+    @Override
+    public LatencyStats getFaceOverlayStats() {
+        return mFaceOverlayStats;
+    }
+
+    @Override
+    public boolean onTouch(final MotionEvent event) {
+        synchronized (mCameraLock) {
+            if (null == mSession || null == mActiveArray) {
+                return false;
+            }
+            if (event.getPointerCount() > 1) {
+                final float currentFingerSpacing = getFingerSpacing(event);
+                if (mFingerSpacing != 0) {
+                    float zoom = mZoom;
+                    if (currentFingerSpacing > mFingerSpacing) {
+                        zoom = Math.min(mMaxZoom, zoom + ZOOM_STEP);
+                    } else if (currentFingerSpacing < mFingerSpacing) {
+                        zoom = Math.max(1, zoom - ZOOM_STEP);
+                    }
+                    if (zoom != mZoom) {
+                        mZoom = zoom;
+                        mPreviewRequest.set(
+                                CaptureRequest.SCALER_CROP_REGION,
+                                getCropRegion());
+                        updatePreview();
+                    }
+                }
+                mFingerSpacing = currentFingerSpacing;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Initiates taking a picture, which happens asynchronously. The preview
+     * keeps running meanwhile. The picture, as the one taken by
+     * {@link CameraSource}, still needs to be rotated by 90 degrees to be
+     * upright, so that it is processed the same way. Both callbacks are
+     * called on the main thread.
+     *
+     * @param shutter the callback for image capture moment, or null
+     * @param jpeg    the callback for JPEG image data, or null
+     */
+    @Override
+    public void takePicture(
+            final ShutterCallback shutter, final PictureCallback jpeg) {
+        synchronized (mCameraLock) {
+            if (mCameraDevice == null || mSession == null) {
+                return;
+            }
+            try {
+                final CaptureRequest.Builder request =
+                        mCameraDevice.createCaptureRequest(
+                                CameraDevice.TEMPLATE_STILL_CAPTURE);
+                request.addTarget(mPictureReader.getSurface());
+                // the rest of the rotation is done on decoding
+                request.set(CaptureRequest.JPEG_ORIENTATION,
+                        (mRotation + 270) % 360);
+                request.set(CaptureRequest.CONTROL_AF_MODE,
+                        mPreviewRequest.get(CaptureRequest.CONTROL_AF_MODE));
+                request.set(CaptureRequest.CONTROL_AE_MODE,
+                        mPreviewRequest.get(CaptureRequest.CONTROL_AE_MODE));
+                request.set(CaptureRequest.FLASH_MODE,
+                        mPreviewRequest.get(CaptureRequest.FLASH_MODE));
+                request.set(CaptureRequest.SCALER_CROP_REGION,
+                        mPreviewRequest.get(
+                                CaptureRequest.SCALER_CROP_REGION));
+
+                mPictureReader.setOnImageAvailableListener(reader -> {
+                    final byte[] data;
+                    try (Image image = reader.acquireNextImage()) {
+                        if (image == null) {
+                            return;
+                        }
+                        final ByteBuffer buffer =
+                                image.getPlanes()[0].getBuffer();
+                        data = new byte[buffer.remaining()];
+                        buffer.get(data);
+                    }
+                    if (jpeg != null) {
+                        mMainHandler.post(() -> jpeg.onPictureTaken(data));
+                    }
+                }, mCameraHandler);
+
+                mSession.capture(request.build(),
+                        new CameraCaptureSession.CaptureCallback() {
+                            @Override
+                            public void onCaptureStarted(
+                                    final CameraCaptureSession session,
+                                    final CaptureRequest request,
+                                    final long timestamp,
+                                    final long frameNumber) {
+                                if (shutter != null) {
+                                    mMainHandler.post(shutter::onShutter);
+                                }
+                            }
+                        }, mCameraHandler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                Log.e(TAG, "Could not take a picture.", e);
+            }
+        }
+    }
+
+    @Override
+    public Mat takeZslPicture(final RectF faceCrop) {
+        final ZslRingBuffer zslBuffer = mZslBuffer;
+        return zslBuffer == null ? null : zslBuffer.takePicture(faceCrop);
+    }
+
+    @Override
+    public FaceTemplate getFaceTemplate() {
+        return mFaceTemplates.getTemplate();
+    }
+
+    /**
+     * Prepares the outputs and starts opening the camera, without waiting
+     * for it. The capture session is created once the camera is opened, see
+     * {@link DeviceCallback}, and the preview starts as soon as the session
+     * is configured.
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    private void openCamera(final SurfaceHolder surfaceHolder)
+            throws CameraAccessException {
+        final CameraManager manager = (CameraManager) mContext
+                .getSystemService(Context.CAMERA_SERVICE);
+        final String cameraId = getIdForRequestedCamera(manager, mFacing);
+        if (cameraId == null) {
+            throw new RuntimeException("Could not find requested camera.");
+        }
+        final CameraCharacteristics characteristics =
+                manager.getCameraCharacteristics(cameraId);
+        final StreamConfigurationMap map = characteristics.get(
+                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            throw new RuntimeException("Could not read camera configuration.");
+        }
+        mPreviewSize = selectPreviewSize(
+                map.getOutputSizes(ImageFormat.YUV_420_888),
+                mRequestedPreviewWidth, mRequestedPreviewHeight);
+        if (mPreviewSize == null) {
+            throw new RuntimeException("Could not find suitable preview size.");
+        }
+        final Size pictureSize = selectPictureSize(
+                map.getOutputSizes(ImageFormat.JPEG), mPreviewSize);
+        mRotation = getRotation(characteristics);
+        mActiveArray = characteristics.get(
+                CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        final Float maxZoom = characteristics.get(
+                CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        mMaxZoom = maxZoom == null ? 1 : maxZoom;
+        mZoom = 1;
+
+        final int lentImages = getVerifierCount() * IMAGES_PER_VERIFIER;
+        mFrameReader = new FrameReader(ImageReader.newInstance(
+                mPreviewSize.getWidth(), mPreviewSize.getHeight(),
+                ImageFormat.YUV_420_888, lentImages + RESERVED_IMAGES),
+                lentImages);
+        mPictureReader = ImageReader.newInstance(
+                pictureSize.getWidth(), pictureSize.getHeight(),
+                ImageFormat.JPEG, 1);
+        surfaceHolder.setFixedSize(
+                mPreviewSize.getWidth(), mPreviewSize.getHeight());
+
+        mOpening = new DeviceCallback(surfaceHolder, characteristics);
+        manager.openCamera(cameraId, mOpening, mCameraHandler);
+    }
+
+    /**
+     * Creates the preview request and the capture session on the opened
+     * camera. Guarded by mCameraLock.
+     */
+    private void createSession(
+            final SurfaceHolder surfaceHolder,
+            final CameraCharacteristics characteristics)
+            throws CameraAccessException {
+        final Surface previewSurface = surfaceHolder.getSurface();
+        final Surface frameSurface = mFrameReader.getSurface();
+        mPreviewRequest = mCameraDevice.createCaptureRequest(
+                CameraDevice.TEMPLATE_PREVIEW);
+        mPreviewRequest.addTarget(previewSurface);
+        mPreviewRequest.addTarget(frameSurface);
+        final Range<Integer> fpsRange = selectFpsRange(characteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES),
+                mRequestedFps);
+        if (fpsRange != null) {
+            mPreviewRequest.set(
+                    CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+        }
+        final Integer afMode = selectAfMode(mFocusMode, characteristics.get(
+                CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES));
+        if (afMode != null) {
+            mPreviewRequest.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+        }
+        final Integer aeMode = selectAeMode(mFlashMode, characteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES));
+        if (aeMode != null) {
+            mPreviewRequest.set(CaptureRequest.CONTROL_AE_MODE, aeMode);
+        }
+        if (Camera.Parameters.FLASH_MODE_TORCH.equals(mFlashMode) &&
+                Boolean.TRUE.equals(characteristics.get(
+                        CameraCharacteristics.FLASH_INFO_AVAILABLE))) {
+            mPreviewRequest.set(
+                    CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_TORCH);
+        }
+        if (mActiveArray != null) {
+            mPreviewRequest.set(
+                    CaptureRequest.SCALER_CROP_REGION, getCropRegion());
+        }
+
+        mFrameReader.setOnFrameAvailableListener(
+                mFrameProcessor::setNextFrame, mCameraHandler);
+        mCameraDevice.createCaptureSession(
+                Arrays.asList(previewSurface, frameSurface,
+                        mPictureReader.getSurface()),
+                new SessionCallback(mCameraDevice), mCameraHandler);
+    }
+
+    /**
+     * @return number of verifiers, each of which runs in its own lane of the
+     *         {@link VerificationExecutor}
+     */
+    private int getVerifierCount() {
+        int count = 0;
+        if (mVerifiers != null) {
+            for (Verifier verifier : mVerifiers) {
+                if (verifier != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the camera and its outputs. Guarded by mCameraLock.
+     */
+    private void closeCamera() {
+        // a camera still being opened is closed by its callback, which
+        // quits the camera thread then
+        final boolean opening = mOpening != null;
+        mOpening = null;
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+        }
+        if (mCameraDevice != null) {
+            mCameraDevice.close();
+            mCameraDevice = null;
+        }
+        if (mPictureReader != null) {
+            mPictureReader.close();
+            mPictureReader = null;
+        }
+        if (mFrameReader != null) {
+            // images still leased to verifiers keep the reader open
+            mFrameReader.retire();
+            mFrameReader = null;
+        }
+        if (mCameraThread != null) {
+            if (!opening) {
+                mCameraThread.quitSafely();
+            }
+            mCameraThread = null;
+            mCameraHandler = null;
+        }
+        mPreviewRequest = null;
+    }
+
+    /**
+     * Sends the current preview request again. Guarded by mCameraLock.
+     */
+    private void updatePreview() {
+        if (mSession == null || mPreviewRequest == null) {
+            return;
+        }
+        try {
+            mSession.setRepeatingRequest(
+                    mPreviewRequest.build(), null, mCameraHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Could not update the preview.", e);
+        }
+    }
+
+    /**
+     * @return rotation of the preview frames to the upright position, as in
+     *         {@link CameraSource}
+     */
+    private int getRotation(final CameraCharacteristics characteristics) {
+        final WindowManager windowManager = (WindowManager) mContext
+                .getSystemService(Context.WINDOW_SERVICE);
+        final int degrees;
+        switch (windowManager.getDefaultDisplay().getRotation()) {
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+            default:
+                degrees = 0;
+        }
+        final Integer sensorOrientation =
+                characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        final int orientation =
+                sensorOrientation == null ? 90 : sensorOrientation;
+        if (mFacing == CameraSource.CAMERA_FACING_FRONT) {
+            return (orientation + degrees) % 360;
+        }
+        return (orientation - degrees + 360) % 360;
+    }
+
+    /**
+     * @return region of the sensor shown at the current zoom
+     */
+    private Rect getCropRegion() {
+        final int width = (int) (mActiveArray.width() / mZoom);
+        final int height = (int) (mActiveArray.height() / mZoom);
+        final int left = (mActiveArray.width() - width) / 2;
+        final int top = (mActiveArray.height() - height) / 2;
+        return new Rect(left, top, left + width, top + height);
+    }
+
+    private float getFingerSpacing(final MotionEvent event) {
+        final float x = event.getX(0) - event.getX(1);
+        final float y = event.getY(0) - event.getY(1);
+        return (float) Math.sqrt(x * x + y * y);
+    }
+
+    /**
+     * Creates the capture session once the camera is opened. Called on the
+     * camera thread, so that the main thread never waits for the camera.
+     */
+    private class DeviceCallback extends CameraDevice.StateCallback {
+        private final HandlerThread         mThread;
+        private final SurfaceHolder         mSurfaceHolder;
+        private final CameraCharacteristics mCharacteristics;
+
+        DeviceCallback(
+                final SurfaceHolder surfaceHolder,
+                final CameraCharacteristics characteristics) {
+            mThread = mCameraThread;
+            mSurfaceHolder = surfaceHolder;
+            mCharacteristics = characteristics;
+        }
+
+        @Override
+        public void onOpened(final CameraDevice camera) {
+            synchronized (mCameraLock) {
+                if (mOpening != this) {
+                    // stopped in the meantime
+                    camera.close();
+                    mThread.quitSafely();
+                    return;
+                }
+                mOpening = null;
+                mCameraDevice = camera;
+                try {
+                    createSession(mSurfaceHolder, mCharacteristics);
+                } catch (CameraAccessException | RuntimeException e) {
+                    Log.e(TAG, "Could not start the preview.", e);
+                    mCameraDevice = null;
+                    camera.close();
+                }
+            }
+        }
+
+        @Override
+        public void onDisconnected(final CameraDevice camera) {
+            Log.w(TAG, "Camera disconnected.");
+            forget(camera);
+        }
+
+        @Override
+        public void onError(final CameraDevice camera, final int error) {
+            Log.e(TAG, "Camera error: " + error);
+            forget(camera);
+        }
+
+        private void forget(final CameraDevice camera) {
+            synchronized (mCameraLock) {
+                if (mOpening == this) {
+                    mOpening = null;
+                } else if (mCameraDevice == camera) {
+                    mCameraDevice = null;
+                    mSession = null;
+                } else {
+                    // stopped while being opened
+                    mThread.quitSafely();
+                }
+            }
+            camera.close();
+        }
+    }
+
+    /**
+     * Starts the preview once the session is configured.
+     */
+    private class SessionCallback extends CameraCaptureSession.StateCallback {
+        private final CameraDevice mDevice;
+
+        SessionCallback(final CameraDevice device) {
+            mDevice = device;
+        }
+
+        @Override
+        public void onConfigured(final CameraCaptureSession session) {
+            synchronized (mCameraLock) {
+                if (mCameraDevice != mDevice) {
+                    // stopped in the meantime
+                    session.close();
+                    return;
+                }
+                mSession = session;
+                updatePreview();
+            }
+        }
+
+        @Override
+        public void onConfigureFailed(final CameraCaptureSession session) {
+            Log.e(TAG, "Could not configure the capture session.");
+        }
+    }
+
+    /**
+     * Preview image reader keeping count of the images handed out. Once
+     * retired, it is closed as soon as the last of them is closed, as closing
+     * the reader invalidates the buffers of its images.
+     * <p/>
+     * Only a part of the images may be lent to the verifiers, so that the
+     * reader never runs dry of images for the detection.
+     */
+    private static class FrameReader {
+        private final ImageReader mReader;
+        private final int         mMaxLentImages;
+        private       int         mOpenImages;
+        private       int         mLentImages;
+        private       boolean     mRetired;
+
+        /**
+         * @param maxLentImages images which may be lent at once
+         */
+        FrameReader(final ImageReader reader, final int maxLentImages) {
+            mReader = reader;
+            mMaxLentImages = maxLentImages;
+        }
+
+        Surface getSurface() {
+            return mReader.getSurface();
+        }
+
+        void setOnFrameAvailableListener(
+                final FrameListener listener, final Handler handler) {
+            mReader.setOnImageAvailableListener(reader -> {
+                final ImageLease lease = acquireLatest();
+                if (lease != null) {
+                    listener.onFrame(lease);
+                }
+            }, handler);
+        }
+
+        /**
+         * @return lease of the latest image or null if there is none or all
+         *         images are in use
+         */
+        synchronized ImageLease acquireLatest() {
+            if (mRetired) {
+                return null;
+            }
+            final Image image;
+            try {
+                image = mReader.acquireLatestImage();
+            } catch (IllegalStateException e) {
+                // all images are in use, the frame is dropped
+                return null;
+            }
+            if (image == null) {
+                return null;
+            }
+            mOpenImages++;
+            return new ImageLease(this, image);
+        }
+
+        /**
+         * @return false if the lent images already reached the limit
+         */
+        synchronized boolean lend() {
+            if (mLentImages >= mMaxLentImages) {
+                return false;
+            }
+            mLentImages++;
+            return true;
+        }
+
+        synchronized void giveBack() {
+            mLentImages--;
+        }
+
+        synchronized void onImageClosed() {
+            mOpenImages--;
+            if (mRetired && mOpenImages == 0) {
+                mReader.close();
+            }
+        }
+
+        synchronized void retire() {
+            mRetired = true;
+            mReader.setOnImageAvailableListener(null, null);
+            if (mOpenImages == 0) {
+                mReader.close();
+            }
+        }
+    }
+
+    private interface FrameListener {
+        void onFrame(ImageLease lease);
+    }
+
+    /**
+     * Reference counted preview image. It is closed, and given back to the
+     * reader, together with the last reference.
+     */
+    private static class ImageLease {
+        private final FrameReader mReader;
+        private final Image       mImage;
+        private final long        mTimestampNs = System.nanoTime();
+        private       int         mReferences  = 1;
+
+        ImageLease(final FrameReader reader, final Image image) {
+            mReader = reader;
+            mImage = image;
+        }
+
+        Image getImage() {
+            return mImage;
+        }
+
+        /**
+         * @return time at which the frame was received, in
+         *         {@link System#nanoTime()} units
+         */
+        long getTimestampNs() {
+            return mTimestampNs;
+        }
+
+        synchronized ImageLease retain() {
+            if (mReferences <= 0) {
+                throw new IllegalStateException("Image already closed.");
+            }
+            mReferences++;
+            return this;
+        }
+
+        /**
+         * Retains the image for a verification, unless the reader already
+         * lent as many images as it may.
+         *
+         * @return false if the image was not retained
+         */
+        boolean lend() {
+            if (!mReader.lend()) {
+                return false;
+            }
+            retain();
+            return true;
+        }
+
+        /**
+         * Releases the image retained by {@link #lend()}.
+         */
+        void giveBack() {
+            mReader.giveBack();
+            release();
+        }
+
+        void release() {
+            synchronized (this) {
+                if (mReferences <= 0) {
+                    throw new IllegalStateException("Image already closed.");
+                }
+                if (--mReferences > 0) {
+                    return;
+                }
+            }
+            mImage.close();
+            mReader.onImageClosed();
+        }
+    }
+
+    /**
+     * Runs the detection on the latest preview frame and hands the frame over
+     * to the verifiers, as {@link CameraSource} does. The image reader
+     * already keeps only the latest frame, so at most one frame is pending.
+     */
+    private class FrameProcessingRunnable implements Runnable {
+        private final Object       mLock   = new Object();
+        private       FaceDetector mDetector;
+        private       boolean      mActive = true;
+        private       ImageLease   mPendingFrame;
+        /**
+         * Whether the chroma planes are laid out as NV21; null until checked
+         * on the first verified frame.
+         */
+        private       Boolean      mNv21Layout;
+
+        FrameProcessingRunnable(final FaceDetector detector) {
+            mDetector = detector;
+        }
+
+        void release() {
+            if (mDetector != null) {
+                mDetector.close();
+                mDetector = null;
+            }
+        }
+
+        void setActive(final boolean active) {
+            synchronized (mLock) {
+                mActive = active;
+                if (!active && mPendingFrame != null) {
+                    mPendingFrame.release();
+                    mPendingFrame = null;
+                }
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * Keeps the received frame for processing, dropping the previous one
+         * if it has not been taken yet.
+         */
+        void setNextFrame(final ImageLease lease) {
+            synchronized (mLock) {
+                if (!mActive) {
+                    lease.release();
+                    return;
+                }
+                if (mPendingFrame != null) {
+                    mPendingFrame.release();
+                }
+                mPendingFrame = lease;
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            ImageLease lease;
+
+            while (true) {
+                synchronized (mLock) {
+                    while (mActive && (mPendingFrame == null)) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            Log.d(TAG, "Frame processing loop terminated.", e);
+                            return;
+                        }
+                    }
+                    if (!mActive) {
+                        return;
+                    }
+                    lease = mPendingFrame;
+                    mPendingFrame = null;
+                }
+
+                final long capturedNs = lease.getTimestampNs();
+                FrameContext frame = null;
+                try {
+                    final InputImage image = InputImage.fromMediaImage(
+                            lease.getImage(), mRotation);
+                    final long detectionStart = System.nanoTime();
+                    final List<Face> faces =
+                            Tasks.await(mDetector.process(image));
+                    mDetectionStats.recordSince(detectionStart);
+                    final long sequence = onFacesDetected(faces);
+                    mMainHandler.post(() -> {
+                        if (mFaceTracker != null) {
+                            mFaceTracker.processFaces(faces);
+                        }
+                        mFaceOverlayStats.recordSince(capturedNs);
+                    });
+                    if (faces.size() == 1) {
+                        recordFaceTemplate(lease.getImage(), faces.get(0));
+                    } else {
+                        mFaceTemplates.clear();
+                    }
+                    final ZslRingBuffer zslBuffer = mZslBuffer;
+                    if (zslBuffer != null && (faces.size() != 1 ||
+                            isTrackStart(sequence))) {
+                        // frames of another face must not become the picture
+                        zslBuffer.clear();
+                    }
+                    if (zslBuffer != null && faces.size() == 1) {
+                        final Image frameImage = lease.getImage();
+                        zslBuffer.offer(
+                                buffer -> copyToNv21(frameImage, buffer),
+                                capturedNs, faces.get(0),
+                                isVerificationPassed());
+                    }
+
+                    if (mFaceTracker != null) {
+                        frame = processVerification(
+                                lease, faces, sequence);
+                    }
+                } catch (ExecutionException e) {
+                    onFacesDetected(null);
+                    mMainHandler.post(() -> {
+                        if (mFaceTracker != null) {
+                            mFaceTracker.clear();
+                        }
+                    });
+                    Log.e(TAG, "Error happened: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Frame processing loop terminated.", e);
+                    return;
+                } catch (Throwable t) {
+                    Log.e(TAG, "Exception thrown from receiver.", t);
+                } finally {
+                    if (frame != null) {
+                        frame.release();
+                    }
+                    lease.release();
+                }
+            }
+        }
+
+        /**
+         * Numbers the frame for the verification executor, which cancels the
+         * jobs of the frames showing another face than the current one.
+         *
+         * @return sequence number of the frame, 0 if nothing is verified
+         */
+        private long onFacesDetected(final List<Face> faces) {
+            final VerificationExecutor executor = mVerificationExecutor;
+            return executor == null ? 0 : executor.onFacesDetected(faces);
+        }
+
+        private boolean isTrackStart(final long sequence) {
+            final VerificationExecutor executor = mVerificationExecutor;
+            return executor != null && executor.isTrackStart(sequence);
+        }
+
+        /**
+         * Hands the frame over to the verifiers, which are due according to
+         * the scheduler.
+         *
+         * @return frame context shared by the verifiers or null if no
+         *         verification was started; its creator reference is owned by
+         *         the caller
+         */
+        private FrameContext processVerification(
+                final ImageLease lease, final List<Face> faces,
+                final long sequence) {
+            final VerificationScheduler<Verifier> scheduler = mScheduler;
+            final VerificationExecutor executor = mVerificationExecutor;
+            if (null == scheduler || null == executor || null == faces ||
+                    faces.size() != 1) {
+                return null;
+            }
+            final List<Verifier> due = scheduler.pollDue();
+            if (due.isEmpty()) {
+                return null;
+            }
+            final FrameContext frame = wrapFrame(lease);
+            for (Verifier verifier : due) {
+                if (!executor.submit(
+                        verifier, frame, faces.get(0), sequence)) {
+                    scheduler.onDropped(verifier);
+                }
+            }
+            return frame;
+        }
+
+        /**
+         * @return true if the last run of every verifier reported a correct
+         *         photo
+         */
+        private boolean isVerificationPassed() {
+            final VerificationExecutor executor = mVerificationExecutor;
+            return executor != null && mVerifiers != null &&
+                    executor.havePassed(mVerifiers);
+        }
+
+        /**
+         * Cuts the face out of the luminance plane, which is wrapped without
+         * copying.
+         */
+        private void recordFaceTemplate(final Image image, final Face face) {
+            final Image.Plane plane = image.getPlanes()[0];
+            final Mat luminance = new Mat(
+                    image.getHeight(), image.getWidth(), CvType.CV_8UC1,
+                    plane.getBuffer(), plane.getRowStride());
+            mFaceTemplates.recordLuminance(
+                    luminance, face.getBoundingBox(), mRotation);
+            luminance.release();
+        }
+
+        /**
+         * Wraps the planes of the image in a frame context holding its own
+         * lease of the image, or copies the frame if its planes are not laid
+         * out as NV21 or the verifiers hold as many images as they may.
+         */
+        private FrameContext wrapFrame(final ImageLease lease) {
+            final Image image = lease.getImage();
+            if (mNv21Layout == null) {
+                mNv21Layout = isNv21Layout(image);
+                Log.i(TAG, "Preview frames are " +
+                        (mNv21Layout ? "wrapped" : "copied") +
+                        " for the verification.");
+            }
+            if (!mNv21Layout || !lease.lend()) {
+                return new FrameContext(copyToNv21(image), image.getWidth(),
+                        image.getHeight(), lease.getTimestampNs(), mRotation,
+                        null);
+            }
+            final Image.Plane[] planes = image.getPlanes();
+            final Mat yPlane = new Mat(
+                    image.getHeight(), image.getWidth(), CvType.CV_8UC1,
+                    planes[0].getBuffer(), planes[0].getRowStride());
+            // V plane starts the interleaved VU data
+            final Mat vuPlane = new Mat(
+                    image.getHeight() / 2, image.getWidth() / 2,
+                    CvType.CV_8UC2, planes[2].getBuffer(),
+                    planes[2].getRowStride());
+            return new FrameContext(yPlane, vuPlane, lease.getTimestampNs(),
+                    mRotation, lease::giveBack);
+        }
+    }
+}
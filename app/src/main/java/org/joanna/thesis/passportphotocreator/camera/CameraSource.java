@@ -4,8 +4,13 @@ import android.Manifest;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
 import android.util.Log;
 import android.util.Size;
 import android.view.MotionEvent;
@@ -16,12 +21,20 @@ import android.view.WindowManager;
 import androidx.annotation.RequiresPermission;
 import androidx.annotation.StringDef;
 
+import com.google.android.gms.tasks.Tasks;
 import com.google.mlkit.vision.common.InputImage;
 import com.google.mlkit.vision.face.Face;
 import com.google.mlkit.vision.face.FaceDetector;
 
+import org.joanna.thesis.passportphotocreator.processing.FrameContext;
+import org.joanna.thesis.passportphotocreator.processing.LatencyStats;
+import org.joanna.thesis.passportphotocreator.processing.VerificationExecutor;
+import org.joanna.thesis.passportphotocreator.processing.VerificationScheduler;
 import org.joanna.thesis.passportphotocreator.processing.Verifier;
+import org.joanna.thesis.passportphotocreator.processing.face.FaceTemplate;
+import org.joanna.thesis.passportphotocreator.processing.face.FaceTemplateBuffer;
 import org.joanna.thesis.passportphotocreator.processing.face.FaceTracker;
+import org.opencv.core.Mat;
 
 import java.io.IOException;
 import java.lang.Thread.State;
@@ -29,9 +42,8 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 // Note: This requires Google Play Services 8.1 or higher, due to using indirect byte buffers for
 // storing images.
@@ -58,13 +70,19 @@ import java.util.Map;
  * </ul>
  */
 @SuppressWarnings("deprecation")
-public class CameraSource {
+public class CameraSource implements FrameSource {
     @SuppressLint("InlinedApi")
     public static final int CAMERA_FACING_BACK  = CameraInfo.CAMERA_FACING_BACK;
     @SuppressLint("InlinedApi")
     public static final int CAMERA_FACING_FRONT =
             CameraInfo.CAMERA_FACING_FRONT;
 
+    /**
+     * Camera APIs, which the frame source may be built on.
+     */
+    public static final int BACKEND_CAMERA1 = 1;
+    public static final int BACKEND_CAMERA2 = 2;
+
     private static final String TAG = "OpenCameraSource";
 
     /**
@@ -74,10 +92,6 @@ public class CameraSource {
      */
     private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
 
-    /**
-     * Every which frame background verifier shall be called.
-     */
-    private static final int                     VERIFICATION_FREQUENCY  = 30;
     private final        Object                  mCameraLock             =
             new Object();
     private              Context                 mContext;
@@ -95,6 +109,15 @@ public class CameraSource {
     private              int                     mRequestedPreviewHeight = 768;
     private              String                  mFocusMode              = null;
     private              String                  mFlashMode              = null;
+    private              int                     mVerificationThreads    = 1;
+    private              float                   mVerificationBudget     =
+            VerificationScheduler.DEFAULT_BUDGET_MS_PER_S;
+    private volatile     boolean                 mAdaptivePreviewFps     =
+            false;
+    private              FpsGovernor.DecisionListener mFpsListener;
+    private              int                     mPreviewBufferCount     =
+            FrameBufferPool.DEFAULT_DEPTH;
+    private              int                     mZslDepth               = 0;
 
     private float fingerSpacing = 0;
     private int   zoomLevel     = 1;
@@ -112,13 +135,41 @@ public class CameraSource {
     private              FrameProcessingRunnable mFrameProcessor;
     private              List<Verifier>          mVerifiers;
     /**
-     * Map to convert between a byte array, received from the camera, and its
-     * associated byte buffer.  We use byte buffers internally because this is
-     * a more efficient way to call into native code later (avoids a potential
-     * copy).
+     * Runs the verifiers away from the main and the detection thread.
+     */
+    private volatile     VerificationExecutor    mVerificationExecutor;
+    /**
+     * Decides which verifiers run on which frame.
+     */
+    private volatile     VerificationScheduler<Verifier> mScheduler;
+    /**
+     * Preview buffers circulating between the camera and the frame
+     * processor.  We use byte buffers internally because this is a more
+     * efficient way to call into native code later (avoids a potential copy).
      */
-    private volatile     Map<byte[], ByteBuffer> mBytesToByteBuffer      =
-            new HashMap<>();
+    private volatile     FrameBufferPool         mBufferPool;
+    /**
+     * Decimates the frames and adapts the preview frame rate to what the
+     * processing can keep up with.
+     */
+    private volatile     FpsGovernor             mFpsGovernor;
+    /**
+     * Recent frames kept for zero shutter lag, null if disabled.
+     */
+    private volatile     ZslRingBuffer           mZslBuffer;
+    /**
+     * Face of the last frame showing a single face, for the shutter.
+     */
+    private final        FaceTemplateBuffer      mFaceTemplates          =
+            new FaceTemplateBuffer();
+    // Guarded by mCameraLock
+    private              float                   mNegotiatedFps;
+    private final        Handler                 mMainHandler            =
+            new Handler(Looper.getMainLooper());
+    private final        LatencyStats            mDetectionStats         =
+            new LatencyStats("Detection");
+    private final        LatencyStats            mFaceOverlayStats       =
+            new LatencyStats("Frame captured to faces displayed");
 
     /**
      * Only allow creation via the builder class.
@@ -257,6 +308,7 @@ public class CameraSource {
      * Stops the camera and releases the resources of the camera and
      * underlying detector.
      */
+    @Override
     public void release() {
         synchronized (mCameraLock) {
             stop();
@@ -275,6 +327,7 @@ public class CameraSource {
      *                     as the preview display
      */
     @RequiresPermission(Manifest.permission.CAMERA)
+    @Override
     public CameraSource start(SurfaceHolder surfaceHolder) throws IOException {
         synchronized (mCameraLock) {
             if (mCamera != null) {
@@ -285,6 +338,24 @@ public class CameraSource {
             mCamera.setPreviewDisplay(surfaceHolder);
             mCamera.startPreview();
 
+            final VerificationScheduler<Verifier> scheduler =
+                    new VerificationScheduler<>(
+                            VerificationScheduler.Clock.SYSTEM,
+                            mVerificationBudget);
+            if (mVerifiers != null) {
+                for (Verifier verifier : mVerifiers) {
+                    if (verifier != null) {
+                        scheduler.register(verifier);
+                    }
+                }
+            }
+            mScheduler = scheduler;
+            mVerificationExecutor =
+                    new VerificationExecutor(mVerificationThreads, scheduler);
+            mNegotiatedFps = mRequestedFps;
+            mFpsGovernor = new FpsGovernor(
+                    FpsGovernor.Clock.SYSTEM, new DeviceHints(),
+                    this::onFpsDecision, mRequestedFps);
             mProcessingThread = new Thread(mFrameProcessor);
             mFrameProcessor.setActive(true);
             mProcessingThread.start();
@@ -304,6 +375,7 @@ public class CameraSource {
      * source and release the
      * resources of the underlying detector.
      */
+    @Override
     public void stop() {
         synchronized (mCameraLock) {
             mFrameProcessor.setActive(false);
@@ -323,8 +395,23 @@ public class CameraSource {
                 mProcessingThread = null;
             }
 
-            // clear the buffer to prevent oom exceptions
-            mBytesToByteBuffer.clear();
+            // wait for the running verifications, so that verifiers can be
+            // closed safely afterwards
+            if (mVerificationExecutor != null) {
+                mVerificationExecutor.shutdown();
+                mVerificationExecutor = null;
+            }
+            Log.i(TAG, mDetectionStats.toString());
+            Log.i(TAG, mFaceOverlayStats.toString());
+            mFpsGovernor = null;
+            mZslBuffer = null;
+            mFaceTemplates.release();
+
+            // drop the buffers to prevent oom exceptions
+            if (mBufferPool != null) {
+                mBufferPool.detach();
+                mBufferPool = null;
+            }
 
             if (mCamera != null) {
                 mCamera.stopPreview();
@@ -344,10 +431,78 @@ public class CameraSource {
      * Returns the preview size that is currently in use by the underlying
      * camera.
      */
+    @Override
     public Size getPreviewSize() {
         return mPreviewSize;
     }
 
+    /**
+     * @return time spent on the face detection of a single frame
+     */
+    @Override
+    public LatencyStats getDetectionStats() {
+        return mDetectionStats;
+    }
+
+    /**
+     * @return time from capturing a frame until the faces detected on it are
+     *         shown on the overlay
+     */
+    @Override
+    public LatencyStats getFaceOverlayStats() {
+        return mFaceOverlayStats;
+    }
+
+    /**
+     * Logs the decision of the fps governor, passes it on to the listener
+     * and, if enabled, renegotiates the preview frame rate.
+     */
+    private void onFpsDecision(final FpsGovernor.Decision decision) {
+        Log.d(TAG, decision.toString());
+        if (mFpsListener != null) {
+            mFpsListener.onDecision(decision);
+        }
+        if (mAdaptivePreviewFps) {
+            final float fps = decision.getTargetFps();
+            mMainHandler.post(() -> updatePreviewFpsRange(fps));
+        }
+    }
+
+    /**
+     * Switches the camera to the preview frame rate range closest to the
+     * received one, without restarting the preview. Small changes are
+     * ignored, as they are handled well enough by the decimation.
+     */
+    private void updatePreviewFpsRange(final float fps) {
+        synchronized (mCameraLock) {
+            if (mCamera == null ||
+                    Math.abs(fps - mNegotiatedFps) < mNegotiatedFps * 0.2f) {
+                return;
+            }
+            try {
+                final int[] range = selectPreviewFpsRange(mCamera, fps);
+                if (range == null) {
+                    return;
+                }
+                Camera.Parameters parameters = mCamera.getParameters();
+                parameters.setPreviewFpsRange(
+                        range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                        range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+                mCamera.setParameters(parameters);
+                mNegotiatedFps = fps;
+                Log.i(TAG, "Preview fps range changed to " +
+                        range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] +
+                        "-" + range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] +
+                        " for the target of " + fps + " fps.");
+            } catch (RuntimeException e) {
+                // some devices do not accept changes while previewing
+                Log.w(TAG, "Failed to change preview fps range.", e);
+                mAdaptivePreviewFps = false;
+            }
+        }
+    }
+
+    @Override
     public boolean onTouch(MotionEvent event) {
 
         if (null == mCamera){
@@ -393,6 +548,7 @@ public class CameraSource {
      * @param shutter the callback for image capture moment, or null
      * @param jpeg    the callback for JPEG image data, or null
      */
+    @Override
     public void takePicture(ShutterCallback shutter, PictureCallback jpeg) {
         synchronized (mCameraLock) {
             if (mCamera != null) {
@@ -405,6 +561,17 @@ public class CameraSource {
         }
     }
 
+    @Override
+    public Mat takeZslPicture(final RectF faceCrop) {
+        final ZslRingBuffer zslBuffer = mZslBuffer;
+        return zslBuffer == null ? null : zslBuffer.takePicture(faceCrop);
+    }
+
+    @Override
+    public FaceTemplate getFaceTemplate() {
+        return mFaceTemplates.getTemplate();
+    }
+
     /**
      * Opens the camera and applies the user settings.
      *
@@ -480,19 +647,21 @@ public class CameraSource {
 
         camera.setParameters(parameters);
 
-        // Four frame buffers are needed for working with the camera:
+        // At least two frame buffers are needed for working with the camera:
         //
         //   one for the frame that is currently being executed upon in doing
         //   detection
         //   one for the next pending frame to process immediately upon
         //   completing detection
-        //   two for the frames that the camera uses to populate future
-        //   preview images
+        //
+        // the remaining ones are used by the camera to populate future
+        // preview images
         camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
+        mBufferPool = new FrameBufferPool(mPreviewSize, mPreviewBufferCount);
+        mBufferPool.attach(camera);
+        mZslBuffer = mZslDepth > 0
+                ? new ZslRingBuffer(mZslDepth, mPreviewSize)
+                : null;
 
         return camera;
     }
@@ -596,42 +765,6 @@ public class CameraSource {
     // Private
     //==============================================================================================
 
-    /**
-     * Creates one buffer for the camera preview callback.  The size of the
-     * buffer is based off of
-     * the camera preview size and the format of the camera image.
-     *
-     * @return a new preview buffer of the appropriate size for the current
-     *         camera settings
-     */
-    private byte[] createPreviewBuffer(Size previewSize) {
-        int bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
-        long sizeInBits =
-                previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
-        int bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1;
-
-        //
-        // NOTICE: This code only works when using play services v. 8.1 or
-        // higher.
-        //
-
-        // Creating the byte array this way and wrapping it, as opposed to
-        // using .allocate(),
-        // should guarantee that there will be an array to work with.
-        byte[] byteArray = new byte[bufferSize];
-        ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-        if (!buffer.hasArray() || (buffer.array() != byteArray)) {
-            // I don't think that this will ever happen.  But if it does,
-            // then we wouldn't be
-            // passing the preview content to the underlying detector later.
-            throw new IllegalStateException(
-                    "Failed to create valid buffer for camera source.");
-        }
-
-        mBytesToByteBuffer.put(byteArray, buffer);
-        return byteArray;
-    }
-
     @StringDef({
             Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE,
             Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO,
@@ -645,32 +778,15 @@ public class CameraSource {
     private @interface FocusMode {
     }
 
-    /**
-     * Callback interface used to signal the moment of actual image capture.
-     */
-    public interface ShutterCallback {
-        /**
-         * Called as near as possible to the moment when a photo is captured
-         * from the sensor. This
-         * is a good opportunity to play a shutter sound or give other
-         * feedback of camera operation.
-         * This may be some time after the photo was triggered, but some time
-         * before the actual data
-         * is available.
-         */
-        void onShutter();
-    }
-
-    /**
-     * Callback interface used to supply image data from a photo capture.
-     */
-    public interface PictureCallback {
-        /**
-         * Called when image data is available after a picture is taken.  The
-         * format of the data
-         * is a jpeg binary.
-         */
-        void onPictureTaken(byte[] data);
+    @StringDef({
+            Camera.Parameters.FLASH_MODE_ON,
+            Camera.Parameters.FLASH_MODE_OFF,
+            Camera.Parameters.FLASH_MODE_AUTO,
+            Camera.Parameters.FLASH_MODE_RED_EYE,
+            Camera.Parameters.FLASH_MODE_TORCH
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    private @interface FlashMode {
     }
 
     /**
@@ -680,6 +796,7 @@ public class CameraSource {
         private final FaceDetector mDetector;
         private final CameraSource mCameraSource = new CameraSource();
         private       FaceTracker  faceTracker;
+        private       int          mBackend = BACKEND_CAMERA1;
 
         /**
          * Creates a camera source builder with the supplied context and
@@ -718,11 +835,97 @@ public class CameraSource {
             return this;
         }
 
+        /**
+         * Sets the flash mode; the camera2 backend maps it to its auto
+         * exposure mode. Default: as set by the camera.
+         */
+        public Builder setFlashMode(@FlashMode String mode) {
+            mCameraSource.mFlashMode = mode;
+            return this;
+        }
+
         public Builder setVerifiers(List<Verifier> verifiers) {
             mCameraSource.mVerifiers = verifiers;
             return this;
         }
 
+        /**
+         * Sets the number of threads running the verifiers. Each verifier
+         * runs on at most one thread at a time. Default: 1.
+         */
+        public Builder setVerificationThreads(int threads) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException(
+                        "Invalid verification threads: " + threads);
+            }
+            mCameraSource.mVerificationThreads = threads;
+            return this;
+        }
+
+        /**
+         * Sets how many milliseconds per second the verifiers may spend in
+         * total. The budget is split between them according to their cost
+         * and the volatility of their results. Default:
+         * {@link VerificationScheduler#DEFAULT_BUDGET_MS_PER_S}.
+         */
+        public Builder setVerificationBudget(float msPerSecond) {
+            if (msPerSecond <= 0) {
+                throw new IllegalArgumentException(
+                        "Invalid verification budget: " + msPerSecond);
+            }
+            mCameraSource.mVerificationBudget = msPerSecond;
+            return this;
+        }
+
+        /**
+         * Enables renegotiation of the preview frame rate range with the
+         * camera, following what the processing can keep up with. Without
+         * it the frames are only decimated before the detection. Default:
+         * false.
+         */
+        public Builder setAdaptivePreviewFps(boolean adaptive) {
+            mCameraSource.mAdaptivePreviewFps = adaptive;
+            return this;
+        }
+
+        /**
+         * Sets the receiver of the decisions taken by the fps governor, e.g.
+         * to collect them for tuning per device class. It is called on the
+         * frame processing thread.
+         */
+        public Builder setFpsDecisionListener(
+                FpsGovernor.DecisionListener listener) {
+            mCameraSource.mFpsListener = listener;
+            return this;
+        }
+
+        /**
+         * Sets the number of preview buffers. More buffers use more memory,
+         * but let the camera drop fewer frames while the detection is
+         * running. Default: {@link FrameBufferPool#DEFAULT_DEPTH}.
+         */
+        public Builder setPreviewBufferCount(int count) {
+            if (count < FrameBufferPool.MIN_DEPTH) {
+                throw new IllegalArgumentException(
+                        "Invalid preview buffer count: " + count);
+            }
+            mCameraSource.mPreviewBufferCount = count;
+            return this;
+        }
+
+        /**
+         * Enables zero shutter lag, keeping the given number of the last
+         * processed preview frames. Default: 0, disabled.
+         */
+        public Builder setZslDepth(int depth) {
+            if (depth != 0 && depth < ZslRingBuffer.MIN_DEPTH) {
+                throw new IllegalArgumentException(
+                        "Invalid ZSL depth: " + depth);
+            }
+            mCameraSource.mZslDepth = depth;
+            return this;
+        }
+
         public Builder setFaceDetector(final FaceTracker fdp) {
             faceTracker = fdp;
             return this;
@@ -769,9 +972,41 @@ public class CameraSource {
         }
 
         /**
-         * Creates an instance of the camera source.
+         * Sets the camera API to use (either {@link #BACKEND_CAMERA1} or
+         * {@link #BACKEND_CAMERA2}). The camera2 backend is used only if the
+         * camera supports more than the legacy hardware level, otherwise the
+         * builder falls back to camera1. Default: camera1.
+         */
+        public Builder setBackend(int backend) {
+            if ((backend != BACKEND_CAMERA1) && (backend != BACKEND_CAMERA2)) {
+                throw new IllegalArgumentException(
+                        "Invalid camera backend: " + backend);
+            }
+            mBackend = backend;
+            return this;
+        }
+
+        /**
+         * Creates an instance of the frame source.
          */
-        public CameraSource build() {
+        public FrameSource build() {
+            if (mBackend == BACKEND_CAMERA2) {
+                if (Camera2Source.isSupported(
+                        mCameraSource.mContext, mCameraSource.mFacing)) {
+                    return new Camera2Source(
+                            mCameraSource.mContext, mDetector, faceTracker,
+                            mCameraSource.mVerifiers, mCameraSource.mFacing,
+                            mCameraSource.mRequestedFps,
+                            mCameraSource.mRequestedPreviewWidth,
+                            mCameraSource.mRequestedPreviewHeight,
+                            mCameraSource.mFocusMode,
+                            mCameraSource.mFlashMode,
+                            mCameraSource.mVerificationThreads,
+                            mCameraSource.mVerificationBudget,
+                            mCameraSource.mZslDepth);
+                }
+                Log.i(TAG, "Camera2 backend not supported, using camera1.");
+            }
             mCameraSource.mFrameProcessor =
                     mCameraSource.new FrameProcessingRunnable(
                             mDetector, faceTracker);
@@ -828,6 +1063,29 @@ public class CameraSource {
         }
     }
 
+    /**
+     * Reads the state of the device relevant to the fps governor.
+     */
+    private class DeviceHints implements FpsGovernor.Hints {
+        private final PowerManager mPowerManager =
+                (PowerManager) mContext.getSystemService(
+                        Context.POWER_SERVICE);
+
+        @Override
+        public int getThermalStatus() {
+            if (mPowerManager == null ||
+                    Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                return PowerManager.THERMAL_STATUS_NONE;
+            }
+            return mPowerManager.getCurrentThermalStatus();
+        }
+
+        @Override
+        public boolean isPowerSaveMode() {
+            return mPowerManager != null && mPowerManager.isPowerSaveMode();
+        }
+    }
+
     /**
      * Wraps the final callback in the camera sequence, so that we can
      * automatically turn the camera
@@ -881,6 +1139,11 @@ public class CameraSource {
      * associated processing are done for the previous frame, detection on
      * the mostly recently
      * received frame will immediately start on the same thread.
+     * <p/>
+     * The detection is the first stage of a pipeline. Frames to be verified
+     * are handed over to the {@link VerificationExecutor}, the second stage,
+     * so that their verification overlaps with the detection on the
+     * following frames.
      */
     private class FrameProcessingRunnable implements Runnable {
         private final FaceTracker  mFaceTracker;
@@ -889,11 +1152,7 @@ public class CameraSource {
         private       FaceDetector mDetector;
         private       boolean      mActive = true;
 
-        private ByteBuffer mPendingFrameData;
-        private byte[]     mPendingFrameBytes;
-
-        private int verificationLoop = 0;
-        private int verificationItem = 0;
+        private FrameBufferPool.Slot mPendingFrame;
 
         FrameProcessingRunnable(
                 FaceDetector detector,
@@ -924,6 +1183,11 @@ public class CameraSource {
         void setActive(boolean active) {
             synchronized (mLock) {
                 mActive = active;
+                if (!active) {
+                    // the pool gets detached on stop, its buffers are not
+                    // going to be used anymore
+                    mPendingFrame = null;
+                }
                 mLock.notifyAll();
             }
         }
@@ -936,24 +1200,29 @@ public class CameraSource {
          * future use.
          */
         void setNextFrame(byte[] data, Camera camera) {
+            final FrameBufferPool pool = mBufferPool;
+            if (pool == null) {
+                return;
+            }
+            final FpsGovernor governor = mFpsGovernor;
+            if (governor != null && !governor.shouldProcess()) {
+                pool.skip(data);
+                return;
+            }
             synchronized (mLock) {
-                if (mPendingFrameData != null) {
-                    camera.addCallbackBuffer(mPendingFrameData.array());
-                    mPendingFrameData = null;
+                if (mPendingFrame != null) {
+                    pool.drop(mPendingFrame);
+                    mPendingFrame = null;
+                    if (governor != null) {
+                        governor.onFrameDropped();
+                    }
                 }
 
-                if (!mBytesToByteBuffer.containsKey(data)) {
-                    Log.d(
-                            TAG,
-                            "Skipping frame.  Could not find ByteBuffer " +
-                                    "associated with the image " +
-                                    "data from the camera.");
+                mPendingFrame = pool.onFrameReceived(data);
+                if (mPendingFrame == null) {
                     return;
                 }
 
-                mPendingFrameData = mBytesToByteBuffer.get(data);
-                mPendingFrameBytes = data;
-
                 // Notify the processor thread if it is waiting on the next
                 // frame (see below).
                 mLock.notifyAll();
@@ -984,11 +1253,12 @@ public class CameraSource {
 
         @Override
         public void run() {
+            FrameBufferPool.Slot slot;
             ByteBuffer data;
 
             while (true) {
                 synchronized (mLock) {
-                    while (mActive && (mPendingFrameData == null)) {
+                    while (mActive && (mPendingFrame == null)) {
                         try {
                             // Wait for the next frame to be received from
                             // the camera, since we
@@ -1013,12 +1283,14 @@ public class CameraSource {
 
                     // Hold onto the frame data locally, so that we can use
                     // this for detection
-                    // below.  We need to clear mPendingFrameData to ensure
+                    // below.  We need to clear mPendingFrame to ensure
                     // that this buffer isn't
                     // recycled back to the camera before we are done using
                     // that data.
-                    data = mPendingFrameData;
-                    mPendingFrameData = null;
+                    slot = mPendingFrame;
+                    mPendingFrame = null;
+                    mBufferPool.beginProcessing(slot);
+                    data = slot.getBuffer();
                 }
 
                 // The code below needs to run outside of synchronization,
@@ -1027,59 +1299,156 @@ public class CameraSource {
                 // detection on the current
                 // frame.
 
+                // The buffer is leased to the frame context shared by the
+                // verifiers and goes back to the camera only when both the
+                // detection and the verifiers are done with it, so none of
+                // them needs its own copy of the frame.
+                final FrameBufferPool pool = mBufferPool;
+                final long capturedNs = slot.getTimestampNs();
+                FrameContext frame = null;
                 try {
                     InputImage image = InputImage.fromByteBuffer(data,
                             mPreviewSize.getWidth(),
                             mPreviewSize.getHeight(), 90, ImageFormat.NV21);
-                    final byte[] finalData = mPendingFrameBytes;
-                    mDetector.process(image)
-                             .addOnSuccessListener(
-                                     faces -> {
-                                         if (mFaceTracker != null) {
-                                             mFaceTracker.processFaces(faces);
-                                             processVerification(
-                                                     finalData, faces);
-                                         }
-                                     })
-                             .addOnFailureListener(e -> {
-                                 if (mFaceTracker != null) {
-                                     mFaceTracker.clear();
-                                 }
-                                 Log.e(
-                                         TAG,
-                                         "Error happened: " + e.getMessage());
-                             });
+                    // Stage 1: a single detection in flight, so that the
+                    // next one always starts on the latest frame.
+                    final long detectionStart = System.nanoTime();
+                    final List<Face> faces =
+                            Tasks.await(mDetector.process(image));
+                    final long detectionNs = System.nanoTime() - detectionStart;
+                    mDetectionStats.record(detectionNs);
+                    final FpsGovernor governor = mFpsGovernor;
+                    if (governor != null) {
+                        governor.onDetection(detectionNs);
+                    }
+                    final long sequence = onFacesDetected(faces);
+                    mMainHandler.post(() -> {
+                        if (mFaceTracker != null) {
+                            mFaceTracker.processFaces(faces);
+                        }
+                        mFaceOverlayStats.recordSince(capturedNs);
+                    });
+                    if (faces.size() == 1) {
+                        mFaceTemplates.recordNv21(slot.getBytes(),
+                                mPreviewSize.getWidth(),
+                                mPreviewSize.getHeight(),
+                                faces.get(0).getBoundingBox());
+                    } else {
+                        mFaceTemplates.clear();
+                    }
+                    final ZslRingBuffer zslBuffer = mZslBuffer;
+                    if (zslBuffer != null && (faces.size() != 1 ||
+                            isTrackStart(sequence))) {
+                        // frames of another face must not become the picture
+                        zslBuffer.clear();
+                    }
+                    if (zslBuffer != null && faces.size() == 1) {
+                        zslBuffer.offer(slot.getBytes(), capturedNs,
+                                faces.get(0), isVerificationPassed());
+                    }
+
+                    // Stage 2: verification of this frame overlaps with the
+                    // detection on the following ones.
+                    if (mFaceTracker != null) {
+                        frame = processVerification(
+                                pool, slot, faces, sequence);
+                    }
+                } catch (ExecutionException e) {
+                    onFacesDetected(null);
+                    mMainHandler.post(() -> {
+                        if (mFaceTracker != null) {
+                            mFaceTracker.clear();
+                        }
+                    });
+                    Log.e(TAG, "Error happened: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Frame processing loop terminated.", e);
+                    return;
                 } catch (Throwable t) {
                     Log.e(TAG, "Exception thrown from receiver.", t);
                 } finally {
-                    mCamera.addCallbackBuffer(data.array());
+                    releaseFrame(frame);
+                    pool.release(slot);
                 }
 
             }
         }
 
-        private void processVerification(final byte[] data, List<Face> faces) {
-            if (null == faces || faces.size() != 1) {
-                return;
+        /**
+         * Numbers the frame for the verification executor, which cancels the
+         * jobs of the frames showing another face than the current one.
+         *
+         * @return sequence number of the frame, 0 if nothing is verified
+         */
+        private long onFacesDetected(final List<Face> faces) {
+            final VerificationExecutor executor = mVerificationExecutor;
+            return executor == null ? 0 : executor.onFacesDetected(faces);
+        }
+
+        private boolean isTrackStart(final long sequence) {
+            final VerificationExecutor executor = mVerificationExecutor;
+            return executor != null && executor.isTrackStart(sequence);
+        }
+
+        /**
+         * Hands the frame over to the verifiers, which are due according to
+         * the scheduler.
+         *
+         * @return frame context shared by the verifiers or null if no
+         *         verification was started; its creator reference is owned by
+         *         the caller
+         */
+        private FrameContext processVerification(
+                final FrameBufferPool pool, final FrameBufferPool.Slot slot,
+                final List<Face> faces, final long sequence) {
+            final VerificationScheduler<Verifier> scheduler = mScheduler;
+            final VerificationExecutor executor = mVerificationExecutor;
+            if (null == scheduler || null == executor || null == faces ||
+                    faces.size() != 1) {
+                return null;
+            }
+            final List<Verifier> due = scheduler.pollDue();
+            if (due.isEmpty()) {
+                return null;
             }
-            if (verificationLoop++ ==
-                    VERIFICATION_FREQUENCY / mVerifiers.size()) {
-                Face face = faces.get(0);
-                performVerifications(data, face);
-                verificationLoop = 0;
+            // all due verifiers get the same frame, so that its conversions
+            // are shared between them
+            final FrameContext frame = leaseFrame(pool, slot);
+            for (Verifier verifier : due) {
+                if (!executor.submit(
+                        verifier, frame, faces.get(0), sequence)) {
+                    scheduler.onDropped(verifier);
+                }
             }
+            return frame;
         }
 
-        private void performVerifications(
-                final byte[] data,
-                final Face face) {
+        /**
+         * @return true if the last run of every verifier reported a correct
+         *         photo
+         */
+        private boolean isVerificationPassed() {
+            final VerificationExecutor executor = mVerificationExecutor;
+            return executor != null && mVerifiers != null &&
+                    executor.havePassed(mVerifiers);
+        }
 
-            Verifier currentVerifier = mVerifiers.get(verificationItem++);
-            if (currentVerifier != null) {
-                currentVerifier.verify(data, face);
-            }
-            if (verificationItem == mVerifiers.size()) {
-                verificationItem = 0;
+        /**
+         * Wraps the buffer in a frame context holding its own lease, which is
+         * given back together with the last reference to the context.
+         */
+        private FrameContext leaseFrame(
+                final FrameBufferPool pool, final FrameBufferPool.Slot slot) {
+            pool.retain(slot);
+            return new FrameContext(
+                    slot.getBytes(), mPreviewSize.getWidth(),
+                    mPreviewSize.getHeight(), slot.getTimestampNs(),
+                    () -> pool.release(slot));
+        }
+
+        private void releaseFrame(final FrameContext frame) {
+            if (frame != null) {
+                frame.release();
             }
         }
     }
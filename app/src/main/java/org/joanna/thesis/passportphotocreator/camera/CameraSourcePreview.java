@@ -21,7 +21,7 @@ public class CameraSourcePreview extends ViewGroup {
     private final SurfaceView    mSurfaceView;
     private       boolean        mStartRequested;
     private       boolean        mSurfaceAvailable;
-    private       CameraSource   mCameraSource;
+    private       FrameSource    mCameraSource;
     private       GraphicOverlay mOverlay;
 
     public CameraSourcePreview(
@@ -37,7 +37,7 @@ public class CameraSourcePreview extends ViewGroup {
     }
 
     @RequiresPermission(Manifest.permission.CAMERA)
-    public void start(final CameraSource cameraSource)
+    public void start(final FrameSource cameraSource)
             throws IOException, SecurityException {
         mCameraSource = cameraSource;
         if (mCameraSource != null) {
@@ -48,7 +48,7 @@ public class CameraSourcePreview extends ViewGroup {
 
     @RequiresPermission(Manifest.permission.CAMERA)
     public void start(
-            final CameraSource cameraSource,
+            final FrameSource cameraSource,
             final GraphicOverlay overlay)
             throws IOException, SecurityException {
         mOverlay = overlay;
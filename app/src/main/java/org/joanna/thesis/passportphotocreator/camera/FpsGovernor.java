@@ -0,0 +1,312 @@
+package org.joanna.thesis.passportphotocreator.camera;
+
+import java.util.Locale;
+
+/**
+ * Keeps the frame processing in pace with the camera. Once per
+ * {@link #EVALUATION_PERIOD_NS} the governor compares the measured camera
+ * frame rate with the rate the detection can sustain, limited further by the
+ * thermal state of the device and the power save mode. When the camera is
+ * faster, only every n-th frame is passed to the detection (decimation), so
+ * that the processing queue stays near-empty. The resulting target frame
+ * rate may additionally be used to renegotiate the preview frame rate range
+ * of the camera.
+ * <p/>
+ * The verification is not taken into account: the verification scheduler
+ * limits its runs in time, not per frame, so fewer frames would not lighten
+ * it.
+ * <p/>
+ * Every evaluation produces a {@link Decision}, which is passed to the
+ * {@link DecisionListener} to allow tuning the governor per device class.
+ */
+public class FpsGovernor {
+
+    static final long  EVALUATION_PERIOD_NS = 1000 * 1000000L;
+    /**
+     * Share of the detection capacity used, the rest is left as a reserve
+     * to keep the queue empty.
+     */
+    static final float HEADROOM             = 0.8f;
+    static final float MIN_FPS              = 2f;
+    static final float THROTTLED_FPS        = 10f;
+    static final float HOT_FPS              = 5f;
+    static final float SMOOTHING            = 0.2f;
+    /**
+     * Excess of the camera rate over the target still not decimated, so that
+     * the jitter of the measured rate does not halve the frames.
+     */
+    static final float RATE_TOLERANCE       = 1.05f;
+
+    /**
+     * Thermal status values, as in {@link android.os.PowerManager}.
+     */
+    static final int THERMAL_STATUS_MODERATE = 2;
+    static final int THERMAL_STATUS_SEVERE   = 3;
+
+    private final Clock            mClock;
+    private final Hints            mHints;
+    private final DecisionListener mListener;
+    private final float            mMaxFps;
+    private       long             mLastFrameNs;
+    private       float            mFrameIntervalNs;
+    private       float            mDetectionNs;
+    private       long             mFrames;
+    private       long             mDroppedOnEvaluation;
+    private       long             mDropped;
+    private       long             mEvaluatedAtNs;
+    private       int              mDecimation = 1;
+    private       float            mTargetFps;
+
+    /**
+     * @param clock    source of the time
+     * @param hints    source of the device state, or null
+     * @param listener receiver of the decisions, or null
+     * @param maxFps   frame rate requested by the user of the camera
+     */
+    public FpsGovernor(
+            final Clock clock, final Hints hints,
+            final DecisionListener listener, final float maxFps) {
+        if (maxFps <= 0) {
+            throw new IllegalArgumentException("Invalid fps: " + maxFps);
+        }
+        mClock = clock;
+        mHints = hints;
+        mListener = listener;
+        mMaxFps = maxFps;
+        mTargetFps = maxFps;
+        mEvaluatedAtNs = clock.nowNs();
+    }
+
+    /**
+     * Called for every frame delivered by the camera.
+     *
+     * @return true if the frame shall be processed, false if it shall be
+     *         given back to the camera straight away
+     */
+    public synchronized boolean shouldProcess() {
+        final long now = mClock.nowNs();
+        if (mLastFrameNs != 0) {
+            final long interval = now - mLastFrameNs;
+            mFrameIntervalNs = mFrameIntervalNs == 0
+                    ? interval
+                    : mFrameIntervalNs +
+                            SMOOTHING * (interval - mFrameIntervalNs);
+        }
+        mLastFrameNs = now;
+        return mFrames++ % mDecimation == 0;
+    }
+
+    /**
+     * Called when a pending frame was replaced by a newer one before being
+     * processed, which means the processing does not keep up.
+     */
+    public synchronized void onFrameDropped() {
+        mDropped++;
+    }
+
+    /**
+     * Called after the detection of each processed frame.
+     *
+     * @param latencyNs duration of the detection
+     */
+    public void onDetection(final long latencyNs) {
+        final Decision decision;
+        synchronized (this) {
+            mDetectionNs = mDetectionNs == 0
+                    ? latencyNs
+                    : mDetectionNs + SMOOTHING * (latencyNs - mDetectionNs);
+            final long now = mClock.nowNs();
+            if (now - mEvaluatedAtNs < EVALUATION_PERIOD_NS) {
+                return;
+            }
+            mEvaluatedAtNs = now;
+            decision = evaluate(now);
+        }
+        if (mListener != null) {
+            mListener.onDecision(decision);
+        }
+    }
+
+    public synchronized int getDecimation() {
+        return mDecimation;
+    }
+
+    /**
+     * @return frame rate the processing is able to keep up with
+     */
+    public synchronized float getTargetFps() {
+        return mTargetFps;
+    }
+
+    private Decision evaluate(final long now) {
+        final float cameraFps =
+                mFrameIntervalNs == 0 ? mMaxFps : 1e9f / mFrameIntervalNs;
+        final float detectionMs = mDetectionNs / 1e6f;
+        final long dropped = mDropped - mDroppedOnEvaluation;
+        mDroppedOnEvaluation = mDropped;
+
+        float target = mMaxFps;
+        String reason = "requested";
+        if (detectionMs > 0) {
+            final float sustainable = 1000f / detectionMs * HEADROOM;
+            if (sustainable < target) {
+                target = sustainable;
+                reason = "latency";
+            }
+        }
+        final int thermalStatus =
+                mHints == null ? 0 : mHints.getThermalStatus();
+        final boolean powerSave = mHints != null && mHints.isPowerSaveMode();
+        if (thermalStatus >= THERMAL_STATUS_SEVERE && target > HOT_FPS) {
+            target = HOT_FPS;
+            reason = "thermal";
+        } else if ((thermalStatus >= THERMAL_STATUS_MODERATE || powerSave)
+                && target > THROTTLED_FPS) {
+            target = THROTTLED_FPS;
+            reason = powerSave ? "power save" : "thermal";
+        }
+        target = Math.max(MIN_FPS, target);
+
+        int decimation = Math.max(1,
+                (int) Math.ceil(cameraFps / (target * RATE_TOLERANCE)));
+        if (dropped > 0 && decimation <= mDecimation) {
+            // frames are still piling up, back off one more step
+            decimation = mDecimation + 1;
+            reason = "queue";
+        } else if (decimation < mDecimation - 1) {
+            // recover gradually, to avoid oscillating
+            decimation = mDecimation - 1;
+        }
+        mDecimation = Math.min(decimation,
+                Math.max(1, (int) Math.ceil(cameraFps / MIN_FPS)));
+        mTargetFps = target;
+        return new Decision(now, cameraFps, detectionMs, dropped,
+                thermalStatus, powerSave, target, mDecimation, reason);
+    }
+
+    /**
+     * Source of the time, replaceable in tests.
+     */
+    public interface Clock {
+        Clock SYSTEM = System::nanoTime;
+
+        /**
+         * @return current time in nanoseconds
+         */
+        long nowNs();
+    }
+
+    /**
+     * State of the device, which may require slowing down.
+     */
+    public interface Hints {
+        /**
+         * @return thermal status, as in
+         *         {@link android.os.PowerManager#getCurrentThermalStatus()}
+         */
+        int getThermalStatus();
+
+        boolean isPowerSaveMode();
+    }
+
+    /**
+     * Receives the decisions of the governor. Called on the frame processing
+     * thread, so it must return quickly.
+     */
+    public interface DecisionListener {
+        void onDecision(Decision decision);
+    }
+
+    /**
+     * Single evaluation of the governor: its inputs and outcome.
+     */
+    public static class Decision {
+        private final long    mTimestampNs;
+        private final float   mCameraFps;
+        private final float   mDetectionMs;
+        private final long    mDropped;
+        private final int     mThermalStatus;
+        private final boolean mPowerSave;
+        private final float   mTargetFps;
+        private final int     mDecimation;
+        private final String  mReason;
+
+        Decision(
+                final long timestampNs, final float cameraFps,
+                final float detectionMs, final long dropped,
+                final int thermalStatus, final boolean powerSave,
+                final float targetFps, final int decimation,
+                final String reason) {
+            mTimestampNs = timestampNs;
+            mCameraFps = cameraFps;
+            mDetectionMs = detectionMs;
+            mDropped = dropped;
+            mThermalStatus = thermalStatus;
+            mPowerSave = powerSave;
+            mTargetFps = targetFps;
+            mDecimation = decimation;
+            mReason = reason;
+        }
+
+        public long getTimestampNs() {
+            return mTimestampNs;
+        }
+
+        /**
+         * @return frame rate measured on the frames delivered by the camera
+         */
+        public float getCameraFps() {
+            return mCameraFps;
+        }
+
+        /**
+         * @return smoothed detection latency
+         */
+        public float getDetectionMs() {
+            return mDetectionMs;
+        }
+
+        /**
+         * @return frames dropped from the queue since the previous decision
+         */
+        public long getDropped() {
+            return mDropped;
+        }
+
+        public int getThermalStatus() {
+            return mThermalStatus;
+        }
+
+        public boolean isPowerSave() {
+            return mPowerSave;
+        }
+
+        public float getTargetFps() {
+            return mTargetFps;
+        }
+
+        /**
+         * @return every which camera frame gets processed
+         */
+        public int getDecimation() {
+            return mDecimation;
+        }
+
+        /**
+         * @return what limited the target frame rate
+         */
+        public String getReason() {
+            return mReason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "Fps decision: cameraFps=%.1f, detectionMs=%.1f, " +
+                            "dropped=%d, thermal=%d, powerSave=%b, " +
+                            "targetFps=%.1f, decimation=%d, reason=%s",
+                    mCameraFps, mDetectionMs, mDropped, mThermalStatus,
+                    mPowerSave, mTargetFps, mDecimation, mReason);
+        }
+    }
+}
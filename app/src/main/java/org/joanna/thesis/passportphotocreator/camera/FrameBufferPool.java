@@ -0,0 +1,377 @@
+package org.joanna.thesis.passportphotocreator.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.util.Log;
+import android.util.Size;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed set of preview buffers circulating between the camera and the frame
+ * processor. Every buffer lives in a slot with a stable index and is always
+ * in one of the states:
+ * <ul>
+ * <li>{@link State#CAMERA} - queued in the camera, waiting to be filled</li>
+ * <li>{@link State#PENDING} - filled, waiting for the frame processor</li>
+ * <li>{@link State#IN_USE} - leased to the consumers processing it</li>
+ * </ul>
+ * A buffer in use is reference counted: every asynchronous consumer reading
+ * it, like the detector or the verifiers, holds a lease taken with
+ * {@link #retain(Slot)} and gives it back with {@link #release(Slot)}. The
+ * buffer returns to the camera only after the last lease is released, so it
+ * is never overwritten while somebody still reads it.
+ * <p/>
+ * More slots mean more memory, but fewer frames dropped by the camera while
+ * all buffers are busy. Buffers that do not come back to the camera in
+ * {@link #LEAK_TIMEOUT_MS} are reported as leaked.
+ */
+@SuppressWarnings("deprecation")
+public class FrameBufferPool {
+
+    public static final int DEFAULT_DEPTH = 4;
+    public static final int MIN_DEPTH     = 2;
+
+    private static final String TAG = FrameBufferPool.class.getSimpleName();
+
+    private static final long LEAK_TIMEOUT_MS = 2000;
+    private static final long NS_PER_MS       = 1000000L;
+
+    private final Slot[] mSlots;
+    private       Camera mCamera;
+    private       int    mQueued;
+    private       int    mPeakOccupancy;
+    private       long   mFrames;
+    private       long   mDropped;
+    private       long   mUnknown;
+    private       long   mSkipped;
+    private       long   mLeaked;
+    private       long   mAcquireWaitNs;
+    private       long   mMaxAcquireWaitNs;
+    private       long   mStarvedSinceNs;
+    private       long   mStarvedNs;
+
+    /**
+     * @param previewSize size of the preview frames in NV21 format
+     * @param depth       number of buffers in the pool
+     */
+    public FrameBufferPool(final Size previewSize, final int depth) {
+        if (depth < MIN_DEPTH) {
+            throw new IllegalArgumentException(
+                    "Invalid frame buffer pool depth: " + depth);
+        }
+        final int bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
+        final long sizeInBits = (long) previewSize.getHeight() *
+                previewSize.getWidth() * bitsPerPixel;
+        final int bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1;
+
+        mSlots = new Slot[depth];
+        for (int i = 0; i < depth; i++) {
+            mSlots[i] = new Slot(i, bufferSize);
+        }
+    }
+
+    /**
+     * Queues all the buffers in the camera.
+     */
+    public synchronized void attach(final Camera camera) {
+        mCamera = camera;
+        for (Slot slot : mSlots) {
+            slot.mState = State.CAMERA;
+            camera.addCallbackBuffer(slot.mBytes);
+        }
+        mQueued = mSlots.length;
+    }
+
+    /**
+     * Takes all the buffers back from the camera and logs the metrics of the
+     * pool. Leases still held are ignored when released afterwards.
+     */
+    public synchronized void detach() {
+        for (Slot slot : mSlots) {
+            if (slot.mState == State.IN_USE) {
+                Log.d(TAG, "Buffer " + slot.mIndex + " still leased.");
+            }
+            slot.mState = State.CAMERA;
+            slot.mLeases = 0;
+        }
+        mCamera = null;
+        Log.i(TAG, toString());
+    }
+
+    /**
+     * Called with the buffer just filled by the camera.
+     *
+     * @param data buffer received in the preview callback
+     * @return slot of the buffer in state {@link State#PENDING} or null if
+     *         the buffer does not belong to the pool
+     */
+    public synchronized Slot onFrameReceived(final byte[] data) {
+        final Slot slot = find(data);
+        if (slot == null || slot.mState != State.CAMERA) {
+            mUnknown++;
+            Log.d(TAG, "Skipping frame. Buffer not queued by the pool.");
+            return null;
+        }
+        final long now = System.nanoTime();
+        slot.mState = State.PENDING;
+        slot.mFilledAtNs = now;
+        slot.mLeakReported = false;
+        mFrames++;
+        if (--mQueued == 0) {
+            mStarvedSinceNs = now;
+        }
+        mPeakOccupancy = Math.max(mPeakOccupancy, getOccupancyLocked());
+        checkForLeaks(now);
+        return slot;
+    }
+
+    /**
+     * Gives the buffer just filled by the camera straight back to it, e.g.
+     * when the frame rate is decimated.
+     *
+     * @param data buffer received in the preview callback
+     */
+    public synchronized void skip(final byte[] data) {
+        final Slot slot = find(data);
+        if (slot == null || slot.mState != State.CAMERA || mCamera == null) {
+            return;
+        }
+        mSkipped++;
+        mCamera.addCallbackBuffer(data);
+    }
+
+    /**
+     * Hands the pending buffer over to the frame processor, which holds the
+     * first lease of it.
+     */
+    public synchronized void beginProcessing(final Slot slot) {
+        if (slot.mState != State.PENDING) {
+            throw new IllegalStateException(
+                    "Buffer " + slot.mIndex + " is not pending.");
+        }
+        final long now = System.nanoTime();
+        final long wait = now - slot.mFilledAtNs;
+        slot.mState = State.IN_USE;
+        slot.mLeases = 1;
+        slot.mAcquiredAtNs = now;
+        mAcquireWaitNs += wait;
+        mMaxAcquireWaitNs = Math.max(mMaxAcquireWaitNs, wait);
+    }
+
+    /**
+     * Returns the pending buffer to the camera, without processing it. Such
+     * frame is counted as dropped.
+     */
+    public synchronized void drop(final Slot slot) {
+        if (slot.mState != State.PENDING) {
+            throw new IllegalStateException(
+                    "Buffer " + slot.mIndex + " is not pending.");
+        }
+        mDropped++;
+        recycle(slot);
+    }
+
+    /**
+     * Takes a further lease of the buffer in use.
+     */
+    public synchronized void retain(final Slot slot) {
+        if (slot.mState != State.IN_USE) {
+            throw new IllegalStateException(
+                    "Buffer " + slot.mIndex + " is not in use.");
+        }
+        slot.mLeases++;
+    }
+
+    /**
+     * Gives a lease of the buffer back. The buffer returns to the camera
+     * together with its last lease.
+     */
+    public synchronized void release(final Slot slot) {
+        if (slot.mState != State.IN_USE) {
+            if (mCamera == null) {
+                // pool already detached, the lease outlived the camera
+                return;
+            }
+            throw new IllegalStateException(
+                    "Buffer " + slot.mIndex + " is not in use.");
+        }
+        if (--slot.mLeases == 0) {
+            recycle(slot);
+        }
+    }
+
+    public int getDepth() {
+        return mSlots.length;
+    }
+
+    /**
+     * @return number of buffers not available to the camera at the moment
+     */
+    public synchronized int getOccupancy() {
+        return getOccupancyLocked();
+    }
+
+    public synchronized int getPeakOccupancy() {
+        return mPeakOccupancy;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return number of frames replaced by newer ones before being processed
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * @return number of buffers received from the camera that did not belong
+     *         to the pool
+     */
+    public synchronized long getUnknownCount() {
+        return mUnknown;
+    }
+
+    /**
+     * @return number of frames given back to the camera unprocessed on
+     *         purpose
+     */
+    public synchronized long getSkippedCount() {
+        return mSkipped;
+    }
+
+    public synchronized long getLeakedCount() {
+        return mLeaked;
+    }
+
+    /**
+     * @return average time between a frame being filled by the camera and
+     *         being picked up by the frame processor
+     */
+    public synchronized float getAverageAcquireWaitMs() {
+        final long acquired = mFrames - mDropped;
+        return acquired <= 0
+                ? 0
+                : mAcquireWaitNs / (float) acquired / NS_PER_MS;
+    }
+
+    public synchronized float getMaxAcquireWaitMs() {
+        return mMaxAcquireWaitNs / (float) NS_PER_MS;
+    }
+
+    /**
+     * @return total time during which the camera had no buffer to fill, so
+     *         it had to drop the frames it captured
+     */
+    public synchronized long getStarvedMs() {
+        return mStarvedNs / NS_PER_MS;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Frame buffers: depth=" + mSlots.length +
+                ", peakOccupancy=" + mPeakOccupancy +
+                ", frames=" + mFrames +
+                ", dropped=" + mDropped +
+                ", skipped=" + mSkipped +
+                ", unknown=" + mUnknown +
+                ", leaked=" + mLeaked +
+                ", avgAcquireWaitMs=" + getAverageAcquireWaitMs() +
+                ", maxAcquireWaitMs=" + getMaxAcquireWaitMs() +
+                ", starvedMs=" + getStarvedMs();
+    }
+
+    private void recycle(final Slot slot) {
+        slot.mState = State.CAMERA;
+        if (mCamera == null) {
+            return;
+        }
+        if (mQueued++ == 0) {
+            mStarvedNs += System.nanoTime() - mStarvedSinceNs;
+        }
+        mCamera.addCallbackBuffer(slot.mBytes);
+    }
+
+    private int getOccupancyLocked() {
+        return mSlots.length - mQueued;
+    }
+
+    /**
+     * The pool is small, so a linear search by identity is cheaper than
+     * hashing the array.
+     */
+    private Slot find(final byte[] data) {
+        for (Slot slot : mSlots) {
+            if (slot.mBytes == data) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private void checkForLeaks(final long now) {
+        for (Slot slot : mSlots) {
+            if (slot.mState == State.IN_USE && !slot.mLeakReported &&
+                    now - slot.mAcquiredAtNs > LEAK_TIMEOUT_MS * NS_PER_MS) {
+                slot.mLeakReported = true;
+                mLeaked++;
+                Log.w(TAG, "Buffer " + slot.mIndex + " in use for over " +
+                        LEAK_TIMEOUT_MS + " ms, possibly leaked.");
+            }
+        }
+    }
+
+    public enum State {
+        CAMERA, PENDING, IN_USE
+    }
+
+    /**
+     * Single preview buffer of the pool.
+     */
+    public static class Slot {
+        private final int        mIndex;
+        private final byte[]     mBytes;
+        private final ByteBuffer mBuffer;
+        private       State      mState = State.CAMERA;
+        private       long       mFilledAtNs;
+        private       long       mAcquiredAtNs;
+        private       boolean    mLeakReported;
+        private       int        mLeases;
+
+        Slot(final int index, final int size) {
+            mIndex = index;
+            // Creating the byte array this way and wrapping it, as opposed
+            // to using .allocate(), guarantees that there will be an array
+            // to give back to the camera.
+            mBytes = new byte[size];
+            mBuffer = ByteBuffer.wrap(mBytes);
+            if (!mBuffer.hasArray() || (mBuffer.array() != mBytes)) {
+                throw new IllegalStateException(
+                        "Failed to create valid buffer for camera source.");
+            }
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public byte[] getBytes() {
+            return mBytes;
+        }
+
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        /**
+         * @return time at which the camera delivered the frame, in
+         *         {@link System#nanoTime()} units
+         */
+        public long getTimestampNs() {
+            return mFilledAtNs;
+        }
+    }
+}
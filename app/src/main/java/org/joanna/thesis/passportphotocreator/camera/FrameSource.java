@@ -0,0 +1,122 @@
+package org.joanna.thesis.passportphotocreator.camera;
+
+import android.Manifest;
+import android.graphics.RectF;
+import android.util.Size;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+
+import androidx.annotation.RequiresPermission;
+
+import org.joanna.thesis.passportphotocreator.processing.LatencyStats;
+import org.joanna.thesis.passportphotocreator.processing.face.FaceTemplate;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+
+/**
+ * Source of the camera frames: shows the preview, passes the frames to the
+ * face detector and the verifiers and takes pictures. Implemented on top of
+ * the camera1 API by {@link CameraSource} and on top of the camera2 API by
+ * {@link Camera2Source}; both are created with {@link CameraSource.Builder}.
+ */
+public interface FrameSource {
+
+    /**
+     * Opens the camera and starts sending preview frames to the underlying
+     * detector. The supplied surface holder is used for the preview so
+     * frames can be displayed to the user.
+     *
+     * @param surfaceHolder the surface holder to use for the preview frames
+     * @throws IOException if the camera could not be started
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    FrameSource start(SurfaceHolder surfaceHolder) throws IOException;
+
+    /**
+     * Closes the camera and stops sending frames to the underlying detector.
+     */
+    void stop();
+
+    /**
+     * Stops the camera and releases the resources of the camera and the
+     * underlying detector.
+     */
+    void release();
+
+    /**
+     * @return size of the preview frames, in the camera orientation
+     */
+    Size getPreviewSize();
+
+    /**
+     * Handles the pinch to zoom gesture.
+     *
+     * @return true if the event was consumed
+     */
+    boolean onTouch(MotionEvent event);
+
+    /**
+     * Initiates taking a picture, which happens asynchronously.
+     *
+     * @param shutter the callback for image capture moment, or null
+     * @param jpeg    the callback for JPEG image data, or null
+     */
+    void takePicture(ShutterCallback shutter, PictureCallback jpeg);
+
+    /**
+     * Takes the picture from the recent preview frames kept for zero shutter
+     * lag, see {@link ZslRingBuffer}. Returns immediately.
+     *
+     * @param faceCrop if not null, set to the region cut out, relative to the
+     *                 size of the upright frame
+     * @return RGBA picture of the face, in the final size, or null if zero
+     *         shutter lag is disabled or no kept frame is suitable
+     */
+    Mat takeZslPicture(RectF faceCrop);
+
+    /**
+     * @return face detected on the latest processed preview frame, or null if
+     *         there was not exactly one face fully within the frame
+     */
+    FaceTemplate getFaceTemplate();
+
+    /**
+     * @return time spent on the face detection of a single frame
+     */
+    LatencyStats getDetectionStats();
+
+    /**
+     * @return time from capturing a frame until the faces detected on it are
+     *         shown on the overlay
+     */
+    LatencyStats getFaceOverlayStats();
+
+    /**
+     * Callback interface used to signal the moment of actual image capture.
+     */
+    public interface ShutterCallback {
+        /**
+         * Called as near as possible to the moment when a photo is captured
+         * from the sensor. This
+         * is a good opportunity to play a shutter sound or give other
+         * feedback of camera operation.
+         * This may be some time after the photo was triggered, but some time
+         * before the actual data
+         * is available.
+         */
+        void onShutter();
+    }
+
+    /**
+     * Callback interface used to supply image data from a photo capture.
+     */
+    public interface PictureCallback {
+        /**
+         * Called when image data is available after a picture is taken.  The
+         * format of the data
+         * is a jpeg binary.
+         */
+        void onPictureTaken(byte[] data);
+    }
+}
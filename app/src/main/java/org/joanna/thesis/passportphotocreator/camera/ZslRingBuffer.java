@@ -0,0 +1,273 @@
+package org.joanna.thesis.passportphotocreator.camera;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+import android.util.Size;
+
+import com.google.mlkit.vision.face.Face;
+
+import org.joanna.thesis.passportphotocreator.processing.background.SpeculativeMask;
+import org.joanna.thesis.passportphotocreator.processing.face.FaceUtils;
+import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.imgproc.Imgproc;
+
+import static org.joanna.thesis.passportphotocreator.utils.PPCUtils.rotatedRectToSensorRect;
+
+/**
+ * Zero shutter lag: keeps copies of the last processed preview frames showing
+ * a single face, together with what was known about them when they were
+ * detected. On shutter the best of them is turned into the picture straight
+ * away, without a still capture and without JPEG encoding and decoding.
+ * <p/>
+ * The best frame is the sharpest one among those taken while all verifiers
+ * reported a correct photo and the face was positioned correctly. If there is
+ * no such frame, the sharpest one with a correct face position is taken,
+ * then the sharpest one at all. The sharpness is the variance of the
+ * Laplacian of the luminance within the face region, measured only on
+ * shutter. Frames older than {@link #MAX_AGE_NS} are never taken.
+ * <p/>
+ * A frame is copied only if it can become the picture, i.e. if no frame
+ * kept for less than {@link #MAX_AGE_NS} ranks higher.
+ * <p/>
+ * Frames are kept in the preview resolution, so the picture is at most as
+ * detailed as the preview. A frame on which the face region is narrower than
+ * the final picture would have to be upscaled, so it is not kept at all; the
+ * still capture is taken instead. With the common preview sizes this is the
+ * case unless the face fills most of the frame, hence the zero shutter lag is
+ * disabled by default, see {@link CameraSource.Builder#setZslDepth(int)}.
+ * <p/>
+ * The kept frames show the face of the current track only: the ring is to
+ * be cleared once the face is lost or another one takes its place.
+ */
+public class ZslRingBuffer {
+
+    public static final int MIN_DEPTH = 2;
+
+    /**
+     * Age of the oldest frame which may become the picture, the same as of
+     * the person mask used for it.
+     */
+    static final long MAX_AGE_NS = 1000 * 1000000L;
+
+    private static final String TAG = ZslRingBuffer.class.getSimpleName();
+
+    private final Entry[] mEntries;
+    private final int     mWidth;
+    private final int     mHeight;
+    private final int     mRotation;
+    private       int     mNext;
+
+    /**
+     * @param depth       number of frames kept
+     * @param previewSize size of the preview frames, in the camera orientation
+     */
+    public ZslRingBuffer(final int depth, final Size previewSize) {
+        this(depth, previewSize, 90);
+    }
+
+    /**
+     * @param depth       number of frames kept
+     * @param previewSize size of the preview frames, in the camera orientation
+     * @param rotation    clockwise rotation of the frames to the upright
+     *                    position, in degrees
+     */
+    public ZslRingBuffer(
+            final int depth, final Size previewSize, final int rotation) {
+        if (depth < MIN_DEPTH) {
+            throw new IllegalArgumentException("Invalid ZSL depth: " + depth);
+        }
+        mWidth = previewSize.getWidth();
+        mHeight = previewSize.getHeight();
+        mRotation = rotation;
+        mEntries = new Entry[depth];
+        final int frameSize = mWidth * mHeight * 3 / 2;
+        for (int i = 0; i < depth; i++) {
+            mEntries[i] = new Entry(new byte[frameSize]);
+        }
+    }
+
+    /**
+     * Copies the frame into the ring, replacing the oldest one, unless a
+     * recent frame ranks higher or the face on it is too small for the final
+     * picture.
+     *
+     * @param data        frame in the NV21 format
+     * @param timestampNs time at which the frame was captured
+     * @param face        the single face detected on the frame
+     * @param verified    whether all verifiers reported a correct photo at
+     *                    the time the frame was detected
+     */
+    public void offer(
+            final byte[] data, final long timestampNs, final Face face,
+            final boolean verified) {
+        offer(buffer -> System.arraycopy(data, 0, buffer, 0, buffer.length),
+                timestampNs, face, verified);
+    }
+
+    /**
+     * Same as {@link #offer(byte[], long, Face, boolean)}, for frames which
+     * are not stored as a single NV21 array.
+     *
+     * @param copier writes the frame into the buffer of the ring
+     */
+    public synchronized void offer(
+            final FrameCopier copier, final long timestampNs, final Face face,
+            final boolean verified) {
+        final Rect faceBox = FaceUtils.getFaceBoundingBox(face, null);
+        if (faceBox.width() < ImageUtils.FINAL_IMAGE_WIDTH_PX) {
+            return;
+        }
+        final boolean faceCorrect = FaceUtils.isFaceCorrect(face);
+        final int rank = Entry.getRank(verified, faceCorrect);
+        final long oldestNs = timestampNs - MAX_AGE_NS;
+        for (Entry kept : mEntries) {
+            if (kept.mFaceBox != null && kept.mTimestampNs >= oldestNs &&
+                    kept.getRank() > rank) {
+                // the frame cannot become the picture, skip copying it
+                return;
+            }
+        }
+        final Entry entry = mEntries[mNext];
+        copier.copyTo(entry.mData);
+        entry.mTimestampNs = timestampNs;
+        entry.mFaceBox = faceBox;
+        entry.mFaceCorrect = faceCorrect;
+        entry.mVerified = verified;
+        entry.mSharpness = -1;
+        mNext = (mNext + 1) % mEntries.length;
+    }
+
+    /**
+     * Makes the picture from the best of the kept frames.
+     *
+     * @param faceCrop if not null, set to the region cut out, relative to the
+     *                 size of the upright frame
+     * @return RGBA picture of the face, in the final size, or null if no
+     *         kept frame contains the whole face
+     */
+    public synchronized Mat takePicture(final RectF faceCrop) {
+        final Entry best = selectBest(System.nanoTime());
+        if (best == null) {
+            return null;
+        }
+        Log.d(TAG, "Picture taken from frame " +
+                (System.nanoTime() - best.mTimestampNs) / 1000000 +
+                " ms old, verified=" + best.mVerified +
+                ", sharpness=" + getSharpness(best));
+        final Mat face = ImageUtils.getMatFromYuvBytes(
+                best.mData, mWidth, mHeight, best.mFaceBox, mRotation);
+        if (face == null) {
+            return null;
+        }
+        final Mat picture = ImageUtils.resizeMatToFinalSize(face);
+        face.release();
+        if (faceCrop != null) {
+            final org.opencv.core.Size frameSize =
+                    ImageUtils.getRotatedSize(mWidth, mHeight, mRotation);
+            faceCrop.set(SpeculativeMask.relativeCrop(best.mFaceBox,
+                    (int) frameSize.width, (int) frameSize.height));
+        }
+        return picture;
+    }
+
+    /**
+     * Forgets all kept frames.
+     */
+    public synchronized void clear() {
+        for (Entry entry : mEntries) {
+            entry.mFaceBox = null;
+        }
+    }
+
+    /**
+     * @param nowNs time of the shutter
+     */
+    private Entry selectBest(final long nowNs) {
+        final org.opencv.core.Size frameSize =
+                ImageUtils.getRotatedSize(mWidth, mHeight, mRotation);
+        Entry best = null;
+        for (Entry entry : mEntries) {
+            if (entry.mFaceBox == null ||
+                    nowNs - entry.mTimestampNs > MAX_AGE_NS ||
+                    !ImageUtils.verifyBoundingBox(entry.mFaceBox, frameSize)) {
+                continue;
+            }
+            if (best == null || entry.getRank() > best.getRank() ||
+                    entry.getRank() == best.getRank() &&
+                            getSharpness(entry) > getSharpness(best)) {
+                best = entry;
+            }
+        }
+        return best;
+    }
+
+    private double getSharpness(final Entry entry) {
+        if (entry.mSharpness >= 0) {
+            return entry.mSharpness;
+        }
+        // only the rows of the face are put into the Mat
+        final Rect region = rotatedRectToSensorRect(
+                entry.mFaceBox, mWidth, mHeight, mRotation);
+        final Mat rows = new Mat(region.height(), mWidth, CvType.CV_8UC1);
+        rows.put(0, 0, entry.mData, region.top * mWidth,
+                region.height() * mWidth);
+        final Mat luminance = rows.submat(
+                0, region.height(), region.left, region.right);
+        final Mat laplacian = new Mat();
+        Imgproc.Laplacian(luminance, laplacian, CvType.CV_64F);
+        final MatOfDouble mean = new MatOfDouble();
+        final MatOfDouble stdDev = new MatOfDouble();
+        Core.meanStdDev(laplacian, mean, stdDev);
+        final double deviation = stdDev.toArray()[0];
+        entry.mSharpness = deviation * deviation;
+        rows.release();
+        luminance.release();
+        laplacian.release();
+        mean.release();
+        stdDev.release();
+        return entry.mSharpness;
+    }
+
+    /**
+     * Writes a frame into a buffer of the ring.
+     */
+    public interface FrameCopier {
+        /**
+         * @param buffer buffer of the size of an NV21 frame
+         */
+        void copyTo(byte[] buffer);
+    }
+
+    private static class Entry {
+        private final byte[]  mData;
+        private       long    mTimestampNs;
+        private       Rect    mFaceBox;
+        private       boolean mFaceCorrect;
+        private       boolean mVerified;
+        private       double  mSharpness = -1;
+
+        Entry(final byte[] data) {
+            mData = data;
+        }
+
+        /**
+         * @return 2 if the photo was correct, 1 if only the face position
+         *         was, 0 otherwise
+         */
+        int getRank() {
+            return getRank(mVerified, mFaceCorrect);
+        }
+
+        static int getRank(final boolean verified, final boolean faceCorrect) {
+            if (verified && faceCorrect) {
+                return 2;
+            }
+            return faceCorrect ? 1 : 0;
+        }
+    }
+}
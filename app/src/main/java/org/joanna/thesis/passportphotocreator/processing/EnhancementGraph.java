@@ -0,0 +1,227 @@
+package org.joanna.thesis.passportphotocreator.processing;
+
+import android.util.Log;
+
+import org.joanna.thesis.passportphotocreator.processing.background.SpeculativeMask;
+import org.joanna.thesis.passportphotocreator.processing.background.enhancement.BackgroundEnhancement;
+import org.joanna.thesis.passportphotocreator.processing.light.enhancement.ShadowRemover;
+import org.joanna.thesis.passportphotocreator.utils.DaemonThreadFactory;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the background enhancement and the shadow removal in parallel and
+ * merges their results, instead of running one on the result of the other.
+ * The background enhancement changes only the background and the shadow
+ * removal is concerned only with the person, so the person is taken from the
+ * deshadowed picture and the background from the enhanced one, using the
+ * person mask. The conversion to RGB is done once for both branches and the
+ * picture is segmented once for both the background verification and the
+ * enhancement, or not at all if the person mask of the preview frame can be
+ * used, see {@link SpeculativeMask}.
+ * <p/>
+ * Every branch decides on its own whether its enhancement is needed, so
+ * {@link #verify(Mat)} always asks for running {@link #enhance(Mat)}. The
+ * result of the branch finishing first is reported as a partly enhanced
+ * picture, see {@link Enhancer.PartialListener}.
+ */
+public class EnhancementGraph implements Enhancer {
+
+    private static final String TAG = EnhancementGraph.class.getSimpleName();
+
+    private static final int BRANCHES = 2;
+
+    private final BackgroundEnhancement mBackground;
+    private final ShadowRemover         mShadow;
+    private final ExecutorService       mExecutor;
+    private final LatencyStats          mBackgroundStats =
+            new LatencyStats("Background enhancement branch");
+    private final LatencyStats          mShadowStats     =
+            new LatencyStats("Shadow removal branch");
+
+    /**
+     * @param background background enhancement; owned by the graph from now on
+     * @param shadow     shadow removal; owned by the graph from now on
+     */
+    public EnhancementGraph(
+            final BackgroundEnhancement background,
+            final ShadowRemover shadow) {
+        mBackground = background;
+        mShadow = shadow;
+        mExecutor = Executors.newFixedThreadPool(
+                BRANCHES, new DaemonThreadFactory("EnhancementBranch"));
+    }
+
+    @Override
+    public boolean verify(final Mat src) {
+        return false;
+    }
+
+    @Override
+    public Mat enhance(final Mat src) {
+        return enhance(src, null);
+    }
+
+    @Override
+    public Mat enhance(final Mat src, final SpeculativeMask personMask) {
+        return enhance(src, personMask, null);
+    }
+
+    /**
+     * @param personMask person mask of the preview frame matching the
+     *                   picture, or null to segment the picture
+     * @param partial    receives, on a branch thread, the picture enhanced
+     *                   by the branch finishing first, in RGB; or null
+     * @return the enhanced picture, in RGB, or null if neither of the branches
+     *         needed to change it
+     */
+    @Override
+    public Mat enhance(
+            final Mat src, final SpeculativeMask personMask,
+            final PartialListener partial) {
+        final Mat rgb = new Mat();
+        if (src.channels() == 4) {
+            Imgproc.cvtColor(src, rgb, Imgproc.COLOR_RGBA2RGB);
+        } else {
+            src.copyTo(rgb);
+        }
+        final AtomicInteger running = new AtomicInteger(BRANCHES);
+        final Future<BackgroundLayer> background = mExecutor.submit(() -> {
+            final BackgroundLayer layer = runBackgroundBranch(rgb, personMask);
+            if (running.decrementAndGet() > 0 && layer != null &&
+                    partial != null) {
+                partial.onPartial(BackgroundEnhancement.replaceBackground(
+                        rgb, layer.mPersonMask, layer.mBackground));
+            }
+            return layer;
+        });
+        final Future<Mat> deshadowed = mExecutor.submit(() -> {
+            final Mat person = runShadowBranch(rgb);
+            if (running.decrementAndGet() > 0 && person != null &&
+                    partial != null) {
+                // the person gets released once merged with the background
+                partial.onPartial(person.clone());
+            }
+            return person;
+        });
+        final BackgroundLayer backgroundLayer;
+        final Mat person;
+        try {
+            backgroundLayer = background.get();
+            person = deshadowed.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(
+                    "Enhancement branch failed.", e.getCause());
+        } catch (InterruptedException e) {
+            // the branches may still be using the picture, leave it to them
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        final Mat enhanced;
+        if (backgroundLayer == null) {
+            enhanced = person;
+        } else {
+            enhanced = BackgroundEnhancement.replaceBackground(
+                    person == null ? rgb : person,
+                    backgroundLayer.mPersonMask,
+                    backgroundLayer.mBackground);
+            backgroundLayer.release();
+            if (person != null) {
+                person.release();
+            }
+        }
+        rgb.release();
+        return enhanced;
+    }
+
+    /**
+     * @return the person mask and the enhanced background or null if the
+     *         background is correct already
+     */
+    private BackgroundLayer runBackgroundBranch(
+            final Mat rgb, final SpeculativeMask speculativeMask) {
+        final long startNs = System.nanoTime();
+        try {
+            if (speculativeMask != null) {
+                // no segmentation, the preview frame was segmented already
+                if (speculativeMask.isBackgroundCorrect()) {
+                    return null;
+                }
+                final Mat personMask = speculativeMask.getMask(rgb.size());
+                return new BackgroundLayer(personMask,
+                        mBackground.getBlurredMaskedBackground(
+                                rgb, personMask));
+            }
+            final Mat personMask = mBackground.segment(rgb);
+            if (personMask == null) {
+                return null;
+            }
+            if (mBackground.verifySegmented()) {
+                personMask.release();
+                return null;
+            }
+            return new BackgroundLayer(personMask,
+                    mBackground.getBlurredMaskedBackground(rgb, personMask));
+        } finally {
+            mBackgroundStats.recordSince(startNs);
+        }
+    }
+
+    /**
+     * @return the deshadowed picture or null if the face is evenly lightened
+     *         already
+     */
+    private Mat runShadowBranch(final Mat rgb) {
+        final long startNs = System.nanoTime();
+        try {
+            return mShadow.verify(rgb) ? null : mShadow.enhance(rgb);
+        } finally {
+            mShadowStats.recordSince(startNs);
+        }
+    }
+
+    /**
+     * @return time spent by the background enhancement branch on a picture
+     */
+    public LatencyStats getBackgroundStats() {
+        return mBackgroundStats;
+    }
+
+    /**
+     * @return time spent by the shadow removal branch on a picture
+     */
+    public LatencyStats getShadowStats() {
+        return mShadowStats;
+    }
+
+    @Override
+    public void close() {
+        mExecutor.shutdown();
+        Log.i(TAG, mBackgroundStats.toString());
+        Log.i(TAG, mShadowStats.toString());
+        mBackground.close();
+        mShadow.close();
+    }
+
+    private static final class BackgroundLayer {
+        private final Mat mPersonMask;
+        private final Mat mBackground;
+
+        BackgroundLayer(final Mat personMask, final Mat background) {
+            mPersonMask = personMask;
+            mBackground = background;
+        }
+
+        void release() {
+            mPersonMask.release();
+            mBackground.release();
+        }
+    }
+}
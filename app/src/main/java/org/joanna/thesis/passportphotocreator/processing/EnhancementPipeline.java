@@ -0,0 +1,366 @@
+package org.joanna.thesis.passportphotocreator.processing;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.joanna.thesis.passportphotocreator.processing.background.SpeculativeMask;
+import org.joanna.thesis.passportphotocreator.utils.DaemonThreadFactory;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the enhancers on the picture taken away from the main thread, so that
+ * the picture can be shown at once and replaced with every enhanced version
+ * as soon as it is ready. Enhancers run one after another on a single thread,
+ * each on the result of the previous one; they are never run concurrently, so
+ * they do not need to be thread safe. An enhancer may also report partly
+ * enhanced pictures, see {@link Enhancer.PartialListener}, which are
+ * delivered as well. Starting a new enhancement cancels the previous one.
+ */
+public class EnhancementPipeline {
+
+    private static final String TAG =
+            EnhancementPipeline.class.getSimpleName();
+
+    /**
+     * Long enough for the slowest enhancer to finish its current picture.
+     */
+    private static final long TERMINATION_TIMEOUT_MS = 3000;
+
+    private final List<Enhancer>  mEnhancers;
+    private final ExecutorService mExecutor;
+    private final Handler         mMainHandler;
+    private final LatencyStats    mTotalStats =
+            new LatencyStats("Picture enhancement");
+    // Accessed on the main thread only
+    private       Job             mCurrentJob;
+
+    /**
+     * @param enhancers enhancers to be run, in the order of running; they stay
+     *                  owned by the caller and may be closed only after
+     *                  {@link #shutdown()}
+     */
+    public EnhancementPipeline(final List<Enhancer> enhancers) {
+        mEnhancers = new ArrayList<>(enhancers);
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mExecutor = Executors.newSingleThreadExecutor(
+                new DaemonThreadFactory("Enhancement"));
+    }
+
+    /**
+     * Same as {@link #enhance(Mat, SpeculativeMask, Listener)}, segmenting the
+     * picture if needed.
+     */
+    public Job enhance(final Mat picture, final Listener listener) {
+        return enhance(picture, null, listener);
+    }
+
+    /**
+     * Starts enhancing the picture, cancelling the enhancement in progress.
+     * Must be called on the main thread.
+     *
+     * @param picture    picture to be enhanced; it is not modified
+     * @param personMask person mask of the preview frame matching the
+     *                   picture, or null; released once the enhancers ran
+     * @param listener   receives on the main thread every enhanced version of
+     *                   the picture and finally the complete result, unless
+     *                   the job gets cancelled
+     * @return the job or null if the pipeline is already shut down
+     */
+    public Job enhance(
+            final Mat picture, final SpeculativeMask personMask,
+            final Listener listener) {
+        cancel();
+        final Job job = new Job();
+        try {
+            job.mFuture = mExecutor.submit(() -> {
+                try {
+                    runEnhancers(job, picture, personMask, listener);
+                } finally {
+                    if (personMask != null) {
+                        personMask.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Enhancement pipeline already shut down.");
+            if (personMask != null) {
+                personMask.release();
+            }
+            return null;
+        }
+        mCurrentJob = job;
+        return job;
+    }
+
+    /**
+     * Cancels the enhancement in progress, if any. Its results will not be
+     * delivered anymore. Must be called on the main thread.
+     */
+    public void cancel() {
+        if (mCurrentJob != null) {
+            mCurrentJob.cancel();
+            mCurrentJob = null;
+        }
+    }
+
+    /**
+     * Cancels the enhancement and waits shortly for the running enhancer, so
+     * that the enhancers can be safely closed afterwards.
+     */
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(
+                    TERMINATION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Enhancement still running after shutdown.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, mTotalStats.toString());
+    }
+
+    /**
+     * @return time of enhancing a picture by all the enhancers, not counting
+     *         the cancelled ones
+     */
+    public LatencyStats getTotalStats() {
+        return mTotalStats;
+    }
+
+    private void runEnhancers(
+            final Job job, final Mat picture, final SpeculativeMask personMask,
+            final Listener listener) {
+        final long startNs = System.nanoTime();
+        final List<EnhancerTiming> timings = new ArrayList<>();
+        Mat current = picture;
+        for (int i = 0; i < mEnhancers.size(); i++) {
+            if (job.isCancelled()) {
+                return;
+            }
+            final Enhancer enhancer = mEnhancers.get(i);
+            final EnhancerTiming timing =
+                    new EnhancerTiming(enhancer.getClass().getSimpleName());
+            final int stage = i;
+            final Mat enhanced = runEnhancer(enhancer, current, personMask,
+                    timing, partial -> deliver(job, listener, new Result(
+                            partial, stage, mEnhancers.size(), timings)));
+            timings.add(timing);
+            if (enhanced == null) {
+                continue;
+            }
+            current = enhanced;
+            if (i < mEnhancers.size() - 1) {
+                deliver(job, listener, new Result(
+                        current, i + 1, mEnhancers.size(), timings));
+            }
+        }
+        if (job.isCancelled()) {
+            return;
+        }
+        mTotalStats.recordSince(startNs);
+        final Result result = new Result(
+                current, mEnhancers.size(), mEnhancers.size(), timings);
+        Log.d(TAG, result.toString());
+        deliver(job, listener, result);
+    }
+
+    /**
+     * @param timing  filled with the time spent by the enhancer
+     * @param partial receives the partly enhanced pictures
+     * @return the enhanced picture or null if the enhancer did not change it
+     */
+    private static Mat runEnhancer(
+            final Enhancer enhancer, final Mat picture,
+            final SpeculativeMask personMask, final EnhancerTiming timing,
+            final Enhancer.PartialListener partial) {
+        long startNs = System.nanoTime();
+        try {
+            final boolean correct = enhancer.verify(picture, personMask);
+            timing.mVerifyNs = System.nanoTime() - startNs;
+            if (correct) {
+                return null;
+            }
+            startNs = System.nanoTime();
+            final Mat enhanced =
+                    enhancer.enhance(picture, personMask, partial);
+            timing.mEnhanceNs = System.nanoTime() - startNs;
+            timing.mEnhanced = enhanced != null;
+            return enhanced;
+        } catch (RuntimeException e) {
+            // a failing enhancer must not lose the picture
+            Log.e(TAG, "Enhancer " + timing.mName + " failed.", e);
+            timing.mFailed = true;
+            return null;
+        }
+    }
+
+    private void deliver(
+            final Job job, final Listener listener, final Result result) {
+        mMainHandler.post(() -> {
+            if (!job.isCancelled()) {
+                listener.onResult(result);
+            }
+        });
+    }
+
+    /**
+     * Receives the results of the enhancement.
+     */
+    public interface Listener {
+        void onResult(Result result);
+    }
+
+    /**
+     * Enhancement of a single picture.
+     */
+    public static final class Job {
+        private volatile boolean   mCancelled;
+        private          Future<?> mFuture;
+
+        private Job() {
+        }
+
+        /**
+         * Stops the job before the next enhancer; the enhancer running
+         * already is not interrupted, but its result is dropped.
+         */
+        public void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    /**
+     * Picture enhanced by some or all of the enhancers, with the time spent by
+     * every enhancer run so far.
+     */
+    public static final class Result {
+        private final Mat                  mPicture;
+        private final int                  mStage;
+        private final int                  mStages;
+        private final List<EnhancerTiming> mTimings;
+
+        private Result(
+                final Mat picture, final int stage, final int stages,
+                final List<EnhancerTiming> timings) {
+            mPicture = picture;
+            mStage = stage;
+            mStages = stages;
+            mTimings = Collections.unmodifiableList(new ArrayList<>(timings));
+        }
+
+        /**
+         * @return the picture after the enhancers run so far; the received
+         *         picture if none of them changed it
+         */
+        public Mat getPicture() {
+            return mPicture;
+        }
+
+        /**
+         * @return number of enhancers run so far, not counting the one
+         *         which delivered a partly enhanced picture
+         */
+        public int getStage() {
+            return mStage;
+        }
+
+        /**
+         * @return true if all the enhancers have been run
+         */
+        public boolean isComplete() {
+            return mStage == mStages;
+        }
+
+        public List<EnhancerTiming> getTimings() {
+            return mTimings;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder(String.format(
+                    Locale.US, "Enhancement stage %d/%d:", mStage, mStages));
+            for (EnhancerTiming timing : mTimings) {
+                builder.append(' ').append(timing);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Time spent by a single enhancer on the picture.
+     */
+    public static final class EnhancerTiming {
+        private static final float NS_PER_MS = 1000000f;
+
+        private final String  mName;
+        private       long    mVerifyNs;
+        private       long    mEnhanceNs;
+        private       boolean mEnhanced;
+        private       boolean mFailed;
+
+        private EnhancerTiming(final String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return time of checking whether the picture needs the enhancement
+         */
+        public float getVerifyMs() {
+            return mVerifyNs / NS_PER_MS;
+        }
+
+        /**
+         * @return time of the enhancement, 0 if it was not needed
+         */
+        public float getEnhanceMs() {
+            return mEnhanceNs / NS_PER_MS;
+        }
+
+        /**
+         * @return true if the enhancer changed the picture
+         */
+        public boolean isEnhanced() {
+            return mEnhanced;
+        }
+
+        /**
+         * @return true if the enhancer threw an exception; the picture was
+         *         passed on unchanged
+         */
+        public boolean isFailed() {
+            return mFailed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s(verify=%.1f ms, enhance=%.1f ms%s)", mName,
+                    getVerifyMs(), getEnhanceMs(),
+                    mFailed ? ", failed" : mEnhanced ? "" : ", skipped");
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.joanna.thesis.passportphotocreator.processing;
 
+import org.joanna.thesis.passportphotocreator.processing.background.SpeculativeMask;
 import org.opencv.core.Mat;
 
 public interface Enhancer {
@@ -8,4 +9,45 @@ public interface Enhancer {
     boolean verify(final Mat src);
 
     void close();
+
+    /**
+     * Same as {@link #enhance(Mat)}, possibly using the person mask of the
+     * preview frame instead of segmenting the picture.
+     *
+     * @param personMask mask already checked to match the picture, or null
+     */
+    default Mat enhance(final Mat src, final SpeculativeMask personMask) {
+        return enhance(src);
+    }
+
+    /**
+     * Same as {@link #verify(Mat)}, possibly using the person mask of the
+     * preview frame instead of segmenting the picture.
+     *
+     * @param personMask mask already checked to match the picture, or null
+     */
+    default boolean verify(final Mat src, final SpeculativeMask personMask) {
+        return verify(src);
+    }
+
+    /**
+     * Same as {@link #enhance(Mat, SpeculativeMask)}, passing the pictures
+     * enhanced partly on the way to the listener, e.g. once one of several
+     * independent enhancements is done.
+     *
+     * @param partial receives the partly enhanced pictures, possibly on
+     *                another thread; they are owned by the listener
+     */
+    default Mat enhance(
+            final Mat src, final SpeculativeMask personMask,
+            final PartialListener partial) {
+        return enhance(src, personMask);
+    }
+
+    /**
+     * Receives the partly enhanced pictures.
+     */
+    interface PartialListener {
+        void onPartial(Mat partial);
+    }
 }
@@ -0,0 +1,292 @@
+package org.joanna.thesis.passportphotocreator.processing;
+
+import android.graphics.Rect;
+
+import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Single camera frame shared by all verifiers processing it. Conversions of
+ * the NV21 data are done lazily, on first request, and cached, so that each
+ * of them is performed at most once per frame, no matter how many verifiers
+ * need it.
+ * <p/>
+ * The context is reference counted: it is created with one reference, owned
+ * by its creator. Every further consumer calls {@link #retain()} and
+ * {@link #release()} when done. Cached Mats are released together with the
+ * last reference. Mats returned by the context are owned by it, so consumers
+ * must neither modify nor release them.
+ */
+public class FrameContext {
+
+    private final byte[]         mData;
+    private final int            mWidth;
+    private final int            mHeight;
+    private final long           mTimestampNs;
+    private final int            mRotation;
+    private final Runnable       mOnRelease;
+    private final Map<Rect, Mat> mFaceCrops = new HashMap<>();
+    private       int            mReferences = 1;
+    private       Mat            mYuv;
+    private       Mat            mYPlane;
+    private       Mat            mVuPlane;
+    private       Mat            mRgba;
+    private       Mat            mRotatedRgba;
+    private       Mat            mRotatedGray;
+
+    /**
+     * @param data   frame in NV21 format; it must not be modified as long as
+     *               the context is referenced
+     * @param width  width of the frame, as delivered by the camera
+     * @param height height of the frame, as delivered by the camera
+     */
+    public FrameContext(final byte[] data, final int width, final int height) {
+        this(data, width, height, System.nanoTime(), null);
+    }
+
+    /**
+     * @param data        frame in NV21 format; it must not be modified as
+     *                    long as the context is referenced
+     * @param width       width of the frame, as delivered by the camera
+     * @param height      height of the frame, as delivered by the camera
+     * @param timestampNs time at which the frame was captured, in
+     *                    {@link System#nanoTime()} units
+     * @param onRelease   called after the last reference is released, e.g.
+     *                    to give the buffer back to the camera
+     */
+    public FrameContext(
+            final byte[] data, final int width, final int height,
+            final long timestampNs, final Runnable onRelease) {
+        this(data, width, height, timestampNs, 90, onRelease);
+    }
+
+    /**
+     * @param data        frame in NV21 format; it must not be modified as
+     *                    long as the context is referenced
+     * @param width       width of the frame, as delivered by the camera
+     * @param height      height of the frame, as delivered by the camera
+     * @param timestampNs time at which the frame was captured, in
+     *                    {@link System#nanoTime()} units
+     * @param rotation    clockwise rotation of the frame to the upright
+     *                    position, in degrees
+     * @param onRelease   called after the last reference is released, e.g.
+     *                    to give the buffer back to the camera
+     */
+    public FrameContext(
+            final byte[] data, final int width, final int height,
+            final long timestampNs, final int rotation,
+            final Runnable onRelease) {
+        mData = data;
+        mWidth = width;
+        mHeight = height;
+        mTimestampNs = timestampNs;
+        mRotation = rotation;
+        mOnRelease = onRelease;
+    }
+
+    /**
+     * Wraps a frame given as two planes, e.g. the buffers of a camera2 image,
+     * without copying them.
+     *
+     * @param yPlane      luminance plane, CV_8UC1
+     * @param vuPlane     interleaved chroma plane in NV21 order, CV_8UC2 of
+     *                    half the size of the luminance plane
+     * @param timestampNs time at which the frame was captured, in
+     *                    {@link System#nanoTime()} units
+     * @param rotation    clockwise rotation of the frame to the upright
+     *                    position, in degrees
+     * @param onRelease   called after the last reference is released, e.g.
+     *                    to close the image
+     */
+    public FrameContext(
+            final Mat yPlane, final Mat vuPlane, final long timestampNs,
+            final int rotation, final Runnable onRelease) {
+        mData = null;
+        mWidth = yPlane.cols();
+        mHeight = yPlane.rows();
+        mYPlane = yPlane;
+        mVuPlane = vuPlane;
+        mTimestampNs = timestampNs;
+        mRotation = rotation;
+        mOnRelease = onRelease;
+    }
+
+    /**
+     * @return frame in NV21 format or null if the frame is given as planes
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    /**
+     * @return clockwise rotation of the frame to the upright position, in
+     *         degrees
+     */
+    public int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * @return luminance plane of the frame, in the camera orientation. It
+     *         points directly to the frame data, no copy is made.
+     */
+    public synchronized Mat getYPlane() {
+        checkNotReleased();
+        if (mYPlane == null) {
+            mYPlane = getYuv().submat(0, mHeight, 0, mWidth);
+        }
+        return mYPlane;
+    }
+
+    /**
+     * @return RGBA frame in the camera orientation
+     */
+    public synchronized Mat getRgba() {
+        checkNotReleased();
+        if (mRgba == null) {
+            mRgba = new Mat();
+            if (mVuPlane != null) {
+                Imgproc.cvtColorTwoPlane(mYPlane, mVuPlane, mRgba,
+                        Imgproc.COLOR_YUV2RGBA_NV21);
+            } else {
+                Imgproc.cvtColor(
+                        getYuv(), mRgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+            }
+        }
+        return mRgba;
+    }
+
+    /**
+     * @return RGBA frame rotated to the orientation of the preview; the same
+     *         as returned by {@link ImageUtils#getMatFromYuvBytes}
+     */
+    public synchronized Mat getRotatedRgba() {
+        if (mRotatedRgba == null) {
+            mRotatedRgba = ImageUtils.rotateMat(getRgba(), mRotation);
+        }
+        return mRotatedRgba;
+    }
+
+    /**
+     * @return grayscale frame rotated to the orientation of the preview
+     */
+    public synchronized Mat getRotatedGray() {
+        if (mRotatedGray == null) {
+            mRotatedGray = ImageUtils.rotateMat(getYPlane(), mRotation);
+        }
+        return mRotatedGray;
+    }
+
+    /**
+     * Crops the rotated RGBA frame. As long as nobody requested the whole
+     * rotated frame, only the cropped region is converted.
+     *
+     * @param bBox bounding box in the preview orientation
+     * @return cropped frame or null if the box does not fit within the frame
+     */
+    public synchronized Mat getFaceCrop(final Rect bBox) {
+        Mat crop = mFaceCrops.get(bBox);
+        if (crop != null) {
+            return crop;
+        }
+        if (mRotatedRgba == null) {
+            checkNotReleased();
+            crop = mData != null
+                    ? ImageUtils.getMatFromYuvBytes(
+                            mData, mWidth, mHeight, bBox, mRotation)
+                    : ImageUtils.getMatFromYuvPlanes(
+                            mYPlane, mVuPlane, bBox, mRotation);
+        } else if (ImageUtils.verifyBoundingBox(bBox, mRotatedRgba.size())) {
+            crop = mRotatedRgba.submat(
+                    bBox.top, bBox.bottom, bBox.left, bBox.right);
+        }
+        if (crop == null) {
+            return null;
+        }
+        mFaceCrops.put(new Rect(bBox), crop);
+        return crop;
+    }
+
+    /**
+     * Registers a new consumer of the frame.
+     *
+     * @return this context
+     */
+    public synchronized FrameContext retain() {
+        if (mReferences <= 0) {
+            throw new IllegalStateException("Frame context already released.");
+        }
+        mReferences++;
+        return this;
+    }
+
+    /**
+     * Unregisters a consumer of the frame. The last one releases all cached
+     * conversions.
+     */
+    public synchronized void release() {
+        if (mReferences <= 0) {
+            throw new IllegalStateException("Frame context already released.");
+        }
+        if (--mReferences > 0) {
+            return;
+        }
+        for (Mat crop : mFaceCrops.values()) {
+            crop.release();
+        }
+        mFaceCrops.clear();
+        releaseMat(mRotatedGray);
+        releaseMat(mRotatedRgba);
+        releaseMat(mRgba);
+        releaseMat(mYPlane);
+        releaseMat(mVuPlane);
+        releaseMat(mYuv);
+        mRotatedGray = null;
+        mRotatedRgba = null;
+        mRgba = null;
+        mYPlane = null;
+        mVuPlane = null;
+        mYuv = null;
+        if (mOnRelease != null) {
+            mOnRelease.run();
+        }
+    }
+
+    private Mat getYuv() {
+        checkNotReleased();
+        if (mYuv == null) {
+            mYuv = new Mat(mHeight + (mHeight / 2), mWidth, CvType.CV_8UC1);
+            mYuv.put(0, 0, mData);
+        }
+        return mYuv;
+    }
+
+    private void checkNotReleased() {
+        if (mReferences <= 0) {
+            throw new IllegalStateException("Frame context already released.");
+        }
+    }
+
+    private static void releaseMat(final Mat mat) {
+        if (mat != null) {
+            mat.release();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.joanna.thesis.passportphotocreator.processing;
+
+import java.util.Locale;
+
+/**
+ * Collects durations of a single processing step. Thread safe.
+ */
+public class LatencyStats {
+
+    private static final float NS_PER_MS = 1000000f;
+
+    private final String mName;
+    private       long   mCount;
+    private       long   mTotalNs;
+    private       long   mMaxNs;
+    private       long   mLastNs;
+
+    public LatencyStats(final String name) {
+        mName = name;
+    }
+
+    public synchronized void record(final long durationNs) {
+        mCount++;
+        mTotalNs += durationNs;
+        mMaxNs = Math.max(mMaxNs, durationNs);
+        mLastNs = durationNs;
+    }
+
+    /**
+     * Records the time elapsed since the received moment.
+     *
+     * @param startNs start of the step, in {@link System#nanoTime()} units
+     */
+    public void recordSince(final long startNs) {
+        record(System.nanoTime() - startNs);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized float getAverageMs() {
+        return mCount == 0 ? 0 : mTotalNs / (float) mCount / NS_PER_MS;
+    }
+
+    public synchronized float getMaxMs() {
+        return mMaxNs / NS_PER_MS;
+    }
+
+    public synchronized float getLastMs() {
+        return mLastNs / NS_PER_MS;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s: n=%d, avg=%.1f ms, max=%.1f ms",
+                mName, mCount, getAverageMs(), getMaxMs());
+    }
+}
@@ -0,0 +1,413 @@
+package org.joanna.thesis.passportphotocreator.processing;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.mlkit.vision.face.Face;
+
+import org.joanna.thesis.passportphotocreator.utils.DaemonThreadFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Second stage of the frame processing: runs verifiers away from the main and
+ * the detection thread. Every verifier has its own lane holding at most one
+ * waiting frame; a newer frame replaces the waiting one, as the older is
+ * already stale (latest frame wins). A verifier runs on at most one thread at
+ * a time. Only the resulting action lists are posted back to the main thread,
+ * to be displayed on the graphic overlay.
+ * <p/>
+ * Every job carries the sequence number of its frame, see
+ * {@link #onFacesDetected(List)}. Once the face disappears or another face,
+ * with another tracking id, takes its place, the jobs of the earlier frames
+ * are stale: they are cancelled before the verification or, if already
+ * running, their results are discarded and never reach the overlay. Every
+ * verifier is told about the change, see {@link Verifier#onTrackChanged()},
+ * before it verifies the first frame of the next track.
+ */
+public class VerificationExecutor {
+
+    private static final String TAG =
+            VerificationExecutor.class.getSimpleName();
+
+    private static final long TERMINATION_TIMEOUT_MS = 500;
+    /** Start of the track while no face is tracked; every job is stale. */
+    private static final long NO_TRACK               = Long.MAX_VALUE;
+
+    private final ThreadPoolExecutor              mExecutor;
+    private final Handler                         mMainHandler;
+    private final VerificationScheduler<Verifier> mScheduler;
+    private final Map<Verifier, Lane>             mLanes             =
+            new ConcurrentHashMap<>();
+    /** Sequence numbers of the frames verified last as correct. */
+    private final Map<Verifier, Long>             mLastPassed        =
+            new ConcurrentHashMap<>();
+    private final AtomicLong                      mSubmitted         =
+            new AtomicLong();
+    private final AtomicLong                      mCompleted         =
+            new AtomicLong();
+    private final AtomicLong                      mDropped           =
+            new AtomicLong();
+    private final AtomicLong                      mCancelled         =
+            new AtomicLong();
+    private final AtomicLong                      mDiscarded         =
+            new AtomicLong();
+    private final AtomicLong                      mSequence          =
+            new AtomicLong();
+    private final LatencyStats                    mVerificationStats =
+            new LatencyStats("Verification");
+    private final LatencyStats                    mEndToEndStats     =
+            new LatencyStats("Frame captured to verification displayed");
+    /** Sequence number of the first frame of the current face track. */
+    private volatile long                         mTrackStart        =
+            NO_TRACK;
+    /** Written by the detection thread only. */
+    private          Integer                      mTrackingId;
+
+    /**
+     * @param threads   number of verification threads
+     * @param scheduler scheduler to be informed about the cost and the
+     *                  results of the verifications, or null
+     */
+    public VerificationExecutor(
+            final int threads,
+            final VerificationScheduler<Verifier> scheduler) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid verification executor size: " + threads);
+        }
+        mScheduler = scheduler;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        // the queue holds at most one job per verifier, so it stays bounded
+        mExecutor = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new DaemonThreadFactory("Verification"));
+    }
+
+    /**
+     * Numbers the frame and follows the face track. To be called from the
+     * detection thread for every detected frame, in the order of the frames,
+     * before its verification is submitted.
+     *
+     * @param faces faces detected on the frame
+     * @return sequence number of the frame
+     */
+    public long onFacesDetected(final List<Face> faces) {
+        final long sequence = mSequence.incrementAndGet();
+        if (null == faces || faces.size() != 1) {
+            mTrackingId = null;
+            mTrackStart = NO_TRACK;
+            mLastPassed.clear();
+            return sequence;
+        }
+        // the tracking id is null if the detector does not track faces; a
+        // face seen on every frame is taken for the same one then
+        final Integer trackingId = faces.get(0).getTrackingId();
+        if (mTrackStart == NO_TRACK ||
+                !Objects.equals(trackingId, mTrackingId)) {
+            mTrackingId = trackingId;
+            mTrackStart = sequence;
+            mLastPassed.clear();
+        }
+        return sequence;
+    }
+
+    /**
+     * @return true if the frame is the first one of a face track, i.e. what
+     *         was seen on the earlier frames shows another face or none
+     */
+    public boolean isTrackStart(final long sequence) {
+        return sequence == mTrackStart;
+    }
+
+    /**
+     * @return true if the face of the frame is not the one tracked anymore
+     */
+    private boolean isStale(final long sequence) {
+        return sequence < mTrackStart;
+    }
+
+    /**
+     * Schedules the verification of the frame. If the verifier still has a
+     * frame waiting, that frame is dropped: only the received one gets
+     * verified. With a scheduler the verifier is not submitted again before
+     * its run completes, so the frames it misses meanwhile are counted by the
+     * scheduler as deferred instead.
+     *
+     * @param verifier verifier to be run
+     * @param frame    frame to be verified; it is retained until the
+     *                 verification finishes or the frame gets dropped
+     * @param face     face discovered on the frame
+     * @param sequence sequence number of the frame, as returned by
+     *                 {@link #onFacesDetected(List)}
+     * @return false if the executor is already shut down
+     */
+    public boolean submit(
+            final Verifier verifier, final FrameContext frame,
+            final Face face, final long sequence) {
+        if (mExecutor.isShutdown()) {
+            return false;
+        }
+        Lane lane = mLanes.get(verifier);
+        if (lane == null) {
+            mLanes.putIfAbsent(verifier, new Lane(verifier));
+            lane = mLanes.get(verifier);
+        }
+        mSubmitted.incrementAndGet();
+        lane.offer(frame.retain(), face, sequence);
+        return true;
+    }
+
+    /**
+     * Stops accepting new jobs and waits shortly for the running ones, so that
+     * verifiers can be safely closed afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+        for (Lane lane : mLanes.values()) {
+            lane.clear();
+        }
+        try {
+            if (!mExecutor.awaitTermination(
+                    TERMINATION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Verification still running after shutdown.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, toString());
+        Log.i(TAG, mVerificationStats.toString());
+        Log.i(TAG, mEndToEndStats.toString());
+        if (mScheduler != null) {
+            Log.i(TAG, mScheduler.toString());
+        }
+    }
+
+    /**
+     * @return true if the last completed run of every received verifier
+     *         reported a correct photo of the face tracked now
+     */
+    public boolean havePassed(final List<Verifier> verifiers) {
+        for (Verifier verifier : verifiers) {
+            if (verifier == null) {
+                continue;
+            }
+            // a result stored just before the track changed is stale too
+            final Long passed = mLastPassed.get(verifier);
+            if (passed == null || isStale(passed)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getSubmittedCount() {
+        return mSubmitted.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    /**
+     * @return number of waiting frames dropped, replaced by a newer one of
+     *         the same verifier before being verified
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return number of frames the verifiers missed, because their previous
+     *         run was still going; 0 without a scheduler
+     */
+    public long getDeferredCount() {
+        return mScheduler == null ? 0 : mScheduler.getDeferredCount();
+    }
+
+    /**
+     * @return number of jobs of superseded frames cancelled before the
+     *         verification
+     */
+    public long getCancelledCount() {
+        return mCancelled.get();
+    }
+
+    /**
+     * @return number of verified jobs of superseded frames whose results were
+     *         thrown away; counted as completed too
+     */
+    public long getDiscardedCount() {
+        return mDiscarded.get();
+    }
+
+    /**
+     * @return time spent by the verifiers on a single frame
+     */
+    public LatencyStats getVerificationStats() {
+        return mVerificationStats;
+    }
+
+    /**
+     * @return time from capturing a frame until the results of its
+     *         verification are shown on the overlay
+     */
+    public LatencyStats getEndToEndStats() {
+        return mEndToEndStats;
+    }
+
+    @Override
+    public String toString() {
+        return "Verification jobs: submitted=" + mSubmitted.get() +
+                ", completed=" + mCompleted.get() +
+                ", dropped=" + mDropped.get() +
+                ", deferred=" + getDeferredCount() +
+                ", cancelled=" + mCancelled.get() +
+                ", discarded=" + mDiscarded.get();
+    }
+
+    /**
+     * Frames waiting for a single verifier. Holds at most one frame.
+     */
+    private class Lane implements Runnable {
+        private final Verifier     mVerifier;
+        private       FrameContext mFrame;
+        private       Face         mFace;
+        private       long         mSequence;
+        private       boolean      mScheduled;
+        /** Track of the last verified frame; run by one thread at a time. */
+        private       long         mVerifiedTrackStart = NO_TRACK;
+
+        Lane(final Verifier verifier) {
+            mVerifier = verifier;
+        }
+
+        synchronized void offer(
+                final FrameContext frame, final Face face,
+                final long sequence) {
+            if (mFrame != null) {
+                mFrame.release();
+                mDropped.incrementAndGet();
+            }
+            mFrame = frame;
+            mFace = face;
+            mSequence = sequence;
+            if (!mScheduled) {
+                schedule();
+            }
+        }
+
+        synchronized void clear() {
+            if (mFrame != null) {
+                mFrame.release();
+                mFrame = null;
+                mFace = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            final FrameContext frame;
+            final Face face;
+            final long sequence;
+            synchronized (this) {
+                frame = mFrame;
+                face = mFace;
+                sequence = mSequence;
+                mFrame = null;
+                mFace = null;
+            }
+            if (frame != null && isStale(sequence)) {
+                cancel(frame);
+            } else if (frame != null) {
+                verify(frame, face, sequence);
+            }
+            synchronized (this) {
+                // rescheduling instead of looping lets other verifiers run
+                // in between
+                if (mFrame != null) {
+                    schedule();
+                } else {
+                    mScheduled = false;
+                }
+            }
+        }
+
+        private void schedule() {
+            try {
+                mExecutor.execute(this);
+                mScheduled = true;
+            } catch (RejectedExecutionException e) {
+                // shut down in the meantime
+                mScheduled = false;
+                clear();
+            }
+        }
+
+        private void cancel(final FrameContext frame) {
+            frame.release();
+            mCancelled.incrementAndGet();
+            if (mScheduler != null) {
+                mScheduler.onDropped(mVerifier);
+            }
+        }
+
+        private void verify(
+                final FrameContext frame, final Face face,
+                final long sequence) {
+            final long start = System.nanoTime();
+            List<Action> actions = null;
+            try {
+                final long trackStart = mTrackStart;
+                if (trackStart != mVerifiedTrackStart) {
+                    mVerifiedTrackStart = trackStart;
+                    mVerifier.onTrackChanged();
+                }
+                actions = mVerifier.getActions(frame, face);
+                mCompleted.incrementAndGet();
+                mVerificationStats.recordSince(start);
+                if (isStale(sequence)) {
+                    mDiscarded.incrementAndGet();
+                    return;
+                }
+                if (actions != null && actions.isEmpty()) {
+                    mLastPassed.put(mVerifier, sequence);
+                } else {
+                    mLastPassed.remove(mVerifier);
+                }
+                if (actions != null && !mExecutor.isShutdown()) {
+                    final List<Action> result = actions;
+                    final long capturedNs = frame.getTimestampNs();
+                    mMainHandler.post(() -> {
+                        // the face may have gone while the result was on
+                        // its way
+                        if (isStale(sequence)) {
+                            mDiscarded.incrementAndGet();
+                            return;
+                        }
+                        mVerifier.setActions(result);
+                        mEndToEndStats.recordSince(capturedNs);
+                    });
+                }
+            } catch (Throwable t) {
+                Log.e(TAG, "Exception thrown from verifier.", t);
+            } finally {
+                frame.release();
+                if (mScheduler != null) {
+                    mScheduler.onCompleted(
+                            mVerifier, System.nanoTime() - start, actions);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.joanna.thesis.passportphotocreator.processing;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Decides which verifiers shall run on the current frame. The scheduler
+ * measures the cost of every verifier (exponentially weighted moving average
+ * of its run time) and the volatility of its results (how often they change).
+ * A fixed CPU budget, in milliseconds per second, is split between the
+ * verifiers proportionally to their weight, which grows with volatility. The
+ * interval between two runs of a verifier is its cost divided by its share of
+ * the budget, so cheap or frequently changing checks run more often than
+ * expensive and stable ones.
+ *
+ * @param <T> type of the scheduled verifiers
+ */
+public class VerificationScheduler<T> {
+
+    public static final float DEFAULT_BUDGET_MS_PER_S = 200;
+
+    static final long  MIN_INTERVAL_NS   = 100 * 1000000L;
+    static final long  MAX_INTERVAL_NS   = 5000 * 1000000L;
+    static final float SMOOTHING         = 0.3f;
+    static final float VOLATILITY_WEIGHT = 3f;
+
+    private static final double NS_PER_S = 1e9;
+
+    private final Clock             mClock;
+    private final float             mBudgetMsPerS;
+    private final Map<T, Statistic> mStatistics = new LinkedHashMap<>();
+    private       long              mDeferred;
+
+    /**
+     * @param clock        source of the time
+     * @param budgetMsPerS milliseconds of verification time, which may be
+     *                     spent each second
+     */
+    public VerificationScheduler(final Clock clock, final float budgetMsPerS) {
+        if (clock == null) {
+            throw new IllegalArgumentException("No clock supplied.");
+        }
+        if (budgetMsPerS <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid verification budget: " + budgetMsPerS);
+        }
+        mClock = clock;
+        mBudgetMsPerS = budgetMsPerS;
+    }
+
+    /**
+     * Adds the verifier to the schedule. Its cost is unknown yet, so it is
+     * due immediately.
+     */
+    public synchronized void register(final T verifier) {
+        if (!mStatistics.containsKey(verifier)) {
+            mStatistics.put(verifier, new Statistic(mClock.nowNs()));
+        }
+    }
+
+    /**
+     * Returns the verifiers due to run and marks them as running. They are
+     * not returned again until {@link #onCompleted} or {@link #onDropped} is
+     * called for them; the frame such a still running verifier misses is
+     * counted as deferred.
+     *
+     * @return verifiers to be run on the current frame, possibly empty
+     */
+    public synchronized List<T> pollDue() {
+        final long now = mClock.nowNs();
+        final List<T> due = new ArrayList<>();
+        for (Map.Entry<T, Statistic> entry : mStatistics.entrySet()) {
+            final Statistic statistic = entry.getValue();
+            if (!statistic.mRunning && now >= statistic.mNextRunNs) {
+                statistic.mRunning = true;
+                due.add(entry.getKey());
+            } else if (statistic.mRunning) {
+                statistic.mDeferred++;
+                mDeferred++;
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Updates the statistics of the verifier and schedules its next run.
+     *
+     * @param verifier verifier which finished
+     * @param costNs   time it took to run it
+     * @param result   result of the verification; compared with the previous
+     *                 one to estimate the volatility
+     */
+    public synchronized void onCompleted(
+            final T verifier, final long costNs, final Object result) {
+        final Statistic statistic = mStatistics.get(verifier);
+        if (statistic == null) {
+            return;
+        }
+        if (statistic.mRuns == 0) {
+            statistic.mCostNs = costNs;
+        } else {
+            statistic.mCostNs += SMOOTHING * (costNs - statistic.mCostNs);
+            final float changed =
+                    Objects.equals(result, statistic.mLastResult) ? 0 : 1;
+            statistic.mVolatility +=
+                    SMOOTHING * (changed - statistic.mVolatility);
+        }
+        statistic.mRuns++;
+        statistic.mLastResult = result;
+        statistic.mRunning = false;
+        statistic.mNextRunNs = mClock.nowNs() + getIntervalNs(verifier);
+    }
+
+    /**
+     * Called when the verifier did not get to run, e.g. its frame was
+     * dropped. It becomes due again immediately.
+     */
+    public synchronized void onDropped(final T verifier) {
+        final Statistic statistic = mStatistics.get(verifier);
+        if (statistic != null) {
+            statistic.mRunning = false;
+            statistic.mNextRunNs = mClock.nowNs();
+        }
+    }
+
+    /**
+     * @return time between two runs of the verifier, according to its share
+     *         of the budget
+     */
+    public synchronized long getIntervalNs(final T verifier) {
+        final Statistic statistic = mStatistics.get(verifier);
+        if (statistic == null || statistic.mRuns == 0) {
+            return 0;
+        }
+        float totalWeight = 0;
+        for (Statistic other : mStatistics.values()) {
+            totalWeight += other.getWeight();
+        }
+        final double shareMsPerS =
+                mBudgetMsPerS * statistic.getWeight() / totalWeight;
+        final double costMs = statistic.mCostNs / 1e6;
+        final long interval = (long) (costMs / shareMsPerS * NS_PER_S);
+        return Math.max(MIN_INTERVAL_NS, Math.min(MAX_INTERVAL_NS, interval));
+    }
+
+    public synchronized float getCostMs(final T verifier) {
+        final Statistic statistic = mStatistics.get(verifier);
+        return statistic == null ? 0 : statistic.mCostNs / 1e6f;
+    }
+
+    /**
+     * @return 0 if the results of the verifier never change, up to 1 if they
+     *         change every time
+     */
+    public synchronized float getVolatility(final T verifier) {
+        final Statistic statistic = mStatistics.get(verifier);
+        return statistic == null ? 0 : statistic.mVolatility;
+    }
+
+    /**
+     * @return number of frames the verifiers missed because their previous
+     *         run was still going, i.e. the verification did not keep up
+     */
+    public synchronized long getDeferredCount() {
+        return mDeferred;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder =
+                new StringBuilder("Verification schedule:");
+        for (Map.Entry<T, Statistic> entry : mStatistics.entrySet()) {
+            final Statistic statistic = entry.getValue();
+            builder.append(' ')
+                   .append(entry.getKey().getClass().getSimpleName())
+                   .append("[runs=").append(statistic.mRuns)
+                   .append(", deferred=").append(statistic.mDeferred)
+                   .append(", costMs=").append(statistic.mCostNs / 1e6f)
+                   .append(", volatility=").append(statistic.mVolatility)
+                   .append(", intervalMs=")
+                   .append(getIntervalNs(entry.getKey()) / 1000000)
+                   .append(']');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Source of the time, replaceable in tests.
+     */
+    public interface Clock {
+        Clock SYSTEM = System::nanoTime;
+
+        /**
+         * @return current time in nanoseconds
+         */
+        long nowNs();
+    }
+
+    private static class Statistic {
+        private float   mCostNs;
+        private float   mVolatility;
+        private long    mRuns;
+        private long    mDeferred;
+        private long    mNextRunNs;
+        private boolean mRunning;
+        private Object  mLastResult;
+
+        Statistic(final long nextRunNs) {
+            mNextRunNs = nextRunNs;
+        }
+
+        float getWeight() {
+            return 1 + VOLATILITY_WEIGHT * mVolatility;
+        }
+    }
+}
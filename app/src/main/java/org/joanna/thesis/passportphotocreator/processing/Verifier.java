@@ -8,6 +8,11 @@ import com.google.mlkit.vision.face.Face;
 import org.joanna.thesis.passportphotocreator.camera.Graphic;
 import org.joanna.thesis.passportphotocreator.camera.GraphicOverlay;
 
+import java.util.List;
+
+import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_HEIGHT;
+import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_WIDTH;
+
 public abstract class Verifier {
 
     protected final GraphicOverlay<Graphic> mOverlay;
@@ -26,7 +31,85 @@ public abstract class Verifier {
      * @param data image data under verification
      * @param face face discovered on the image
      */
-    public abstract Boolean verify(final byte[] data, final Face face);
+    public Boolean verify(final byte[] data, final Face face) {
+        final FrameContext frame =
+                new FrameContext(data, PREVIEW_HEIGHT, PREVIEW_WIDTH);
+        try {
+            return verify(frame, face);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Performs the verification and sets the graphic overlay respectively.
+     *
+     * @param frame frame under verification, shared with other verifiers
+     * @param face  face discovered on the frame
+     */
+    public Boolean verify(final FrameContext frame, final Face face) {
+        final List<Action> actions = getActions(frame, face);
+        if (null == actions) {
+            return null;
+        }
+        setActions(actions);
+        return actions.size() == 0;
+    }
+
+    /**
+     * {@link #getActions(FrameContext, Face)}
+     *
+     * @param data image data under verification
+     * @param face face discovered on the image
+     */
+    public List<Action> getActions(final byte[] data, final Face face) {
+        final FrameContext frame =
+                new FrameContext(data, PREVIEW_HEIGHT, PREVIEW_WIDTH);
+        try {
+            return getActions(frame, face);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Performs the verification only, without touching the graphic overlay.
+     * As such it is safe to be called from a background thread.
+     *
+     * @param frame frame under verification, shared with other verifiers
+     * @param face  face discovered on the frame
+     * @return actions to be performed to get a correct photo, empty list if
+     *         the photo is correct or null if verification could not be
+     *         performed
+     */
+    public abstract List<Action> getActions(
+            final FrameContext frame, final Face face);
+
+    /**
+     * Displays received actions on the graphic overlay.
+     *
+     * @param actions result of {@link #getActions(FrameContext, Face)}
+     */
+    public void setActions(final List<Action> actions) {
+        final Graphic graphic = getGraphic();
+        mOverlay.add(graphic);
+        graphic.setBarActions(actions, mContext, graphic.getClass());
+    }
+
+    /**
+     * Called on the verification thread before the first frame of another
+     * face track, i.e. once the face has been lost or another face took its
+     * place, so that nothing kept from the earlier face is used on the next
+     * one. Does nothing by default.
+     */
+    public void onTrackChanged() {
+
+    }
+
+    /**
+     * @return graphic on which results of this verifier are displayed
+     */
+    protected abstract Graphic getGraphic();
 
     public void close() {
 
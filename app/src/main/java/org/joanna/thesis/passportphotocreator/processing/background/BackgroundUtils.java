@@ -38,41 +38,71 @@ public final class BackgroundUtils {
     public static Mat getBackground(
             final Mat src,
             final ImageSegmentor segmentor) {
-        int imgWidth = (int) Math.ceil(
-                ImageSegmentor.PROCESS_IMG_SIZE
-                        * ImageUtils.FINAL_IMAGE_W_TO_H_RATIO);
-        Mat image = ImageUtils.resizeMat(src, imgWidth);
-        image = ImageUtils.padMatToSquare(
-                image,
-                ImageSegmentor.PROCESS_IMG_SIZE);
-
-        segmentor.segmentImg(image);
-        image = segmentor.getBackground();
-        image = ImageUtils.unpadMatFromSquare(image, imgWidth);
-        return image;
+        segment(src, segmentor);
+        return getSegmentedBackground(segmentor);
     }
 
     public static Mat getPersonMask(
             final Mat src,
             final ImageSegmentor segmentor) {
-        int imgWidth = (int) Math.ceil(
-                ImageSegmentor.PROCESS_IMG_SIZE
-                        * ImageUtils.FINAL_IMAGE_W_TO_H_RATIO);
-        Mat modelImage = ImageUtils.resizeMat(src, imgWidth);
-        modelImage = ImageUtils.padMatToSquare(
-                modelImage,
-                ImageSegmentor.PROCESS_IMG_SIZE);
+        segment(src, segmentor);
+        return getSegmentedPersonMask(segmentor, src.width());
+    }
 
-        segmentor.segmentImg(modelImage);
-        modelImage.release();
-        Mat personMask = segmentor.getMaskedBackground();
+    /**
+     * Segments the image, so that both its background and the person mask can
+     * be taken from the segmentor afterwards, without segmenting it again.
+     *
+     * @param src       image to be segmented
+     * @param segmentor segmentor to be used
+     */
+    public static void segment(
+            final Mat src,
+            final ImageSegmentor segmentor) {
+        Mat image = ImageUtils.resizeMat(src, getSegmentedWidth());
+        image = ImageUtils.padMatToSquare(
+                image,
+                ImageSegmentor.PROCESS_IMG_SIZE);
+        segmentor.segmentImg(image);
+    }
 
-        personMask = ImageUtils.unpadMatFromSquare(personMask, imgWidth);
-        personMask = ImageUtils.resizeMat(personMask, src.width());
+    /**
+     * @param segmentor segmentor which segmented the image with
+     *                  {@link #segment(Mat, ImageSegmentor)}
+     * @return background of the image with the person painted black, in the
+     *         size processed by the segmentor
+     */
+    public static Mat getSegmentedBackground(final ImageSegmentor segmentor) {
+        Mat image = segmentor.getBackground();
+        image = ImageUtils.unpadMatFromSquare(image, getSegmentedWidth());
+        return image;
+    }
 
+    /**
+     * @param segmentor segmentor which segmented the image with
+     *                  {@link #segment(Mat, ImageSegmentor)}
+     * @param width     width of the segmented image
+     * @return mask hiding the background, in CV_32FC3 and in the size of the
+     *         segmented image
+     */
+    public static Mat getSegmentedPersonMask(
+            final ImageSegmentor segmentor, final int width) {
+        Mat personMask = segmentor.getMaskedBackground();
+        personMask = ImageUtils.unpadMatFromSquare(
+                personMask, getSegmentedWidth());
+        personMask = ImageUtils.resizeMat(personMask, width);
         return personMask;
     }
 
+    /**
+     * @return width of the image as segmented, without the padding
+     */
+    public static int getSegmentedWidth() {
+        return (int) Math.ceil(
+                ImageSegmentor.PROCESS_IMG_SIZE
+                        * ImageUtils.FINAL_IMAGE_W_TO_H_RATIO);
+    }
+
     /**
      * Attempts to detect background color and verify if it is uniform across
      * the whole background. To achieve this it picks a start point (one of
@@ -1,11 +1,9 @@
 package org.joanna.thesis.passportphotocreator.processing.background;
 
 import android.app.Activity;
-import android.graphics.Bitmap;
 import android.util.Log;
 
 import org.joanna.thesis.passportphotocreator.DetectorTensorflowLite;
-import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
 import org.opencv.core.Mat;
 
 import java.io.IOException;
@@ -20,7 +18,11 @@ public abstract class ImageSegmentor extends DetectorTensorflowLite {
     private static final String TAG = ImageSegmentor.class.getSimpleName();
 
     /** Mat holding the image for processing. */
-    protected Mat mImage;
+    protected Mat            mImage;
+    /** Moves the mask between the images, null if not enabled. */
+    private   MaskPropagator mPropagator;
+    /** Whether the mask of the image has been moved, not inferred. */
+    private   boolean        mPropagated;
 
     ImageSegmentor(final Activity activity) throws IOException {
         super(activity);
@@ -28,7 +30,8 @@ public abstract class ImageSegmentor extends DetectorTensorflowLite {
     }
 
     /**
-     * Segments received image.
+     * Segments received image. With the mask propagation enabled, the mask
+     * of the previous image is moved onto the image instead, if it can be.
      */
     public void segmentImg(Mat image) {
         if (mTflite == null) {
@@ -36,16 +39,65 @@ public abstract class ImageSegmentor extends DetectorTensorflowLite {
         }
         mImage = image;
 
-        Mat resizedMat128 = ImageUtils.resizeMat(image, getImageSizeX(),
-                getImageSizeY());
-        Bitmap tmp = ImageUtils.getBitmapFromMat(resizedMat128);
-        resizedMat128.release();
-        Bitmap bmp = tmp.copy(tmp.getConfig(), true);
-        ImageUtils.safelyRemoveBitmap(tmp);
-        convertBitmapToByteBuffer(bmp);
-        ImageUtils.safelyRemoveBitmap(bmp);
+        mPropagated = mPropagator != null && mPropagator.propagate(image);
+        if (mPropagated) {
+            return;
+        }
+        runInference(image);
+        if (mPropagator != null) {
+            mPropagator.reset(image, getInferredProbability());
+        }
+    }
+
+    /**
+     * Enables moving the mask of the previous image onto the next one along
+     * the optical flow, see {@link MaskPropagator}, for the segmentors of
+     * consecutive frames in the same framing.
+     */
+    public void enableMaskPropagation() {
+        if (mPropagator == null) {
+            mPropagator = new MaskPropagator(getImageSizeX(), getImageSizeY());
+        }
+    }
+
+    /**
+     * @return the mask propagation, with its statistics, or null if not
+     *         enabled
+     */
+    public MaskPropagator getMaskPropagator() {
+        return mPropagator;
+    }
 
-        runInference();
+    /**
+     * @return true if the mask of the last image has been moved from the
+     *         previous image instead of inferred
+     */
+    public boolean isMaskPropagated() {
+        return mPropagated;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (mPropagator != null) {
+            mPropagator.release();
+        }
+    }
+
+    /**
+     * @return probability of the background of every pixel of the last
+     *         image, as inferred by the model, in CV_32FC1 and in the model
+     *         input size; valid until the next inference
+     */
+    protected abstract Mat getInferredProbability();
+
+    /**
+     * @return probability of the background of every pixel of the last
+     *         image, inferred or moved from the previous image, in CV_32FC1
+     *         and in the model input size
+     */
+    protected Mat getBackgroundProbability() {
+        return mPropagated ? mPropagator.getMask() : getInferredProbability();
     }
 
     /**
@@ -2,15 +2,14 @@ package org.joanna.thesis.passportphotocreator.processing.background;
 
 import android.app.Activity;
 
+import org.joanna.thesis.passportphotocreator.OutputTensor;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 import java.io.IOException;
 
-import static org.opencv.core.CvType.CV_32F;
 import static org.opencv.core.CvType.CV_32FC3;
 import static org.opencv.core.CvType.CV_8UC3;
 
@@ -23,9 +22,12 @@ public class ImageSegmentorFloatMobileUNet extends ImageSegmentor {
     public static final  int   MODEL_INPUT_IMG_SIZE = 224;
     private static final float IMAGE_MEAN           = 127.5f;
     private static final float IMAGE_STD            = 127.5f;
+    private static final float PERSON_THRESHOLD     = 0.9f;
+    /** Images segmented at once; the output is as large as the input. */
+    private static final int   MAX_BATCH_SIZE       = 4;
 
-    /** An array to hold inference results. */
-    private float[][] segmap;
+    /** Buffer to hold inference results, the probability of background. */
+    private OutputTensor segmap;
 
     /**
      * Initializes an {@code ImageSegmentorFloatMobileUnet}.
@@ -34,7 +36,7 @@ public class ImageSegmentorFloatMobileUNet extends ImageSegmentor {
      */
     public ImageSegmentorFloatMobileUNet(Activity activity) throws IOException {
         super(activity);
-        segmap = new float[1][MODEL_INPUT_IMG_SIZE * MODEL_INPUT_IMG_SIZE];
+        segmap = createOutput(MODEL_INPUT_IMG_SIZE, MODEL_INPUT_IMG_SIZE, 1);
     }
 
     @Override
@@ -53,22 +55,28 @@ public class ImageSegmentorFloatMobileUNet extends ImageSegmentor {
     }
 
     @Override
-    protected int getNumBytesPerChannel() {
-        return Float.SIZE / Byte.SIZE;
+    protected float getInputMean() {
+        return IMAGE_MEAN;
     }
 
     @Override
-    protected void addPixelValue(int pixelValue) {
-        mImgData.putFloat(
-                (((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-        mImgData.putFloat(
-                (((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-        mImgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+    protected float getInputStd() {
+        return IMAGE_STD;
+    }
+
+    @Override
+    protected int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
     }
 
     @Override
     protected void runInference() {
-        mTflite.run(mImgData, segmap);
+        mTflite.run(mImgData, segmap.getBuffer());
+    }
+
+    @Override
+    protected Mat getInferredProbability() {
+        return segmap.getMat();
     }
 
     @Override
@@ -85,9 +93,7 @@ public class ImageSegmentorFloatMobileUNet extends ImageSegmentor {
         if (segmap == null) {
             return null;
         }
-        Mat mask = new Mat(MODEL_INPUT_IMG_SIZE, MODEL_INPUT_IMG_SIZE, CV_32F);
-        mask.put(0, 0, segmap[0]);
-        return convertMask(mask);
+        return convertMask(getBackgroundProbability());
     }
 
     @Override
@@ -95,14 +101,19 @@ public class ImageSegmentorFloatMobileUNet extends ImageSegmentor {
         if (segmap == null) {
             return null;
         }
-        Mat mask = new Mat(MODEL_INPUT_IMG_SIZE, MODEL_INPUT_IMG_SIZE, CV_32F);
-        mask.put(0, 0, segmap[0]);
-
-        Mat maskInverted = new Mat(MODEL_INPUT_IMG_SIZE, MODEL_INPUT_IMG_SIZE,
-                CV_32F, new Scalar(1.0));
-        Core.subtract(maskInverted, mask, maskInverted);
-        mask.release();
-        return convertMaskWithThreshold(maskInverted);
+        // 1 - background > threshold, without computing 1 - background
+        Mat maskInverted = new Mat();
+        Imgproc.threshold(getBackgroundProbability(), maskInverted,
+                1.0 - PERSON_THRESHOLD, 1.0, Imgproc.THRESH_BINARY_INV);
+        Mat mask = convertMask(maskInverted);
+        maskInverted.release();
+        return mask;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        segmap.release();
     }
 
     private Mat applyMask(final Mat src, final Mat mask) {
@@ -127,12 +138,4 @@ public class ImageSegmentorFloatMobileUNet extends ImageSegmentor {
         return dst;
     }
 
-    private Mat convertMaskWithThreshold(final Mat src) {
-        Mat dst = new Mat();
-        Imgproc.threshold(src, dst, 0.9, 1.0, Imgproc.THRESH_BINARY);
-        Imgproc.resize(dst, dst, new Size(PROCESS_IMG_SIZE, PROCESS_IMG_SIZE));
-        Imgproc.cvtColor(dst, dst, Imgproc.COLOR_GRAY2BGR);
-        return dst;
-    }
-
 }
@@ -0,0 +1,232 @@
+package org.joanna.thesis.passportphotocreator.processing.background;
+
+import org.joanna.thesis.passportphotocreator.processing.LatencyStats;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.DISOpticalFlow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.opencv.core.CvType.CV_32FC2;
+
+/**
+ * Moves the mask of the last segmented image onto the next image along the
+ * dense optical flow between the two, so that the segmentation model does
+ * not need to run on every preview frame; the person barely moves between
+ * the verifications. The flow is computed with DIS on the grayscale images
+ * in the size of the mask. The model has to run again if the motion is too
+ * large to be followed, if the moved mask gets uncertain along the person
+ * boundary, or if the mask has been moved too many times in a row or for too
+ * long since the model run; the verifications may be seconds apart.
+ * <p/>
+ * Not thread safe.
+ */
+public class MaskPropagator {
+
+    /**
+     * Highest mean flow, in pixels of the mask, the mask is moved along.
+     */
+    static final double MAX_MEAN_FLOW          = 3.0;
+    /**
+     * Highest growth of the share of uncertain mask pixels since the model
+     * run; interpolating the mask blurs the person boundary a bit every time.
+     */
+    static final double MAX_UNCERTAINTY_GROWTH = 0.02;
+    /**
+     * Highest number of times in a row a mask is moved before the model has
+     * to run again.
+     */
+    static final int    MAX_AGE                = 5;
+    /**
+     * Longest time since the model run a mask is moved for, in ns.
+     */
+    static final long   MAX_AGE_NS             = 2000 * 1000000L;
+
+    private static final double UNCERTAIN_LOW  = 0.1;
+    private static final double UNCERTAIN_HIGH = 0.9;
+
+    private final DISOpticalFlow mFlow       =
+            DISOpticalFlow.create(DISOpticalFlow.PRESET_ULTRAFAST);
+    private final Size           mSize;
+    /** Coordinates of every pixel of the mask, in CV_32FC2. */
+    private final Mat            mGrid;
+    private final Mat            mPreviousGray = new Mat();
+    private final Mat            mGray         = new Mat();
+    private final Mat            mFlowField    = new Mat();
+    private final Mat            mMap          = new Mat();
+    private final Mat            mMask         = new Mat();
+    private final Mat            mMoved        = new Mat();
+    private final Mat            mMagnitude    = new Mat();
+    private final Mat            mUncertain    = new Mat();
+    private final Mat            mNoMap        = new Mat();
+    private final List<Mat>      mFlowXY       = new ArrayList<>();
+    private final LatencyStats   mStats        =
+            new LatencyStats("Mask propagation");
+    private       double         mInferredUncertainty;
+    /** Times the mask has been moved since the model run, -1 if no mask. */
+    private       int            mAge          = -1;
+    /** Moment of the model run, see {@link System#nanoTime()}. */
+    private       long           mInferredNs;
+    private       long           mPropagatedCount;
+    private       long           mInferredCount;
+
+    /**
+     * @param width  width of the mask
+     * @param height height of the mask
+     */
+    public MaskPropagator(final int width, final int height) {
+        mSize = new Size(width, height);
+        final float[] grid = new float[width * height * 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                grid[(y * width + x) * 2] = x;
+                grid[(y * width + x) * 2 + 1] = y;
+            }
+        }
+        mGrid = new Mat(height, width, CV_32FC2);
+        mGrid.put(0, 0, grid);
+    }
+
+    /**
+     * Moves the mask onto the image, if it can be trusted there.
+     *
+     * @param image image following the one the mask was made for, in the
+     *              same framing, in RGB, RGBA or gray scale
+     * @return true if the mask has been moved, see {@link #getMask()};
+     *         false if the model has to segment the image
+     */
+    public boolean propagate(final Mat image) {
+        final long startNs = System.nanoTime();
+        if (mAge < 0 || mAge >= MAX_AGE ||
+                startNs - mInferredNs > MAX_AGE_NS) {
+            return false;
+        }
+        toGray(image, mGray);
+        // flow from the image back to the previous one, so that every pixel
+        // of the moved mask knows where to take its value from
+        mFlow.calc(mGray, mPreviousGray, mFlowField);
+        Core.split(mFlowField, mFlowXY);
+        Core.magnitude(mFlowXY.get(0), mFlowXY.get(1), mMagnitude);
+        if (Core.mean(mMagnitude).val[0] > MAX_MEAN_FLOW) {
+            return false;
+        }
+        Core.add(mGrid, mFlowField, mMap);
+        Imgproc.remap(mMask, mMoved, mMap, mNoMap, Imgproc.INTER_LINEAR,
+                Core.BORDER_REPLICATE);
+        if (getUncertainty(mMoved) - mInferredUncertainty >
+                MAX_UNCERTAINTY_GROWTH) {
+            return false;
+        }
+        mMoved.copyTo(mMask);
+        mGray.copyTo(mPreviousGray);
+        mAge++;
+        mPropagatedCount++;
+        mStats.recordSince(startNs);
+        return true;
+    }
+
+    /**
+     * Takes the mask the model has just made for the image, to be moved onto
+     * the following images.
+     *
+     * @param image image the model has segmented
+     * @param mask  probability mask of the model, CV_32FC1 in the size of
+     *              the propagator; copied
+     */
+    public void reset(final Mat image, final Mat mask) {
+        toGray(image, mPreviousGray);
+        mask.copyTo(mMask);
+        mInferredUncertainty = getUncertainty(mMask);
+        mAge = 0;
+        mInferredNs = System.nanoTime();
+        mInferredCount++;
+    }
+
+    /**
+     * Forgets the mask, e.g. when the framing changes or another person is
+     * seen; the model segments the next image.
+     */
+    public void clear() {
+        mAge = -1;
+    }
+
+    /**
+     * @return the mask, moved onto the last image; valid until the next call
+     */
+    public Mat getMask() {
+        return mMask;
+    }
+
+    /**
+     * @return share of the images whose mask has been moved instead of made
+     *         by the model
+     */
+    public float getPropagatedFraction() {
+        final long total = mPropagatedCount + mInferredCount;
+        return total == 0 ? 0 : mPropagatedCount / (float) total;
+    }
+
+    public long getPropagatedCount() {
+        return mPropagatedCount;
+    }
+
+    public long getInferredCount() {
+        return mInferredCount;
+    }
+
+    /**
+     * @return time spent moving the masks, only of the moves that succeeded
+     */
+    public LatencyStats getStats() {
+        return mStats;
+    }
+
+    public void release() {
+        mGrid.release();
+        mPreviousGray.release();
+        mGray.release();
+        mFlowField.release();
+        mMap.release();
+        mMask.release();
+        mMoved.release();
+        mMagnitude.release();
+        mUncertain.release();
+        mNoMap.release();
+        for (Mat mat : mFlowXY) {
+            mat.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "Mask propagation: propagated %d, inferred %d (%.0f%% " +
+                        "propagated); %s",
+                mPropagatedCount, mInferredCount,
+                getPropagatedFraction() * 100, mStats);
+    }
+
+    private void toGray(final Mat image, final Mat gray) {
+        Imgproc.resize(image, gray, mSize, 0, 0, Imgproc.INTER_AREA);
+        if (gray.channels() == 4) {
+            Imgproc.cvtColor(gray, gray, Imgproc.COLOR_RGBA2GRAY);
+        } else if (gray.channels() == 3) {
+            Imgproc.cvtColor(gray, gray, Imgproc.COLOR_RGB2GRAY);
+        }
+    }
+
+    /**
+     * @return share of the mask pixels neither surely person nor surely
+     *         background
+     */
+    private double getUncertainty(final Mat mask) {
+        Core.inRange(mask, new Scalar(UNCERTAIN_LOW),
+                new Scalar(UNCERTAIN_HIGH), mUncertain);
+        return Core.countNonZero(mUncertain) / (double) mask.total();
+    }
+}
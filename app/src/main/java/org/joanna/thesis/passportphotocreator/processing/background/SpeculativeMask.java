@@ -0,0 +1,125 @@
+package org.joanna.thesis.passportphotocreator.processing.background;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Person mask found by the background verification on a preview frame, kept
+ * when the shutter is pressed, so that the picture does not need to be
+ * segmented again. The mask is given for the face crop of the preview frame;
+ * it is used for the picture only if the face crop of the picture lies at
+ * about the same place of the camera view, see {@link #matches}.
+ * <p/>
+ * Immutable; the mask is owned by this object, so that it can be handed over
+ * between threads safely, until {@link #release()} is called by its last
+ * user: the enhancement pipeline, or whoever does not pass it on.
+ */
+public final class SpeculativeMask {
+
+    /**
+     * Highest shift of the crop edges between the preview frame and the
+     * picture, relative to the size of the crop.
+     */
+    static final float MAX_DIVERGENCE = 0.05f;
+    /**
+     * The person moves; older masks are not used.
+     */
+    static final long  MAX_AGE_NS     = 1000000000L;
+
+    private final Mat     mMask;
+    private final RectF   mFaceCrop;
+    private final boolean mBackgroundCorrect;
+    private final long    mTimestampNs;
+
+    /**
+     * @param mask              mask hiding the background of the face crop, in
+     *                          CV_32FC3; owned by this object from now on
+     * @param faceCrop          face crop of the frame, relative to the size of
+     *                          the upright frame, see {@link #relativeCrop}
+     * @param backgroundCorrect whether the background verification found the
+     *                          background correct
+     * @param timestampNs       time at which the frame was captured, in
+     *                          {@link System#nanoTime()} units
+     */
+    public SpeculativeMask(
+            final Mat mask, final RectF faceCrop,
+            final boolean backgroundCorrect, final long timestampNs) {
+        mMask = mask;
+        mFaceCrop = new RectF(faceCrop);
+        mBackgroundCorrect = backgroundCorrect;
+        mTimestampNs = timestampNs;
+    }
+
+    /**
+     * @param crop   face crop, in pixels of the upright frame
+     * @param width  width of the upright frame
+     * @param height height of the upright frame
+     * @return the crop relative to the size of the frame
+     */
+    public static RectF relativeCrop(
+            final Rect crop, final int width, final int height) {
+        return new RectF(
+                crop.left / (float) width, crop.top / (float) height,
+                crop.right / (float) width, crop.bottom / (float) height);
+    }
+
+    /**
+     * @param faceCrop    face crop of the picture, relative to the size of the
+     *                    upright picture
+     * @param timestampNs time at which the picture was taken
+     * @return true if the mask may be used for the picture
+     */
+    public boolean matches(final RectF faceCrop, final long timestampNs) {
+        return faceCrop != null &&
+                timestampNs - mTimestampNs <= MAX_AGE_NS &&
+                getDivergence(faceCrop) <= MAX_DIVERGENCE;
+    }
+
+    /**
+     * @return the highest shift of an edge of the received crop from the
+     *         crop of the mask, relative to the size of the latter
+     */
+    public float getDivergence(final RectF faceCrop) {
+        final float shiftX = Math.max(
+                Math.abs(faceCrop.left - mFaceCrop.left),
+                Math.abs(faceCrop.right - mFaceCrop.right));
+        final float shiftY = Math.max(
+                Math.abs(faceCrop.top - mFaceCrop.top),
+                Math.abs(faceCrop.bottom - mFaceCrop.bottom));
+        return Math.max(
+                shiftX / mFaceCrop.width(), shiftY / mFaceCrop.height());
+    }
+
+    /**
+     * @param size size of the picture
+     * @return the mask in the size of the picture; owned by the caller
+     */
+    public Mat getMask(final Size size) {
+        final Mat mask = new Mat();
+        Imgproc.resize(mMask, mask, size);
+        return mask;
+    }
+
+    /**
+     * @return whether the background verification found the background of
+     *         the frame correct
+     */
+    public boolean isBackgroundCorrect() {
+        return mBackgroundCorrect;
+    }
+
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    /**
+     * Frees the mask. The object must not be used afterwards.
+     */
+    public void release() {
+        mMask.release();
+    }
+}
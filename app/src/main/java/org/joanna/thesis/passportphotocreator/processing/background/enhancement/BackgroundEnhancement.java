@@ -7,6 +7,7 @@ import org.joanna.thesis.passportphotocreator.processing.Enhancer;
 import org.joanna.thesis.passportphotocreator.processing.background.BackgroundUtils;
 import org.joanna.thesis.passportphotocreator.processing.background.ImageSegmentor;
 import org.joanna.thesis.passportphotocreator.processing.background.ImageSegmentorFloatMobileUNet;
+import org.joanna.thesis.passportphotocreator.processing.background.SpeculativeMask;
 import org.joanna.thesis.passportphotocreator.processing.background.verification.BackgroundProperties;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
@@ -36,12 +37,27 @@ public class BackgroundEnhancement implements Enhancer {
     @Override
     public boolean verify(final Mat src) {
         Mat background = BackgroundUtils.getBackground(src, mSegmentor);
-        return BackgroundUtils.isUniform(
-                background, mBackgroundProperties, mSegmentor) < 3;
+        return isUniform(background);
+    }
+
+    /**
+     * Takes the verdict of the background verification of the preview frame
+     * if its person mask is given.
+     */
+    @Override
+    public boolean verify(final Mat src, final SpeculativeMask personMask) {
+        return personMask == null
+                ? verify(src)
+                : personMask.isBackgroundCorrect();
     }
 
     @Override
     public Mat enhance(final Mat src) {
+        return enhance(src, null);
+    }
+
+    @Override
+    public Mat enhance(final Mat src, final SpeculativeMask speculativeMask) {
 
         if (mSegmentor == null) {
             return null;
@@ -50,25 +66,74 @@ public class BackgroundEnhancement implements Enhancer {
         if (src.channels() == 4) {
             Imgproc.cvtColor(input, input, Imgproc.COLOR_RGBA2RGB);
         }
-        Mat personMask = BackgroundUtils.getPersonMask(input, mSegmentor);
-
-        Mat person = input.clone();
-        person.convertTo(person, CV_32FC3);
-        Core.multiply(personMask, person, person);
-
+        Mat personMask = speculativeMask == null
+                ? BackgroundUtils.getPersonMask(input, mSegmentor)
+                : speculativeMask.getMask(input.size());
         Mat background = getBlurredMaskedBackground(input, personMask);
-
-        Core.add(person, background, background);
+        Mat enhanced = replaceBackground(input, personMask, background);
 
         input.release();
         personMask.release();
-        person.release();
-        background.convertTo(background, CV_8UC3);
-        return background;
+        background.release();
+        return enhanced;
+    }
+
+    /**
+     * Segments the image once for both {@link #verifySegmented()} and
+     * {@link #getBlurredMaskedBackground(Mat, Mat)}, instead of segmenting it
+     * in {@link #verify(Mat)} and again in {@link #enhance(Mat)}.
+     *
+     * @param src image in RGB
+     * @return mask hiding the background, in CV_32FC3 and in the size of the
+     *         image, or null if there is no segmentor
+     */
+    public Mat segment(final Mat src) {
+        if (mSegmentor == null) {
+            return null;
+        }
+        BackgroundUtils.segment(src, mSegmentor);
+        return BackgroundUtils.getSegmentedPersonMask(mSegmentor, src.width());
+    }
+
+    /**
+     * Same as {@link #verify(Mat)}, for the image segmented last with
+     * {@link #segment(Mat)}.
+     */
+    public boolean verifySegmented() {
+        return isUniform(BackgroundUtils.getSegmentedBackground(mSegmentor));
+    }
+
+    /**
+     * Puts the person on the background.
+     *
+     * @param person     image of the person, in RGB
+     * @param personMask mask hiding the background, in CV_32FC3
+     * @param background background with the person masked out, in CV_32FC3
+     * @return image in CV_8UC3
+     */
+    public static Mat replaceBackground(
+            final Mat person, final Mat personMask, final Mat background) {
+        Mat enhanced = new Mat();
+        person.convertTo(enhanced, CV_32FC3);
+        Core.multiply(personMask, enhanced, enhanced);
+        Core.add(enhanced, background, enhanced);
+        enhanced.convertTo(enhanced, CV_8UC3);
+        return enhanced;
+    }
+
+    private boolean isUniform(final Mat background) {
+        return BackgroundUtils.isUniform(
+                background, mBackgroundProperties, mSegmentor) < 3;
     }
 
+    /**
+     * @param input      image in RGB
+     * @param personMask mask hiding the background, in CV_32FC3
+     * @return blurred and brightened background with the person masked out,
+     *         in CV_32FC3
+     */
     @NotNull
-    private Mat getBlurredMaskedBackground(
+    public Mat getBlurredMaskedBackground(
             final Mat input, final Mat personMask) {
 
         Mat background = input.clone();
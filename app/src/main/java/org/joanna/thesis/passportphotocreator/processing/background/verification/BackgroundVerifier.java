@@ -3,27 +3,29 @@ package org.joanna.thesis.passportphotocreator.processing.background.verificatio
 import android.app.Activity;
 import android.graphics.Bitmap;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
 
 import com.google.mlkit.vision.face.Face;
 
 import org.joanna.thesis.passportphotocreator.camera.Graphic;
 import org.joanna.thesis.passportphotocreator.camera.GraphicOverlay;
 import org.joanna.thesis.passportphotocreator.processing.Action;
+import org.joanna.thesis.passportphotocreator.processing.FrameContext;
 import org.joanna.thesis.passportphotocreator.processing.Verifier;
 import org.joanna.thesis.passportphotocreator.processing.background.BackgroundUtils;
 import org.joanna.thesis.passportphotocreator.processing.background.ImageSegmentor;
 import org.joanna.thesis.passportphotocreator.processing.background.ImageSegmentorFloatMobileUNet;
+import org.joanna.thesis.passportphotocreator.processing.background.SpeculativeMask;
 import org.joanna.thesis.passportphotocreator.processing.face.FaceUtils;
 import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
 import org.opencv.core.Mat;
+import org.opencv.core.Size;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_HEIGHT;
-import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_WIDTH;
-
 /**
  * Verifies if background is bright and uniform.
  */
@@ -31,9 +33,17 @@ public class BackgroundVerifier extends Verifier {
 
     private static final String TAG = BackgroundVerifier.class.getSimpleName();
 
-    public        ImageSegmentor       mSegmentor;
-    private final Graphic              mBackgroundGraphic;
-    private final BackgroundProperties mBackgroundProperties;
+    public           ImageSegmentor       mSegmentor;
+    private final    Graphic              mBackgroundGraphic;
+    private final    BackgroundProperties mBackgroundProperties;
+    /**
+     * Person mask of the last verified frame, reused for every frame; copied
+     * only on shutter, see {@link #getLastMask()}. Guarded by itself.
+     */
+    private final    Mat                  mLastMask = new Mat();
+    private          RectF                mLastMaskCrop;
+    private          boolean              mLastMaskUniform;
+    private          long                 mLastMaskTimestampNs;
 
 
     public BackgroundVerifier(
@@ -43,25 +53,44 @@ public class BackgroundVerifier extends Verifier {
         mBackgroundGraphic = new BackgroundGraphic(overlay);
         mBackgroundProperties = new BackgroundProperties();
         mSegmentor = new ImageSegmentorFloatMobileUNet(activity);
+        // the verified frames follow each other closely, their masks can
+        // mostly be moved from the previous frame
+        mSegmentor.enableMaskPropagation();
     }
 
     @Override
     public void close() {
         if (mSegmentor != null) {
+            Log.i(TAG, mSegmentor.getMaskPropagator().toString());
             mSegmentor.close();
         }
+        synchronized (mLastMask) {
+            mLastMaskCrop = null;
+            mLastMask.release();
+        }
+    }
+
+    /**
+     * Forgets the mask kept for the propagation, so that the mask of the
+     * earlier person is not moved onto the next one.
+     */
+    @Override
+    public void onTrackChanged() {
+        if (mSegmentor != null) {
+            mSegmentor.getMaskPropagator().clear();
+        }
     }
 
     @Override
-    public Boolean verify(final byte[] data, final Face face) {
+    public List<Action> getActions(
+            final FrameContext frame, final Face face) {
 
         if (mSegmentor == null) {
             return null;
         }
 
-        mOverlay.add(mBackgroundGraphic);
-
-        Mat mBackground = getBackground(data, face);
+        final Rect bBox = FaceUtils.getFaceBoundingBox(face, null);
+        Mat mBackground = getBackground(frame, bBox);
         if (null == mBackground) {
             return null;
         }
@@ -71,40 +100,77 @@ public class BackgroundVerifier extends Verifier {
 
         List<Action> positions = new ArrayList<>();
 
-        if (BackgroundUtils.isUniform(
-                mBackground, mBackgroundProperties, mSegmentor) >= 3) {
+        final boolean uniform = BackgroundUtils.isUniform(
+                mBackground, mBackgroundProperties, mSegmentor) < 3;
+        if (!uniform) {
             positions.add(BackgroundActions.NOT_UNIFORM);
         }
+        keepMask(frame, bBox, uniform);
         if (null != mBackgroundProperties.isBright() &&
                 !mBackgroundProperties.isBright()) {
             positions.add(BackgroundActions.TOO_DARK);
         }
 
-        mBackgroundGraphic.setBarActions(positions, mContext,
-                BackgroundGraphic.class);
         mBackground.release();
-        return positions.size() == 0;
+        return positions;
+    }
+
+    @Override
+    protected Graphic getGraphic() {
+        return mBackgroundGraphic;
+    }
+
+    /**
+     * @return copy of the person mask of the last verified frame, to be
+     *         reused for the picture taken right after it, or null if there
+     *         is none
+     */
+    public SpeculativeMask getLastMask() {
+        synchronized (mLastMask) {
+            if (mLastMaskCrop == null) {
+                return null;
+            }
+            return new SpeculativeMask(mLastMask.clone(), mLastMaskCrop,
+                    mLastMaskUniform, mLastMaskTimestampNs);
+        }
     }
 
     /**
      * Calls the tflite model for image segmentation to retrieve background
      * behind the person present on the image.
      *
-     * @param data image frame from the camera in yuv bytes format
-     * @param face face discovered on the image
+     * @param frame image frame from the camera
+     * @param bBox  face crop on the upright frame
      * @return If person is detected on the image returns Mat with the
      *         background, null otherwise.
      */
-    private Mat getBackground(final byte[] data, final Face face) {
-        Mat image = ImageUtils.getMatFromYuvBytes(
-                data,
-                PREVIEW_HEIGHT,
-                PREVIEW_WIDTH);
-        final Rect bBox = FaceUtils.getFaceBoundingBox(face, null);
-        image = ImageUtils.cropMatToBoundingBox(image, bBox);
+    private Mat getBackground(final FrameContext frame, final Rect bBox) {
+        final Mat image = frame.getFaceCrop(bBox);
         if (image == null) {
             return null;
         }
         return BackgroundUtils.getBackground(image, mSegmentor);
     }
+
+    /**
+     * Keeps the person mask the segmentor has just found, in the size it was
+     * segmented in, in place of the previous one.
+     */
+    private void keepMask(
+            final FrameContext frame, final Rect bBox, final boolean uniform) {
+        final Mat mask = BackgroundUtils.getSegmentedPersonMask(
+                mSegmentor, BackgroundUtils.getSegmentedWidth());
+        // frames are delivered in the camera orientation
+        final Size upright = ImageUtils.getRotatedSize(
+                frame.getWidth(), frame.getHeight(), frame.getRotation());
+        final RectF crop = SpeculativeMask.relativeCrop(
+                bBox, (int) upright.width, (int) upright.height);
+        synchronized (mLastMask) {
+            mask.copyTo(mLastMask);
+            mLastMaskCrop = crop;
+            mLastMaskUniform = uniform;
+            mLastMaskTimestampNs = frame.getTimestampNs();
+        }
+        mask.release();
+    }
 }
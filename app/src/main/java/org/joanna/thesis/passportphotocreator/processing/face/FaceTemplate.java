@@ -0,0 +1,196 @@
+package org.joanna.thesis.passportphotocreator.processing.face;
+
+import android.graphics.Rect;
+
+import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import static org.joanna.thesis.passportphotocreator.utils.PPCUtils.rotatedRectToSensorRect;
+
+/**
+ * Appearance and position of the face detected on a preview frame: a small
+ * grayscale patch of the face, in the upright orientation, together with its
+ * bounding box. Used to find the face on the picture taken afterwards without
+ * running the face detection on the picture, see {@link StillFaceLocator}.
+ * <p/>
+ * Immutable; the patch is owned by the template and never released, so that
+ * it can be handed over between threads safely.
+ */
+public final class FaceTemplate {
+
+    /**
+     * Width of the patch. Enough to match the face on the subsampled picture.
+     */
+    static final int PATCH_WIDTH = 64;
+
+    private final Mat  mPatch;
+    private final Rect mFaceBox;
+    private final int  mFrameWidth;
+    private final int  mFrameHeight;
+
+    private FaceTemplate(
+            final Mat patch, final Rect faceBox, final int frameWidth,
+            final int frameHeight) {
+        mPatch = patch;
+        mFaceBox = faceBox;
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+    }
+
+    /**
+     * Creates the template from an NV21 frame. Only the rows of the face are
+     * read.
+     *
+     * @param data    frame in the NV21 format, in the camera orientation
+     * @param width   width of the frame, in the camera orientation
+     * @param height  height of the frame, in the camera orientation
+     * @param faceBox bounding box of the face on the rotated frame
+     * @return template or null if the face is not entirely within the frame
+     */
+    public static FaceTemplate fromNv21(
+            final byte[] data, final int width, final int height,
+            final Rect faceBox) {
+        final Mat patch = new Mat();
+        if (!patchFromNv21(data, width, height, faceBox, patch)) {
+            patch.release();
+            return null;
+        }
+        return create(patch, faceBox, width, height, 90);
+    }
+
+    /**
+     * Creates the template from the luminance plane of a frame.
+     *
+     * @param luminance luminance plane, in the camera orientation
+     * @param faceBox   bounding box of the face on the rotated frame
+     * @param rotation  clockwise rotation of the frame to the upright
+     *                  position, in degrees
+     * @return template or null if the face is not entirely within the frame
+     */
+    public static FaceTemplate fromLuminance(
+            final Mat luminance, final Rect faceBox, final int rotation) {
+        final Mat patch = new Mat();
+        if (!patchFromLuminance(luminance, faceBox, rotation, patch)) {
+            patch.release();
+            return null;
+        }
+        return create(patch, faceBox, luminance.cols(), luminance.rows(),
+                rotation);
+    }
+
+    /**
+     * Same as {@link #fromNv21}, but writes the patch into the received Mat,
+     * which is reallocated only if the size of the patch changes.
+     *
+     * @return false if the face is not entirely within the frame
+     */
+    static boolean patchFromNv21(
+            final byte[] data, final int width, final int height,
+            final Rect faceBox, final Mat patch) {
+        if (!isWithinFrame(faceBox, width, height, 90)) {
+            return false;
+        }
+        final Rect region = rotatedRectToSensorRect(faceBox, height);
+        final Mat rows = new Mat(region.height(), width, CvType.CV_8UC1);
+        rows.put(0, 0, data, region.top * width, region.height() * width);
+        final Mat luminance =
+                rows.submat(0, region.height(), region.left, region.right);
+        resizeToPatch(luminance, faceBox, 90, patch);
+        luminance.release();
+        rows.release();
+        return true;
+    }
+
+    /**
+     * Same as {@link #fromLuminance}, but writes the patch into the received
+     * Mat, which is reallocated only if the size of the patch changes.
+     *
+     * @return false if the face is not entirely within the frame
+     */
+    static boolean patchFromLuminance(
+            final Mat luminance, final Rect faceBox, final int rotation,
+            final Mat patch) {
+        final int width = luminance.cols();
+        final int height = luminance.rows();
+        if (!isWithinFrame(faceBox, width, height, rotation)) {
+            return false;
+        }
+        final Rect region =
+                rotatedRectToSensorRect(faceBox, width, height, rotation);
+        final Mat face = luminance.submat(
+                region.top, region.bottom, region.left, region.right);
+        resizeToPatch(face, faceBox, rotation, patch);
+        face.release();
+        return true;
+    }
+
+    private static boolean isWithinFrame(
+            final Rect faceBox, final int width, final int height,
+            final int rotation) {
+        return faceBox.width() >= PATCH_WIDTH / 4 &&
+                faceBox.height() >= PATCH_WIDTH / 4 &&
+                ImageUtils.verifyBoundingBox(faceBox,
+                        ImageUtils.getRotatedSize(width, height, rotation));
+    }
+
+    /**
+     * @param face face region of the luminance plane, in the camera
+     *             orientation
+     */
+    private static void resizeToPatch(
+            final Mat face, final Rect faceBox, final int rotation,
+            final Mat patch) {
+        final Mat upright = ImageUtils.rotateMat(face, rotation);
+        final int patchHeight = Math.max(1, Math.round(
+                PATCH_WIDTH * faceBox.height() / (float) faceBox.width()));
+        Imgproc.resize(upright, patch, new Size(PATCH_WIDTH, patchHeight),
+                0, 0, Imgproc.INTER_AREA);
+        upright.release();
+    }
+
+    /**
+     * @param patch  patch of the face, owned by the template from now on
+     * @param width  width of the frame, in the camera orientation
+     * @param height height of the frame, in the camera orientation
+     */
+    static FaceTemplate create(
+            final Mat patch, final Rect faceBox, final int width,
+            final int height, final int rotation) {
+        final Size frameSize =
+                ImageUtils.getRotatedSize(width, height, rotation);
+        return new FaceTemplate(patch, new Rect(faceBox),
+                (int) frameSize.width, (int) frameSize.height);
+    }
+
+    /**
+     * @return grayscale patch of the face, in the upright orientation; owned
+     *         by the template, must not be modified nor released
+     */
+    public Mat getPatch() {
+        return mPatch;
+    }
+
+    /**
+     * @return bounding box of the face on the upright frame
+     */
+    public Rect getFaceBox() {
+        return new Rect(mFaceBox);
+    }
+
+    /**
+     * @return width of the upright frame
+     */
+    public int getFrameWidth() {
+        return mFrameWidth;
+    }
+
+    /**
+     * @return height of the upright frame
+     */
+    public int getFrameHeight() {
+        return mFrameHeight;
+    }
+}
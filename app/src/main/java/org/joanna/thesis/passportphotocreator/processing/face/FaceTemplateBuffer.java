@@ -0,0 +1,85 @@
+package org.joanna.thesis.passportphotocreator.processing.face;
+
+import android.graphics.Rect;
+
+import org.opencv.core.Mat;
+
+/**
+ * Face of the last preview frame showing a single face, kept so that the
+ * {@link FaceTemplate} can be made on shutter. The patch is written into a
+ * single reused Mat on every such frame; only the template taken on shutter
+ * gets its own copy of it.
+ * <p/>
+ * Thread safe: recorded on the detection thread, taken on the main thread.
+ */
+public final class FaceTemplateBuffer {
+
+    private final Mat  mPatch = new Mat();
+    private       Rect mFaceBox;
+    private       int  mWidth;
+    private       int  mHeight;
+    private       int  mRotation;
+
+    /**
+     * Keeps the face of an NV21 frame, see {@link FaceTemplate#fromNv21}.
+     */
+    public synchronized void recordNv21(
+            final byte[] data, final int width, final int height,
+            final Rect faceBox) {
+        if (FaceTemplate.patchFromNv21(data, width, height, faceBox, mPatch)) {
+            record(faceBox, width, height, 90);
+        } else {
+            mFaceBox = null;
+        }
+    }
+
+    /**
+     * Keeps the face of the luminance plane of a frame, see
+     * {@link FaceTemplate#fromLuminance}.
+     */
+    public synchronized void recordLuminance(
+            final Mat luminance, final Rect faceBox, final int rotation) {
+        if (FaceTemplate.patchFromLuminance(
+                luminance, faceBox, rotation, mPatch)) {
+            record(faceBox, luminance.cols(), luminance.rows(), rotation);
+        } else {
+            mFaceBox = null;
+        }
+    }
+
+    private void record(
+            final Rect faceBox, final int width, final int height,
+            final int rotation) {
+        mFaceBox = new Rect(faceBox);
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+    }
+
+    /**
+     * Forgets the face, e.g. when the frame shows no face or several.
+     */
+    public synchronized void clear() {
+        mFaceBox = null;
+    }
+
+    /**
+     * @return template of the last recorded face or null if there is none
+     */
+    public synchronized FaceTemplate getTemplate() {
+        if (mFaceBox == null) {
+            return null;
+        }
+        return FaceTemplate.create(
+                mPatch.clone(), mFaceBox, mWidth, mHeight, mRotation);
+    }
+
+    /**
+     * Forgets the face and frees the reused patch, e.g. when the camera
+     * stops. The patch is allocated again on the next recorded face.
+     */
+    public synchronized void release() {
+        mFaceBox = null;
+        mPatch.release();
+    }
+}
@@ -7,6 +7,8 @@ import com.google.mlkit.vision.face.Face;
 import org.joanna.thesis.passportphotocreator.camera.Graphic;
 import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
 
+import static org.joanna.thesis.passportphotocreator.processing.face.FaceTracker.EYES_OPEN_THRESHOLD;
+import static org.joanna.thesis.passportphotocreator.processing.face.FaceTracker.NEUTRAL_FACE_THRESHOLD;
 import static org.joanna.thesis.passportphotocreator.processing.face.FaceTracker.ROTATION_X_THRESHOLD;
 import static org.joanna.thesis.passportphotocreator.processing.face.FaceTracker.ROTATION_Y_THRESHOLD;
 import static org.joanna.thesis.passportphotocreator.processing.face.FaceTracker.ROTATION_Z_THRESHOLD;
@@ -19,22 +21,45 @@ public final class FaceUtils {
     private FaceUtils() {
     }
 
+    /**
+     * @param face    face detected by ML Kit on a preview frame
+     * @param graphic graphic to scale the region to the view of, or null to
+     *                keep it in pixels of the upright frame; the region is
+     *                then framed as the picture taken is, see
+     *                {@link #getFaceBoundingBox(Rect)}
+     */
     public static Rect getFaceBoundingBox(
             final Face face,
             final Graphic graphic) {
+        if (graphic == null) {
+            return getFaceBoundingBox(face.getBoundingBox());
+        }
         double centerX = face.getBoundingBox().centerX();
         double centerY = face.getBoundingBox().centerY();
         double widthWithOffset = face.getBoundingBox().width() *
                 BB_SCALING_MLKIT;
-        if (graphic != null) {
-            centerX = graphic.scaleX((float) centerX);
-            centerY = graphic.scaleX((float) centerY);
-            widthWithOffset = graphic.scaleX((float) widthWithOffset);
-        }
+        centerX = graphic.scaleX((float) centerX);
+        centerY = graphic.scaleX((float) centerY);
+        widthWithOffset = graphic.scaleX((float) widthWithOffset);
 
         return getFaceBoundingBox(centerX, centerY, widthWithOffset);
     }
 
+    /**
+     * Region cut out of the picture taken around the face located on it by
+     * {@link StillFaceLocator}. The located box is the ML Kit box of the
+     * preview, so it is scaled as ML Kit boxes are; those are tighter than
+     * the boxes of the face detected on the picture, see
+     * {@link #getFaceBoundingBox(com.google.android.gms.vision.face.Face)},
+     * and the two scalings frame the face alike, whichever way it was found.
+     *
+     * @param faceBox bounding box of the face on the picture
+     */
+    public static Rect getFaceBoundingBox(final Rect faceBox) {
+        return getFaceBoundingBox(faceBox.centerX(), faceBox.centerY(),
+                faceBox.width() * BB_SCALING_MLKIT);
+    }
+
     public static Rect getFaceBoundingBox(
             final com.google.android.gms.vision.face.Face face) {
         int centerX = (int) (face.getPosition().x + face.getWidth() / 2.);
@@ -74,4 +99,19 @@ public final class FaceUtils {
                 && !(face.getHeadEulerAngleZ() < -ROTATION_Z_THRESHOLD)
                 && !(face.getHeadEulerAngleZ() > ROTATION_Z_THRESHOLD);
     }
+
+    /**
+     * @return true if the face position is correct, the eyes are open and the
+     *         expression is neutral, i.e. {@link FaceTracker} has no actions
+     *         for the face
+     */
+    public static boolean isFaceCorrect(final Face face) {
+        return isFacePositionCorrect(face)
+                && !(null != face.getLeftEyeOpenProbability()
+                && face.getLeftEyeOpenProbability() < EYES_OPEN_THRESHOLD)
+                && !(null != face.getRightEyeOpenProbability()
+                && face.getRightEyeOpenProbability() < EYES_OPEN_THRESHOLD)
+                && !(null != face.getSmilingProbability()
+                && face.getSmilingProbability() > NEUTRAL_FACE_THRESHOLD);
+    }
 }
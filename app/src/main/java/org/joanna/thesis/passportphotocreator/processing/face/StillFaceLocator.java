@@ -0,0 +1,134 @@
+package org.joanna.thesis.passportphotocreator.processing.face;
+
+import android.graphics.Rect;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Locale;
+
+/**
+ * Finds the face on the picture taken by the camera using the face detected
+ * on the preview shortly before, instead of running the face detection on the
+ * picture. The face box of the preview is scaled to the picture and refined
+ * by matching the face patch of the preview within a window around it. If the
+ * match is not good enough, the caller is expected to fall back to the face
+ * detection; how often that happens is counted.
+ */
+public class StillFaceLocator {
+
+    /**
+     * Lowest normalized correlation coefficient of the match accepted.
+     */
+    static final double MIN_CONFIDENCE = 0.6;
+    /**
+     * Margin of the search window around the predicted face box, relative to
+     * the size of the box, on each side.
+     */
+    static final float  SEARCH_MARGIN  = 0.5f;
+
+    private int    mLocated;
+    private int    mFallbacks;
+    private double mLastConfidence;
+
+    /**
+     * @param picture  grayscale picture, in the upright orientation, usually
+     *                 subsampled
+     * @param template face detected on the preview, or null if there is none;
+     *                 counted as a fallback
+     * @return bounding box of the face on the picture or null if the face
+     *         could not be located confidently
+     */
+    public synchronized Rect locate(
+            final Mat picture, final FaceTemplate template) {
+        final Rect located = match(picture, template);
+        if (located == null) {
+            mFallbacks++;
+        } else {
+            mLocated++;
+        }
+        return located;
+    }
+
+    public synchronized int getLocatedCount() {
+        return mLocated;
+    }
+
+    /**
+     * @return number of pictures on which the face could not be located
+     */
+    public synchronized int getFallbackCount() {
+        return mFallbacks;
+    }
+
+    /**
+     * @return share of the pictures on which the face could not be located
+     */
+    public synchronized float getFallbackRate() {
+        final int total = mLocated + mFallbacks;
+        return total == 0 ? 0 : mFallbacks / (float) total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "Still face location: located=%d, fallbacks=%d (%.0f%%), " +
+                        "last confidence=%.2f",
+                mLocated, mFallbacks, 100 * getFallbackRate(),
+                mLastConfidence);
+    }
+
+    private Rect match(final Mat picture, final FaceTemplate template) {
+        mLastConfidence = 0;
+        if (template == null || picture.empty()) {
+            return null;
+        }
+        // the preview shows the same field of view as the picture
+        final float scale =
+                picture.cols() / (float) template.getFrameWidth();
+        final Rect previewBox = template.getFaceBox();
+        final int width = Math.round(previewBox.width() * scale);
+        final int height = Math.round(previewBox.height() * scale);
+        final int left = Math.round(previewBox.left * scale);
+        final int top = Math.round(previewBox.top * scale);
+        if (width < 2 || height < 2) {
+            return null;
+        }
+
+        final int marginX = Math.round(width * SEARCH_MARGIN);
+        final int marginY = Math.round(height * SEARCH_MARGIN);
+        final int windowLeft = Math.max(0, left - marginX);
+        final int windowTop = Math.max(0, top - marginY);
+        final int windowRight =
+                Math.min(picture.cols(), left + width + marginX);
+        final int windowBottom =
+                Math.min(picture.rows(), top + height + marginY);
+        if (windowRight - windowLeft < width ||
+                windowBottom - windowTop < height) {
+            return null;
+        }
+
+        final Mat patch = new Mat();
+        Imgproc.resize(template.getPatch(), patch, new Size(width, height),
+                0, 0, Imgproc.INTER_LINEAR);
+        final Mat window = picture.submat(
+                windowTop, windowBottom, windowLeft, windowRight);
+        final Mat result = new Mat();
+        Imgproc.matchTemplate(window, patch, result, Imgproc.TM_CCOEFF_NORMED);
+        final Core.MinMaxLocResult best = Core.minMaxLoc(result);
+        patch.release();
+        window.release();
+        result.release();
+
+        mLastConfidence = best.maxVal;
+        if (best.maxVal < MIN_CONFIDENCE) {
+            return null;
+        }
+        final int matchLeft = windowLeft + (int) best.maxLoc.x;
+        final int matchTop = windowTop + (int) best.maxLoc.y;
+        return new Rect(
+                matchLeft, matchTop, matchLeft + width, matchTop + height);
+    }
+}
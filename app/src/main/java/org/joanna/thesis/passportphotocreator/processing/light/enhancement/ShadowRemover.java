@@ -1,36 +1,126 @@
 package org.joanna.thesis.passportphotocreator.processing.light.enhancement;
 
 import android.app.Activity;
-import android.graphics.Bitmap;
 import android.util.Log;
 
 import org.joanna.thesis.passportphotocreator.DetectorTensorflowLite;
 import org.joanna.thesis.passportphotocreator.processing.Enhancer;
 import org.joanna.thesis.passportphotocreator.processing.light.ShadowUtils;
+import org.joanna.thesis.passportphotocreator.utils.DaemonThreadFactory;
 import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.joanna.thesis.passportphotocreator.processing.light.ShadowUtils.isEvenlyLightened;
+import static org.opencv.core.CvType.CV_32FC4;
+import static org.opencv.core.CvType.CV_8UC4;
 
+/**
+ * Removes the shadows from the face. By default the picture is shrunk to the
+ * model input and deshadowed in a single pass. In the tiled mode, see
+ * {@link #setTiling}, the picture is deshadowed in a higher working
+ * resolution, in overlapping tiles of the model input size, blended with
+ * weights fading out towards the tile edges, so that no seams show. The tiles
+ * may be run on several interpreters of the model in parallel.
+ */
 public abstract class ShadowRemover extends DetectorTensorflowLite
         implements Enhancer {
 
     private static final String TAG = ShadowRemover.class.getSimpleName();
+
+    /** Overlap of the neighbouring tiles, in pixels of the model input. */
+    static final int TILE_OVERLAP = 64;
+
     /** Mat holding the image for processing. */
-    protected            Mat    mImage;
+    protected     Mat                 mImage;
+    /** Removers deshadowing the tiles, this one first. */
+    private final List<ShadowRemover> mTileWorkers = new ArrayList<>();
+    /** Height of the picture deshadowed in tiles, 0 for a single pass. */
+    private       int                 mTiledHeight;
+    private       ExecutorService     mTileExecutor;
+    private       Mat                 mTileWeights;
 
     ShadowRemover(final Activity activity) throws IOException {
-        super(activity);
+        this(activity, 0);
+    }
+
+    /**
+     * @param instance index of the interpreter of the model to be used, 0
+     *                 for the shared one
+     */
+    ShadowRemover(final Activity activity, final int instance)
+            throws IOException {
+        super(activity, instance);
+        mTileWorkers.add(this);
         Log.d(TAG, "Created a Tensorflow Lite Shadow Remover.");
     }
 
+    /**
+     * Switches to the tiled mode, or back to the single pass.
+     *
+     * @param activity      the activity
+     * @param workingHeight height of the picture deshadowed in tiles, at
+     *                      least such that a tile fits its width; 0 for the
+     *                      single pass
+     * @param interpreters  number of interpreters of the model running the
+     *                      tiles in parallel
+     * @throws IOException if the model cannot be read for an interpreter;
+     *                     the single pass is kept then
+     */
+    public void setTiling(
+            final Activity activity, final int workingHeight,
+            final int interpreters) throws IOException {
+        closeTiling();
+        if (workingHeight <= 0) {
+            return;
+        }
+        final int tile = getImageSizeY();
+        mTiledHeight = Math.max(workingHeight, (int) Math.ceil(
+                tile / ImageUtils.FINAL_IMAGE_W_TO_H_RATIO));
+        mTileWeights = createTileWeights(tile, TILE_OVERLAP);
+        try {
+            for (int i = 1; i < interpreters; i++) {
+                mTileWorkers.add(createTileWorker(activity, i));
+            }
+        } catch (IOException e) {
+            closeTiling();
+            throw e;
+        }
+        if (interpreters > 1) {
+            mTileExecutor = Executors.newFixedThreadPool(interpreters,
+                    new DaemonThreadFactory("ShadowTile"));
+        }
+    }
+
+    /**
+     * @return height of the picture deshadowed in tiles, 0 in the single
+     *         pass mode
+     */
+    public int getTiledHeight() {
+        return mTiledHeight;
+    }
+
     @Override
     public Mat enhance(final Mat src) {
-        Mat input = prepareInput(src);
-        Mat deshadowed = getDeshadowedOverlay(input);
-        input.release();
+        Mat deshadowed;
+        if (mTiledHeight > 0) {
+            deshadowed = getDeshadowedOverlayTiled(src);
+        } else {
+            Mat input = prepareInput(src);
+            deshadowed = getDeshadowedOverlay(input);
+            input.release();
+        }
         deshadowed = ImageUtils.resizeMatToFinalSize(deshadowed);
         deshadowed = ShadowUtils.overlayDeshadowed(src, deshadowed);
         return deshadowed;
@@ -50,16 +140,7 @@ public abstract class ShadowRemover extends DetectorTensorflowLite
         }
         mImage = src;
 
-        Mat resizedMat = ImageUtils.resizeMat(src, getImageSizeX(),
-                getImageSizeY());
-        Bitmap tmp = ImageUtils.getBitmapFromMat(resizedMat);
-        resizedMat.release();
-        Bitmap bmp = tmp.copy(tmp.getConfig(), true);
-        ImageUtils.safelyRemoveBitmap(tmp);
-        convertBitmapToByteBuffer(bmp);
-        ImageUtils.safelyRemoveBitmap(bmp);
-
-        runInference();
+        runInference(src);
         Mat deshadowed = getDeshadowedOverlay();
         deshadowed = ImageUtils.unpadMatFromSquare(
                 deshadowed,
@@ -67,6 +148,155 @@ public abstract class ShadowRemover extends DetectorTensorflowLite
         return deshadowed;
     }
 
+    /**
+     * Deshadows the picture in the working resolution, tile by tile.
+     *
+     * @return the deshadowed picture, in RGBA
+     */
+    private Mat getDeshadowedOverlayTiled(final Mat src) {
+        final int tile = getImageSizeY();
+        final Mat image = ImageUtils.resizeMat(src,
+                (int) Math.ceil(mTiledHeight *
+                        ImageUtils.FINAL_IMAGE_W_TO_H_RATIO),
+                mTiledHeight);
+        final List<Rect> tiles = new ArrayList<>();
+        for (int y : getTileOrigins(image.height(), tile, TILE_OVERLAP)) {
+            for (int x : getTileOrigins(image.width(), tile, TILE_OVERLAP)) {
+                tiles.add(new Rect(x, y, tile, tile));
+            }
+        }
+        final List<Mat> overlays = deshadowTiles(image, tiles);
+
+        final Mat sum = Mat.zeros(image.size(), CV_32FC4);
+        final Mat weightSum = Mat.zeros(image.size(), CV_32FC4);
+        final Mat weighted = new Mat();
+        for (int i = 0; i < tiles.size(); i++) {
+            overlays.get(i).convertTo(weighted, CV_32FC4);
+            overlays.get(i).release();
+            Core.multiply(weighted, mTileWeights, weighted);
+            final Mat sumTile = sum.submat(tiles.get(i));
+            Core.add(sumTile, weighted, sumTile);
+            final Mat weightTile = weightSum.submat(tiles.get(i));
+            Core.add(weightTile, mTileWeights, weightTile);
+        }
+        Core.divide(sum, weightSum, sum);
+        final Mat deshadowed = new Mat();
+        sum.convertTo(deshadowed, CV_8UC4);
+        image.release();
+        sum.release();
+        weightSum.release();
+        weighted.release();
+        return deshadowed;
+    }
+
+    /**
+     * @return the deshadowed tiles, in RGBA, in the order of the tiles
+     */
+    private List<Mat> deshadowTiles(final Mat image, final List<Rect> tiles) {
+        final List<Mat> overlays = new ArrayList<>();
+        if (mTileExecutor == null) {
+            for (Rect tile : tiles) {
+                overlays.add(deshadowTile(image.submat(tile)));
+            }
+            return overlays;
+        }
+        final BlockingQueue<ShadowRemover> idleWorkers =
+                new ArrayBlockingQueue<>(mTileWorkers.size(), false,
+                        mTileWorkers);
+        final List<Future<Mat>> futures = new ArrayList<>();
+        for (Rect tile : tiles) {
+            futures.add(mTileExecutor.submit(() -> {
+                final ShadowRemover worker = idleWorkers.take();
+                try {
+                    return worker.deshadowTile(image.submat(tile));
+                } finally {
+                    idleWorkers.put(worker);
+                }
+            }));
+        }
+        try {
+            for (Future<Mat> future : futures) {
+                overlays.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(
+                    "Shadow removal of a tile failed.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+                    "Shadow removal interrupted.", e);
+        }
+        return overlays;
+    }
+
+    private Mat deshadowTile(final Mat tile) {
+        mImage = tile;
+        runInference(tile);
+        return getDeshadowedOverlay();
+    }
+
+    /**
+     * @param length  length of the picture along an axis
+     * @param tile    length of a tile
+     * @param overlap overlap of the neighbouring tiles
+     * @return starts of the tiles covering the picture along the axis, the
+     *         last one at its end
+     */
+    static List<Integer> getTileOrigins(
+            final int length, final int tile, final int overlap) {
+        final List<Integer> origins = new ArrayList<>();
+        final int stride = tile - overlap;
+        int origin = 0;
+        while (origin + tile < length) {
+            origins.add(origin);
+            origin += stride;
+        }
+        origins.add(Math.max(0, length - tile));
+        return origins;
+    }
+
+    /**
+     * @param tile    length of the side of a tile
+     * @param overlap overlap of the neighbouring tiles
+     * @return weights of the pixels of a tile, ramping up linearly across the
+     *         overlap from every edge, never 0; CV_32FC4
+     */
+    static Mat createTileWeights(final int tile, final int overlap) {
+        final float[] ramp = getFeatherRamp(tile, overlap);
+        final float[] weights = new float[tile * tile * 4];
+        for (int y = 0; y < tile; y++) {
+            for (int x = 0; x < tile; x++) {
+                final float weight = ramp[x] * ramp[y];
+                for (int c = 0; c < 4; c++) {
+                    weights[(y * tile + x) * 4 + c] = weight;
+                }
+            }
+        }
+        final Mat mat = new Mat(tile, tile, CV_32FC4);
+        mat.put(0, 0, weights);
+        return mat;
+    }
+
+    /**
+     * @return weight of every position along a side of a tile
+     */
+    static float[] getFeatherRamp(final int tile, final int overlap) {
+        final float[] ramp = new float[tile];
+        for (int i = 0; i < tile; i++) {
+            final int fromEdge = Math.min(i, tile - 1 - i);
+            ramp[i] = Math.min(1f, (fromEdge + 1) / (float) (overlap + 1));
+        }
+        return ramp;
+    }
+
+    /**
+     * @param instance index of the interpreter of the model to be used
+     * @return remover of the same model deshadowing the tiles on another
+     *         interpreter
+     */
+    protected abstract ShadowRemover createTileWorker(
+            Activity activity, int instance) throws IOException;
+
     protected abstract Mat getDeshadowedOverlay();
 
     protected abstract int getOutputImageWidth();
@@ -75,4 +305,27 @@ public abstract class ShadowRemover extends DetectorTensorflowLite
     public boolean verify(final Mat src) {
         return isEvenlyLightened(src);
     }
+
+    @Override
+    public void close() {
+        closeTiling();
+        super.close();
+    }
+
+    private void closeTiling() {
+        if (mTileExecutor != null) {
+            mTileExecutor.shutdown();
+            mTileExecutor = null;
+        }
+        for (ShadowRemover worker : mTileWorkers.subList(
+                1, mTileWorkers.size())) {
+            worker.close();
+        }
+        mTileWorkers.subList(1, mTileWorkers.size()).clear();
+        if (mTileWeights != null) {
+            mTileWeights.release();
+            mTileWeights = null;
+        }
+        mTiledHeight = 0;
+    }
 }
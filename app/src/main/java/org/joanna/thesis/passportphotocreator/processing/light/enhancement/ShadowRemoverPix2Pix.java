@@ -1,23 +1,25 @@
 package org.joanna.thesis.passportphotocreator.processing.light.enhancement;
 
 import android.app.Activity;
-import android.graphics.Bitmap;
-import android.graphics.Color;
 
+import org.joanna.thesis.passportphotocreator.OutputTensor;
 import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
-import org.opencv.android.Utils;
 import org.opencv.core.Mat;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 import java.io.IOException;
 
+import static org.opencv.core.CvType.CV_8UC3;
+
 public class ShadowRemoverPix2Pix extends ShadowRemover {
 
-    public static final int MODEL_INPUT_IMG_SIZE = 256;
+    public static final  int MODEL_INPUT_IMG_SIZE = 256;
+    /** Pictures deshadowed at once; the generator is heavy on memory. */
+    private static final int MAX_BATCH_SIZE       = 2;
 
-    /** An array to hold inference results. */
-    private float[][][][] modelOutput;
+    /** Buffer to hold inference results, an RGB image in [0, 1]. */
+    private OutputTensor modelOutput;
 
     /**
      * Initializes an {@code ShadowRemoverPix2Pix}.
@@ -25,9 +27,20 @@ public class ShadowRemoverPix2Pix extends ShadowRemover {
      * @param activity the activity
      */
     public ShadowRemoverPix2Pix(Activity activity) throws IOException {
-        super(activity);
-        modelOutput = new float
-                [1][MODEL_INPUT_IMG_SIZE][MODEL_INPUT_IMG_SIZE][COLOR_CHANNELS_NO];
+        this(activity, 0);
+    }
+
+    private ShadowRemoverPix2Pix(Activity activity, int instance)
+            throws IOException {
+        super(activity, instance);
+        modelOutput = createOutput(MODEL_INPUT_IMG_SIZE, MODEL_INPUT_IMG_SIZE,
+                COLOR_CHANNELS_NO);
+    }
+
+    @Override
+    protected ShadowRemover createTileWorker(
+            final Activity activity, final int instance) throws IOException {
+        return new ShadowRemoverPix2Pix(activity, instance);
     }
 
     @Override
@@ -46,43 +59,25 @@ public class ShadowRemoverPix2Pix extends ShadowRemover {
     }
 
     @Override
-    protected int getNumBytesPerChannel() {
-        return Float.SIZE / Byte.SIZE;
+    protected float getInputStd() {
+        return 255.0f;
     }
 
     @Override
-    protected void addPixelValue(int pixelValue) {
-        mImgData.putFloat(((pixelValue >> 16) & 0xFF) / 255.0f);
-        mImgData.putFloat(((pixelValue >> 8) & 0xFF) / 255.0f);
-        mImgData.putFloat((pixelValue & 0xFF) / 255.0f);
+    protected int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
     }
 
     @Override
     protected void runInference() {
-        mTflite.run(mImgData, modelOutput);
+        mTflite.run(mImgData, modelOutput.getBuffer());
     }
 
     @Override
     protected Mat getDeshadowedOverlay() {
-
-        final int alpha = 255;
-        Bitmap tmp = Bitmap.createBitmap(
-                MODEL_INPUT_IMG_SIZE, MODEL_INPUT_IMG_SIZE,
-                Bitmap.Config.ARGB_8888);
-
-        for (int x = 0; x < MODEL_INPUT_IMG_SIZE; x++) {
-            for (int y = 0; y < MODEL_INPUT_IMG_SIZE; y++) {
-                int red = Math.round(modelOutput[0][x][y][0] * 255);
-                int green = Math.round(modelOutput[0][x][y][1] * 255);
-                int blue = Math.round(modelOutput[0][x][y][2] * 255);
-
-                int color = Color.argb(alpha, red, green, blue);
-                tmp.setPixel(y, x, color);
-            }
-        }
         Mat deshadowed = new Mat();
-        Utils.bitmapToMat(tmp, deshadowed);
-        ImageUtils.safelyRemoveBitmap(tmp);
+        modelOutput.getMat().convertTo(deshadowed, CV_8UC3, 255);
+        Imgproc.cvtColor(deshadowed, deshadowed, Imgproc.COLOR_RGB2RGBA);
 
         // Model returns an image with slightly modified size: a little bit
         // smaller and moved. Correct it here. Hard-coded values, as in ideal
@@ -93,6 +88,12 @@ public class ShadowRemoverPix2Pix extends ShadowRemover {
         return deshadowed;
     }
 
+    @Override
+    public void close() {
+        super.close();
+        modelOutput.release();
+    }
+
     @Override
     protected int getOutputImageWidth() {
         return (int) Math.ceil(
@@ -9,16 +9,14 @@ import com.google.mlkit.vision.face.Face;
 import org.joanna.thesis.passportphotocreator.camera.Graphic;
 import org.joanna.thesis.passportphotocreator.camera.GraphicOverlay;
 import org.joanna.thesis.passportphotocreator.processing.Action;
+import org.joanna.thesis.passportphotocreator.processing.FrameContext;
 import org.joanna.thesis.passportphotocreator.processing.Verifier;
-import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
 import org.opencv.core.Mat;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_HEIGHT;
-import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_WIDTH;
 import static org.joanna.thesis.passportphotocreator.processing.light.ShadowUtils.isEvenlyLightened;
 
 /**
@@ -51,22 +49,17 @@ public class ShadowVerification extends Verifier {
     }
 
     @Override
-    public Boolean verify(final byte[] data, final Face face) {
+    public List<Action> getActions(
+            final FrameContext frame, final Face face) {
 
-        mOverlay.add(mShadowGraphic);
         List<Action> positions = new ArrayList<>();
 
-        Mat image = ImageUtils.getMatFromYuvBytes(
-                data,
-                PREVIEW_HEIGHT,
-                PREVIEW_WIDTH);
         Rect bbox = face.getBoundingBox();
         int left = bbox.left + bbox.width() / 8;
         int right = bbox.right - bbox.width() / 8;
         int top = bbox.top + bbox.height() / 4;
-        image = ImageUtils.cropMatToBoundingBox(
-                image,
-                new Rect(left, top, right, bbox.bottom));
+        final Mat image =
+                frame.getFaceCrop(new Rect(left, top, right, bbox.bottom));
 
         if (null == image) {
             return null;
@@ -89,11 +82,12 @@ public class ShadowVerification extends Verifier {
             }
         }
 
-        mShadowGraphic.setBarActions(positions, mContext,
-                ShadowGraphic.class);
+        return positions;
+    }
 
-        image.release();
-        return positions.size() == 0;
+    @Override
+    protected Graphic getGraphic() {
+        return mShadowGraphic;
     }
 
 }
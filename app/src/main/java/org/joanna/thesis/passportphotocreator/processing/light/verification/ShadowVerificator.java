@@ -1,14 +1,14 @@
 package org.joanna.thesis.passportphotocreator.processing.light.verification;
 
 import android.app.Activity;
-import android.graphics.Bitmap;
 import android.util.Log;
 
 import org.joanna.thesis.passportphotocreator.DetectorTensorflowLite;
-import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
 import org.opencv.core.Mat;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Classifies images with Tensorflow Lite.
@@ -34,16 +34,23 @@ public abstract class ShadowVerificator extends DetectorTensorflowLite {
         }
         mImage = image;
 
-        Mat resizedMat = ImageUtils.resizeMat(image, getImageSizeX(),
-                getImageSizeY());
-        Bitmap tmp = ImageUtils.getBitmapFromMat(resizedMat);
-        resizedMat.release();
-        Bitmap bmp = tmp.copy(tmp.getConfig(), true);
-        ImageUtils.safelyRemoveBitmap(tmp);
-        convertBitmapToByteBuffer(bmp);
-        ImageUtils.safelyRemoveBitmap(bmp);
+        runInference(image);
+    }
 
-        runInference();
+    /**
+     * Classifies the images, several at once if the model takes batches,
+     * e.g. the faces of a frame or the pictures reprocessed offline.
+     *
+     * @param images images to be classified
+     * @return classes of the images, in order
+     */
+    public List<EvenlyLightened> classify(final List<Mat> images) {
+        final List<EvenlyLightened> classes = new ArrayList<>();
+        runInference(images, index -> {
+            mImage = images.get(index);
+            classes.add(isEvenlyLightened());
+        });
+        return classes;
     }
 
     /**
@@ -2,6 +2,8 @@ package org.joanna.thesis.passportphotocreator.processing.light.verification;
 
 import android.app.Activity;
 
+import org.joanna.thesis.passportphotocreator.OutputTensor;
+
 import java.io.IOException;
 
 import static org.joanna.thesis.passportphotocreator.processing.light.verification.ShadowVerificator.EvenlyLightened.EVENLY;
@@ -15,8 +17,8 @@ public class ShadowVerificatorFloatMobileNetV2 extends ShadowVerificator {
 
     public static final int MODEL_INPUT_IMG_SIZE = 160;
 
-    /** An array to hold inference results. */
-    private float[][] segmap;
+    /** Buffer to hold inference results, a single score. */
+    private OutputTensor segmap;
 
     /**
      * Initializes an {@code ShadowVerificatorFloatMobileNetV2}.
@@ -26,7 +28,7 @@ public class ShadowVerificatorFloatMobileNetV2 extends ShadowVerificator {
     public ShadowVerificatorFloatMobileNetV2(Activity activity)
             throws IOException {
         super(activity);
-        segmap = new float[1][1];
+        segmap = createOutput(1, 1, 1);
     }
 
     @Override
@@ -44,21 +46,9 @@ public class ShadowVerificatorFloatMobileNetV2 extends ShadowVerificator {
         return MODEL_INPUT_IMG_SIZE;
     }
 
-    @Override
-    protected int getNumBytesPerChannel() {
-        return Float.SIZE / Byte.SIZE;
-    }
-
-    @Override
-    protected void addPixelValue(int pixelValue) {
-        mImgData.putFloat((pixelValue >> 16) & 0xFF);
-        mImgData.putFloat((pixelValue >> 8) & 0xFF);
-        mImgData.putFloat(pixelValue & 0xFF);
-    }
-
     @Override
     protected void runInference() {
-        mTflite.run(mImgData, segmap);
+        mTflite.run(mImgData, segmap.getBuffer());
     }
 
     @Override
@@ -66,13 +56,20 @@ public class ShadowVerificatorFloatMobileNetV2 extends ShadowVerificator {
         if (segmap == null) {
             return null;
         }
-        if (segmap[0][0] > 1){
+        final float score = segmap.getFloat(0);
+        if (score > 1){
             return EVENLY;
-        } else if (segmap[0][0] < -1){
+        } else if (score < -1){
             return SHADOW;
         } else {
             return NOT_SURE;
         }
     }
 
+    @Override
+    public void close() {
+        super.close();
+        segmap.release();
+    }
+
 }
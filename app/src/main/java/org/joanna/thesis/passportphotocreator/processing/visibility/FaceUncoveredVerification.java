@@ -8,9 +8,9 @@ import com.google.mlkit.vision.face.Face;
 import org.joanna.thesis.passportphotocreator.camera.Graphic;
 import org.joanna.thesis.passportphotocreator.camera.GraphicOverlay;
 import org.joanna.thesis.passportphotocreator.processing.Action;
+import org.joanna.thesis.passportphotocreator.processing.FrameContext;
 import org.joanna.thesis.passportphotocreator.processing.Verifier;
 import org.joanna.thesis.passportphotocreator.processing.face.FaceUtils;
-import org.joanna.thesis.passportphotocreator.utils.ImageUtils;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.imgproc.Imgproc;
@@ -18,8 +18,6 @@ import org.opencv.imgproc.Imgproc;
 import java.util.ArrayList;
 import java.util.List;
 
-import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_HEIGHT;
-import static org.joanna.thesis.passportphotocreator.PhotoMakerActivity.PREVIEW_WIDTH;
 import static org.opencv.imgproc.Imgproc.TM_CCORR_NORMED;
 
 /**
@@ -40,37 +38,37 @@ public class FaceUncoveredVerification extends Verifier {
     }
 
     @Override
-    public Boolean verify(final byte[] data, final Face face) {
+    public List<Action> getActions(
+            final FrameContext frame, final Face face) {
 
         List<Action> positions = new ArrayList<>();
         if (!FaceUtils.isFacePositionCorrect(face)) {
+            // symmetry cannot be judged on a turned head: not verifiable;
+            // no result is posted then, so the warning of the earlier frames
+            // is cleared here, the actions of the graphics are thread safe
             mVisibilityGraphic.setBarActions(positions, mContext,
                     VisibilityGraphic.class);
             return null;
         }
-        mOverlay.add(mVisibilityGraphic);
-        Mat image = ImageUtils.getMatFromYuvBytes(
-                data,
-                PREVIEW_HEIGHT,
-                PREVIEW_WIDTH);
-
         final Rect bBox = face.getBoundingBox();
         int left = bBox.left + bBox.width() / 16;
         int top = bBox.top + bBox.height() / 4;
         int right = bBox.right - bBox.width() / 16;
         int bottom = bBox.bottom + bBox.height() / 8;
-        image = ImageUtils.cropMatToBoundingBox(
-                image, new Rect(left, top, right, bottom));
+        final Mat image =
+                frame.getFaceCrop(new Rect(left, top, right, bottom));
         if (null == image) {
             return null;
         }
         if (!isSimilar(image)) {
             positions.add(VisibilityActions.HIDDEN);
         }
-        mVisibilityGraphic.setBarActions(positions, mContext,
-                VisibilityGraphic.class);
-        image.release();
-        return positions.size() == 0;
+        return positions;
+    }
+
+    @Override
+    protected Graphic getGraphic() {
+        return mVisibilityGraphic;
     }
 
     private boolean isSimilar(final Mat src) {
@@ -80,10 +78,11 @@ public class FaceUncoveredVerification extends Verifier {
                 0, src.height(),
                 0, oneThird);
 
-        Mat right = src.submat(
+        // the source is shared with other verifiers: flip into a new Mat
+        Mat right = new Mat();
+        Core.flip(src.submat(
                 0, src.height(),
-                src.width() - oneThird, src.width());
-        Core.flip(right, right, 1);
+                src.width() - oneThird, src.width()), right, 1);
 
         Mat comparisionResult = new Mat();
 
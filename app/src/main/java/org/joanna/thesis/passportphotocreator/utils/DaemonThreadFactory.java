@@ -0,0 +1,44 @@
+package org.joanna.thesis.passportphotocreator.utils;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates numbered daemon threads, which do not keep the process alive and,
+ * by default, run with the background priority, so that they do not compete
+ * with the main thread and the camera.
+ */
+public final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String        mName;
+    private final int           mPriority;
+    private final AtomicInteger mThreadNo = new AtomicInteger();
+
+    /**
+     * @param name prefix of the names of the threads
+     */
+    public DaemonThreadFactory(final String name) {
+        this(name, Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * @param name     prefix of the names of the threads
+     * @param priority Linux priority of the threads, as in {@link Process}
+     */
+    public DaemonThreadFactory(final String name, final int priority) {
+        mName = name;
+        mPriority = priority;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(() -> {
+            Process.setThreadPriority(mPriority);
+            runnable.run();
+        }, mName + "-" + mThreadNo.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
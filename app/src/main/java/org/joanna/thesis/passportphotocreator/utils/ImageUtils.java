@@ -7,7 +7,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
@@ -18,6 +20,9 @@ import android.util.SparseArray;
 import com.google.android.gms.vision.Frame;
 import com.google.android.gms.vision.face.FaceDetector;
 
+import org.joanna.thesis.passportphotocreator.processing.background.SpeculativeMask;
+import org.joanna.thesis.passportphotocreator.processing.face.FaceTemplate;
+import org.joanna.thesis.passportphotocreator.processing.face.StillFaceLocator;
 import org.opencv.android.Utils;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
@@ -36,8 +41,9 @@ import java.util.Objects;
 
 import static com.google.android.gms.vision.Frame.ROTATION_90;
 import static org.joanna.thesis.passportphotocreator.processing.face.FaceUtils.getFaceBoundingBox;
-import static org.joanna.thesis.passportphotocreator.utils.PPCUtils.AndroidRectToOpenCVRect;
 import static org.joanna.thesis.passportphotocreator.utils.PPCUtils.multiplyRect;
+import static org.joanna.thesis.passportphotocreator.utils.PPCUtils.rotatedRectToSensorRect;
+import static org.joanna.thesis.passportphotocreator.utils.PPCUtils.sensorRectToRotatedRect;
 import static org.opencv.core.Core.BORDER_CONSTANT;
 import static org.opencv.core.Core.BORDER_REPLICATE;
 
@@ -54,7 +60,7 @@ public final class ImageUtils {
      * Size in pixels of the resulting image. 827 corresponds to 3,5 cm wide
      * image with the quality of 600 ppi.
      */
-    private static final int    FINAL_IMAGE_WIDTH_PX = 827;
+    public static final  int    FINAL_IMAGE_WIDTH_PX = 827;
     private static final int    FINAL_IMAGE_HEIGHT_PX =
             (int) (FINAL_IMAGE_WIDTH_PX * FINAL_IMAGE_H_TO_W_RATIO);
     private static final String TAG = ImageUtils.class.getSimpleName();
@@ -93,6 +99,155 @@ public final class ImageUtils {
         return rotateMat(image);
     }
 
+    /**
+     * Converts to RGBA and rotates only the part of the NV21 frame, that is
+     * needed to get the received bounding box. The result is the same as
+     * cropping the output of {@link #getMatFromYuvBytes(byte[], int, int)},
+     * but the cost is proportional to the size of the box instead of the
+     * size of the frame.
+     *
+     * @param bytes  frame in NV21 format
+     * @param width  width of the frame, as delivered by the camera
+     * @param height height of the frame, as delivered by the camera
+     * @param bBox   bounding box on the rotated frame
+     * @return cropped and rotated RGBA image or null if the box does not fit
+     *         within the frame
+     */
+    public static Mat getMatFromYuvBytes(
+            final byte[] bytes, final int width, final int height,
+            final Rect bBox) {
+        return getMatFromYuvBytes(bytes, width, height, bBox, 90);
+    }
+
+    /**
+     * Same as {@link #getMatFromYuvBytes(byte[], int, int, Rect)}, for the
+     * frame rotated by any multiple of 90 degrees.
+     *
+     * @param rotation clockwise rotation of the frame to the upright
+     *                 position, in degrees
+     */
+    public static Mat getMatFromYuvBytes(
+            final byte[] bytes, final int width, final int height,
+            final Rect bBox, final int rotation) {
+        final Rect sensorRoi = getSensorRoi(bBox, width, height, rotation);
+        if (sensorRoi == null) {
+            return null;
+        }
+        final int left = sensorRoi.left;
+        final int top = sensorRoi.top;
+        final int roiWidth = sensorRoi.width();
+        final int roiHeight = sensorRoi.height();
+
+        byte[] roi = new byte[roiWidth * roiHeight * 3 / 2];
+        for (int row = 0; row < roiHeight; row++) {
+            System.arraycopy(bytes, (top + row) * width + left,
+                    roi, row * roiWidth, roiWidth);
+        }
+        final int frameVuOffset = width * height;
+        final int roiVuOffset = roiWidth * roiHeight;
+        for (int row = 0; row < roiHeight / 2; row++) {
+            System.arraycopy(
+                    bytes, frameVuOffset + (top / 2 + row) * width + left,
+                    roi, roiVuOffset + row * roiWidth, roiWidth);
+        }
+
+        Mat image = new Mat(roiHeight + (roiHeight / 2), roiWidth,
+                CvType.CV_8UC1);
+        image.put(0, 0, roi);
+        Imgproc.cvtColor(image, image, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+        return rotateAndCropRoi(image, sensorRoi, width, height, rotation,
+                bBox);
+    }
+
+    /**
+     * Same as {@link #getMatFromYuvBytes(byte[], int, int, Rect)}, but for the
+     * frame given as two planes, e.g. wrapping the buffers of a camera2
+     * image without copying them.
+     *
+     * @param yPlane   luminance plane, CV_8UC1
+     * @param vuPlane  interleaved chroma plane in NV21 order, CV_8UC2 of
+     *                 half the size of the luminance plane
+     * @param bBox     bounding box on the rotated frame
+     * @param rotation clockwise rotation of the frame to the upright
+     *                 position, in degrees
+     * @return cropped and rotated RGBA image or null if the box does not fit
+     *         within the frame
+     */
+    public static Mat getMatFromYuvPlanes(
+            final Mat yPlane, final Mat vuPlane, final Rect bBox,
+            final int rotation) {
+        final int width = yPlane.cols();
+        final int height = yPlane.rows();
+        final Rect sensorRoi = getSensorRoi(bBox, width, height, rotation);
+        if (sensorRoi == null) {
+            return null;
+        }
+        final Mat yRoi = yPlane.submat(
+                sensorRoi.top, sensorRoi.bottom,
+                sensorRoi.left, sensorRoi.right);
+        final Mat vuRoi = vuPlane.submat(
+                sensorRoi.top / 2, sensorRoi.bottom / 2,
+                sensorRoi.left / 2, sensorRoi.right / 2);
+        final Mat image = new Mat();
+        Imgproc.cvtColorTwoPlane(
+                yRoi, vuRoi, image, Imgproc.COLOR_YUV2RGBA_NV21);
+        yRoi.release();
+        vuRoi.release();
+        return rotateAndCropRoi(image, sensorRoi, width, height, rotation,
+                bBox);
+    }
+
+    /**
+     * Maps the bounding box on the rotated frame to the frame before
+     * rotation. As chroma is subsampled 2x2, the region gets enlarged to
+     * even coordinates.
+     *
+     * @return region of the frame or null if the box does not fit within it
+     */
+    private static Rect getSensorRoi(
+            final Rect bBox, final int width, final int height,
+            final int rotation) {
+        if (!verifyBoundingBox(bBox, getRotatedSize(width, height, rotation))
+                || bBox.bottom <= bBox.top) {
+            return null;
+        }
+        final Rect sensorBox =
+                rotatedRectToSensorRect(bBox, width, height, rotation);
+        return new Rect(
+                sensorBox.left & ~1,
+                sensorBox.top & ~1,
+                Math.min(width, (sensorBox.right + 1) & ~1),
+                Math.min(height, (sensorBox.bottom + 1) & ~1));
+    }
+
+    /**
+     * Rotates the converted region and, as the alignment could have enlarged
+     * it, cuts it to the requested box. Releases the received image.
+     */
+    private static Mat rotateAndCropRoi(
+            final Mat image, final Rect sensorRoi, final int width,
+            final int height, final int rotation, final Rect bBox) {
+        final Mat rotated = rotateMat(image, rotation);
+        image.release();
+        final Rect rotatedRoi =
+                sensorRectToRotatedRect(sensorRoi, width, height, rotation);
+        final int offsetX = rotatedRoi.left;
+        final int offsetY = rotatedRoi.top;
+        return rotated.submat(
+                bBox.top - offsetY, bBox.bottom - offsetY,
+                bBox.left - offsetX, bBox.right - offsetX);
+    }
+
+    /**
+     * @return size of the frame of the received size after the rotation
+     */
+    public static Size getRotatedSize(
+            final int width, final int height, final int rotation) {
+        return rotation % 180 == 0
+                ? new Size(width, height)
+                : new Size(height, width);
+    }
+
     public static byte[] getBytesFromBitmap(final Bitmap src)
             throws IOException {
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
@@ -117,6 +272,32 @@ public final class ImageUtils {
         return rotated;
     }
 
+    /**
+     * Rotates the image clockwise. {@link #rotateMat(Mat)} is the same as
+     * the rotation by 90 degrees.
+     *
+     * @param rotation multiple of 90 degrees
+     * @return new rotated image, a copy if the rotation is 0
+     */
+    public static Mat rotateMat(final Mat src, final int rotation) {
+        if (rotation == 90) {
+            return rotateMat(src);
+        }
+        if (rotation != 0 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException(
+                    "Invalid rotation: " + rotation);
+        }
+        final Mat rotated = new Mat();
+        if (rotation == 0) {
+            src.copyTo(rotated);
+        } else {
+            Core.rotate(src, rotated, rotation == 180
+                    ? Core.ROTATE_180
+                    : Core.ROTATE_90_COUNTERCLOCKWISE);
+        }
+        return rotated;
+    }
+
     public static Mat resizeMat(final Mat src, final int width) {
         return resizeMat(src, width,
                 (int) (width * FINAL_IMAGE_H_TO_W_RATIO));
@@ -288,23 +469,15 @@ public final class ImageUtils {
     }
 
     private static com.google.android.gms.vision.face.Face detectAndGetFace(
-            final int bigToSmallImgScale,
-            final Bitmap bigImage,
+            final Bitmap smallImage,
             final FaceDetector detector) {
 
-        Bitmap smallImage = Bitmap.createScaledBitmap(
-                bigImage,
-                bigImage.getWidth() / bigToSmallImgScale,
-                bigImage.getHeight() / bigToSmallImgScale,
-                false);
-
         Frame frame = new Frame.Builder().setBitmap(smallImage)
                                          .setRotation(ROTATION_90)
                                          .build();
 
         SparseArray<com.google.android.gms.vision.face.Face>
                 faces = detector.detect(frame);
-        ImageUtils.safelyRemoveBitmap(smallImage);
         if (faces.size() != 1) {
             return null;
         }
@@ -312,42 +485,143 @@ public final class ImageUtils {
         return faces.valueAt(0);
     }
 
+    /**
+     * @param smallImage subsampled picture, in the camera orientation
+     * @return bounding box of the face on the upright picture or null if it
+     *         could not be located confidently
+     */
+    private static Rect locateFace(
+            final Bitmap smallImage, final FaceTemplate template,
+            final StillFaceLocator locator) {
+        final Mat rgba = new Mat();
+        Utils.bitmapToMat(smallImage, rgba);
+        final Mat gray = new Mat();
+        Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+        rgba.release();
+        final Mat upright = rotateMat(gray);
+        gray.release();
+        final Rect located = locator.locate(upright, template);
+        upright.release();
+        return located;
+    }
+
+    /**
+     * Same as {@link #getFaceMatFromPictureTaken(byte[], FaceDetector,
+     * FaceTemplate, StillFaceLocator, RectF)}, always detecting the face.
+     */
     public static Mat getFaceMatFromPictureTaken(
             final byte[] bytes,
             final com.google.android.gms.vision.face.FaceDetector detector) {
+        return getFaceMatFromPictureTaken(bytes, detector, null, null, null);
+    }
 
-        Bitmap bmp = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-        // we need to detect face again on the bitmap. In case the face is quite
-        // small on the screen and the camera was moved there could be a shift
-        // between previously detected face position and actual position on the
-        // picture. To be on the safe side we make detection on the final photo.
-        com.google.android.gms.vision.face.Face face =
-                detectAndGetFace(PICTURE_PROCESS_SCALE, bmp, detector);
-        if (null == face) {
-            Log.w(
-                    "Photo Taken",
-                    "Did not find any face on the image data. Picture taking " +
-                            "will fail.");
-            ImageUtils.safelyRemoveBitmap(bmp);
+    /**
+     * Cuts the face out of the picture taken by the camera. The picture is
+     * decoded twice: subsampled by {@link #PICTURE_PROCESS_SCALE} for the face
+     * detection, then only the face region in the full resolution. The whole
+     * picture is never decoded in the full resolution.
+     * <p/>
+     * If the face detected on the preview is given, the face is located on
+     * the picture with its help first and the detection runs only if that
+     * fails.
+     *
+     * @param bytes    encoded picture, in the camera orientation
+     * @param detector detector of the most prominent face
+     * @param template face detected on the preview shortly before taking the
+     *                 picture, or null
+     * @param locator  locator of the face based on the template, or null to
+     *                 always detect the face
+     * @param faceCrop if not null, set to the region cut out, relative to the
+     *                 size of the upright picture
+     * @return face picture in the final size or null if no face was found or
+     *         it does not fit within the picture
+     */
+    public static Mat getFaceMatFromPictureTaken(
+            final byte[] bytes,
+            final com.google.android.gms.vision.face.FaceDetector detector,
+            final FaceTemplate template,
+            final StillFaceLocator locator,
+            final RectF faceCrop) {
+
+        final BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(
+                    bytes, 0, bytes.length, false);
+        } catch (IOException e) {
+            Log.w("Photo Taken", "Could not decode the picture.", e);
             return null;
         }
-        Mat picture = new Mat();
-        Utils.bitmapToMat(bmp, picture);
-        ImageUtils.safelyRemoveBitmap(bmp);
-        picture = ImageUtils.rotateMat(picture);
-
-        Rect faceBbSmall = getFaceBoundingBox(face);
-        Rect faceBoundingBox = multiplyRect(PICTURE_PROCESS_SCALE, faceBbSmall);
-        if (!verifyBoundingBox(faceBoundingBox, picture.size())) {
-            Log.w(
-                    "Photo Taken",
-                    "Picture does not fit entirely within visible camera " +
-                            "region. Picture taking will fail.");
-            return null;
+        try {
+            final int width = decoder.getWidth();
+            final int height = decoder.getHeight();
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = PICTURE_PROCESS_SCALE;
+            Bitmap smallImage = BitmapFactory.decodeByteArray(
+                    bytes, 0, bytes.length, options);
+            if (null == smallImage) {
+                Log.w("Photo Taken", "Could not decode the picture.");
+                return null;
+            }
+            // In case the face is quite small on the screen and the camera was
+            // moved there could be a shift between previously detected face
+            // position and actual position on the picture. To be on the safe
+            // side the face is located on the final photo: by matching the
+            // face seen on the preview or, if it cannot be found confidently,
+            // by detecting it again.
+            Rect faceBbSmall = null;
+            if (null != locator) {
+                final Rect located =
+                        locateFace(smallImage, template, locator);
+                if (null != located) {
+                    faceBbSmall = getFaceBoundingBox(located);
+                }
+            }
+            if (null == faceBbSmall) {
+                com.google.android.gms.vision.face.Face face =
+                        detectAndGetFace(smallImage, detector);
+                if (null != face) {
+                    faceBbSmall = getFaceBoundingBox(face);
+                }
+            }
+            // the decoder rounds the size down, so the scale is not exact
+            final float scale = width / (float) smallImage.getWidth();
+            ImageUtils.safelyRemoveBitmap(smallImage);
+            if (null == faceBbSmall) {
+                Log.w(
+                        "Photo Taken",
+                        "Did not find any face on the image data. Picture " +
+                                "taking will fail.");
+                return null;
+            }
+
+            Rect faceBoundingBox = multiplyRect(scale, faceBbSmall);
+            if (!verifyBoundingBox(faceBoundingBox, new Size(height, width))
+                    || faceBoundingBox.bottom <= faceBoundingBox.top) {
+                Log.w(
+                        "Photo Taken",
+                        "Picture does not fit entirely within visible camera " +
+                                "region. Picture taking will fail.");
+                return null;
+            }
+            if (null != faceCrop) {
+                faceCrop.set(SpeculativeMask.relativeCrop(
+                        faceBoundingBox, height, width));
+            }
+
+            Bitmap faceImage = decoder.decodeRegion(
+                    rotatedRectToSensorRect(faceBoundingBox, height), null);
+            Mat picture = new Mat();
+            Utils.bitmapToMat(faceImage, picture);
+            ImageUtils.safelyRemoveBitmap(faceImage);
+            Mat rotated = ImageUtils.rotateMat(picture);
+            picture.release();
+            picture = ImageUtils.resizeMatToFinalSize(rotated);
+            rotated.release();
+            return picture;
+        } finally {
+            decoder.recycle();
         }
-        picture = picture.submat(AndroidRectToOpenCVRect(faceBoundingBox));
-        picture = ImageUtils.resizeMatToFinalSize(picture);
-        return picture;
     }
 
 }
@@ -20,6 +20,15 @@ public final class PPCUtils {
                 faceBoundingBoxSmall.bottom * bigToSmallImgScale);
     }
 
+    public static Rect multiplyRect(
+            final float bigToSmallImgScale, final Rect faceBoundingBoxSmall) {
+        return new Rect(
+                Math.round(faceBoundingBoxSmall.left * bigToSmallImgScale),
+                Math.round(faceBoundingBoxSmall.top * bigToSmallImgScale),
+                Math.round(faceBoundingBoxSmall.right * bigToSmallImgScale),
+                Math.round(faceBoundingBoxSmall.bottom * bigToSmallImgScale));
+    }
+
     public static org.opencv.core.Rect AndroidRectToOpenCVRect(
             final Rect faceBoundingBoxBig) {
 
@@ -28,6 +37,102 @@ public final class PPCUtils {
                 faceBoundingBoxBig.width(), faceBoundingBoxBig.height());
     }
 
+    /**
+     * Maps a rectangle from the frame rotated with
+     * {@link ImageUtils#rotateMat} back to the coordinates of the frame
+     * before rotation.
+     *
+     * @param rotated      rectangle on the rotated frame
+     * @param sensorHeight height of the frame before rotation
+     * @return rectangle on the frame before rotation
+     */
+    public static Rect rotatedRectToSensorRect(
+            final Rect rotated, final int sensorHeight) {
+        return new Rect(
+                rotated.top,
+                sensorHeight - rotated.right,
+                rotated.bottom,
+                sensorHeight - rotated.left);
+    }
+
+    /**
+     * Same as {@link #rotatedRectToSensorRect(Rect, int)}, for the frame
+     * rotated by any multiple of 90 degrees, see
+     * {@link ImageUtils#rotateMat(org.opencv.core.Mat, int)}.
+     *
+     * @param rotated      rectangle on the rotated frame
+     * @param sensorWidth  width of the frame before rotation
+     * @param sensorHeight height of the frame before rotation
+     * @param rotation     clockwise rotation of the frame, in degrees
+     * @return rectangle on the frame before rotation
+     */
+    public static Rect rotatedRectToSensorRect(
+            final Rect rotated, final int sensorWidth, final int sensorHeight,
+            final int rotation) {
+        switch (rotation) {
+            case 0:
+                return new Rect(rotated);
+            case 90:
+                return rotatedRectToSensorRect(rotated, sensorHeight);
+            case 180:
+                return new Rect(
+                        sensorWidth - rotated.right,
+                        sensorHeight - rotated.bottom,
+                        sensorWidth - rotated.left,
+                        sensorHeight - rotated.top);
+            case 270:
+                return new Rect(
+                        sensorWidth - rotated.bottom,
+                        rotated.left,
+                        sensorWidth - rotated.top,
+                        rotated.right);
+            default:
+                throw new IllegalArgumentException(
+                        "Invalid rotation: " + rotation);
+        }
+    }
+
+    /**
+     * Inverse of
+     * {@link #rotatedRectToSensorRect(Rect, int, int, int)}: maps a
+     * rectangle on the frame before rotation to the rotated frame.
+     *
+     * @param sensor       rectangle on the frame before rotation
+     * @param sensorWidth  width of the frame before rotation
+     * @param sensorHeight height of the frame before rotation
+     * @param rotation     clockwise rotation of the frame, in degrees
+     * @return rectangle on the rotated frame
+     */
+    public static Rect sensorRectToRotatedRect(
+            final Rect sensor, final int sensorWidth, final int sensorHeight,
+            final int rotation) {
+        switch (rotation) {
+            case 0:
+                return new Rect(sensor);
+            case 90:
+                return new Rect(
+                        sensorHeight - sensor.bottom,
+                        sensor.left,
+                        sensorHeight - sensor.top,
+                        sensor.right);
+            case 180:
+                return new Rect(
+                        sensorWidth - sensor.right,
+                        sensorHeight - sensor.bottom,
+                        sensorWidth - sensor.left,
+                        sensorHeight - sensor.top);
+            case 270:
+                return new Rect(
+                        sensor.top,
+                        sensorWidth - sensor.right,
+                        sensor.bottom,
+                        sensorWidth - sensor.left);
+            default:
+                throw new IllegalArgumentException(
+                        "Invalid rotation: " + rotation);
+        }
+    }
+
     public static Rect translateY(final Rect faceBoundingBox, final float v) {
         return new Rect(
                 faceBoundingBox.left,
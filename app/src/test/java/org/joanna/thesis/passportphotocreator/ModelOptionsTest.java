@@ -0,0 +1,33 @@
+package org.joanna.thesis.passportphotocreator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class ModelOptionsTest {
+
+    @Test
+    public void decodesEncodedOptions() {
+        ModelOptions options = new ModelOptions(4, true, false, true);
+        assertEquals(options, ModelOptions.decode(options.encode()));
+        assertEquals(ModelOptions.DEFAULT,
+                ModelOptions.decode(ModelOptions.DEFAULT.encode()));
+    }
+
+    @Test
+    public void unreadableOptionsAreNull() {
+        assertNull(ModelOptions.decode(null));
+        assertNull(ModelOptions.decode("4,true"));
+        assertNull(ModelOptions.decode("four,true,false,false"));
+    }
+
+    @Test
+    public void withThreadsKeepsTheOtherOptions() {
+        ModelOptions options = new ModelOptions(-1, false, true, true);
+        ModelOptions tuned = options.withThreads(2, true);
+        assertEquals(new ModelOptions(2, true, true, true), tuned);
+        assertNotEquals(options, tuned);
+    }
+}
@@ -0,0 +1,139 @@
+package org.joanna.thesis.passportphotocreator.camera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FpsGovernorTest {
+
+    private static final long  MS      = 1000000L;
+    private static final float MAX_FPS = 30f;
+
+    private FakeClock                  clock;
+    private FakeHints                  hints;
+    private List<FpsGovernor.Decision> decisions;
+    private FpsGovernor                governor;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        hints = new FakeHints();
+        decisions = new ArrayList<>();
+        governor = new FpsGovernor(clock, hints, decisions::add, MAX_FPS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidFpsIsRejected() {
+        new FpsGovernor(clock, null, null, 0);
+    }
+
+    @Test
+    public void fastDetectionProcessesEveryFrame() {
+        runFrames(60, 10 * MS);
+        final FpsGovernor.Decision decision = lastDecision();
+        assertEquals("requested", decision.getReason());
+        assertEquals(MAX_FPS, decision.getTargetFps(), 0.01);
+        assertEquals(1, governor.getDecimation());
+    }
+
+    @Test
+    public void slowDetectionDecimatesFrames() {
+        runFrames(60, 100 * MS);
+        final FpsGovernor.Decision decision = lastDecision();
+        assertEquals("latency", decision.getReason());
+        assertEquals(1000f / 100 * FpsGovernor.HEADROOM,
+                decision.getTargetFps(), 0.01);
+        assertEquals(4, governor.getDecimation());
+    }
+
+    @Test
+    public void droppedFramesBackOff() {
+        runFrames(30, 10 * MS);
+        final int decimation = governor.getDecimation();
+        governor.onFrameDropped();
+        runFrames(30, 10 * MS);
+        assertEquals("queue", lastDecision().getReason());
+        assertEquals(1, lastDecision().getDropped());
+        assertEquals(decimation + 1, governor.getDecimation());
+    }
+
+    @Test
+    public void severeThermalStatusLimitsFps() {
+        hints.thermalStatus = FpsGovernor.THERMAL_STATUS_SEVERE;
+        runFrames(60, 10 * MS);
+        assertEquals("thermal", lastDecision().getReason());
+        assertEquals(FpsGovernor.HOT_FPS, governor.getTargetFps(), 0.01);
+    }
+
+    @Test
+    public void powerSaveModeLimitsFps() {
+        hints.powerSave = true;
+        runFrames(60, 10 * MS);
+        assertEquals("power save", lastDecision().getReason());
+        assertEquals(FpsGovernor.THROTTLED_FPS, governor.getTargetFps(),
+                0.01);
+    }
+
+    @Test
+    public void decimationRecoversGradually() {
+        runFrames(60, 100 * MS);
+        final int decimation = governor.getDecimation();
+        runFrames(30, 10 * MS);
+        assertEquals(decimation - 1, governor.getDecimation());
+    }
+
+    /**
+     * Delivers camera frames at the maximal rate, detecting those the
+     * governor lets through.
+     */
+    private void runFrames(final int frames, final long detectionNs) {
+        for (int i = 0; i < frames; i++) {
+            frame(detectionNs);
+        }
+    }
+
+    private void frame(final long detectionNs) {
+        clock.advance((long) (1e9 / MAX_FPS));
+        if (governor.shouldProcess()) {
+            governor.onDetection(detectionNs);
+        }
+    }
+
+    private FpsGovernor.Decision lastDecision() {
+        assertTrue(!decisions.isEmpty());
+        return decisions.get(decisions.size() - 1);
+    }
+
+    private static class FakeClock implements FpsGovernor.Clock {
+        private long mNowNs;
+
+        void advance(final long ns) {
+            mNowNs += ns;
+        }
+
+        @Override
+        public long nowNs() {
+            return mNowNs;
+        }
+    }
+
+    private static class FakeHints implements FpsGovernor.Hints {
+        int     thermalStatus;
+        boolean powerSave;
+
+        @Override
+        public int getThermalStatus() {
+            return thermalStatus;
+        }
+
+        @Override
+        public boolean isPowerSaveMode() {
+            return powerSave;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.joanna.thesis.passportphotocreator.processing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VerificationSchedulerTest {
+
+    private static final long   MS        = 1000000L;
+    private static final String CHEAP     = "symmetry";
+    private static final String EXPENSIVE = "background";
+
+    private FakeClock                     clock;
+    private VerificationScheduler<String> scheduler;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        scheduler = new VerificationScheduler<>(clock, 100);
+        scheduler.register(CHEAP);
+        scheduler.register(EXPENSIVE);
+    }
+
+    @Test
+    public void newVerifiersAreDueImmediately() {
+        assertEquals(Arrays.asList(CHEAP, EXPENSIVE), scheduler.pollDue());
+    }
+
+    @Test
+    public void runningVerifierIsNotDueAgain() {
+        scheduler.pollDue();
+        clock.advance(10000 * MS);
+        assertEquals(Collections.emptyList(), scheduler.pollDue());
+    }
+
+    @Test
+    public void droppedVerifierIsDueAgain() {
+        scheduler.pollDue();
+        scheduler.onDropped(EXPENSIVE);
+        assertEquals(Collections.singletonList(EXPENSIVE), scheduler.pollDue());
+    }
+
+    @Test
+    public void cheapVerifierRunsMoreOften() {
+        runStable(20);
+        assertTrue(scheduler.getIntervalNs(CHEAP) <
+                scheduler.getIntervalNs(EXPENSIVE));
+        assertEquals(VerificationScheduler.MIN_INTERVAL_NS,
+                scheduler.getIntervalNs(CHEAP));
+    }
+
+    @Test
+    public void costIsSmoothed() {
+        scheduler.pollDue();
+        scheduler.onCompleted(EXPENSIVE, 80 * MS, "ok");
+        assertEquals(80, scheduler.getCostMs(EXPENSIVE), 0.01);
+        scheduler.onCompleted(EXPENSIVE, 180 * MS, "ok");
+        assertEquals(80 + VerificationScheduler.SMOOTHING * 100,
+                scheduler.getCostMs(EXPENSIVE), 0.01);
+    }
+
+    @Test
+    public void budgetIsNotExceeded() {
+        runStable(20);
+        // with equal weights the expensive verifier gets half of the budget
+        final double usedMsPerS = 80.0 * 1000 * MS /
+                scheduler.getIntervalNs(EXPENSIVE);
+        assertEquals(50, usedMsPerS, 1);
+    }
+
+    @Test
+    public void volatileVerifierRunsMoreOften() {
+        runStable(20);
+        final long stableInterval = scheduler.getIntervalNs(EXPENSIVE);
+        for (int i = 0; i < 20; i++) {
+            scheduler.onCompleted(EXPENSIVE, 80 * MS, "result " + i);
+        }
+        assertTrue(scheduler.getVolatility(EXPENSIVE) > 0.9);
+        assertTrue(scheduler.getIntervalNs(EXPENSIVE) < stableInterval);
+    }
+
+    @Test
+    public void verifierIsDueAfterItsInterval() {
+        scheduler.pollDue();
+        scheduler.onCompleted(CHEAP, 2 * MS, "ok");
+        scheduler.onCompleted(EXPENSIVE, 80 * MS, "ok");
+        final long interval = scheduler.getIntervalNs(EXPENSIVE);
+        clock.advance(VerificationScheduler.MIN_INTERVAL_NS);
+        assertEquals(Collections.singletonList(CHEAP), scheduler.pollDue());
+        clock.advance(interval - VerificationScheduler.MIN_INTERVAL_NS);
+        final List<String> due = scheduler.pollDue();
+        assertEquals(Collections.singletonList(EXPENSIVE), due);
+    }
+
+    @Test
+    public void busyVerifierIsDeferredUnderLoad() {
+        final long frameNs = 33 * MS;
+        final long runNs = 300 * MS;
+        scheduler.pollDue();
+        // the cheap verifier always finishes within its frame
+        scheduler.onCompleted(CHEAP, 2 * MS, "ok");
+        long finishesAt = runNs;
+        for (long now = frameNs; now < 3000 * MS; now += frameNs) {
+            clock.advance(frameNs);
+            if (now >= finishesAt) {
+                scheduler.onCompleted(EXPENSIVE, runNs, "ok");
+                finishesAt = Long.MAX_VALUE;
+            }
+            final List<String> due = scheduler.pollDue();
+            if (due.contains(EXPENSIVE)) {
+                finishesAt = now + runNs;
+            }
+            if (due.contains(CHEAP)) {
+                scheduler.onCompleted(CHEAP, 2 * MS, "ok");
+            }
+        }
+        // every frame arriving during the expensive run is missed by it
+        assertEquals(runNs / frameNs, scheduler.getDeferredCount());
+    }
+
+    @Test
+    public void idleVerifierIsNotDeferred() {
+        scheduler.pollDue();
+        scheduler.onCompleted(CHEAP, 2 * MS, "ok");
+        scheduler.onCompleted(EXPENSIVE, 80 * MS, "ok");
+        scheduler.pollDue();
+        assertEquals(0, scheduler.getDeferredCount());
+    }
+
+    private void runStable(final int runs) {
+        for (int i = 0; i < runs; i++) {
+            scheduler.onCompleted(CHEAP, 2 * MS, "ok");
+            scheduler.onCompleted(EXPENSIVE, 80 * MS, "ok");
+        }
+    }
+
+    private static class FakeClock implements VerificationScheduler.Clock {
+        private long mNowNs;
+
+        void advance(final long ns) {
+            mNowNs += ns;
+        }
+
+        @Override
+        public long nowNs() {
+            return mNowNs;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.joanna.thesis.passportphotocreator.processing.light.enhancement;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShadowRemoverTilingTest {
+
+    private static final int TILE    = 256;
+    private static final int OVERLAP = 64;
+
+    @Test
+    public void singleTileCoversShortSide() {
+        assertEquals(Collections.singletonList(0),
+                ShadowRemover.getTileOrigins(TILE, TILE, OVERLAP));
+    }
+
+    @Test
+    public void lastTileEndsAtTheEdge() {
+        assertEquals(Arrays.asList(0, 192, 384, 444),
+                ShadowRemover.getTileOrigins(700, TILE, OVERLAP));
+    }
+
+    @Test
+    public void tilesOverlapAtLeastByTheOverlap() {
+        for (int length = TILE; length < 1200; length += 7) {
+            final List<Integer> origins =
+                    ShadowRemover.getTileOrigins(length, TILE, OVERLAP);
+            assertEquals(0, (int) origins.get(0));
+            assertEquals(length, origins.get(origins.size() - 1) + TILE);
+            for (int i = 1; i < origins.size(); i++) {
+                assertTrue(origins.get(i - 1) + TILE - origins.get(i) >=
+                        OVERLAP);
+            }
+        }
+    }
+
+    @Test
+    public void weightsFadeTowardsTheEdges() {
+        final float[] ramp = ShadowRemover.getFeatherRamp(TILE, OVERLAP);
+        assertEquals(1f / (OVERLAP + 1), ramp[0], 1e-6);
+        assertEquals(ramp[0], ramp[TILE - 1], 1e-6);
+        assertEquals(1f, ramp[OVERLAP], 1e-6);
+        assertEquals(1f, ramp[TILE / 2], 1e-6);
+        for (int i = 1; i <= OVERLAP; i++) {
+            assertTrue(ramp[i] > ramp[i - 1]);
+        }
+    }
+}